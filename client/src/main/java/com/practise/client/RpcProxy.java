@@ -10,7 +10,7 @@ import org.springframework.stereotype.Component;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author HzeLng
@@ -22,6 +22,10 @@ import java.util.UUID;
 public class RpcProxy {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RpcProxy.class);
+    /**
+     * 请求序号，写进帧头
+     */
+    private static final AtomicLong REQUEST_ID = new AtomicLong();
 
     @Autowired
     private ServiceDiscovery serviceDiscovery;
@@ -62,7 +66,7 @@ public class RpcProxy {
                         // 创建并初始化RPC请求
                         RpcRequest rpcRequest = new RpcRequest();
                         // 请求ID必须有，因为同一个客户端和同一个服务端之间可能有多次RPC请求与相应，需要表示每次请求
-                        rpcRequest.setRequestId(UUID.randomUUID().toString());
+                        rpcRequest.setRequestId(REQUEST_ID.incrementAndGet());
                         // 声明被调用的方法所属的类，这样服务端才知道是要调用哪一个接口
                         rpcRequest.setClassName(method.getDeclaringClass().getName());
                         // 声明被调用的是哪一个方法，这样服务端才知道是接口中的哪一个方法
@@ -4,7 +4,12 @@ import com.practise.clientV2.connect.ConnectionManager;
 import com.practise.clientV2.discovery.ServiceDiscovery;
 import com.practise.clientV2.proxy.ObjectProxy;
 import com.practise.clientV2.proxy.RpcService;
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.compress.Compressor;
+import com.practise.common.compress.CompressorRegistry;
 import com.practise.common.anotations.RpcAutowired;
+import com.practise.common.resource.RpcResources;
+import com.practise.common.utils.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
@@ -14,9 +19,6 @@ import org.springframework.context.ApplicationContextAware;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Proxy;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 /**
  * @author HzeLng
@@ -31,11 +33,19 @@ public class RpcClient implements ApplicationContextAware, DisposableBean {
 
     private ServiceDiscovery serviceDiscovery;
     /**
-     * 创建线程池，复用 主要用来异步获取返回结果
+     * 这个客户端创建的代理发出的请求用的序列化器，null 表示用连接默认的（protostuff）
+     * 连接是进程内共用的，序列化器跟着请求走，不同的客户端可以用不同的序列化器
      */
-    private static ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(16, 16,
-            600L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1000));
-
+    private Serializer serializer;
+    /**
+     * 这个客户端创建的代理发出的请求用的压缩算法，null 表示不压缩
+     * 和序列化器一样跟着请求走，共用连接的客户端各自生效
+     */
+    private Compressor compressor;
+    /**
+     * 静态的 createService/createAsyncService 用的客户端：最早创建、还没 stop 的那个
+     */
+    private static volatile RpcClient defaultClient;
     /**
      * 基础版：
      *      服务启动时，容器加载，ServiceDiscovery被注入成bean（这里具体涉及到Spring 容器相关的，还没学，可能不准确）
@@ -50,37 +60,109 @@ public class RpcClient implements ApplicationContextAware, DisposableBean {
      */
     public RpcClient(String address) {
         logger.info("RpcClient-constructor");
+        RpcResources.retain();
         this.serviceDiscovery = new ServiceDiscovery(address);
+        setDefaultClient(this);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * @param address
+     * @param serializer 序列化器名字，如 protostuff、json、kryo、hessian，服务端要启用了这个序列化器
+     */
+    public RpcClient(String address, String serializer) {
+        this.serializer = SerializerRegistry.getSerializer(serializer);
+        ConnectionManager.getInstance().acceptSerializer(this.serializer);
+        logger.info("RpcClient-constructor, serializer: {}", serializer);
+        RpcResources.retain();
+        this.serviceDiscovery = new ServiceDiscovery(address);
+        setDefaultClient(this);
+    }
+
+    /**
+     * @param address
+     * @param serializer 序列化器名字
+     * @param compressor 压缩算法名字，如 deflate、snappy，握手时服务端也支持才会启用
+     */
+    public RpcClient(String address, String serializer, String compressor) {
+        this.serializer = SerializerRegistry.getSerializer(serializer);
+        ConnectionManager.getInstance().acceptSerializer(this.serializer);
+        this.compressor = CompressorRegistry.getCompressor(compressor);
+        logger.info("RpcClient-constructor, serializer: {}, compressor: {}", serializer, compressor);
+        RpcResources.retain();
+        this.serviceDiscovery = new ServiceDiscovery(address);
+        setDefaultClient(this);
+    }
+
+    /**
+     * 用默认客户端（最早创建的那个）的序列化器和压缩算法，没有客户端时用连接默认的、不压缩
+     * 多个客户端用不同的序列化器时，用实例方法 {@link #createService(Class, String, long)}
+     */
     public static <T, P> T createService(Class<T> interfaceClass, String version) {
+        RpcClient client = defaultClient;
+        return client != null ? client.createService(interfaceClass, version, 0)
+                : createService(interfaceClass, version, 0, null, null);
+    }
+
+    /**
+     * @param timeout 这个代理发出的调用的超时时间（毫秒），0 表示用全局的设置
+     */
+    public <T, P> T createService(Class<T> interfaceClass, String version, long timeout) {
+        return createService(interfaceClass, version, timeout, serializer, compressor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, P> T createService(Class<T> interfaceClass, String version, long timeout, Serializer serializer,
+                                          Compressor compressor) {
         logger.info("RpcClient-createService: createService ");
         return (T) Proxy.newProxyInstance(
                 interfaceClass.getClassLoader(),
                 new Class<?>[]{interfaceClass},
-                new ObjectProxy<T, P>(interfaceClass, version)
+                new ObjectProxy<T, P>(interfaceClass, version, timeout, serializer, compressor)
         );
     }
 
+    /**
+     * 用默认客户端的序列化器和压缩算法，见 {@link #createService(Class, String)}
+     */
     public static <T, P> RpcService createAsyncService(Class<T> interfaceClass, String version) {
-        return new ObjectProxy<T, P>(interfaceClass, version);
+        RpcClient client = defaultClient;
+        return client != null ? client.createAsyncService(interfaceClass, version, 0)
+                : new ObjectProxy<T, P>(interfaceClass, version, 0, null, null);
+    }
+
+    /**
+     * @param timeout 这个代理发出的调用的超时时间（毫秒），0 表示用全局的设置
+     */
+    public <T, P> RpcService createAsyncService(Class<T> interfaceClass, String version, long timeout) {
+        return new ObjectProxy<T, P>(interfaceClass, version, timeout, serializer, compressor);
+    }
+
+    private static synchronized void setDefaultClient(RpcClient client) {
+        if (defaultClient == null) {
+            defaultClient = client;
+        }
     }
 
     /**
      * 提交的是什么任务?
      * 在RpcFuture中调用，用来提交 获取返回结果的 任务
+     * 线程池是进程内共用的，见 {@link RpcResources#callbackExecutor()}
      * @param task
      */
     public static void submit(Runnable task) {
-        threadPoolExecutor.submit(task);
+        RpcResources.callbackExecutor().submit(task);
     }
 
     public void stop() {
         logger.info("RpcClient-stop");
-        threadPoolExecutor.shutdown();
+        synchronized (RpcClient.class) {
+            if (defaultClient == this) {
+                defaultClient = null;
+            }
+        }
         serviceDiscovery.stop();
         ConnectionManager.getInstance().stop();
+        RpcResources.release();
     }
 
     @Override
@@ -100,7 +182,7 @@ public class RpcClient implements ApplicationContextAware, DisposableBean {
                     if (rpcAutowired != null) {
                         String version = rpcAutowired.version();
                         field.setAccessible(true);
-                        field.set(bean, createService(field.getType(), version));
+                        field.set(bean, createService(field.getType(), version, rpcAutowired.timeout()));
                     }
                 }
             } catch (IllegalAccessException e) {
@@ -0,0 +1,204 @@
+package com.practise.clientV2.connect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ConcurrencyLimiter
+ * @date 2022/3/30 10:00
+ *
+ * 自适应的并发上限（gradient 算法），一个节点或者一个服务一个，由 ConnectionManager 创建
+ *
+ * 每个窗口（至少 100ms、MIN_SAMPLES 个响应）算一次平均响应时间 rtt，再和没有排队时的响应时间 noLoadRtt 比：
+ *      gradient = clamp(TOLERANCE * noLoadRtt / rtt, 0.5, 1)
+ *      newLimit = limit * gradient + sqrt(limit)
+ * noLoadRtt 是见过的最小响应时间，每 RESET_WINDOWS 个窗口用当前窗口的最小值重新开始，跟上网络、服务本身的变化
+ * 响应时间没变长时 gradient 为 1，上限每个窗口涨 sqrt(limit)；服务端开始排队、响应变慢时上限跟着降，
+ * 多出来的请求在客户端被拒绝或者短暂等待，不再堆到服务端的队列里
+ * 窗口里有超时、被服务端拒绝的请求时直接乘 BACKOFF 降下来
+ * 在途请求数不到上限的一半时，说明调用方自己没用满，响应快也不涨
+ *
+ * 在途数是软上限：检查和登记不是一个原子操作，多个线程同时检查可能一起超过一点
+ */
+public class ConcurrencyLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_SAMPLES = 10;
+    /**
+     * 响应时间比 noLoadRtt 慢到 1.5 倍以内不降
+     */
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+    private static final int RESET_WINDOWS = 600;
+    private static final long AWAIT_SLICE_MILLIS = 10;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * 下面的字段在 synchronized (this) 里读写
+     */
+    private double estimatedLimit;
+    private long noLoadRtt = Long.MAX_VALUE;
+    private int windows;
+    private long windowStart = System.nanoTime();
+    private long windowMinRtt = Long.MAX_VALUE;
+    private long rttSum;
+    private int samples;
+    private int drops;
+    private int windowMaxInFlight;
+
+    /**
+     * 在 awaitAvailable 里等的线程数，没人等时请求结束不用去唤醒
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Object availableLock = new Object();
+
+    ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    public boolean isAvailable() {
+        return inFlight.get() < limit;
+    }
+
+    /**
+     * 等到在途数降到上限以下，请求结束时被唤醒
+     * @return 超时返回 false
+     */
+    boolean awaitAvailable(long timeoutMillis) throws InterruptedException {
+        if (isAvailable()) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waiters.incrementAndGet();
+        try {
+            synchronized (availableLock) {
+                while (!isAvailable()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    availableLock.wait(Math.max(1, Math.min(AWAIT_SLICE_MILLIS, TimeUnit.NANOSECONDS.toMillis(remaining))));
+                }
+                return true;
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 请求登记到连接上时调用
+     */
+    public void onSend() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * 请求结束时调用，和 {@link #onSend()} 一一对应
+     * @param rttNanos 从发出到结束的时间
+     * @param dropped 超时或者被服务端拒绝，说明已经过载
+     * @param sampled 拿到了服务端的响应，rttNanos 可以用；没发出去的请求只减在途数
+     */
+    public void onDone(long rttNanos, boolean dropped, boolean sampled) {
+        int current = inFlight.getAndDecrement();
+        if (dropped || sampled) {
+            synchronized (this) {
+                sample(rttNanos, dropped, current);
+            }
+        }
+        if (waiters.get() > 0) {
+            synchronized (availableLock) {
+                availableLock.notifyAll();
+            }
+        }
+    }
+
+    private void sample(long rttNanos, boolean dropped, int current) {
+        if (dropped) {
+            // 超时的响应时间只是超时时间，不算进平均
+            drops++;
+        } else {
+            rttSum += rttNanos;
+            samples++;
+            windowMinRtt = Math.min(windowMinRtt, rttNanos);
+        }
+        windowMaxInFlight = Math.max(windowMaxInFlight, current);
+        long now = System.nanoTime();
+        if (samples + drops < MIN_SAMPLES || now - windowStart < WINDOW_NANOS) {
+            return;
+        }
+        if (drops > 0) {
+            setLimit(estimatedLimit * BACKOFF);
+        } else {
+            update((double) rttSum / samples);
+        }
+        windowStart = now;
+        windowMinRtt = Long.MAX_VALUE;
+        rttSum = 0;
+        samples = 0;
+        drops = 0;
+        windowMaxInFlight = 0;
+    }
+
+    private void update(double rtt) {
+        if (++windows >= RESET_WINDOWS) {
+            windows = 0;
+            noLoadRtt = windowMinRtt;
+        } else {
+            noLoadRtt = Math.min(noLoadRtt, windowMinRtt);
+        }
+        if (windowMaxInFlight < estimatedLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * noLoadRtt / rtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        setLimit(estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+    }
+
+    private void setLimit(double newLimit) {
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    void onRejected() {
+        rejected.incrementAndGet();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return 因为到了上限被拒绝（包括等待超时）的次数
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{limit=" + limit + ", inFlight=" + inFlight.get() + ", rejected=" + rejected.get() + "}";
+    }
+}
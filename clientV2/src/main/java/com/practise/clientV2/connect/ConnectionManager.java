@@ -4,22 +4,33 @@ import com.practise.clientV2.handler.RpcClientHandler;
 import com.practise.clientV2.handler.RpcClientInitializer;
 import com.practise.clientV2.route.RpcLoadBalance;
 import com.practise.clientV2.route.RpcLoadBalanceRandom;
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.entity.RpcError;
+import com.practise.common.exception.RpcException;
 import com.practise.common.protocol.RpcProtocol;
 import com.practise.common.protocol.RpcServiceInfo;
+import com.practise.common.resource.RpcResources;
+import com.practise.common.transport.Transport;
+import com.practise.common.transport.TransportProfile;
+import com.practise.common.utils.Serializer;
+import com.practise.common.utils.ServiceUtil;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -32,22 +43,27 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class ConnectionManager {
     private static final Logger logger = LoggerFactory.getLogger(ConnectionManager.class);
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4096;
+    public static final long DEFAULT_OVERLOAD_WAIT_TIMEOUT = 1000;
+    public static final int DEFAULT_GROW_THRESHOLD = 64;
 
-    private EventLoopGroup eventLoopGroup = new NioEventLoopGroup(4);
     /**
-     * 线程池
-     * 复用线程池
-     * 在多个地方都用到：
-     *                  1. 连接新的服务器 主要功能，连接提供服务的服务端
+     * key值是服务功能
+     * value值是客户端与服务端连接建立成功后的连接池，至少有一条连接的节点才放进来
      */
-    private static ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(4, 8,
-            600L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1000));
-
+    private Map<RpcProtocol, ConnectionPool> connectedServerNodes = new ConcurrentHashMap<>();
     /**
-     * key值是服务功能
-     * value值是客户端与服务端连接建立成功后的
+     * 所有要连接的节点的连接池，包括还在建立第一条连接的
      */
-    private Map<RpcProtocol, RpcClientHandler> connectedServerNodes = new ConcurrentHashMap<>();
+    private Map<RpcProtocol, ConnectionPool> connectionPools = new ConcurrentHashMap<>();
+    /**
+     * 按错误率、连续失败把节点摘出路由，见 {@link NodeHealth}
+     */
+    private final OutlierDetector outlierDetector = new OutlierDetector(connectionPools);
+    /**
+     * 每个服务的自适应并发上限，用到时创建
+     */
+    private final Map<String, ConcurrencyLimiter> serviceLimiters = new ConcurrentHashMap<>();
     /**
      * 本地记录的 服务请求信息 因为RpcProtocol 所以就是结点的数据信息
      * 另一方面写时复制（所以在写更新的时候，这时候，如果客户端使用ConnectionManager通过这里的rpcProtocolSet的元素RpcProtocol
@@ -60,10 +76,204 @@ public class ConnectionManager {
     private long waitTimeout = 5000;
     private RpcLoadBalance loadBalance = new RpcLoadBalanceRandom();
     private volatile boolean isRunning = true;
+    /**
+     * 连接默认的序列化器，请求没有指定序列化器时用它
+     */
+    private final Serializer serializer = SerializerRegistry.getDefault();
+    /**
+     * 各个 RpcClient 用的序列化器，服务端按请求的序列化器回响应，连接要能解这些响应
+     * 所有连接的解码器共用这个集合，之后创建的客户端也对已经建立的连接生效
+     */
+    private final Set<Serializer> acceptedSerializers = new CopyOnWriteArraySet<>();
+    /**
+     * 每个连接的出站缓冲区高低水位，超过高水位连接不可写，降到低水位以下恢复
+     */
+    private volatile WriteBufferWaterMark writeBufferWaterMark = WriteBufferWaterMark.DEFAULT;
+    /**
+     * 每个连接最多多少个等待响应的请求
+     */
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private volatile OverloadPolicy overloadPolicy = OverloadPolicy.WAIT;
+    private volatile long overloadWaitTimeout = DEFAULT_OVERLOAD_WAIT_TIMEOUT;
+    /**
+     * 每个节点的连接数，默认一条
+     */
+    private volatile int poolCoreSize = 1;
+    private volatile int poolMaxSize = 1;
+    private volatile int poolGrowThreshold = DEFAULT_GROW_THRESHOLD;
+    /**
+     * 新建连接的 socket 参数
+     */
+    private volatile TransportProfile transportProfile = TransportProfile.DEFAULT;
+    /**
+     * 自适应并发限制的初始、最小、最大上限，initialLimit 为 0 表示不限制
+     */
+    private volatile int initialLimit;
+    private volatile int minLimit;
+    private volatile int maxLimit;
 
     private ConnectionManager() {
     }
 
+    /**
+     * RpcClient 用了 protostuff 之外的序列化器时调用，不影响其他客户端
+     */
+    public void acceptSerializer(Serializer serializer) {
+        if (serializer != this.serializer) {
+            acceptedSerializers.add(serializer);
+        }
+    }
+
+    /**
+     * 只影响之后新建的连接
+     */
+    public void setWriteBufferWaterMark(int low, int high) {
+        this.writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param overloadPolicy 连接过载时的处理方式
+     * @param waitTimeout WAIT 时最多等多久（毫秒）
+     */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy, long waitTimeout) {
+        this.overloadPolicy = overloadPolicy;
+        this.overloadWaitTimeout = waitTimeout;
+    }
+
+    /**
+     * 只影响之后新建的连接
+     */
+    public void setTransportProfile(TransportProfile transportProfile) {
+        this.transportProfile = transportProfile;
+    }
+
+    /**
+     * 每个节点固定 connections 条连接，只影响之后连接的节点
+     */
+    public void setConnectionsPerNode(int connections) {
+        setConnectionPool(connections, connections, DEFAULT_GROW_THRESHOLD);
+    }
+
+    /**
+     * 每个节点的弹性连接池，只影响之后连接的节点
+     * @param coreSize 一直保持的连接数
+     * @param maxSize 最多的连接数
+     * @param growThreshold 最空的连接上等待响应的请求数到了这个值就多建一条
+     */
+    public void setConnectionPool(int coreSize, int maxSize, int growThreshold) {
+        if (coreSize < 1 || maxSize < coreSize) {
+            throw new IllegalArgumentException("Illegal pool size: core " + coreSize + ", max " + maxSize);
+        }
+        this.poolCoreSize = coreSize;
+        this.poolMaxSize = maxSize;
+        this.poolGrowThreshold = growThreshold;
+    }
+
+    /**
+     * 节点熔断的触发条件，对所有节点立刻生效
+     * @param errorRatePercent 一个统计窗口内失败超过百分之几就摘掉，0 表示不按错误率
+     * @param minRequests 窗口内至少这么多个调用才按错误率判断
+     * @param consecutiveFailures 连续失败这么多次就摘掉，0 表示不按连续失败
+     * @param slowCallMillis 比这个慢的调用算失败，0 表示不看响应时间
+     */
+    public void setCircuitBreaker(int errorRatePercent, int minRequests, int consecutiveFailures, long slowCallMillis) {
+        outlierDetector.setCircuitBreaker(errorRatePercent, minRequests, consecutiveFailures, slowCallMillis);
+    }
+
+    /**
+     * @param windowMillis 错误率的统计窗口
+     * @param halfOpenSuccesses 探测连续成功多少次恢复
+     */
+    public void setCircuitBreakerWindow(long windowMillis, int halfOpenSuccesses) {
+        outlierDetector.setWindow(windowMillis, halfOpenSuccesses);
+    }
+
+    /**
+     * @param baseEjectionMillis 第一次摘掉多久，探测失败再摘时翻倍
+     * @param maxEjectionMillis 一次最多摘掉多久
+     * @param maxEjectionPercent 同时最多摘掉百分之几的节点，至少留一个
+     */
+    public void setOutlierEjection(long baseEjectionMillis, long maxEjectionMillis, int maxEjectionPercent) {
+        outlierDetector.setEjection(baseEjectionMillis, maxEjectionMillis, maxEjectionPercent);
+    }
+
+    public OutlierDetector getOutlierDetector() {
+        return outlierDetector;
+    }
+
+    /**
+     * 按响应时间自动调整每个服务、每个节点的在途请求上限，见 {@link ConcurrencyLimiter}
+     * 到了上限的调用按 overloadPolicy 短暂等待或者立刻以 OVERLOADED 失败
+     * 按发到连接上的请求计数，对冲、重试的每个请求都算；流不算
+     * 对所有节点立刻生效，重新设置时上限从 initialLimit 重新开始学
+     * @param initialLimit 0 表示关掉
+     */
+    public void setAdaptiveConcurrency(int initialLimit, int minLimit, int maxLimit) {
+        if (initialLimit > 0 && (minLimit < 1 || maxLimit < minLimit)) {
+            throw new IllegalArgumentException("Illegal concurrency limit: min " + minLimit + ", max " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.initialLimit = Math.max(0, initialLimit);
+        serviceLimiters.clear();
+        for (ConnectionPool pool : connectionPools.values()) {
+            pool.setLimiter(newNodeLimiter(pool.getRpcProtocol()));
+        }
+    }
+
+    public void setAdaptiveConcurrency(boolean enabled) {
+        if (enabled) {
+            setAdaptiveConcurrency(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT, ConcurrencyLimiter.DEFAULT_MIN_LIMIT,
+                    ConcurrencyLimiter.DEFAULT_MAX_LIMIT);
+        } else {
+            setAdaptiveConcurrency(0, 0, 0);
+        }
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return initialLimit > 0;
+    }
+
+    private ConcurrencyLimiter newNodeLimiter(RpcProtocol rpcProtocol) {
+        if (initialLimit <= 0) {
+            return null;
+        }
+        return new ConcurrencyLimiter(rpcProtocol.getHost() + ":" + rpcProtocol.getPort(), initialLimit, minLimit, maxLimit);
+    }
+
+    /**
+     * @return 没开自适应并发限制时返回 null
+     */
+    public ConcurrencyLimiter getServiceLimiter(String serviceKey) {
+        if (initialLimit <= 0) {
+            return null;
+        }
+        ConcurrencyLimiter limiter = serviceLimiters.get(serviceKey);
+        if (limiter == null) {
+            limiter = serviceLimiters.computeIfAbsent(serviceKey,
+                    k -> new ConcurrencyLimiter(k, initialLimit, minLimit, maxLimit));
+        }
+        return limiter;
+    }
+
+    /**
+     * 各服务的并发上限，给监控用
+     */
+    public Collection<ConcurrencyLimiter> getServiceLimiters() {
+        return Collections.unmodifiableCollection(serviceLimiters.values());
+    }
+
+    /**
+     * 各节点连接池的当前状态，给监控用
+     */
+    public Collection<ConnectionPool> getConnectionPools() {
+        return Collections.unmodifiableCollection(connectionPools.values());
+    }
+
     /**
      * 单例模式 一个RpcClient只能有一个 ConnectionManager
      * 注意是静态内部类构造
@@ -155,39 +365,73 @@ public class ConnectionManager {
         for (RpcServiceInfo serviceProtocol : rpcProtocol.getServiceInfoList()) {
             logger.info("New service info, name: {}, version: {}", serviceProtocol.getServiceName(), serviceProtocol.getVersion());
         }
+        ConnectionPool pool = new ConnectionPool(rpcProtocol, poolCoreSize, poolMaxSize, poolGrowThreshold, outlierDetector);
+        pool.setLimiter(newNodeLimiter(rpcProtocol));
+        ConnectionPool old = connectionPools.put(rpcProtocol, pool);
+        if (old != null) {
+            old.close();
+        }
+        while (pool.tryRefill()) {
+            connect(pool);
+        }
+    }
+
+    /**
+     * 给连接池建一条连接，调用前要先在池里占好名额
+     * @param pool
+     */
+    private void connect(final ConnectionPool pool) {
+        final RpcProtocol rpcProtocol = pool.getRpcProtocol();
         final InetSocketAddress remotePeer = new InetSocketAddress(rpcProtocol.getHost(), rpcProtocol.getPort());
-        threadPoolExecutor.submit(new Runnable() {
+        // connect 本身是异步的，不用再放进线程池
+        TransportProfile profile = transportProfile;
+        Bootstrap b = new Bootstrap();
+        b.group(RpcResources.ioGroup())
+                .channel(Transport.channelClass())
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
+                .handler(new RpcClientInitializer(serializer, acceptedSerializers, profile));
+        Transport.configure(b, profile);
+
+        ChannelFuture channelFuture = b.connect(remotePeer);
+        // 监听器，监听连接建立成功事件
+        channelFuture.addListener(new ChannelFutureListener() {
             @Override
-            public void run() {
-                logger.info("ConnectionManager-connectServerNode：线程池提交 连接服务端的任务");
-                Bootstrap b = new Bootstrap();
-                b.group(eventLoopGroup)
-                        .channel(NioSocketChannel.class)
-                        .handler(new RpcClientInitializer());
-
-                ChannelFuture channelFuture = b.connect(remotePeer);
-                // 监听器，监听连接建立成功事件
-                channelFuture.addListener(new ChannelFutureListener() {
-                    @Override
-                    public void operationComplete(final ChannelFuture channelFuture) throws Exception {
-                        if (channelFuture.isSuccess()) {
-                            logger.info("Successfully connect to remote server, remote peer = " + remotePeer);
-                            RpcClientHandler handler = channelFuture.channel().pipeline().get(RpcClientHandler.class);
-                            // 连接保存在本地，复用。但是为什么是拿Handler呢
-                            // handler又在哪里使用呢？
-                            connectedServerNodes.put(rpcProtocol, handler);
-                            // 在这个通道里告诉这个连接建立的通道是服务于哪个rpcprotocol
-                            handler.setRpcProtocol(rpcProtocol);
-                            signalAvailableHandler();
-                        } else {
-                            logger.error("Can not connect to remote server, remote peer = " + remotePeer);
-                        }
+            public void operationComplete(final ChannelFuture channelFuture) throws Exception {
+                pool.connectDone();
+                if (channelFuture.isSuccess()) {
+                    logger.info("Successfully connect to remote server, remote peer = " + remotePeer);
+                    RpcClientHandler handler = channelFuture.channel().pipeline().get(RpcClientHandler.class);
+                    // 在这个通道里告诉这个连接建立的通道是服务于哪个rpcprotocol
+                    handler.setRpcProtocol(rpcProtocol);
+                    handler.setPool(pool);
+                    // 节点在连接期间被摘掉了，这条连接不要了
+                    if (!pool.add(handler)) {
+                        handler.close();
+                        return;
                     }
-                });
+                    // 连接保存在本地，复用
+                    connectedServerNodes.put(rpcProtocol, pool);
+                    if (pool.isClosed()) {
+                        connectedServerNodes.remove(rpcProtocol, pool);
+                    }
+                    signalAvailableHandler();
+                } else {
+                    logger.error("Can not connect to remote server, remote peer = " + remotePeer);
+                }
             }
         });
     }
 
+    /**
+     * 挂上一个已经有连接的节点，和 connect 成功之后一样，测试里不用真的建连接
+     */
+    void addConnectedPool(ConnectionPool pool) {
+        RpcProtocol rpcProtocol = pool.getRpcProtocol();
+        connectionPools.put(rpcProtocol, pool);
+        rpcProtocolSet.add(rpcProtocol);
+        connectedServerNodes.put(rpcProtocol, pool);
+    }
+
     /**
      * 唤醒处于等待队列的线程
      * 也就是说 如果当前线程在chooseHandler的时候，发现size<=0，没有可用的连接时
@@ -240,16 +484,154 @@ public class ConnectionManager {
                 logger.error("Waiting for available service is interrupted!", e);
             }
         }
+        // 服务的并发到了上限，先等它降下来，不用去选节点
+        ConcurrencyLimiter serviceLimiter = getServiceLimiter(serviceKey);
+        if (serviceLimiter != null && !serviceLimiter.isAvailable()) {
+            awaitServiceLimit(serviceKey, serviceLimiter);
+        }
         // 先负载均衡，得到对应的rpcProtocol
-        // rpcProtocol内包含远端服务器host信息
-        RpcProtocol rpcProtocol = loadBalance.route(serviceKey, connectedServerNodes);
-        // 再根据 rpcProtocol 获取对应的handler
-        RpcClientHandler handler = connectedServerNodes.get(rpcProtocol);
-        if (handler != null) {
-            return handler;
-        } else {
+        // rpcProtocol内包含远端服务器host信息，熔断的节点不参与
+        Map<RpcProtocol, ConnectionPool> nodes = routableNodes(serviceKey);
+        RpcProtocol rpcProtocol = loadBalance.route(serviceKey, nodes);
+        // 再在这个节点的连接池里选等待响应最少的连接
+        ConnectionPool pool = nodes.get(rpcProtocol);
+        int limit = maxInFlight;
+        RpcClientHandler handler = pool == null ? null : pool.choose(limit);
+        if (handler == null) {
             throw new Exception("Can not get available connection");
         }
+        pool.getHealth().onRouted();
+        if (pool.tryGrow(handler)) {
+            logger.info("Grow connection pool: {}", pool);
+            connect(pool);
+        }
+        if (handler.isAvailable(limit) && pool.isWithinLimit()) {
+            return handler;
+        }
+        return chooseOnOverload(serviceKey, pool, handler, limit);
+    }
+
+    private void awaitServiceLimit(String serviceKey, ConcurrencyLimiter serviceLimiter) throws Exception {
+        if (overloadPolicy == OverloadPolicy.WAIT && serviceLimiter.awaitAvailable(overloadWaitTimeout)) {
+            return;
+        }
+        serviceLimiter.onRejected();
+        throw new RpcException(RpcError.OVERLOADED, null, "Concurrency of " + serviceKey + " reached limit "
+                + serviceLimiter.getLimit() + ", policy " + overloadPolicy);
+    }
+
+    /**
+     * 负载均衡选中的连接过载了，或者节点的并发到了上限，按 overloadPolicy 等待、换一个连接或者失败
+     */
+    private RpcClientHandler chooseOnOverload(String serviceKey, ConnectionPool pool, RpcClientHandler handler,
+                                              int limit) throws Exception {
+        switch (overloadPolicy) {
+            case WAIT:
+                long deadline = System.currentTimeMillis() + overloadWaitTimeout;
+                ConcurrencyLimiter nodeLimiter = pool.getLimiter();
+                if (handler.awaitAvailable(limit, overloadWaitTimeout) && (nodeLimiter == null
+                        || nodeLimiter.awaitAvailable(Math.max(0, deadline - System.currentTimeMillis())))) {
+                    return handler;
+                }
+                break;
+            case SPILL:
+                for (Map.Entry<RpcProtocol, ConnectionPool> entry : connectedServerNodes.entrySet()) {
+                    if (!provides(entry.getKey(), serviceKey) || !entry.getValue().getHealth().isRoutable()
+                            || !entry.getValue().isWithinLimit()) {
+                        continue;
+                    }
+                    RpcClientHandler other = entry.getValue().choose(limit);
+                    if (other != null && other != handler && other.isAvailable(limit)) {
+                        return other;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        if (!pool.isWithinLimit()) {
+            pool.getLimiter().onRejected();
+        }
+        throw new RpcException(RpcError.OVERLOADED, null, "Connections for " + serviceKey + " are overloaded, policy " + overloadPolicy);
+    }
+
+    /**
+     * 对冲用：在另一个提供这个服务的节点上选一条不过载的连接，不等待
+     * @param excluded 原请求用的连接，它所在的节点不选
+     * @return 没有别的节点或者都过载了返回 null
+     */
+    public RpcClientHandler chooseHandlerExcept(String serviceKey, RpcClientHandler excluded) {
+        return chooseAvailable(serviceKey, excluded);
+    }
+
+    /**
+     * 重试用：优先换一个节点，没有别的节点时再在所有节点里选，只剩一个节点时也能重试，不等待
+     * @param failed 上一次失败用的连接
+     * @return 都过载了或者没有连接返回 null
+     */
+    public RpcClientHandler chooseRetryHandler(String serviceKey, RpcClientHandler failed) {
+        RpcClientHandler handler = chooseAvailable(serviceKey, failed);
+        return handler != null ? handler : chooseAvailable(serviceKey, null);
+    }
+
+    /**
+     * @param excluded 不为 null 时它所在的节点不选
+     */
+    private RpcClientHandler chooseAvailable(String serviceKey, RpcClientHandler excluded) {
+        Map<RpcProtocol, ConnectionPool> candidates = new HashMap<>();
+        for (Map.Entry<RpcProtocol, ConnectionPool> entry : connectedServerNodes.entrySet()) {
+            if (provides(entry.getKey(), serviceKey) && entry.getValue().getHealth().isRoutable()
+                    && entry.getValue().isWithinLimit() && (excluded == null || !entry.getValue().contains(excluded))) {
+                candidates.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        int limit = maxInFlight;
+        try {
+            ConnectionPool pool = candidates.get(loadBalance.route(serviceKey, candidates));
+            RpcClientHandler handler = pool.choose(limit);
+            if (handler == null || !handler.isAvailable(limit)) {
+                return null;
+            }
+            pool.getHealth().onRouted();
+            return handler;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 去掉熔断的节点；没有节点被摘掉时不用复制
+     * 这个服务的节点全被摘掉时不过滤，宁可发给不健康的节点也不让服务完全不可用
+     */
+    private Map<RpcProtocol, ConnectionPool> routableNodes(String serviceKey) {
+        if (outlierDetector.getEjectedCount() == 0) {
+            return connectedServerNodes;
+        }
+        Map<RpcProtocol, ConnectionPool> routable = new HashMap<>();
+        boolean provided = false;
+        for (Map.Entry<RpcProtocol, ConnectionPool> entry : connectedServerNodes.entrySet()) {
+            if (entry.getValue().getHealth().isRoutable()) {
+                routable.put(entry.getKey(), entry.getValue());
+                provided |= provides(entry.getKey(), serviceKey);
+            }
+        }
+        if (!provided) {
+            logger.warn("All nodes of {} are ejected, route to them anyway", serviceKey);
+            return connectedServerNodes;
+        }
+        return routable;
+    }
+
+    private static boolean provides(RpcProtocol rpcProtocol, String serviceKey) {
+        for (RpcServiceInfo serviceInfo : rpcProtocol.getServiceInfoList()) {
+            if (serviceKey.equals(ServiceUtil.makeServiceKey(serviceInfo.getServiceName(), serviceInfo.getVersion()))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -259,10 +641,10 @@ public class ConnectionManager {
      *          反正结果呈现就是 从zk拉取下来的最新serviceInfo 和当前本地存储的serviceInfo进行比对
      * @param rpcProtocol
      */
-    private void removeAndCloseHandler(RpcProtocol rpcProtocol) {
-        RpcClientHandler handler = connectedServerNodes.get(rpcProtocol);
-        if (handler != null) {
-            handler.close();
+    void removeAndCloseHandler(RpcProtocol rpcProtocol) {
+        ConnectionPool pool = connectionPools.remove(rpcProtocol);
+        if (pool != null) {
+            pool.close();
         }
         connectedServerNodes.remove(rpcProtocol);
         rpcProtocolSet.remove(rpcProtocol);
@@ -276,12 +658,43 @@ public class ConnectionManager {
      *      2. 客户端结束进程
      *      3. 服务端主动调用channel.close()
      * 在这里应该是第三种情况，所以不用在客户端选择handler.close()
+     *
+     * 节点的连接池里还有别的连接时只摘掉这一条，不够 coreSize 就补一条；
+     * 最后一条也断了才把节点整个摘掉，等注册中心的更新再连
      * @param rpcProtocol
+     * @param handler
      */
-    public void removeHandler(RpcProtocol rpcProtocol) {
-        rpcProtocolSet.remove(rpcProtocol);
-        connectedServerNodes.remove(rpcProtocol);
+    public void removeHandler(RpcProtocol rpcProtocol, RpcClientHandler handler) {
+        ConnectionPool pool = connectionPools.get(rpcProtocol);
+        // 池已经关掉，或者这条连接是空闲回收的
+        if (pool == null || !pool.remove(handler)) {
+            return;
+        }
         logger.info("Remove one connection, host: {}, port: {}", rpcProtocol.getHost(), rpcProtocol.getPort());
+        if (pool.size() > 0) {
+            if (isRunning && pool.tryRefill()) {
+                connect(pool);
+            }
+            return;
+        }
+        if (connectionPools.remove(rpcProtocol, pool)) {
+            pool.close();
+            rpcProtocolSet.remove(rpcProtocol);
+            connectedServerNodes.remove(rpcProtocol, pool);
+        }
+    }
+
+    /**
+     * 连接空闲了一个心跳周期，弹性池里超出 coreSize 的连接就关掉
+     * @return true 表示已经从池里摘掉，调用方关连接
+     */
+    public boolean retireIdleHandler(RpcProtocol rpcProtocol, RpcClientHandler handler) {
+        ConnectionPool pool = connectionPools.get(rpcProtocol);
+        if (pool != null && pool.retire(handler)) {
+            logger.info("Retire idle connection: {}", pool);
+            return true;
+        }
+        return false;
     }
 
     public void stop() {
@@ -289,8 +702,7 @@ public class ConnectionManager {
         for (RpcProtocol rpcProtocol : rpcProtocolSet) {
             removeAndCloseHandler(rpcProtocol);
         }
+        // EventLoop 是和其他 RpcClient、NettyServer 共用的，由 RpcResources 按引用计数关闭
         signalAvailableHandler();
-        threadPoolExecutor.shutdown();
-        eventLoopGroup.shutdownGracefully();
     }
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+package com.practise.clientV2.connect;
+
+import com.practise.clientV2.handler.RpcClientHandler;
+import com.practise.common.protocol.RpcProtocol;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ConnectionPool
+ * @date 2022/3/27 15:10
+ *
+ * 一个服务端节点上的多条连接，由 ConnectionManager 建立和摘除
+ *
+ * 每次调用选等待响应最少的连接，大响应只堵住自己那条连接，请求也能分到多个 EventLoop 线程上
+ * coreSize 条连接一直保持，断了就补；maxSize 大于 coreSize 时是弹性的：
+ * 最空的连接也有 growThreshold 个请求在等时多建一条，多出来的连接空闲到心跳周期就关掉
+ *
+ * 节点的熔断状态在 {@link NodeHealth}，池关掉时一起关；开了自适应并发限制时，节点的并发上限在 {@link ConcurrencyLimiter}
+ */
+public class ConnectionPool {
+
+    private final RpcProtocol rpcProtocol;
+    private final int coreSize;
+    private final int maxSize;
+    private final int growThreshold;
+    /**
+     * 按建立顺序排，选连接时等待数相同取靠前的，多出来的连接平时分不到请求，才能空闲下来被关掉
+     */
+    private final List<RpcClientHandler> handlers = new CopyOnWriteArrayList<>();
+    /**
+     * 正在建立的连接数，算进池的大小里，避免同时扩出很多条
+     */
+    private final AtomicInteger connecting = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong retired = new AtomicLong();
+    private final NodeHealth health;
+    /**
+     * 没开自适应并发限制时为 null
+     */
+    private volatile ConcurrencyLimiter limiter;
+    private volatile boolean closed;
+
+    public ConnectionPool(RpcProtocol rpcProtocol, int coreSize, int maxSize, int growThreshold, OutlierDetector detector) {
+        this.rpcProtocol = rpcProtocol;
+        this.coreSize = coreSize;
+        this.maxSize = Math.max(coreSize, maxSize);
+        this.growThreshold = growThreshold;
+        this.health = new NodeHealth(detector, rpcProtocol.getHost() + ":" + rpcProtocol.getPort());
+    }
+
+    /**
+     * 等待响应最少的可用连接；都不可用时返回等待最少的那条，交给过载策略处理
+     * @param maxInFlight 每个连接最多多少个等待响应的请求
+     * @return 池里没有连接时返回 null
+     */
+    public RpcClientHandler choose(int maxInFlight) {
+        RpcClientHandler best = null;
+        int bestPending = Integer.MAX_VALUE;
+        RpcClientHandler fallback = null;
+        int fallbackPending = Integer.MAX_VALUE;
+        for (RpcClientHandler handler : handlers) {
+            if (handler.isRetiring()) {
+                continue;
+            }
+            int pending = handler.getPendingCount();
+            if (pending < fallbackPending) {
+                fallback = handler;
+                fallbackPending = pending;
+            }
+            if (pending < bestPending && handler.isAvailable(maxInFlight)) {
+                best = handler;
+                bestPending = pending;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    /**
+     * 弹性池里最空的连接也到了 growThreshold，并且还没到 maxSize，就占一个名额去建连接
+     * @return true 表示调用方要去建一条新连接，建完不管成败都要调用 {@link #connectDone()}
+     */
+    boolean tryGrow(RpcClientHandler chosen) {
+        if (closed || maxSize <= coreSize || chosen == null || chosen.getPendingCount() < growThreshold) {
+            return false;
+        }
+        return reserve(maxSize);
+    }
+
+    /**
+     * 连接数不足 coreSize 时占一个名额去补
+     */
+    boolean tryRefill() {
+        return !closed && reserve(coreSize);
+    }
+
+    private boolean reserve(int limit) {
+        while (true) {
+            int pending = connecting.get();
+            if (handlers.size() + pending >= limit) {
+                return false;
+            }
+            if (connecting.compareAndSet(pending, pending + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void connectDone() {
+        connecting.decrementAndGet();
+    }
+
+    /**
+     * @return 池已经关掉时返回 false，调用方要自己关掉这条连接
+     */
+    synchronized boolean add(RpcClientHandler handler) {
+        if (closed) {
+            return false;
+        }
+        handlers.add(handler);
+        created.incrementAndGet();
+        return true;
+    }
+
+    public boolean contains(RpcClientHandler handler) {
+        return handlers.contains(handler);
+    }
+
+    /**
+     * @return 连接还在池里并被摘掉时返回 true，已经被回收或池已关掉时返回 false
+     */
+    boolean remove(RpcClientHandler handler) {
+        return handlers.remove(handler);
+    }
+
+    /**
+     * 空闲的连接超过 coreSize 的部分可以关掉，还有请求或流在用的不关
+     * 先标记 retiring 再检查空闲，之后 choose 不会再选它；标记之前已经选中它、还没登记的请求，
+     * 在摘出池子之后再检查一次，有请求登记上了就放回池里
+     * @return true 表示已经从池里摘掉，调用方去关连接
+     */
+    boolean retire(RpcClientHandler handler) {
+        if (closed || handlers.size() <= coreSize) {
+            return false;
+        }
+        handler.setRetiring(true);
+        if (!handler.isIdle()) {
+            handler.setRetiring(false);
+            return false;
+        }
+        synchronized (this) {
+            if (handlers.size() <= coreSize || !handlers.remove(handler)) {
+                handler.setRetiring(false);
+                return false;
+            }
+        }
+        if (!handler.isIdle()) {
+            synchronized (this) {
+                // 池已经关了就不放回去，由调用方关掉
+                if (!closed) {
+                    handlers.add(handler);
+                    handler.setRetiring(false);
+                    return false;
+                }
+            }
+        }
+        retired.incrementAndGet();
+        return true;
+    }
+
+    synchronized void close() {
+        closed = true;
+        health.close();
+        for (RpcClientHandler handler : handlers) {
+            handlers.remove(handler);
+            handler.close();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    public RpcProtocol getRpcProtocol() {
+        return rpcProtocol;
+    }
+
+    public NodeHealth getHealth() {
+        return health;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    void setLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return 没开并发限制，或者节点的在途请求数还没到上限
+     */
+    boolean isWithinLimit() {
+        ConcurrencyLimiter l = limiter;
+        return l == null || l.isAvailable();
+    }
+
+    public int size() {
+        return handlers.size();
+    }
+
+    public int getCoreSize() {
+        return coreSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getConnecting() {
+        return connecting.get();
+    }
+
+    /**
+     * @return 所有连接上等待响应的请求数之和
+     */
+    public int getPendingCount() {
+        int total = 0;
+        for (RpcClientHandler handler : handlers) {
+            total += handler.getPendingCount();
+        }
+        return total;
+    }
+
+    /**
+     * @return 历史上加进池的连接数，包括断掉后补上的
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return 弹性池因为空闲关掉的连接数
+     */
+    public long getRetiredCount() {
+        return retired.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool{" + rpcProtocol.getHost() + ":" + rpcProtocol.getPort()
+                + ", size=" + size() + "/" + coreSize + "-" + maxSize
+                + ", connecting=" + getConnecting()
+                + ", pending=" + getPendingCount()
+                + ", created=" + getCreatedCount()
+                + ", retired=" + getRetiredCount()
+                + ", health=" + health
+                + (limiter != null ? ", limit=" + limiter.getLimit() + "/" + limiter.getInFlight() : "") + "}";
+    }
+}
@@ -0,0 +1,255 @@
+package com.practise.clientV2.connect;
+
+import com.practise.common.entity.RpcError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description NodeHealth
+ * @date 2022/3/29 15:30
+ *
+ * 一个服务端节点的熔断器，配置和摘除名额在 {@link OutlierDetector}
+ *
+ *      CLOSED     正常路由，按统计窗口记调用结果，错误率、连续失败次数到了就摘掉（名额够的话）
+ *      OPEN       不参与路由，到期后变成 HALF_OPEN
+ *      HALF_OPEN  同一时间只放一个探测请求，连续成功 halfOpenSuccesses 次恢复成 CLOSED；
+ *                 失败就再摘掉，时长翻倍
+ *
+ * 算失败的：超时、发出去后连接断了、服务端拒绝（线程池满）、服务端框架错误、比 slowCallMillis 慢的调用
+ * 服务方法自己抛的异常说明节点是好的，算成功；请求没发出去（写失败、客户端过载）不记
+ */
+public class NodeHealth {
+    private static final Logger logger = LoggerFactory.getLogger(NodeHealth.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final OutlierDetector detector;
+    private final String node;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    /**
+     * 当前统计窗口，到期整个清零
+     */
+    private volatile long windowStart = System.currentTimeMillis();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long openUntil;
+    /**
+     * 连续被摘掉的次数，恢复成 CLOSED 时清零，只有改状态成功的线程写
+     */
+    private volatile int ejections;
+    /**
+     * 探测请求发出的时间，0 表示没有探测在进行；探测请求没有结果（比如没发出去）时，过一个窗口再放下一个
+     */
+    private volatile long probeSince;
+    private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    private final AtomicLong ejectedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    NodeHealth(OutlierDetector detector, String node) {
+        this.detector = detector;
+        this.node = node;
+    }
+
+    /**
+     * 路由时调用：OPEN 到期变成 HALF_OPEN，HALF_OPEN 只在没有探测请求时参与路由
+     */
+    public boolean isRoutable() {
+        State s = state.get();
+        if (s == State.CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (s == State.OPEN) {
+            if (now < openUntil) {
+                return false;
+            }
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                probeSuccesses.set(0);
+                probeSince = 0;
+                logger.info("Node {} half open, start probing", node);
+            }
+        }
+        long since = probeSince;
+        return since == 0 || now - since > detector.getWindowMillis();
+    }
+
+    /**
+     * 路由选中了这个节点，HALF_OPEN 时占住探测
+     * 几个线程同时选中时可能多放过去几个探测请求
+     */
+    void onRouted() {
+        if (state.get() == State.HALF_OPEN) {
+            probeSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 发给这个节点的一个调用结束了
+     * @param errorCode 响应或者本地失败的错误码，成功是 0
+     * @param local 是不是没有拿到服务端的响应
+     * @param latencyMillis 从发出到结束的时间
+     */
+    public void record(int errorCode, boolean local, long latencyMillis) {
+        boolean failure;
+        if (local) {
+            if (errorCode != RpcError.TIMEOUT && errorCode != RpcError.CONNECTION_LOST) {
+                return;
+            }
+            failure = true;
+        } else if (errorCode == RpcError.REJECTED || errorCode == RpcError.SERVER_ERROR) {
+            failure = true;
+        } else {
+            long slow = detector.getSlowCallMillis();
+            failure = slow > 0 && latencyMillis >= slow;
+        }
+        record(failure);
+    }
+
+    private void record(boolean failure) {
+        if (closed) {
+            return;
+        }
+        State s = state.get();
+        if (s == State.HALF_OPEN) {
+            onProbe(failure);
+            return;
+        }
+        if (s == State.OPEN) {
+            // 摘掉之前发出的请求，不再统计
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= detector.getWindowMillis()) {
+            resetWindow(now);
+        }
+        requests.incrementAndGet();
+        if (!failure) {
+            consecutiveFailures.set(0);
+            return;
+        }
+        int failed = failures.incrementAndGet();
+        int consecutive = consecutiveFailures.incrementAndGet();
+        if (shouldTrip(failed, consecutive)) {
+            trip(now);
+        }
+    }
+
+    private boolean shouldTrip(int failed, int consecutive) {
+        int consecutiveLimit = detector.getConsecutiveFailures();
+        if (consecutiveLimit > 0 && consecutive >= consecutiveLimit) {
+            return true;
+        }
+        int errorRate = detector.getErrorRatePercent();
+        int total = requests.get();
+        return errorRate > 0 && total >= detector.getMinRequests() && failed * 100L >= (long) errorRate * total;
+    }
+
+    private void trip(long now) {
+        if (!detector.tryEject()) {
+            // 名额用完了，留在路由里，重新统计，避免每个失败都来抢名额
+            skippedCount.incrementAndGet();
+            resetWindow(now);
+            logger.debug("Node {} is unhealthy but max ejection reached, keep routing", node);
+            return;
+        }
+        // 到期时间要在状态变成 OPEN 之前设好，路由线程一看到 OPEN 就会读它
+        long millis = prepareOpen(now, 1);
+        if (!state.compareAndSet(State.CLOSED, State.OPEN)) {
+            detector.restore();
+            return;
+        }
+        if (closed) {
+            close();
+            return;
+        }
+        opened(millis, "error rate " + failures.get() + "/" + requests.get()
+                + ", consecutive failures " + consecutiveFailures.get());
+    }
+
+    private void onProbe(boolean failure) {
+        probeSince = 0;
+        if (failure) {
+            long millis = prepareOpen(System.currentTimeMillis(), ejections + 1);
+            if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+                opened(millis, "probe failed");
+            }
+            return;
+        }
+        if (probeSuccesses.incrementAndGet() >= detector.getHalfOpenSuccesses()
+                && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            ejections = 0;
+            resetWindow(System.currentTimeMillis());
+            detector.restore();
+            logger.info("Node {} recovered", node);
+        }
+    }
+
+    /**
+     * @return 这次摘掉多久
+     */
+    private long prepareOpen(long now, int times) {
+        long millis = detector.ejectionMillis(times);
+        openUntil = now + millis;
+        return millis;
+    }
+
+    private void opened(long millis, String reason) {
+        ejections++;
+        ejectedCount.incrementAndGet();
+        logger.warn("Eject node {} for {}ms, {}", node, millis, reason);
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        requests.set(0);
+        failures.set(0);
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * 节点被移除，还回摘除名额
+     */
+    void close() {
+        closed = true;
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            detector.restore();
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return 被摘掉的总次数
+     */
+    public long getEjectedCount() {
+        return ejectedCount.get();
+    }
+
+    /**
+     * @return 该摘掉但名额用完、留在路由里的次数
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return state.get() + "(" + failures.get() + "/" + requests.get() + ")";
+    }
+}
@@ -0,0 +1,155 @@
+package com.practise.clientV2.connect;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description OutlierDetector
+ * @date 2022/3/29 15:00
+ *
+ * 所有节点熔断的配置，以及被摘出路由的节点数，每个节点的状态在 {@link NodeHealth}
+ *
+ * 节点 TCP 还连着，但每个调用都报错或者超时时，注册中心不会把它摘掉，负载均衡还会一直选它
+ * 按每个节点的错误率、连续失败次数、慢调用把它摘出路由一段时间，到期后放少量探测请求过去，探测成功再恢复
+ *
+ * 同时被摘掉的节点不超过 maxEjectionPercent%，并且至少留一个，整个集群一起变慢时不会把节点全摘光；
+ * 某个服务的节点全被摘掉时，路由时也不再过滤，见 ConnectionManager
+ */
+public class OutlierDetector {
+
+    public static final int DEFAULT_ERROR_RATE_PERCENT = 50;
+    public static final int DEFAULT_MIN_REQUESTS = 20;
+    public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+    public static final long DEFAULT_WINDOW_MILLIS = 10000;
+    public static final long DEFAULT_BASE_EJECTION_MILLIS = 5000;
+    public static final long DEFAULT_MAX_EJECTION_MILLIS = 60000;
+    public static final int DEFAULT_MAX_EJECTION_PERCENT = 50;
+    public static final int DEFAULT_HALF_OPEN_SUCCESSES = 3;
+
+    /**
+     * 所有节点，用来算最多能摘掉几个
+     */
+    private final Map<?, ?> nodes;
+    private final AtomicInteger ejected = new AtomicInteger();
+
+    private volatile int errorRatePercent = DEFAULT_ERROR_RATE_PERCENT;
+    private volatile int minRequests = DEFAULT_MIN_REQUESTS;
+    private volatile int consecutiveFailures = DEFAULT_CONSECUTIVE_FAILURES;
+    /**
+     * 比这个慢的调用算失败，0 表示不看响应时间
+     */
+    private volatile long slowCallMillis;
+    private volatile long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private volatile long baseEjectionMillis = DEFAULT_BASE_EJECTION_MILLIS;
+    private volatile long maxEjectionMillis = DEFAULT_MAX_EJECTION_MILLIS;
+    private volatile int maxEjectionPercent = DEFAULT_MAX_EJECTION_PERCENT;
+    private volatile int halfOpenSuccesses = DEFAULT_HALF_OPEN_SUCCESSES;
+
+    OutlierDetector(Map<?, ?> nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * @param errorRatePercent 一个统计窗口内失败超过百分之几就摘掉，0 表示不按错误率
+     * @param minRequests 窗口内至少这么多个调用才按错误率判断
+     * @param consecutiveFailures 连续失败这么多次就摘掉，0 表示不按连续失败
+     * @param slowCallMillis 比这个慢的调用算失败，0 表示不看响应时间
+     */
+    void setCircuitBreaker(int errorRatePercent, int minRequests, int consecutiveFailures, long slowCallMillis) {
+        if (errorRatePercent < 0 || errorRatePercent > 100) {
+            throw new IllegalArgumentException("Illegal error rate: " + errorRatePercent + "%");
+        }
+        this.errorRatePercent = errorRatePercent;
+        this.minRequests = Math.max(1, minRequests);
+        this.consecutiveFailures = consecutiveFailures;
+        this.slowCallMillis = slowCallMillis;
+    }
+
+    /**
+     * @param baseEjectionMillis 第一次摘掉多久，探测失败再摘时翻倍
+     * @param maxEjectionMillis 一次最多摘掉多久
+     * @param maxEjectionPercent 同时最多摘掉百分之几的节点
+     */
+    void setEjection(long baseEjectionMillis, long maxEjectionMillis, int maxEjectionPercent) {
+        if (baseEjectionMillis <= 0) {
+            throw new IllegalArgumentException("Illegal ejection time: " + baseEjectionMillis);
+        }
+        if (maxEjectionPercent < 0 || maxEjectionPercent > 100) {
+            throw new IllegalArgumentException("Illegal max ejection: " + maxEjectionPercent + "%");
+        }
+        this.baseEjectionMillis = baseEjectionMillis;
+        this.maxEjectionMillis = Math.max(baseEjectionMillis, maxEjectionMillis);
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    void setWindow(long windowMillis, int halfOpenSuccesses) {
+        this.windowMillis = windowMillis;
+        this.halfOpenSuccesses = Math.max(1, halfOpenSuccesses);
+    }
+
+    /**
+     * 占一个摘除名额：不超过 maxEjectionPercent%，至少能摘一个，但至少留一个
+     * @return 名额用完了返回 false，节点留在路由里
+     */
+    boolean tryEject() {
+        int total = nodes.size();
+        int limit = Math.min(total - 1, Math.max(1, total * maxEjectionPercent / 100));
+        while (true) {
+            int current = ejected.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (ejected.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 节点恢复或者被移除，还回名额
+     */
+    void restore() {
+        ejected.decrementAndGet();
+    }
+
+    /**
+     * @return 被摘出路由（包括正在探测）的节点数，为 0 时路由不用过滤
+     */
+    public int getEjectedCount() {
+        return ejected.get();
+    }
+
+    /**
+     * @return 第 ejections 次摘除的时长
+     */
+    long ejectionMillis(int ejections) {
+        long millis = baseEjectionMillis << Math.min(ejections - 1, 20);
+        return Math.min(millis, maxEjectionMillis);
+    }
+
+    int getErrorRatePercent() {
+        return errorRatePercent;
+    }
+
+    int getMinRequests() {
+        return minRequests;
+    }
+
+    int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    long getSlowCallMillis() {
+        return slowCallMillis;
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    int getHalfOpenSuccesses() {
+        return halfOpenSuccesses;
+    }
+}
@@ -0,0 +1,24 @@
+package com.practise.clientV2.connect;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description OverloadPolicy
+ * @date 2022/3/17 10:00
+ *
+ * 选中的连接过载（在途请求数到了上限，或者出站缓冲区超过高水位不可写）时怎么办
+ */
+public enum OverloadPolicy {
+    /**
+     * 等这个连接空出来，最多等 overloadWaitTimeout
+     */
+    WAIT,
+    /**
+     * 换一个提供同样服务、没有过载的连接，都过载就失败
+     */
+    SPILL,
+    /**
+     * 立刻失败
+     */
+    FAIL_FAST
+}
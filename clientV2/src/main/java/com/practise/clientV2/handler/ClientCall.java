@@ -0,0 +1,21 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcStreamMessage;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ClientCall
+ * @date 2022/3/16 14:00
+ *
+ * 连接上一个还没结束的流式调用，RpcClientHandler 按流编号把服务端发来的流消息交给它
+ */
+interface ClientCall {
+
+    void onMessage(RpcStreamMessage message);
+
+    /**
+     * 请求没发出去或者连接断了
+     */
+    void fail(Throwable cause);
+}
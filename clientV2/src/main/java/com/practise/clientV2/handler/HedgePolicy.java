@@ -0,0 +1,198 @@
+package com.practise.clientV2.handler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description HedgePolicy
+ * @date 2022/3/28 15:40
+ *
+ * 对冲请求：幂等方法（{@link com.practise.common.anotations.Idempotent}）发出去一段时间还没有响应，
+ * 就把同样的请求再发给另一个节点，哪个先回来用哪个，另一个的响应到了直接丢掉
+ * 一个慢节点（GC、邻居抢资源）不再决定整个调用的尾延迟
+ *
+ * 等多久再发：
+ *      固定延迟  {@link #fixed(long, int)}
+ *      自适应    {@link #adaptive(double, long, int)}，取这个方法最近响应时间的分位数（如 p95），样本不够时不对冲
+ *
+ * 预算：每次调用攒 budgetPercent% 个令牌，每次对冲花掉一个，最多攒 MAX_BURST 个，
+ * 所以对冲多出来的请求长期不超过 budgetPercent%，节点整体变慢时不会把负载翻倍
+ *
+ * 按服务配置：HedgePolicy.setServicePolicy("接口名#版本号", HedgePolicy.adaptive(0.95, 5, 10))
+ */
+public final class HedgePolicy {
+
+    public static final int DEFAULT_BUDGET_PERCENT = 10;
+    /**
+     * 自适应延迟至少要这么多个样本
+     */
+    private static final int MIN_SAMPLES = 100;
+    /**
+     * 令牌按千分之一计
+     */
+    private static final long TOKEN = 1000;
+    private static final long MAX_BURST = 10 * TOKEN;
+
+    private static final Map<String, HedgePolicy> servicePolicies = new ConcurrentHashMap<>();
+
+    /**
+     * 大于 0 是固定延迟，0 表示按分位数
+     */
+    private final long delayMillis;
+    private final double percentile;
+    private final long minDelayMillis;
+    private final long tokensPerCall;
+    private final AtomicLong tokens = new AtomicLong(MAX_BURST);
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong won = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    private HedgePolicy(long delayMillis, double percentile, long minDelayMillis, int budgetPercent) {
+        if (budgetPercent < 0 || budgetPercent > 100) {
+            throw new IllegalArgumentException("Illegal hedge budget: " + budgetPercent + "%");
+        }
+        this.delayMillis = delayMillis;
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.tokensPerCall = TOKEN * budgetPercent / 100;
+    }
+
+    /**
+     * @param delayMillis 发出后多久没有响应就对冲
+     * @param budgetPercent 对冲请求最多占调用数的百分之几
+     */
+    public static HedgePolicy fixed(long delayMillis, int budgetPercent) {
+        if (delayMillis <= 0) {
+            throw new IllegalArgumentException("Illegal hedge delay: " + delayMillis);
+        }
+        return new HedgePolicy(delayMillis, 0, 0, budgetPercent);
+    }
+
+    /**
+     * @param percentile 延迟取这个方法响应时间的哪个分位数，如 0.95
+     * @param minDelayMillis 延迟的下限，避免很快的方法几乎每次都对冲
+     * @param budgetPercent 对冲请求最多占调用数的百分之几
+     */
+    public static HedgePolicy adaptive(double percentile, long minDelayMillis, int budgetPercent) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("Illegal hedge percentile: " + percentile);
+        }
+        return new HedgePolicy(0, percentile, minDelayMillis, budgetPercent);
+    }
+
+    /**
+     * @param serviceKey 接口名#版本号
+     * @param policy null 表示不再对冲
+     */
+    public static void setServicePolicy(String serviceKey, HedgePolicy policy) {
+        if (policy != null) {
+            servicePolicies.put(serviceKey, policy);
+        } else {
+            servicePolicies.remove(serviceKey);
+        }
+    }
+
+    /**
+     * @return 没有配置返回 null
+     */
+    public static HedgePolicy of(String serviceKey) {
+        return servicePolicies.isEmpty() ? null : servicePolicies.get(serviceKey);
+    }
+
+    /**
+     * @return 这次调用等多久再对冲，不大于 0 表示不对冲
+     */
+    long delayOf(String methodName) {
+        if (delayMillis > 0) {
+            return delayMillis;
+        }
+        LatencyHistogram histogram = latencies.get(methodName);
+        if (histogram == null || histogram.count() < MIN_SAMPLES) {
+            return 0;
+        }
+        return Math.max(minDelayMillis, histogram.percentileMillis(percentile));
+    }
+
+    /**
+     * 记一次成功响应的耗时，固定延迟时不用记
+     */
+    void record(String methodName, long nanos) {
+        if (delayMillis > 0) {
+            return;
+        }
+        LatencyHistogram histogram = latencies.get(methodName);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(methodName, k -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * 每次调用攒一点预算
+     */
+    void deposit() {
+        while (true) {
+            long current = tokens.get();
+            if (current >= MAX_BURST || tokens.compareAndSet(current, Math.min(MAX_BURST, current + tokensPerCall))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 预算够一次对冲时扣掉并返回 true
+     */
+    boolean tryAcquire() {
+        while (true) {
+            long current = tokens.get();
+            if (current < TOKEN) {
+                throttled.incrementAndGet();
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 扣了预算但没发出去，退回
+     */
+    void refund() {
+        tokens.addAndGet(TOKEN);
+    }
+
+    void onHedged() {
+        hedged.incrementAndGet();
+    }
+
+    void onHedgeWon() {
+        won.incrementAndGet();
+    }
+
+    /**
+     * @return 发出的对冲请求数
+     */
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /**
+     * @return 对冲请求比原请求先回来的次数
+     */
+    public long getWonCount() {
+        return won.get();
+    }
+
+    /**
+     * @return 因为预算不够没有对冲的次数
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+}
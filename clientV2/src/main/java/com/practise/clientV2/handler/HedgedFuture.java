@@ -0,0 +1,194 @@
+package com.practise.clientV2.handler;
+
+import com.practise.clientV2.connect.ConnectionManager;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.RpcMethodKey;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description HedgedFuture
+ * @date 2022/3/28 16:10
+ *
+ * 一次对冲调用的结果：先发给负载均衡选中的连接，延迟到了还没结束，就在时间轮线程里把请求复制一份发给另一个节点
+ * 哪个先结束就用哪个的结果；输掉的那个不取消，留在它的 PendingTable 里，响应到了或者超时后自然清掉
+ *
+ * 一个请求没拿到响应（写失败、连接断了、超时、服务端拒绝）而另一个还在等时，不算结束，继续等另一个
+ *
+ * 带附件的请求不对冲：附件发送后由 netty 释放，复制出来的请求不能再发一次，见 {@link #isCopyable(RpcRequest)}
+ */
+public class HedgedFuture extends RpcFuture {
+    private static final Logger logger = LoggerFactory.getLogger(HedgedFuture.class);
+
+    private final HedgePolicy policy;
+    private final RpcRequest request;
+    private final RpcMethodKey methodKey;
+    private final String serviceKey;
+    private final RpcClientHandler primary;
+    private final long startNanos = System.nanoTime();
+    /**
+     * 发出去还没结束的请求数
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile Timeout hedgeTimeout;
+
+    private HedgedFuture(HedgePolicy policy, RpcClientHandler primary, RpcRequest request,
+                         RpcMethodKey methodKey, String serviceKey) {
+        super(request);
+        this.policy = policy;
+        this.primary = primary;
+        this.request = request;
+        this.methodKey = methodKey;
+        this.serviceKey = serviceKey;
+    }
+
+    /**
+     * 发给 handler，并按策略准备对冲
+     * @param methodKey 代理为每个方法缓存的 key，可以为 null
+     */
+    public static RpcFuture send(HedgePolicy policy, RpcClientHandler handler, RpcRequest request,
+                                 RpcMethodKey methodKey, String serviceKey) {
+        if (!isCopyable(request)) {
+            return methodKey != null ? handler.sendRequest(request, methodKey) : handler.sendRequest(request);
+        }
+        HedgedFuture future = new HedgedFuture(policy, handler, request, methodKey, serviceKey);
+        policy.deposit();
+        long delay = policy.delayOf(request.getMethodName());
+        // 按 RequestTimer 的规则（调用、服务、全局）定下原请求实际的超时时间，写回原请求，
+        // 原请求的截止时间和对冲请求剩下的时间都按这一个值算，对冲请求不会比原请求晚结束
+        final long timeout = RequestTimer.timeoutOf(request);
+        if (timeout > 0) {
+            request.setTimeout(timeout);
+        }
+        future.attempt(handler, request, false);
+        if (delay > 0 && (timeout <= 0 || delay < timeout) && !future.isDone()) {
+            future.hedgeTimeout = RequestTimer.schedule(new TimerTask() {
+                @Override
+                public void run(Timeout t) {
+                    future.hedge(timeout);
+                }
+            }, delay);
+        }
+        return future;
+    }
+
+    private void attempt(RpcClientHandler handler, RpcRequest req, final boolean hedge) {
+        outstanding.incrementAndGet();
+        final long sentNanos = System.nanoTime();
+        final RpcFuture attempt = methodKey != null ? handler.sendRequest(req, methodKey) : handler.sendRequest(req);
+        attempt.whenDone(new Runnable() {
+            @Override
+            public void run() {
+                onAttemptDone(attempt, sentNanos, hedge);
+            }
+        });
+    }
+
+    /**
+     * 时间轮线程：原请求还没结束，预算也够，就复制一份发给另一个节点
+     * @param timeout 原请求实际的超时时间，不大于 0 表示原请求不超时，对冲请求也不超时
+     */
+    private void hedge(long timeout) {
+        if (isDone()) {
+            return;
+        }
+        long remaining = 0;
+        if (timeout > 0) {
+            remaining = timeout - (System.nanoTime() - startNanos) / 1000000;
+            if (remaining <= 0) {
+                return;
+            }
+        }
+        if (!policy.tryAcquire()) {
+            return;
+        }
+        RpcClientHandler other = ConnectionManager.getInstance().chooseHandlerExcept(serviceKey, primary);
+        if (other == null) {
+            policy.refund();
+            return;
+        }
+        policy.onHedged();
+        logger.debug("Hedge request {}#{} after {}ms", serviceKey, request.getMethodName(),
+                (System.nanoTime() - startNanos) / 1000000);
+        RpcRequest copy = copyOf(request);
+        copy.setTimeout(remaining);
+        attempt(other, copy, true);
+    }
+
+    /**
+     * 附件（ByteBuf 或 FileRegion）写出去之后就被 netty 释放了，FileRegion 也只能发一次，
+     * 所以带附件的请求不能复制，不对冲也不重试
+     */
+    public static boolean isCopyable(RpcRequest request) {
+        if (request.getAttachments() != null && !request.getAttachments().isEmpty()) {
+            return false;
+        }
+        Object[] parameters = request.getParameters();
+        for (int i = 0; parameters != null && i < parameters.length; i++) {
+            if (parameters[i] instanceof RpcAttachment) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 请求序号、方法编号由各自的连接分配，其他字段共用
+     */
+    static RpcRequest copyOf(RpcRequest request) {
+        if (!isCopyable(request)) {
+            throw new IllegalStateException("Request with attachments can not be copied");
+        }
+        RpcRequest copy = new RpcRequest();
+        copy.setClassName(request.getClassName());
+        copy.setMethodName(request.getMethodName());
+        copy.setParameterTypes(request.getParameterTypes());
+        copy.setParameters(request.getParameters());
+        copy.setVersion(request.getVersion());
+        copy.setAttachments(request.getAttachments());
+        copy.setSerializer(request.getSerializer());
+        copy.setCompressor(request.getCompressor());
+        return copy;
+    }
+
+    private void onAttemptDone(RpcFuture attempt, long sentNanos, boolean hedge) {
+        int left = outstanding.decrementAndGet();
+        boolean answered = isAnswered(attempt);
+        if (answered && attempt.getError() == null) {
+            policy.record(request.getMethodName(), System.nanoTime() - sentNanos);
+        }
+        if (!answered && left > 0) {
+            return;
+        }
+        if (!completed.compareAndSet(false, true)) {
+            // 输掉的请求，结果没人取
+            attempt.releaseAttachments();
+            return;
+        }
+        Timeout t = hedgeTimeout;
+        if (t != null) {
+            t.cancel();
+        }
+        if (hedge) {
+            policy.onHedgeWon();
+        }
+        completeFrom(attempt);
+    }
+
+    /**
+     * 服务端执行过并给了结果（包括业务异常）才算回答；没发到、没等到、被服务端拒绝的不算
+     */
+    private static boolean isAnswered(RpcFuture attempt) {
+        return !attempt.isLocalFailure() && attempt.getErrorCode() != RpcError.REJECTED;
+    }
+}
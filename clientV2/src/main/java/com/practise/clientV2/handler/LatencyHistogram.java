@@ -0,0 +1,85 @@
+package com.practise.clientV2.handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description LatencyHistogram
+ * @date 2022/3/28 15:20
+ *
+ * 一个方法的响应时间分布，用来估计 p95 之类的分位数
+ *
+ * 桶的上界按 GROWTH 倍递增（从 MIN_NANOS 到一分钟多），分位数的误差在 20% 以内
+ * 每记 DECAY_INTERVAL 个样本所有桶减半，旧的样本逐渐淡出；并发时会少算几个样本，只是估计值，不加锁
+ */
+class LatencyHistogram {
+
+    private static final long MIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final double GROWTH = 1.2;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+    private static final int BUCKETS = 80;
+    private static final int DECAY_INTERVAL = 1024;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucketOf(nanos));
+        total.incrementAndGet();
+        if (recorded.incrementAndGet() % DECAY_INTERVAL == 0) {
+            decay();
+        }
+    }
+
+    private void decay() {
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long half = counts.get(i) >> 1;
+            counts.set(i, half);
+            sum += half;
+        }
+        total.set(sum);
+    }
+
+    /**
+     * @return 当前权重下的样本数
+     */
+    long count() {
+        return total.get();
+    }
+
+    /**
+     * @param percentile 0 到 1 之间，如 0.95
+     * @return 所在桶的上界，毫秒；没有样本返回 0
+     */
+    long percentileMillis(double percentile) {
+        long target = (long) Math.ceil(total.get() * percentile);
+        if (target <= 0) {
+            return 0;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(upperBound(i)));
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(upperBound(BUCKETS - 1));
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos <= MIN_NANOS) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(Math.log((double) nanos / MIN_NANOS) / LOG_GROWTH);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) (MIN_NANOS * Math.pow(GROWTH, bucket));
+    }
+}
@@ -0,0 +1,104 @@
+package com.practise.clientV2.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description PendingTable
+ * @date 2022/3/16 15:00
+ *
+ * 连接上等待响应的请求，按请求序号索引
+ *
+ * 请求序号在连接内递增，直接用低位做下标放进 2 的幂大小的环形数组，put/remove 都是一次 CAS，不分配对象
+ * 槽位被一个还没回来的老请求占着（在途请求超过容量，或者有很慢的请求）时，新的请求放进溢出的 map
+ * 槽位里的 RpcFuture 记着自己的序号，remove 时对上了才取走，不会把绕了一圈的新请求当成老请求
+ */
+final class PendingTable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final AtomicReferenceArray<RpcFuture> slots;
+    private final int mask;
+    private final ConcurrentHashMap<Long, RpcFuture> overflow = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity 向上取 2 的幂
+     */
+    PendingTable(int capacity) {
+        int n = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+    }
+
+    void put(long requestId, RpcFuture future) {
+        future.setRequestId(requestId);
+        future.setOwner(this);
+        size.incrementAndGet();
+        if (!slots.compareAndSet(index(requestId), null, future)) {
+            overflow.put(requestId, future);
+        }
+    }
+
+    /**
+     * @return 不在表里（已经取走了）返回 null
+     */
+    RpcFuture remove(long requestId) {
+        int index = index(requestId);
+        RpcFuture future = slots.get(index);
+        if (future != null && future.getRequestId() == requestId && slots.compareAndSet(index, future, null)) {
+            size.decrementAndGet();
+            return future;
+        }
+        if (overflow.isEmpty()) {
+            return null;
+        }
+        future = overflow.remove(requestId);
+        if (future != null) {
+            size.decrementAndGet();
+        }
+        return future;
+    }
+
+    /**
+     * 取走所有请求，连接断开时用
+     */
+    List<RpcFuture> removeAll() {
+        List<RpcFuture> futures = new ArrayList<>();
+        for (int i = 0; i <= mask; i++) {
+            RpcFuture future = slots.get(i);
+            if (future != null && slots.compareAndSet(i, future, null)) {
+                size.decrementAndGet();
+                futures.add(future);
+            }
+        }
+        for (Long requestId : overflow.keySet()) {
+            RpcFuture future = overflow.remove(requestId);
+            if (future != null) {
+                size.decrementAndGet();
+                futures.add(future);
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * @return 在途请求数
+     */
+    int size() {
+        return size.get();
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    private int index(long requestId) {
+        return (int) requestId & mask;
+    }
+}
@@ -0,0 +1,83 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.utils.ServiceUtil;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RequestTimer
+ * @date 2022/3/16 16:30
+ *
+ * 请求超时，所有连接共用一个时间轮（一个线程）
+ * 到期的任务就是 RpcFuture 自己，到期时从连接的 PendingTable 里摘掉并以超时结束，响应先到就取消
+ *
+ * 超时时间的优先级：单次调用（{@link RpcRequest#getTimeout()}）> 服务（{@link #setServiceTimeout}）> 默认
+ * 时间轮的精度是 TICK_MILLIS
+ */
+public final class RequestTimer {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    private static final long TICK_MILLIS = 10;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private static final HashedWheelTimer timer = new HashedWheelTimer(
+            new DefaultThreadFactory("rpc-request-timer", true), TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+
+    private static final Map<String, Long> serviceTimeouts = new ConcurrentHashMap<>();
+    private static volatile long defaultTimeout = DEFAULT_TIMEOUT_MILLIS;
+
+    private RequestTimer() {
+    }
+
+    public static long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     * @param millis 不大于 0 表示默认不超时
+     */
+    public static void setDefaultTimeout(long millis) {
+        defaultTimeout = millis;
+    }
+
+    /**
+     * @param serviceKey 接口名#版本号
+     * @param millis 不大于 0 表示去掉这个服务的设置
+     */
+    public static void setServiceTimeout(String serviceKey, long millis) {
+        if (millis > 0) {
+            serviceTimeouts.put(serviceKey, millis);
+        } else {
+            serviceTimeouts.remove(serviceKey);
+        }
+    }
+
+    /**
+     * @return 不大于 0 表示不超时
+     */
+    static long timeoutOf(RpcRequest request) {
+        if (request.getTimeout() > 0) {
+            return request.getTimeout();
+        }
+        if (!serviceTimeouts.isEmpty() && request.getClassName() != null) {
+            Long timeout = serviceTimeouts.get(ServiceUtil.makeServiceKey(request.getClassName(), request.getVersion()));
+            if (timeout != null) {
+                return timeout;
+            }
+        }
+        return defaultTimeout;
+    }
+
+    static Timeout schedule(TimerTask task, long millis) {
+        return timer.newTimeout(task, millis, TimeUnit.MILLISECONDS);
+    }
+}
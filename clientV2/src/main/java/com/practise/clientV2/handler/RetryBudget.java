@@ -0,0 +1,90 @@
+package com.practise.clientV2.handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RetryBudget
+ * @date 2022/3/29 10:40
+ *
+ * 整个客户端的重试预算：每次调用攒 percent% 个令牌，每次重试花掉一个，最多攒 burst 个
+ * 少量失败时照常重试；服务端整体出问题、大部分调用都失败时，重试最多多出 percent% 的请求，不会把故障放大成重试风暴
+ */
+public final class RetryBudget {
+
+    /**
+     * 令牌按千分之一计
+     */
+    private static final long TOKEN = 1000;
+
+    private static volatile long tokensPerCall = TOKEN * 20 / 100;
+    private static volatile long maxTokens = 10 * TOKEN;
+    private static final AtomicLong tokens = new AtomicLong(maxTokens);
+
+    private static final AtomicLong retried = new AtomicLong();
+    private static final AtomicLong throttled = new AtomicLong();
+
+    private RetryBudget() {
+    }
+
+    /**
+     * @param percent 重试最多占调用数的百分之几，默认 20
+     * @param burst 最多攒几次重试，默认 10
+     */
+    public static void configure(int percent, int burst) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Illegal retry budget: " + percent + "%");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Illegal retry burst: " + burst);
+        }
+        tokensPerCall = TOKEN * percent / 100;
+        maxTokens = burst * TOKEN;
+        tokens.set(maxTokens);
+    }
+
+    /**
+     * 每次调用攒一点预算
+     */
+    static void deposit() {
+        long max = maxTokens;
+        while (true) {
+            long current = tokens.get();
+            if (current >= max || tokens.compareAndSet(current, Math.min(max, current + tokensPerCall))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 预算够一次重试时扣掉并返回 true
+     */
+    static boolean tryAcquire() {
+        while (true) {
+            long current = tokens.get();
+            if (current < TOKEN) {
+                throttled.incrementAndGet();
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN)) {
+                retried.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 发出的重试次数
+     */
+    public static long getRetriedCount() {
+        return retried.get();
+    }
+
+    /**
+     * @return 因为预算不够没有重试的次数
+     */
+    public static long getThrottledCount() {
+        return throttled.get();
+    }
+}
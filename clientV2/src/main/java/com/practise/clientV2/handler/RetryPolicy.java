@@ -0,0 +1,156 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.anotations.Retryable;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RetryPolicy
+ * @date 2022/3/29 10:20
+ *
+ * 失败重试：退避时间指数增长并加全抖动（在 0 到上限之间随机），下一次尽量换一个节点
+ * 什么样的失败重试见 {@link Retryable}，总的超时时间是整个调用的，每次重试只用剩下的时间，
+ * 剩下的时间不够等退避就不再重试
+ *
+ * 配置的优先级：方法配置（{@link #setMethodPolicy}）> 服务配置（{@link #setServicePolicy}）> 接口上的 {@link Retryable}
+ * 所有重试共用一个预算，见 {@link RetryBudget}
+ */
+public final class RetryPolicy {
+
+    /**
+     * 缓存里表示方法没有标 {@link Retryable}
+     */
+    private static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private static final Map<String, RetryPolicy> configured = new ConcurrentHashMap<>();
+    private static final Map<Method, RetryPolicy> annotated = new ConcurrentHashMap<>();
+
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * @param maxAttempts 最多调用几次，包括第一次
+     * @param backoffMillis 第一次重试前最多等多久，之后每次翻倍
+     * @param maxBackoffMillis 等待时间的上限
+     */
+    public RetryPolicy(int maxAttempts, long backoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Illegal max attempts: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = Math.max(backoffMillis, maxBackoffMillis);
+    }
+
+    private RetryPolicy(Retryable retryable) {
+        this(retryable.maxAttempts(), retryable.backoff(), retryable.maxBackoff());
+    }
+
+    /**
+     * @param serviceKey 接口名#版本号
+     * @param policy null 表示去掉配置
+     */
+    public static void setServicePolicy(String serviceKey, RetryPolicy policy) {
+        set(serviceKey, policy);
+    }
+
+    public static void setMethodPolicy(String serviceKey, String methodName, RetryPolicy policy) {
+        set(serviceKey + "." + methodName, policy);
+    }
+
+    private static void set(String key, RetryPolicy policy) {
+        if (policy != null) {
+            configured.put(key, policy);
+        } else {
+            configured.remove(key);
+        }
+    }
+
+    /**
+     * @return 不重试返回 null
+     */
+    public static RetryPolicy of(String serviceKey, Method method) {
+        RetryPolicy policy = configured(serviceKey, method.getName());
+        if (policy == null) {
+            policy = annotated(method);
+        }
+        return policy == NONE ? null : policy;
+    }
+
+    /**
+     * 按名字调用时不知道是哪个重载，取第一个标了 {@link Retryable} 的同名方法
+     * @return 不重试返回 null
+     */
+    public static RetryPolicy of(String serviceKey, Class<?> clazz, String methodName) {
+        RetryPolicy policy = configured(serviceKey, methodName);
+        if (policy != null) {
+            return policy;
+        }
+        for (Method method : clazz.getMethods()) {
+            if (method.getName().equals(methodName) && annotated(method) != NONE) {
+                return annotated(method);
+            }
+        }
+        return null;
+    }
+
+    private static RetryPolicy configured(String serviceKey, String methodName) {
+        if (configured.isEmpty()) {
+            return null;
+        }
+        RetryPolicy policy = configured.get(serviceKey + "." + methodName);
+        return policy != null ? policy : configured.get(serviceKey);
+    }
+
+    private static RetryPolicy annotated(Method method) {
+        RetryPolicy policy = annotated.get(method);
+        if (policy == null) {
+            Retryable retryable = method.getAnnotation(Retryable.class);
+            if (retryable == null) {
+                retryable = method.getDeclaringClass().getAnnotation(Retryable.class);
+            }
+            policy = retryable == null ? NONE : new RetryPolicy(retryable);
+            annotated.put(method, policy);
+        }
+        return policy;
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param retry 第几次重试，从 1 开始
+     * @return 0 到 min(maxBackoff, backoff * 2^(retry-1)) 之间的随机值
+     */
+    long backoff(int retry) {
+        if (backoffMillis <= 0) {
+            return 0;
+        }
+        long ceiling = backoffMillis << Math.min(retry - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    void onRetried() {
+        retried.incrementAndGet();
+    }
+
+    /**
+     * @return 用这个策略发出的重试次数
+     */
+    public long getRetriedCount() {
+        return retried.get();
+    }
+}
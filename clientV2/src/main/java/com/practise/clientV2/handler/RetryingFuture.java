@@ -0,0 +1,202 @@
+package com.practise.clientV2.handler;
+
+import com.practise.clientV2.connect.ConnectionManager;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.exception.RpcException;
+import com.practise.common.protocol.RpcMethodKey;
+import io.netty.handler.codec.EncoderException;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RetryingFuture
+ * @date 2022/3/29 11:00
+ *
+ * 一次可重试调用的结果：一次只发一个请求，失败了按 {@link RetryPolicy} 退避，在时间轮线程里把请求复制一份发给另一个节点
+ * 成功、不能重试的失败、次数用完、剩下的时间不够、预算不够时，用最后一次的结果结束
+ *
+ * 什么失败可以重试：
+ *      服务端线程池满了拒绝（REJECTED）、连接过载（OVERLOADED）、没有可用连接、写失败   请求没有执行过，总是重试
+ *      发出去之后连接断了（CONNECTION_LOST）                                            服务端可能执行过，方法幂等才重试
+ *      服务方法抛出的异常、框架的其他错误、序列化失败                                     不重试，重试结果也一样
+ *      超时（TIMEOUT）                                                                 不重试，每次尝试用的都是整个调用剩下的时间，超时时已经没有时间了
+ *
+ * 方法同时配了对冲时，每次尝试本身是一个 {@link HedgedFuture}
+ * 带附件的请求只发一次，不重试，见 {@link HedgedFuture#isCopyable(RpcRequest)}
+ */
+public class RetryingFuture extends RpcFuture {
+    private static final Logger logger = LoggerFactory.getLogger(RetryingFuture.class);
+
+    private final RetryPolicy policy;
+    private final boolean idempotent;
+    private final HedgePolicy hedgePolicy;
+    private final RpcRequest request;
+    private final RpcMethodKey methodKey;
+    private final String serviceKey;
+    /**
+     * 整个调用的超时时间，所有尝试共用，不大于 0 表示不限
+     */
+    private final long timeout;
+    /**
+     * 请求带附件时为 false，失败了也不再发
+     */
+    private final boolean copyable;
+    private final long startNanos = System.nanoTime();
+    /**
+     * 已经发出的次数；第一次在调用线程里加，之后在时间轮线程或者回调线程里加
+     */
+    private final AtomicInteger attempts = new AtomicInteger();
+    private volatile RpcClientHandler lastHandler;
+
+    private RetryingFuture(RetryPolicy policy, boolean idempotent, HedgePolicy hedgePolicy, RpcRequest request,
+                           RpcMethodKey methodKey, String serviceKey) {
+        super(request);
+        this.policy = policy;
+        this.idempotent = idempotent;
+        this.hedgePolicy = hedgePolicy;
+        this.request = request;
+        this.methodKey = methodKey;
+        this.serviceKey = serviceKey;
+        this.timeout = RequestTimer.timeoutOf(request);
+        this.copyable = HedgedFuture.isCopyable(request);
+    }
+
+    /**
+     * 第一次在调用线程里选连接，可能等待，和不重试的调用一样；选不到连接也算一次失败的尝试
+     * @param idempotent 方法是否幂等，决定发出去之后的失败能不能重试
+     * @param hedgePolicy 不为 null 时每次尝试都对冲，只对幂等方法传
+     * @param methodKey 代理为每个方法缓存的 key，可以为 null
+     */
+    public static RpcFuture send(RetryPolicy policy, boolean idempotent, HedgePolicy hedgePolicy, RpcRequest request,
+                                 RpcMethodKey methodKey, String serviceKey) {
+        RetryingFuture future = new RetryingFuture(policy, idempotent, hedgePolicy, request, methodKey, serviceKey);
+        RetryBudget.deposit();
+        RpcClientHandler handler;
+        try {
+            handler = ConnectionManager.getInstance().chooseHandler(serviceKey);
+        } catch (RpcException e) {
+            future.failedAttempt(request, e);
+            return future;
+        } catch (Exception e) {
+            future.failedAttempt(request, new RpcException(RpcError.UNAVAILABLE, null, e.getMessage(), e));
+            return future;
+        }
+        future.attempt(handler, request);
+        return future;
+    }
+
+    private void attempt(RpcClientHandler handler, RpcRequest req) {
+        attempts.incrementAndGet();
+        lastHandler = handler;
+        final RpcFuture attempt;
+        if (hedgePolicy != null) {
+            attempt = HedgedFuture.send(hedgePolicy, handler, req, methodKey, serviceKey);
+        } else {
+            attempt = methodKey != null ? handler.sendRequest(req, methodKey) : handler.sendRequest(req);
+        }
+        attempt.whenDone(new Runnable() {
+            @Override
+            public void run() {
+                onAttemptDone(attempt);
+            }
+        });
+    }
+
+    /**
+     * 没有选到连接，请求没有发出去，也按一次尝试处理
+     */
+    private void failedAttempt(RpcRequest req, RpcException cause) {
+        attempts.incrementAndGet();
+        RpcFuture attempt = new RpcFuture(req);
+        attempt.fail(cause);
+        onAttemptDone(attempt);
+    }
+
+    private void onAttemptDone(RpcFuture attempt) {
+        int attempted = attempts.get();
+        if (attempt.getError() == null || !copyable || attempted >= policy.getMaxAttempts() || !isRetryable(attempt)) {
+            completeFrom(attempt);
+            return;
+        }
+        final long backoff = policy.backoff(attempted);
+        final long remaining = remaining();
+        if (timeout > 0 && remaining <= backoff) {
+            completeFrom(attempt);
+            return;
+        }
+        if (!RetryBudget.tryAcquire()) {
+            logger.debug("Retry budget exhausted, give up {}#{}", serviceKey, request.getMethodName());
+            completeFrom(attempt);
+            return;
+        }
+        policy.onRetried();
+        logger.debug("Retry {}#{} in {}ms after attempt {} failed: {}", serviceKey, request.getMethodName(),
+                backoff, attempted, String.valueOf(attempt.getError()));
+        final RpcFuture failed = attempt;
+        RequestTimer.schedule(new TimerTask() {
+            @Override
+            public void run(Timeout t) {
+                retry(failed);
+            }
+        }, backoff);
+    }
+
+    /**
+     * 时间轮线程：换一个节点再发，不等待；没有可用的连接也算一次失败的尝试
+     */
+    private void retry(RpcFuture failed) {
+        RpcRequest copy = HedgedFuture.copyOf(request);
+        if (timeout > 0) {
+            long remaining = remaining();
+            if (remaining <= 0) {
+                completeFrom(failed);
+                return;
+            }
+            copy.setTimeout(remaining);
+        }
+        RpcClientHandler handler = ConnectionManager.getInstance().chooseRetryHandler(serviceKey, lastHandler);
+        if (handler == null) {
+            failedAttempt(copy, new RpcException(RpcError.OVERLOADED, null,
+                    "No available connection to retry " + serviceKey + "#" + request.getMethodName()));
+            return;
+        }
+        attempt(handler, copy);
+    }
+
+    private long remaining() {
+        return timeout - (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private boolean isRetryable(RpcFuture attempt) {
+        int code = attempt.getErrorCode();
+        if (!attempt.isLocalFailure()) {
+            return code == RpcError.REJECTED;
+        }
+        switch (code) {
+            case RpcError.UNAVAILABLE:
+            case RpcError.OVERLOADED:
+                return true;
+            case RpcError.CONNECTION_LOST:
+                return idempotent;
+            case RpcError.TIMEOUT:
+                return false;
+            default:
+                // 其他的是写失败，序列化失败重试也一样
+                return !(attempt.getError() instanceof EncoderException);
+        }
+    }
+
+    /**
+     * @return 已经发出的次数，包括第一次
+     */
+    public int getAttempts() {
+        return attempts.get();
+    }
+}
@@ -1,10 +1,24 @@
 package com.practise.clientV2.handler;
 
+import com.practise.clientV2.RpcClient;
+import com.practise.clientV2.connect.ConcurrencyLimiter;
 import com.practise.clientV2.connect.ConnectionManager;
+import com.practise.clientV2.connect.ConnectionPool;
+import com.practise.common.compress.CompressorRegistry;
 import com.practise.common.entity.Beat;
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcBatchResponse;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcMethodInfo;
 import com.practise.common.entity.RpcRequest;
 import com.practise.common.entity.RpcResponse;
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.exception.RpcException;
+import com.practise.common.protocol.RpcMethodKey;
 import com.practise.common.protocol.RpcProtocol;
+import com.practise.common.stream.StreamObserver;
+import com.practise.common.utils.ServiceUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.timeout.IdleStateEvent;
@@ -12,7 +26,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.SocketAddress;;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author HzeLng
@@ -22,11 +43,40 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
     private static final Logger logger = LoggerFactory.getLogger(RpcClientHandler.class);
+    private static final long AWAIT_SLICE_MILLIS = 10;
 
-    private ConcurrentHashMap<String, RpcFuture> pendingRPC = new ConcurrentHashMap<String, RpcFuture>();
+    /**
+     * 等待响应的请求，按请求序号放在环形数组里，见 {@link PendingTable}
+     */
+    private final PendingTable pendingRPC = new PendingTable(PendingTable.DEFAULT_CAPACITY);
+    /**
+     * 还没结束的流，和普通请求共用请求序号
+     */
+    private final ConcurrentHashMap<Long, ClientCall> streams = new ConcurrentHashMap<>();
+    /**
+     * 连接内的请求序号，从 1 开始，0 留给心跳
+     */
+    private final AtomicLong requestIdGenerator = new AtomicLong(Beat.BEAT_ID);
     private volatile Channel channel;
     private SocketAddress remotePeer;
     private RpcProtocol rpcProtocol;
+    /**
+     * 所在节点的连接池，每个调用结束时给节点的熔断器、并发上限记一次结果，连接建立之前为 null
+     */
+    private volatile ConnectionPool pool;
+    /**
+     * 弹性池准备关掉这条连接，选连接时跳过它，见 {@link ConnectionPool#retire(RpcClientHandler)}
+     */
+    private volatile boolean retiring;
+    /**
+     * 服务端握手发来的方法表，收到之前按名字调用
+     */
+    private volatile Map<RpcMethodKey, Integer> methodIds = Collections.emptyMap();
+    /**
+     * 在 awaitAvailable 里等的线程数，没人等时响应回来不用去唤醒
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Object availableLock = new Object();
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -40,19 +90,76 @@ public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
         this.channel = ctx.channel();
     }
 
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof RpcHandshake) {
+            handshake((RpcHandshake) msg);
+        } else if (msg instanceof RpcBatchResponse) {
+            List<RpcResponse> responses = ((RpcBatchResponse) msg).getResponses();
+            if (responses == null) {
+                logger.warn("Receive empty batch response from {}", remotePeer);
+                return;
+            }
+            for (RpcResponse response : responses) {
+                channelRead0(ctx, response);
+            }
+        } else if (msg instanceof RpcStreamMessage) {
+            onStreamMessage((RpcStreamMessage) msg);
+        } else {
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    private void handshake(RpcHandshake handshake) {
+        negotiateCompressor(handshake);
+        List<RpcMethodInfo> methods = handshake.getMethods();
+        if (methods == null) {
+            return;
+        }
+        Map<RpcMethodKey, Integer> ids = new HashMap<>(methods.size() * 2);
+        for (int i = 0; i < methods.size(); i++) {
+            ids.put(new RpcMethodKey(methods.get(i)), i + 1);
+        }
+        this.methodIds = ids;
+        logger.info("Receive handshake from {}, {} methods", remotePeer, ids.size());
+    }
+
+    /**
+     * 记下两端都能用的压缩算法，每个请求按自己客户端配置的算法从里面选
+     */
+    private void negotiateCompressor(RpcHandshake handshake) {
+        channel.attr(CompressorRegistry.CHANNEL_ACCEPTED)
+                .set(CompressorRegistry.accepted(handshake.getCompressors(), handshake.getDictionaryId()));
+    }
+
+    private void onStreamMessage(RpcStreamMessage message) {
+        long streamId = message.getStreamId();
+        boolean last = message.getKind() == RpcStreamMessage.END || message.getKind() == RpcStreamMessage.ERROR;
+        ClientCall stream = last ? streams.remove(streamId) : streams.get(streamId);
+        if (stream == null) {
+            // 已经 close 的流，服务端在收到 CANCEL 之前发出的消息
+            logger.debug("Drop message kind {} of closed stream {}", message.getKind(), streamId);
+            return;
+        }
+        stream.onMessage(message);
+    }
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx, RpcResponse response) throws Exception {
-        String requestId = response.getRequestId();
+        long requestId = response.getRequestId();
         logger.info("RpcClientHandler-channelRead0: use the ctx is {} and the channel is {}",ctx,ctx.channel());
         logger.info("RpcClientHandler-channelRead0: ctx name {}",ctx.name());
         logger.debug("Receive response: " + requestId);
 
-        RpcFuture rpcFuture = pendingRPC.get(requestId);
+        // 和写失败的监听器抢，谁 remove 到谁结束 RpcFuture
+        RpcFuture rpcFuture = pendingRPC.remove(requestId);
         if (rpcFuture != null) {
-            pendingRPC.remove(requestId);
+            signalAvailable();
             rpcFuture.done(response);
         } else {
+            // 已经超时、被取消或者对冲输掉的请求，响应里的附件没人接手
             logger.warn("Can not get pending response for request id: " + requestId);
+            RpcFuture.releaseAttachments(response);
         }
     }
 
@@ -68,26 +175,236 @@ public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
 
     /**
      * 客户端在外部使用时，通过调用chooseHandler拿到之前保存好的连接
+     * 不等待写完成，调用方立刻拿到 RpcFuture；写失败时由监听器让 RpcFuture 以异常结束
      * @param request
      * @return
      */
     public RpcFuture sendRequest(RpcRequest request) {
-        logger.info("RpcClientHandler-sendRequest: the channel is {}",channel);
-        logger.info("RpcClientHandler-sendRequest: use the channel is {} to sendRequest ",channel);
-        logger.info("RpcClientHandler-sendRequest: ready to send RpcRequest {}",request.getRequestId());
+        // 请求序号由连接分配，写进帧头，响应按这个序号找回对应的 RpcFuture
+        final long requestId = requestIdGenerator.incrementAndGet();
+        request.setRequestId(requestId);
+        logger.debug("RpcClientHandler-sendRequest: ready to send RpcRequest {}", requestId);
         RpcFuture rpcFuture = new RpcFuture(request);
-        pendingRPC.put(request.getRequestId(), rpcFuture);
+        register(requestId, rpcFuture, request);
+        channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    logger.error("Send request {} error: {}", requestId, String.valueOf(future.cause()));
+                    failPending(requestId, future.cause());
+                }
+            }
+        });
+        return rpcFuture;
+    }
+
+    /**
+     * 登记到 pendingRPC，有超时时间的同时放进时间轮
+     */
+    private void register(long requestId, RpcFuture rpcFuture, RpcRequest request) {
+        ConnectionPool p = pool;
+        if (p != null) {
+            ConnectionManager manager = ConnectionManager.getInstance();
+            ConcurrencyLimiter serviceLimiter = manager.isAdaptiveConcurrency()
+                    ? manager.getServiceLimiter(ServiceUtil.makeServiceKey(request.getClassName(), request.getVersion()))
+                    : null;
+            rpcFuture.setNode(p.getHealth(), p.getLimiter(), serviceLimiter);
+        }
+        pendingRPC.put(requestId, rpcFuture);
+        long timeout = RequestTimer.timeoutOf(request);
+        if (timeout > 0) {
+            rpcFuture.startTimer(timeout);
+        }
+    }
+
+    /**
+     * 请求没有发出去，不会有响应了，直接结束对应的 RpcFuture
+     */
+    private void failPending(long requestId, Throwable cause) {
+        RpcFuture rpcFuture = pendingRPC.remove(requestId);
+        if (rpcFuture != null) {
+            signalAvailable();
+            rpcFuture.fail(cause);
+        }
+    }
+
+    /**
+     * 没有过载：连接可写（出站缓冲区没超过高水位），在途请求数也没到上限
+     * 多个线程同时检查可能一起超过上限一点，超出的不会多于并发发送的线程数
+     */
+    public boolean isAvailable(int maxInFlight) {
+        Channel ch = channel;
+        return ch != null && ch.isWritable() && pendingRPC.size() < maxInFlight;
+    }
+
+    /**
+     * 等到连接不过载，响应回来、写失败、连接重新可写时被唤醒
+     * 超时的请求由时间轮摘掉，不唤醒，所以分段等待
+     * @return 超时或者连接已经断了返回 false
+     */
+    public boolean awaitAvailable(int maxInFlight, long timeoutMillis) throws InterruptedException {
+        if (isAvailable(maxInFlight)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waiters.incrementAndGet();
         try {
-            // 同步等待消息发出
-            ChannelFuture channelFuture = channel.writeAndFlush(request).sync();
-            if (!channelFuture.isSuccess()) {
-                logger.error("Send request {} error", request.getRequestId());
+            synchronized (availableLock) {
+                while (!isAvailable(maxInFlight)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !channel.isActive()) {
+                        return false;
+                    }
+                    availableLock.wait(Math.max(1, Math.min(AWAIT_SLICE_MILLIS, TimeUnit.NANOSECONDS.toMillis(remaining))));
+                }
+                return true;
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private void signalAvailable() {
+        if (waiters.get() > 0) {
+            synchronized (availableLock) {
+                availableLock.notifyAll();
             }
-        } catch (InterruptedException e) {
-            logger.error("Send request exception: " + e.getMessage());
         }
+    }
 
-        return rpcFuture;
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            signalAvailable();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /**
+     * 批量发送，每个子请求分配自己的序号、各自登记 RpcFuture，但只写一帧、flush 一次
+     * 和 sendRequest 一样不等待写完成
+     * @param batch
+     * @param futures 和 batch.getRequests() 一一对应
+     */
+    public void sendBatch(RpcBatchRequest batch, List<RpcFuture> futures) {
+        List<RpcRequest> requests = batch.getRequests();
+        final long[] requestIds = new long[requests.size()];
+        for (int i = 0; i < requestIds.length; i++) {
+            requestIds[i] = requestIdGenerator.incrementAndGet();
+            requests.get(i).setRequestId(requestIds[i]);
+            register(requestIds[i], futures.get(i), requests.get(i));
+        }
+        batch.setRequestIds(requestIds);
+        logger.info("RpcClientHandler-sendBatch: ready to send {} requests", requestIds.length);
+        channel.writeAndFlush(batch).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    logger.error("Send batch of {} requests error: {}", requestIds.length, String.valueOf(future.cause()));
+                    for (long requestId : requestIds) {
+                        failPending(requestId, future.cause());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 流式调用，结果按 window 的额度分批发回来
+     * 不同步等待写完成，写失败时让流抛出异常
+     * @param request
+     * @param methodKey 代理为每个方法缓存的 key，可以为 null
+     * @param window 客户端最多缓存的元素个数
+     * @return
+     */
+    public RpcStream sendStreamRequest(RpcRequest request, RpcMethodKey methodKey, int window) {
+        if (methodKey != null) {
+            assignMethodId(request, methodKey);
+        }
+        final long streamId = requestIdGenerator.incrementAndGet();
+        request.setRequestId(streamId);
+        request.setInitialCredit(window);
+        final RpcStream stream = new RpcStream(this, streamId, window);
+        streams.put(streamId, stream);
+        channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    logger.error("Send stream request {} error", streamId);
+                    streams.remove(streamId);
+                    stream.fail(future.cause());
+                }
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * 双向流：传入接收服务端消息的观察者，返回往服务端发消息的观察者
+     * 第一个参数留给服务端填回发观察者，request 里这个位置是 null
+     * @param request
+     * @param methodKey 代理为每个方法缓存的 key，可以为 null
+     * @param responseObserver 在客户端线程池里按顺序回调
+     * @param window 客户端最多缓存的服务端消息条数
+     * @return
+     */
+    public RpcDuplexStream sendDuplexRequest(RpcRequest request, RpcMethodKey methodKey,
+                                             StreamObserver<Object> responseObserver, int window) {
+        if (methodKey != null) {
+            assignMethodId(request, methodKey);
+        }
+        final long streamId = requestIdGenerator.incrementAndGet();
+        request.setRequestId(streamId);
+        request.setInitialCredit(window);
+        request.setDuplex(true);
+        final RpcDuplexStream stream = new RpcDuplexStream(this, streamId, window, responseObserver, RpcClient::submit);
+        streams.put(streamId, stream);
+        channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    logger.error("Send duplex request {} error", streamId);
+                    streams.remove(streamId);
+                    stream.fail(future.cause());
+                }
+            }
+        });
+        return stream;
+    }
+
+    void sendCredit(long streamId, int credit) {
+        sendStreamMessage(RpcStreamMessage.credit(streamId, credit));
+    }
+
+    void sendStreamMessage(RpcStreamMessage message) {
+        channel.writeAndFlush(message);
+    }
+
+    void cancelStream(long streamId) {
+        if (streams.remove(streamId) != null) {
+            channel.writeAndFlush(RpcStreamMessage.cancel(streamId));
+        }
+    }
+
+    /**
+     * 握手之后，方法表里有的方法只发方法编号
+     * @param request
+     * @param methodKey 代理为每个方法缓存的 key
+     * @return
+     */
+    public RpcFuture sendRequest(RpcRequest request, RpcMethodKey methodKey) {
+        assignMethodId(request, methodKey);
+        return sendRequest(request);
+    }
+
+    /**
+     * 方法表里有这个方法时给请求填上方法编号，否则仍按名字调用
+     */
+    public void assignMethodId(RpcRequest request, RpcMethodKey methodKey) {
+        Integer methodId = methodIds.get(methodKey);
+        if (methodId != null) {
+            request.setMethodId(methodId);
+        }
     }
 
     /**
@@ -100,18 +417,51 @@ public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
         if (evt instanceof IdleStateEvent) {
+            // 弹性连接池里多出来的连接空闲了一个心跳周期，直接关掉，不用再发心跳
+            if (rpcProtocol != null && ConnectionManager.getInstance().retireIdleHandler(rpcProtocol, this)) {
+                logger.info("Close idle connection to " + remotePeer);
+                ctx.close();
+                return;
+            }
             //Send ping
-            sendRequest(Beat.BEAT_PING);
+            // 心跳不需要响应，不进 pendingRPC，也不占用请求序号
+            ctx.writeAndFlush(Beat.BEAT_PING);
             logger.debug("Client send beat-ping to " + remotePeer);
         } else {
             super.userEventTriggered(ctx, evt);
         }
     }
 
+    /**
+     * @return 这个连接上等待响应的请求数，不含流
+     */
+    public int getPendingCount() {
+        return pendingRPC.size();
+    }
+
+    /**
+     * @return 没有等待响应的请求，也没有还没结束的流
+     */
+    public boolean isIdle() {
+        return pendingRPC.size() == 0 && streams.isEmpty();
+    }
+
+    public boolean isRetiring() {
+        return retiring;
+    }
+
+    public void setRetiring(boolean retiring) {
+        this.retiring = retiring;
+    }
+
     public void setRpcProtocol(RpcProtocol rpcProtocol) {
         this.rpcProtocol = rpcProtocol;
     }
 
+    public void setPool(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
     /**
      *      * 什么时候会触发handler的channelInactive：
      *      *      1. 客户端发送关闭帧
@@ -124,6 +474,31 @@ public class RpcClientHandler extends SimpleChannelInboundHandler<RpcResponse> {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
-        ConnectionManager.getInstance().removeHandler(rpcProtocol);
+        // 先摘掉连接，失败回调里立刻重试的调用不会再选到这里
+        if (rpcProtocol != null) {
+            ConnectionManager.getInstance().removeHandler(rpcProtocol, this);
+        }
+        signalAvailable();
+        // 等待响应的调用立刻以 CONNECTION_LOST 结束，不用等到超时
+        List<RpcFuture> futures = pendingRPC.removeAll();
+        if (!futures.isEmpty()) {
+            logger.warn("Connection to {} closed, fail {} pending requests", remotePeer, futures.size());
+            for (RpcFuture future : futures) {
+                future.fail(connectionLost());
+            }
+        }
+        for (Long streamId : streams.keySet()) {
+            ClientCall stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.fail(connectionLost());
+            }
+        }
+    }
+
+    /**
+     * 不带堆栈，每个调用一个，构造很便宜
+     */
+    private RpcException connectionLost() {
+        return new RpcException(RpcError.CONNECTION_LOST, null, "Connection to " + remotePeer + " closed");
     }
 }
@@ -1,18 +1,21 @@
 package com.practise.clientV2.handler;
 
-import com.practise.common.Serializer.protostuff.ProtostuffSerializer;
+import com.practise.common.Serializer.SerializerRegistry;
 import com.practise.common.entity.Beat;
 import com.practise.common.entity.RpcRequest;
 import com.practise.common.entity.RpcResponse;
+import com.practise.common.transport.Transport;
+import com.practise.common.transport.TransportProfile;
 import com.practise.common.utils.RpcDecoder;
 import com.practise.common.utils.RpcEncoder;
 import com.practise.common.utils.Serializer;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.timeout.IdleStateHandler;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -22,16 +25,46 @@ import java.util.concurrent.TimeUnit;
  * @date 2022/3/5 22:39
  */
 public class RpcClientInitializer extends ChannelInitializer<SocketChannel> {
+
+    /**
+     * 请求没有指定序列化器时用的，服务端跟随
+     */
+    private final Serializer serializer;
+    /**
+     * 请求还可能用的序列化器，服务端按请求的序列化器回响应，解码器要接受
+     */
+    private final Collection<Serializer> acceptedSerializers;
+    /**
+     * 要不要合并 flush，socket 参数在 Bootstrap 上设置
+     */
+    private final TransportProfile transportProfile;
+
+    public RpcClientInitializer() {
+        this(SerializerRegistry.getDefault());
+    }
+
+    public RpcClientInitializer(Serializer serializer) {
+        this(serializer, Collections.<Serializer>emptyList());
+    }
+
+    public RpcClientInitializer(Serializer serializer, Collection<Serializer> acceptedSerializers) {
+        this(serializer, acceptedSerializers, TransportProfile.DEFAULT);
+    }
+
+    public RpcClientInitializer(Serializer serializer, Collection<Serializer> acceptedSerializers,
+                                TransportProfile transportProfile) {
+        this.serializer = serializer;
+        this.acceptedSerializers = acceptedSerializers;
+        this.transportProfile = transportProfile;
+    }
+
     @Override
     protected void initChannel(SocketChannel socketChannel) throws Exception {
-//        Serializer serializer = ProtostuffSerializer.class.newInstance();
-//        Serializer serializer = HessianSerializer.class.newInstance();
-        Serializer serializer =  ProtostuffSerializer.class.newInstance();
         ChannelPipeline cp = socketChannel.pipeline();
         cp.addLast(new IdleStateHandler(0, 0, Beat.BEAT_INTERVAL, TimeUnit.SECONDS));
         cp.addLast(new RpcEncoder(RpcRequest.class, serializer));
-        cp.addLast(new LengthFieldBasedFrameDecoder(65536, 0, 4, 0, 0));
-        cp.addLast(new RpcDecoder(RpcResponse.class, serializer));
+        cp.addLast(new RpcDecoder(RpcResponse.class, serializer, acceptedSerializers));
         cp.addLast(new RpcClientHandler());
+        Transport.configure(cp, transportProfile);
     }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.stream.StreamInbox;
+import com.practise.common.stream.StreamObserver;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcDuplexStream
+ * @date 2022/3/16 14:10
+ *
+ * 客户端的一个双向流，调用方拿到的就是它，用来往服务端发消息
+ *
+ * 发送方向：服务端的接收观察者准备好之后才会给额度，onNext 没有额度时阻塞调用线程，
+ *          所以上传大量数据时客户端也只占窗口那么多的内存
+ * 接收方向：服务端的 DATA/END/ERROR 交给 {@link StreamInbox}，在客户端线程池里按顺序回调调用方传入的观察者
+ *
+ * onCompleted 是半关闭，之后仍然可以收服务端的消息；onError 取消整个调用
+ * 服务端结束之后再 onNext 的消息直接丢掉
+ */
+public class RpcDuplexStream implements StreamObserver<Object>, ClientCall {
+
+    private final RpcClientHandler handler;
+    private final long streamId;
+    private final StreamInbox inbox;
+    private final Semaphore credit = new Semaphore(0);
+    private volatile boolean closed;
+    private boolean halfClosed;
+
+    RpcDuplexStream(RpcClientHandler handler, long streamId, int window, StreamObserver<Object> responseObserver,
+                    Executor executor) {
+        this.handler = handler;
+        this.streamId = streamId;
+        this.inbox = new StreamInbox(streamId, window, executor,
+                n -> handler.sendStreamMessage(RpcStreamMessage.credit(streamId, n)),
+                t -> cancel());
+        this.inbox.start(responseObserver);
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    @Override
+    public void onMessage(RpcStreamMessage message) {
+        if (message.getKind() == RpcStreamMessage.CREDIT) {
+            credit.release(message.getCredit());
+            return;
+        }
+        if (message.getKind() != RpcStreamMessage.DATA) {
+            close();
+        }
+        inbox.onMessage(message);
+    }
+
+    @Override
+    public void fail(Throwable cause) {
+        close();
+        inbox.cancel(cause);
+    }
+
+    @Override
+    public void onNext(Object value) {
+        if (closed) {
+            return;
+        }
+        try {
+            credit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for credit of stream " + streamId, e);
+        }
+        if (closed) {
+            return;
+        }
+        handler.sendStreamMessage(RpcStreamMessage.data(streamId, value));
+    }
+
+    /**
+     * 客户端这边发完了，服务端仍然可以继续发
+     */
+    @Override
+    public void onCompleted() {
+        if (closed || halfClosed) {
+            return;
+        }
+        halfClosed = true;
+        handler.sendStreamMessage(RpcStreamMessage.end(streamId));
+    }
+
+    /**
+     * 客户端放弃整个调用，服务端的接收观察者会收到 CancellationException
+     */
+    @Override
+    public void onError(Throwable t) {
+        if (closed) {
+            return;
+        }
+        cancel();
+        inbox.cancel(t);
+    }
+
+    private void cancel() {
+        close();
+        handler.cancelStream(streamId);
+    }
+
+    /**
+     * 不会再发送了，叫醒等额度的线程
+     */
+    private void close() {
+        if (!closed) {
+            closed = true;
+            credit.release(Integer.MAX_VALUE >> 1);
+        }
+    }
+}
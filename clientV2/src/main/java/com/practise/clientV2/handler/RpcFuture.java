@@ -1,15 +1,26 @@
 package com.practise.clientV2.handler;
 
 import com.practise.clientV2.RpcClient;
+import com.practise.clientV2.connect.ConcurrencyLimiter;
+import com.practise.clientV2.connect.NodeHealth;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcError;
 import com.practise.common.entity.RpcRequest;
 import com.practise.common.entity.RpcResponse;
+import com.practise.common.exception.ErrorRegistry;
+import com.practise.common.exception.RpcException;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,12 +31,40 @@ import java.util.concurrent.locks.ReentrantLock;
  * @description RpcFuture
  * @date 2022/3/5 22:42
  */
-public class RpcFuture implements Future<Object> {
+public class RpcFuture implements Future<Object>, TimerTask {
     private static final Logger logger = LoggerFactory.getLogger(RpcFuture.class);
 
     private Sync sync;
     private RpcRequest request;
+    /**
+     * 登记到 {@link PendingTable} 时的序号，请求对象被重发时 request 里的序号会变
+     */
+    private long requestId;
+    /**
+     * 登记到的 PendingTable 和超时任务，超时时从表里摘掉自己
+     */
+    private PendingTable owner;
+    private volatile Timeout timeout;
     private RpcResponse response;
+    private volatile Throwable error;
+    /**
+     * 请求没有拿到服务端的响应（写失败、连接断了、超时），是 {@link #fail(Throwable)} 结束的
+     */
+    private volatile boolean localFailure;
+    /**
+     * 结束时在当前线程执行一次，对冲时用来汇总各个请求，见 {@link HedgedFuture}
+     */
+    private volatile Runnable listener;
+    private static final AtomicReferenceFieldUpdater<RpcFuture, Runnable> LISTENER =
+            AtomicReferenceFieldUpdater.newUpdater(RpcFuture.class, Runnable.class, "listener");
+    /**
+     * 发到的节点的熔断器和并发上限、服务的并发上限，结束时记一次结果；
+     * 没有登记到连接上的（对冲、重试的汇总）为 null，没开并发限制时 limiter 为 null
+     */
+    private NodeHealth health;
+    private ConcurrencyLimiter nodeLimiter;
+    private ConcurrencyLimiter serviceLimiter;
+    private long sentNanos;
     private long startTime;
     private long responseTimeThreshold = 5000;
     private List<AsyncRPCCallback> pendingCallbacks = new ArrayList<>();
@@ -42,14 +81,13 @@ public class RpcFuture implements Future<Object> {
         return sync.isDone();
     }
 
+    /**
+     * 服务端返回异常时抛出还原的异常，见 {@link #getError()}
+     */
     @Override
     public Object get() {
         sync.acquire(1);
-        if (this.response != null) {
-            return this.response.getResult();
-        } else {
-            return null;
-        }
+        return result();
     }
 
     /**
@@ -68,18 +106,168 @@ public class RpcFuture implements Future<Object> {
     public Object get(long timeout, TimeUnit unit) throws InterruptedException {
         boolean success = sync.tryAcquireNanos(1, unit.toNanos(timeout));
         if (success) {
-            if (this.response != null) {
-                return this.response.getResult();
-            } else {
-                return null;
-            }
+            return result();
         } else {
-            throw new RuntimeException("Timeout exception. Request id: " + this.request.getRequestId()
+            // 只是调用方不等了，请求还在 PendingTable 里，到期后由时间轮摘掉
+            throw new RpcException(RpcError.TIMEOUT, null, "Timeout exception. Request id: " + this.request.getRequestId()
                     + ". Request class name: " + this.request.getClassName()
                     + ". Request method: " + this.request.getMethodName());
         }
     }
 
+    private Object result() {
+        if (this.response == null) {
+            return null;
+        }
+        Throwable error = getError();
+        if (error == null) {
+            return this.response.getResult();
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        // 受检异常包一层，原来的异常是 cause
+        int code = this.response.getError() == null ? RpcError.UNAVAILABLE : this.response.getError().getCode();
+        throw new RpcException(code, error.getClass().getName(), error.getMessage(), error);
+    }
+
+    /**
+     * 服务端的 {@link RpcError} 还原成异常，只还原一次；没发出去的请求是 {@link #fail(Throwable)} 的 cause
+     * 注册过的异常类还原成原来的类型，其他的是 {@link RpcException}
+     * @return 没有出错返回 null
+     */
+    public Throwable getError() {
+        Throwable error = this.error;
+        if (error != null) {
+            return error;
+        }
+        RpcResponse res = this.response;
+        if (res == null || res.getError() == null) {
+            return null;
+        }
+        error = ErrorRegistry.decode(res.getError());
+        this.error = error;
+        return error;
+    }
+
+    boolean isLocalFailure() {
+        return localFailure;
+    }
+
+    /**
+     * @return 服务端响应里的错误码，本地结束的是 RpcException 的错误码；没出错或者不知道返回 0
+     */
+    int getErrorCode() {
+        RpcResponse res = this.response;
+        if (res != null && res.getError() != null) {
+            return res.getError().getCode();
+        }
+        Throwable error = this.error;
+        return error instanceof RpcException ? ((RpcException) error).getCode() : 0;
+    }
+
+    /**
+     * 结束时（已经结束就立刻）在结束它的线程里执行，不经过回调线程池，只能设一个
+     */
+    void whenDone(Runnable listener) {
+        this.listener = listener;
+        if (isDone()) {
+            fireListener();
+        }
+    }
+
+    private void fireListener() {
+        Runnable l = this.listener;
+        if (l != null && LISTENER.compareAndSet(this, l, null)) {
+            l.run();
+        }
+    }
+
+    /**
+     * 结果不会再被取走时（对冲输掉的请求）释放响应里的附件
+     */
+    void releaseAttachments() {
+        RpcResponse res = this.response;
+        if (res != null) {
+            releaseAttachments(res);
+        }
+    }
+
+    /**
+     * 响应里的附件（RpcAttachment 类型的返回值和 attachments）带引用计数，没有调用方接手时在这里释放
+     */
+    static void releaseAttachments(RpcResponse response) {
+        if (response.getResult() instanceof RpcAttachment) {
+            ReferenceCountUtil.safeRelease(response.getResult());
+        }
+        if (response.getAttachments() != null) {
+            for (RpcAttachment attachment : response.getAttachments()) {
+                ReferenceCountUtil.safeRelease(attachment);
+            }
+        }
+    }
+
+    /**
+     * 用另一个已经结束的 RpcFuture 的结果结束自己
+     */
+    void completeFrom(RpcFuture other) {
+        this.error = other.error;
+        this.localFailure = other.localFailure;
+        done(other.response);
+    }
+
+    long getRequestId() {
+        return requestId;
+    }
+
+    void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * 登记到连接上时调用，并发上限从这里开始算在途
+     */
+    void setNode(NodeHealth health, ConcurrencyLimiter nodeLimiter, ConcurrencyLimiter serviceLimiter) {
+        this.health = health;
+        this.nodeLimiter = nodeLimiter;
+        this.serviceLimiter = serviceLimiter;
+        if (nodeLimiter != null || serviceLimiter != null) {
+            this.sentNanos = System.nanoTime();
+            if (nodeLimiter != null) {
+                nodeLimiter.onSend();
+            }
+            if (serviceLimiter != null) {
+                serviceLimiter.onSend();
+            }
+        }
+    }
+
+    void setOwner(PendingTable owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * 登记之后、发出之前调用，响应不会比这个早到
+     */
+    void startTimer(long millis) {
+        this.timeout = RequestTimer.schedule(this, millis);
+    }
+
+    /**
+     * 时间轮到期：还在表里就摘掉，以超时结束；已经被响应或者写失败取走了就什么都不做
+     */
+    @Override
+    public void run(Timeout timeout) {
+        PendingTable table = owner;
+        if (table != null && table.remove(requestId) == this) {
+            fail(new RpcException(RpcError.TIMEOUT, null, "Request " + requestId + " to "
+                    + request.getClassName() + "#" + request.getMethodName() + " timed out"));
+        }
+    }
+
     @Override
     public boolean isCancelled() {
         throw new UnsupportedOperationException();
@@ -96,9 +284,29 @@ public class RpcFuture implements Future<Object> {
      * （执行任务清单，会上锁，因为是共享队列，防止执行任务的时候，还有人往里加）
      * @param reponse
      */
+    /**
+     * 请求没有发到服务端（写失败、连接断了），不会再有响应，以 cause 结束
+     * @param cause
+     */
+    public void fail(Throwable cause) {
+        this.error = cause;
+        this.localFailure = true;
+        RpcResponse failure = new RpcResponse();
+        failure.setRequestId(request.getRequestId());
+        done(failure);
+    }
+
     public void done(RpcResponse reponse) {
         this.response = reponse;
         sync.release(1);
+        Timeout t = this.timeout;
+        if (t != null) {
+            t.cancel();
+        }
+        if (health != null) {
+            recordNode();
+        }
+        fireListener();
         // 为什么还要这一步？
         // 调用回调函数
         invokeCallbacks();
@@ -109,6 +317,27 @@ public class RpcFuture implements Future<Object> {
         }
     }
 
+    /**
+     * 调用结果记到节点的熔断器、节点和服务的并发上限里
+     * 超时、被服务端拒绝说明已经过载；没拿到响应的，响应时间不能用
+     */
+    private void recordNode() {
+        int code = getErrorCode();
+        health.record(code, localFailure, System.currentTimeMillis() - startTime);
+        if (nodeLimiter == null && serviceLimiter == null) {
+            return;
+        }
+        long rtt = System.nanoTime() - sentNanos;
+        boolean dropped = code == RpcError.TIMEOUT || code == RpcError.REJECTED;
+        boolean sampled = !localFailure;
+        if (nodeLimiter != null) {
+            nodeLimiter.onDone(rtt, dropped, sampled);
+        }
+        if (serviceLimiter != null) {
+            serviceLimiter.onDone(rtt, dropped, sampled);
+        }
+    }
+
     /**
      * 执行回调函数
      * 会上锁，对回调函数任务列表上锁
@@ -156,20 +385,27 @@ public class RpcFuture implements Future<Object> {
      */
     private void runCallback(final AsyncRPCCallback callback) {
         final RpcResponse res = this.response;
-        RpcClient.submit(new Runnable() {
+        Runnable task = new Runnable() {
             @Override
             public void run() {
                 // 只有在response到来后，才会执行回调函数
                 // 判断response是否出错
-                if (res.getError() == null) {
+                Throwable error = getError();
+                if (error == null) {
                     // 如果没有，则执行，用户在一开始设置的
                     // 没错的情况下，做什么
                     callback.success(res.getResult());
                 } else {
-                    callback.fail(new RuntimeException("Response error", new Throwable(res.getError())));
+                    callback.fail(error instanceof Exception ? (Exception) error : new RuntimeException("Response error", error));
                 }
             }
-        });
+        };
+        try {
+            RpcClient.submit(task);
+        } catch (RejectedExecutionException e) {
+            // 大量请求同时超时时回调线程池可能排满，不能把回调丢掉，在当前线程执行
+            task.run();
+        }
     }
 
     static class Sync extends AbstractQueuedSynchronizer {
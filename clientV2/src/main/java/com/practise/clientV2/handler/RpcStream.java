@@ -0,0 +1,160 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.exception.ErrorRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcStream
+ * @date 2022/3/15 14:10
+ *
+ * 客户端这边的一个流，按 Iterator 消费服务端一条一条发来的结果
+ *
+ * 一开始给服务端 window 的额度，每消费掉一半窗口就把这部分额度还给服务端，
+ * 服务端手里的额度加上已经到了还没消费的元素永远不超过 window，所以队列长度固定，
+ * 消费得慢服务端就停下来等，两边占的内存都和结果总量无关
+ *
+ * 不用了要 close，服务端会停止发送并关闭服务方法返回的 Iterator
+ */
+public class RpcStream implements Iterator<Object>, Closeable, ClientCall {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcStream.class);
+
+    public static final int DEFAULT_WINDOW = 64;
+
+    /**
+     * 队列里不能放 null，用这几个对象占位
+     */
+    private static final Object NULL = new Object();
+    private static final Object END = new Object();
+
+    private final RpcClientHandler handler;
+    private final long streamId;
+    private final int window;
+    /**
+     * 窗口里的 DATA，再加上 END/ERROR 和断线时的错误
+     */
+    private final BlockingQueue<Object> queue;
+
+    /**
+     * 下面这些只有消费线程访问
+     */
+    private Object next;
+    private boolean finished;
+    private int consumed;
+
+    RpcStream(RpcClientHandler handler, long streamId, int window) {
+        this.handler = handler;
+        this.streamId = streamId;
+        this.window = window;
+        this.queue = new ArrayBlockingQueue<>(window + 2);
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * IO 线程收到服务端的消息
+     */
+    @Override
+    public void onMessage(RpcStreamMessage message) {
+        switch (message.getKind()) {
+            case RpcStreamMessage.DATA:
+                offer(message.getPayload() == null ? NULL : message.getPayload());
+                break;
+            case RpcStreamMessage.END:
+                offer(END);
+                break;
+            case RpcStreamMessage.ERROR:
+                offer(new Failure(ErrorRegistry.decode(message.getError())));
+                break;
+            default:
+                logger.warn("Unexpected message kind {} on stream {}", message.getKind(), streamId);
+        }
+    }
+
+    @Override
+    public void fail(Throwable cause) {
+        offer(new Failure(cause));
+    }
+
+    private void offer(Object item) {
+        if (!queue.offer(item)) {
+            // 服务端没有遵守额度
+            logger.error("Stream {} overflow, window {}", streamId, window);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        Object item;
+        try {
+            item = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for stream " + streamId, e);
+        }
+        if (item == END) {
+            finished = true;
+            return false;
+        }
+        if (item instanceof Failure) {
+            finished = true;
+            throw new RuntimeException("Stream error. Stream id: " + streamId, ((Failure) item).cause);
+        }
+        next = item;
+        // 消费够半个窗口就把额度还回去，攒一攒再发，避免每条都回一帧
+        if (++consumed >= Math.max(1, window >> 1)) {
+            handler.sendCredit(streamId, consumed);
+            consumed = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object item = next;
+        next = null;
+        return item == NULL ? null : item;
+    }
+
+    /**
+     * 没消费完就关闭，通知服务端取消
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            next = null;
+            handler.cancelStream(streamId);
+            queue.clear();
+        }
+    }
+
+    private static final class Failure {
+        private final Throwable cause;
+
+        private Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
@@ -1,16 +1,29 @@
 package com.practise.clientV2.proxy;
 
 import com.practise.clientV2.connect.ConnectionManager;
+import com.practise.clientV2.handler.HedgePolicy;
+import com.practise.clientV2.handler.HedgedFuture;
+import com.practise.clientV2.handler.RetryPolicy;
+import com.practise.clientV2.handler.RetryingFuture;
 import com.practise.clientV2.handler.RpcClientHandler;
 import com.practise.clientV2.handler.RpcFuture;
+import com.practise.clientV2.handler.RpcStream;
+import com.practise.common.anotations.Idempotent;
+import com.practise.common.compress.Compressor;
 import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.RpcMethodKey;
+import com.practise.common.stream.StreamObserver;
+import com.practise.common.utils.Serializer;
 import com.practise.common.utils.ServiceUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.ClassUtils;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.util.UUID;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author HzeLng
@@ -36,10 +49,52 @@ public class ObjectProxy<T, P> implements InvocationHandler, RpcService<T, P, Se
     private static final Logger logger = LoggerFactory.getLogger(ObjectProxy.class);
     private Class<T> clazz;
     private String version;
+    /**
+     * 每个方法的 key 只算一次，用来查连接上的方法编号
+     */
+    private final Map<Method, RpcMethodKey> methodKeys;
+    /**
+     * 这个代理发出的调用的超时时间（毫秒），0 表示用服务或者全局的设置，见 {@link com.practise.clientV2.handler.RequestTimer}
+     */
+    private final long timeout;
+    /**
+     * 创建这个代理的 RpcClient 用的序列化器，null 表示用连接默认的
+     */
+    private final Serializer serializer;
+    /**
+     * 创建这个代理的 RpcClient 用的压缩算法，null 表示不压缩
+     */
+    private final Compressor compressor;
+    /**
+     * 方法有没有标 {@link Idempotent}，只有幂等的方法才对冲，发出去之后的失败才重试
+     */
+    private static final Map<Method, Boolean> idempotentMethods = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> idempotentNames = new ConcurrentHashMap<>();
 
     public ObjectProxy(Class<T> clazz, String version) {
+        this(clazz, version, 0);
+    }
+
+    public ObjectProxy(Class<T> clazz, String version, long timeout) {
+        this(clazz, version, timeout, null);
+    }
+
+    public ObjectProxy(Class<T> clazz, String version, long timeout, Serializer serializer) {
+        this(clazz, version, timeout, serializer, null);
+    }
+
+    public ObjectProxy(Class<T> clazz, String version, long timeout, Serializer serializer, Compressor compressor) {
+        this(clazz, version, timeout, serializer, compressor, new ConcurrentHashMap<>());
+    }
+
+    private ObjectProxy(Class<T> clazz, String version, long timeout, Serializer serializer, Compressor compressor,
+                        Map<Method, RpcMethodKey> methodKeys) {
         this.clazz = clazz;
         this.version = version;
+        this.timeout = timeout;
+        this.serializer = serializer;
+        this.compressor = compressor;
+        this.methodKeys = methodKeys;
     }
 
     @Override
@@ -62,13 +117,16 @@ public class ObjectProxy<T, P> implements InvocationHandler, RpcService<T, P, Se
             }
         }
 
+        // requestId 在 sendRequest 时由连接分配
         RpcRequest request = new RpcRequest();
-        request.setRequestId(UUID.randomUUID().toString());
         request.setClassName(method.getDeclaringClass().getName());
         request.setMethodName(method.getName());
         request.setParameterTypes(method.getParameterTypes());
         request.setParameters(args);
         request.setVersion(version);
+        request.setTimeout(timeout);
+        request.setSerializer(serializer);
+        request.setCompressor(compressor);
         // Debug
         if (logger.isDebugEnabled()) {
             logger.debug(method.getDeclaringClass().getName());
@@ -81,42 +139,158 @@ public class ObjectProxy<T, P> implements InvocationHandler, RpcService<T, P, Se
             }
         }
 
-        String serviceKey = ServiceUtil.makeServiceKey(method.getDeclaringClass().getName(), version);
-        RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(serviceKey);
-        RpcFuture rpcFuture = handler.sendRequest(request);
+        RpcMethodKey methodKey = methodKeys.get(method);
+        if (methodKey == null) {
+            methodKey = methodKeys.computeIfAbsent(method, m -> new RpcMethodKey(
+                    ServiceUtil.makeServiceKey(m.getDeclaringClass().getName(), version), m.getName(), m.getParameterTypes()));
+        }
+        if (method.getReturnType() == Iterator.class) {
+            // 返回 Iterator 的方法按流接收，边收边消费
+            RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(methodKey.getServiceKey());
+            return handler.sendStreamRequest(request, methodKey, RpcStream.DEFAULT_WINDOW);
+        }
+        if (method.getReturnType() == StreamObserver.class) {
+            // 双向流，第一个参数是接收服务端消息的观察者，不发给服务端
+            RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(methodKey.getServiceKey());
+            return handler.sendDuplexRequest(duplexRequest(request), methodKey,
+                    (StreamObserver<Object>) args[0], RpcStream.DEFAULT_WINDOW);
+        }
+        RpcFuture rpcFuture = send(request, methodKey, methodKey.getServiceKey(), isIdempotent(method),
+                RetryPolicy.of(methodKey.getServiceKey(), method));
         logger.info("ObjectProxy-invoke: send request to server ");
         return rpcFuture.get();
     }
 
     @Override
     public RpcFuture call(String funcName, Object... args) throws Exception {
-        String serviceKey = ServiceUtil.makeServiceKey(this.clazz.getName(), version);
-        RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(serviceKey);
-        RpcRequest request = createRequest(this.clazz.getName(), funcName, args);
-        RpcFuture rpcFuture = handler.sendRequest(request);
-        return rpcFuture;
+        return send(createRequest(funcName, args));
     }
 
     @Override
     public RpcFuture call(SerializableFunction<T> tSerializableFunction, Object... args) throws Exception {
-        String serviceKey = ServiceUtil.makeServiceKey(this.clazz.getName(), version);
+        return send(createRequest(tSerializableFunction.getName(), args));
+    }
+
+    private RpcFuture send(RpcRequest request) throws Exception {
+        String serviceKey = getServiceKey();
+        String methodName = request.getMethodName();
+        return send(request, null, serviceKey, isIdempotent(methodName), RetryPolicy.of(serviceKey, clazz, methodName));
+    }
+
+    /**
+     * 一元调用都从这里发：配了重试的交给 {@link RetryingFuture}，幂等方法配了对冲的交给 {@link HedgedFuture}
+     * @param methodKey 按名字调用时为 null
+     */
+    private static RpcFuture send(RpcRequest request, RpcMethodKey methodKey, String serviceKey, boolean idempotent,
+                                  RetryPolicy retryPolicy) throws Exception {
+        HedgePolicy hedgePolicy = idempotent ? HedgePolicy.of(serviceKey) : null;
+        if (retryPolicy != null) {
+            return RetryingFuture.send(retryPolicy, idempotent, hedgePolicy, request, methodKey, serviceKey);
+        }
         RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(serviceKey);
-        RpcRequest request = createRequest(this.clazz.getName(), tSerializableFunction.getName(), args);
-        RpcFuture rpcFuture = handler.sendRequest(request);
-        return rpcFuture;
+        if (hedgePolicy != null) {
+            return HedgedFuture.send(hedgePolicy, handler, request, methodKey, serviceKey);
+        }
+        return methodKey != null ? handler.sendRequest(request, methodKey) : handler.sendRequest(request);
+    }
+
+    private static boolean isIdempotent(Method method) {
+        Boolean idempotent = idempotentMethods.get(method);
+        if (idempotent == null) {
+            idempotent = method.isAnnotationPresent(Idempotent.class)
+                    || method.getDeclaringClass().isAnnotationPresent(Idempotent.class);
+            idempotentMethods.put(method, idempotent);
+        }
+        return idempotent;
+    }
+
+    /**
+     * 按名字调用时不知道是哪个重载，同名的方法都幂等才算
+     */
+    private boolean isIdempotent(String methodName) {
+        String key = clazz.getName() + "#" + methodName;
+        Boolean idempotent = idempotentNames.get(key);
+        if (idempotent == null) {
+            boolean found = false;
+            boolean all = true;
+            for (Method method : clazz.getMethods()) {
+                if (method.getName().equals(methodName)) {
+                    found = true;
+                    all &= isIdempotent(method);
+                }
+            }
+            idempotent = found && all;
+            idempotentNames.put(key, idempotent);
+        }
+        return idempotent;
     }
 
-    private RpcRequest createRequest(String className, String methodName, Object[] args) {
+    @Override
+    public RpcStream stream(String funcName, Object... args) throws Exception {
+        RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(getServiceKey());
+        return handler.sendStreamRequest(createRequest(funcName, args), null, RpcStream.DEFAULT_WINDOW);
+    }
+
+    @Override
+    public StreamObserver<Object> duplex(String funcName, StreamObserver<Object> responses, Object... args)
+            throws Exception {
+        RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(getServiceKey());
+        Object[] parameters = new Object[args.length + 1];
+        System.arraycopy(args, 0, parameters, 1, args.length);
+        RpcRequest request = createRequest(funcName, args);
+        Class[] parameterTypes = new Class[parameters.length];
+        parameterTypes[0] = StreamObserver.class;
+        System.arraycopy(request.getParameterTypes(), 0, parameterTypes, 1, args.length);
+        request.setParameters(parameters);
+        request.setParameterTypes(parameterTypes);
+        return handler.sendDuplexRequest(request, null, responses, RpcStream.DEFAULT_WINDOW);
+    }
+
+    /**
+     * 第一个参数换成 null，服务端会填上自己的回发观察者
+     */
+    private static RpcRequest duplexRequest(RpcRequest request) {
+        Object[] parameters = request.getParameters().clone();
+        parameters[0] = null;
+        request.setParameters(parameters);
+        return request;
+    }
+
+    @Override
+    public RpcService<T, P, SerializableFunction<T>> withTimeout(long timeoutMillis) {
+        return new ObjectProxy<T, P>(clazz, version, timeoutMillis, serializer, compressor, methodKeys);
+    }
+
+    @Override
+    public RpcBatch<T, SerializableFunction<T>> batch() {
+        return new RpcBatch<>(this);
+    }
+
+    String getServiceKey() {
+        return ServiceUtil.makeServiceKey(this.clazz.getName(), version);
+    }
+
+    RpcRequest createRequest(String methodName, Object[] args) {
+        String className = this.clazz.getName();
         RpcRequest request = new RpcRequest();
-        request.setRequestId(UUID.randomUUID().toString());
         request.setClassName(className);
         request.setMethodName(methodName);
         request.setParameters(args);
         request.setVersion(version);
-        Class[] parameterTypes = new Class[args.length];
-        // Get the right class type
-        for (int i = 0; i < args.length; i++) {
-            parameterTypes[i] = getClassType(args[i]);
+        request.setTimeout(timeout);
+        request.setSerializer(serializer);
+        request.setCompressor(compressor);
+        // 能找到接口里声明的方法时用声明的参数类型，和按方法调用时一样，基本类型参数才能对上方法编号
+        Method method = findMethod(methodName, args);
+        Class[] parameterTypes;
+        if (method != null) {
+            parameterTypes = method.getParameterTypes();
+        } else {
+            parameterTypes = new Class[args.length];
+            // Get the right class type
+            for (int i = 0; i < args.length; i++) {
+                parameterTypes[i] = getClassType(args[i]);
+            }
         }
         request.setParameterTypes(parameterTypes);
 
@@ -135,6 +309,31 @@ public class ObjectProxy<T, P> implements InvocationHandler, RpcService<T, P, Se
         return request;
     }
 
+    /**
+     * 按名字和实参找接口里的方法：参数个数相同、每个实参都能传给形参（基本类型按包装类比较）
+     * @return 没有或者不止一个匹配时返回 null
+     */
+    private Method findMethod(String methodName, Object[] args) {
+        Method found = null;
+        for (Method method : clazz.getMethods()) {
+            if (!method.getName().equals(methodName) || method.getParameterCount() != args.length) {
+                continue;
+            }
+            Class<?>[] types = method.getParameterTypes();
+            boolean match = true;
+            for (int i = 0; i < types.length && match; i++) {
+                match = ClassUtils.isAssignableValue(types[i], args[i]);
+            }
+            if (match) {
+                if (found != null) {
+                    return null;
+                }
+                found = method;
+            }
+        }
+        return found;
+    }
+
     private Class<?> getClassType(Object obj) {
         Class<?> classType = obj.getClass();
 //        String typeName = classType.getName();
@@ -0,0 +1,96 @@
+package com.practise.clientV2.proxy;
+
+import com.practise.clientV2.connect.ConnectionManager;
+import com.practise.clientV2.handler.RpcClientHandler;
+import com.practise.clientV2.handler.RpcFuture;
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.RpcMethodKey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcBatch
+ * @date 2022/3/14 16:30
+ *
+ * 批量调用，通过 {@link RpcService#batch()} 创建：
+ *      RpcBatch batch = service.batch();
+ *      RpcFuture f1 = batch.add("hello", "a");
+ *      RpcFuture f2 = batch.add("hello", "b");
+ *      batch.parallel(true).execute();
+ *
+ * 所有调用发给同一个服务端节点，放在一帧里发出去，服务端全部执行完后一起返回，
+ * 然后分别完成各自的 RpcFuture；add 返回的 RpcFuture 在 execute 之后才会有结果
+ *
+ * 不是线程安全的，一个批次只能 execute 一次
+ */
+public class RpcBatch<T, FN extends SerializableFunction<T>> {
+
+    private final ObjectProxy<T, ?> proxy;
+    private final List<RpcRequest> requests = new ArrayList<>();
+    private final List<RpcFuture> futures = new ArrayList<>();
+    private boolean parallel;
+    private boolean executed;
+
+    RpcBatch(ObjectProxy<T, ?> proxy) {
+        this.proxy = proxy;
+    }
+
+    public RpcFuture add(String funcName, Object... args) {
+        return add(proxy.createRequest(funcName, args));
+    }
+
+    public RpcFuture add(FN fn, Object... args) throws Exception {
+        return add(proxy.createRequest(fn.getName(), args));
+    }
+
+    private RpcFuture add(RpcRequest request) {
+        if (executed) {
+            throw new IllegalStateException("Batch has been executed");
+        }
+        RpcFuture future = new RpcFuture(request);
+        requests.add(request);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * @param parallel 服务端是否并行执行这一批调用，默认按添加的顺序执行
+     */
+    public RpcBatch<T, FN> parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * 发出这一批调用
+     * @return 和 add 的顺序一致的 RpcFuture
+     */
+    public List<RpcFuture> execute() throws Exception {
+        if (executed) {
+            throw new IllegalStateException("Batch has been executed");
+        }
+        executed = true;
+        if (requests.isEmpty()) {
+            return futures;
+        }
+        String serviceKey = proxy.getServiceKey();
+        RpcClientHandler handler = ConnectionManager.getInstance().chooseHandler(serviceKey);
+        // createRequest 能找到接口里的方法时参数类型是声明的类型，和代理调用的 key 一致，可以用上方法编号
+        for (RpcRequest request : requests) {
+            handler.assignMethodId(request, new RpcMethodKey(serviceKey, request.getMethodName(), request.getParameterTypes()));
+        }
+        RpcBatchRequest batch = new RpcBatchRequest();
+        batch.setRequests(requests);
+        batch.setParallel(parallel);
+        handler.sendBatch(batch, futures);
+        return futures;
+    }
+}
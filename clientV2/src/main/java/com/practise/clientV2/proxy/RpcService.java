@@ -1,6 +1,8 @@
 package com.practise.clientV2.proxy;
 
 import com.practise.clientV2.handler.RpcFuture;
+import com.practise.clientV2.handler.RpcStream;
+import com.practise.common.stream.StreamObserver;
 
 /**
  * @author HzeLng
@@ -16,4 +18,28 @@ public interface RpcService<T, P, FN extends SerializableFunction<T>> {
      */
     RpcFuture call(FN fn, Object... args) throws Exception;
 
+    /**
+     * 流式调用，服务方法返回 Iterator/Iterable，结果分多帧按额度发回来
+     */
+    RpcStream stream(String funcName, Object... args) throws Exception;
+
+    /**
+     * 双向流/客户端流，服务方法的第一个参数是 StreamObserver，args 是后面的参数
+     * @param responses 接收服务端发来的消息
+     * @return 用来往服务端发消息
+     */
+    StreamObserver<Object> duplex(String funcName, StreamObserver<Object> responses, Object... args) throws Exception;
+
+    /**
+     * 单次调用的超时：service.withTimeout(200).call("hello", "a")
+     * @param timeoutMillis 超时没有响应时 RpcFuture 以 RpcError.TIMEOUT 结束
+     * @return 共用同一个服务的另一个代理，原来的不受影响
+     */
+    RpcService<T, P, FN> withTimeout(long timeoutMillis);
+
+    /**
+     * 批量调用，多次调用放进一帧发出去
+     */
+    RpcBatch<T, FN> batch();
+
 }
\ No newline at end of file
@@ -1,6 +1,6 @@
 package com.practise.clientV2.route;
 
-import com.practise.clientV2.handler.RpcClientHandler;
+import com.practise.clientV2.connect.ConnectionPool;
 import com.practise.common.protocol.RpcProtocol;
 import com.practise.common.protocol.RpcServiceInfo;
 import com.practise.common.utils.ServiceUtil;
@@ -19,7 +19,7 @@ import java.util.Map;
  */
 public abstract class RpcLoadBalance {
     // Service map: group by service name
-    protected Map<String, List<RpcProtocol>> getServiceMap(Map<RpcProtocol, RpcClientHandler> connectedServerNodes) {
+    protected Map<String, List<RpcProtocol>> getServiceMap(Map<RpcProtocol, ConnectionPool> connectedServerNodes) {
         Map<String, List<RpcProtocol>> serviceMap = new HashedMap<>();
         if (connectedServerNodes != null && connectedServerNodes.size() > 0) {
             for (RpcProtocol rpcProtocol : connectedServerNodes.keySet()) {
@@ -38,5 +38,5 @@ public abstract class RpcLoadBalance {
     }
 
     // Route the connection for service key
-    public abstract RpcProtocol route(String serviceKey, Map<RpcProtocol, RpcClientHandler> connectedServerNodes) throws Exception;
+    public abstract RpcProtocol route(String serviceKey, Map<RpcProtocol, ConnectionPool> connectedServerNodes) throws Exception;
 }
\ No newline at end of file
@@ -1,6 +1,6 @@
 package com.practise.clientV2.route;
 
-import com.practise.clientV2.handler.RpcClientHandler;
+import com.practise.clientV2.connect.ConnectionPool;
 import com.practise.common.protocol.RpcProtocol;
 
 import java.util.List;
@@ -33,7 +33,7 @@ public class RpcLoadBalanceRandom extends RpcLoadBalance {
      * @throws Exception
      */
     @Override
-    public RpcProtocol route(String serviceKey, Map<RpcProtocol, RpcClientHandler> connectedServerNodes) throws Exception {
+    public RpcProtocol route(String serviceKey, Map<RpcProtocol, ConnectionPool> connectedServerNodes) throws Exception {
         Map<String, List<RpcProtocol>> serviceMap = getServiceMap(connectedServerNodes);
         List<RpcProtocol> addressList = serviceMap.get(serviceKey);
         if (addressList != null && addressList.size() > 0) {
@@ -0,0 +1,123 @@
+package com.practise.clientV2.connect;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ConcurrencyLimiterTest
+ * @date 2022/3/31 17:20
+ *
+ * 上限每个窗口（至少 100ms、10 个响应）调整一次
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final long WINDOW_MILLIS = 110;
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * 同时发出 inFlight 个请求，过完一个窗口后一起回来
+     */
+    private static void window(ConcurrencyLimiter limiter, int inFlight, long rttNanos, boolean dropped)
+            throws InterruptedException {
+        for (int i = 0; i < inFlight; i++) {
+            limiter.onSend();
+        }
+        Thread.sleep(WINDOW_MILLIS);
+        for (int i = 0; i < inFlight; i++) {
+            limiter.onDone(rttNanos, dropped, !dropped);
+        }
+    }
+
+    @Test
+    public void initialLimitIsClamped() {
+        assertEquals(4, new ConcurrencyLimiter("n", 1, 4, 100).getLimit());
+        assertEquals(100, new ConcurrencyLimiter("n", 1000, 4, 100).getLimit());
+    }
+
+    @Test
+    public void dropsBackOff() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("n", 20, 15, 100);
+
+        window(limiter, 10, FAST, true);
+        assertEquals(18, limiter.getLimit());
+        window(limiter, 10, FAST, true);
+        assertEquals(16, limiter.getLimit());
+        // 不低于 minLimit
+        window(limiter, 10, FAST, true);
+        assertEquals(15, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void fastResponsesGrow() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("n", 20, 4, 100);
+
+        for (int i = 0; i < 3; i++) {
+            window(limiter, 12, FAST, false);
+        }
+
+        assertTrue(limiter.getLimit() > 20, limiter.toString());
+    }
+
+    /**
+     * 调用方自己只用了一个并发，响应再快也不涨
+     */
+    @Test
+    public void appLimitedDoesNotGrow() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("n", 20, 4, 100);
+
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(WINDOW_MILLIS);
+            for (int j = 0; j < 10; j++) {
+                limiter.onSend();
+                limiter.onDone(FAST, false, true);
+            }
+        }
+
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void slowResponsesShrink() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("n", 20, 4, 100);
+        window(limiter, 12, FAST, false);
+        int limit = limiter.getLimit();
+
+        window(limiter, 12, SLOW, false);
+
+        assertTrue(limiter.getLimit() < limit, limiter.toString());
+    }
+
+    @Test
+    public void awaitAvailable() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("n", 4, 4, 4);
+        for (int i = 0; i < 4; i++) {
+            limiter.onSend();
+        }
+        assertFalse(limiter.isAvailable());
+        assertFalse(limiter.awaitAvailable(20));
+
+        Thread done = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            // 没发出去的请求只减在途数
+            limiter.onDone(0, false, false);
+        });
+        done.start();
+
+        assertTrue(limiter.awaitAvailable(5000));
+        assertEquals(3, limiter.getInFlight());
+        assertEquals(4, limiter.getLimit());
+        done.join();
+    }
+}
@@ -0,0 +1,70 @@
+package com.practise.clientV2.connect;
+
+import com.practise.clientV2.handler.RpcClientHandler;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.RpcProtocol;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ConnectionPoolTest
+ * @date 2022/3/31 14:00
+ */
+public class ConnectionPoolTest {
+
+    private static ConnectionPool pool(int coreSize, int maxSize) {
+        RpcProtocol protocol = new RpcProtocol();
+        protocol.setHost("127.0.0.1");
+        protocol.setPort(18866);
+        return new ConnectionPool(protocol, coreSize, maxSize, 1, new OutlierDetector(new ConcurrentHashMap<>()));
+    }
+
+    @Test
+    public void chooseSkipsRetiringHandler() {
+        ConnectionPool pool = pool(1, 2);
+        RpcClientHandler first = new RpcClientHandler();
+        RpcClientHandler second = new RpcClientHandler();
+        pool.add(first);
+        pool.add(second);
+
+        assertSame(first, pool.choose(10));
+        first.setRetiring(true);
+        assertSame(second, pool.choose(10));
+    }
+
+    @Test
+    public void retireOnlyIdleHandlersAboveCoreSize() {
+        ConnectionPool pool = pool(1, 2);
+        RpcClientHandler core = new RpcClientHandler();
+        RpcClientHandler busy = new RpcClientHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(busy);
+        pool.add(core);
+        pool.add(busy);
+
+        RpcRequest request = new RpcRequest();
+        request.setMethodName("hello");
+        request.setTimeout(60000);
+        busy.sendRequest(request);
+
+        // 还有请求在等的不关，标记也撤掉，之后照常能被选中
+        assertFalse(pool.retire(busy));
+        assertFalse(busy.isRetiring());
+        assertTrue(pool.contains(busy));
+
+        assertTrue(pool.retire(core));
+        assertFalse(pool.contains(core));
+        assertEquals(1, pool.getRetiredCount());
+        // 只剩 coreSize 条了，不再回收
+        assertFalse(pool.retire(busy));
+        channel.finishAndReleaseAll();
+    }
+}
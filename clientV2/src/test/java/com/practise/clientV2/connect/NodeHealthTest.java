@@ -0,0 +1,172 @@
+package com.practise.clientV2.connect;
+
+import com.practise.common.entity.RpcError;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description NodeHealthTest
+ * @date 2022/3/31 17:00
+ */
+public class NodeHealthTest {
+
+    private static final long EJECTION_MILLIS = 100;
+
+    /**
+     * 连续 3 次失败或者 4 个调用里一半失败就摘掉，第一次摘 100ms，探测成功 2 次恢复
+     */
+    private static OutlierDetector detector(int nodes) {
+        Map<Integer, Integer> map = new HashMap<>();
+        for (int i = 0; i < nodes; i++) {
+            map.put(i, i);
+        }
+        OutlierDetector detector = new OutlierDetector(map);
+        detector.setCircuitBreaker(50, 4, 3, 0);
+        detector.setEjection(EJECTION_MILLIS, 1000, 50);
+        detector.setWindow(10000, 2);
+        return detector;
+    }
+
+    private static void fail(NodeHealth health, int times) {
+        for (int i = 0; i < times; i++) {
+            health.record(RpcError.SERVER_ERROR, false, 1);
+        }
+    }
+
+    private static void succeed(NodeHealth health, int times) {
+        for (int i = 0; i < times; i++) {
+            health.record(0, false, 1);
+        }
+    }
+
+    @Test
+    public void consecutiveFailuresOpen() {
+        OutlierDetector detector = detector(4);
+        NodeHealth health = new NodeHealth(detector, "a");
+
+        fail(health, 2);
+        assertEquals(NodeHealth.State.CLOSED, health.getState());
+        fail(health, 1);
+
+        assertEquals(NodeHealth.State.OPEN, health.getState());
+        assertFalse(health.isRoutable());
+        assertEquals(1, detector.getEjectedCount());
+        assertEquals(1, health.getEjectedCount());
+    }
+
+    @Test
+    public void errorRateOpens() {
+        NodeHealth health = new NodeHealth(detector(4), "a");
+
+        // 失败不连续，4 个里错 2 个也到了 50%
+        succeed(health, 1);
+        fail(health, 1);
+        succeed(health, 1);
+        assertEquals(NodeHealth.State.CLOSED, health.getState());
+        fail(health, 1);
+
+        assertEquals(NodeHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    public void halfOpenProbesThenCloses() throws InterruptedException {
+        OutlierDetector detector = detector(4);
+        NodeHealth health = new NodeHealth(detector, "a");
+        fail(health, 3);
+        Thread.sleep(EJECTION_MILLIS + 20);
+
+        assertTrue(health.isRoutable());
+        assertEquals(NodeHealth.State.HALF_OPEN, health.getState());
+        health.onRouted();
+        // 探测还没结果时不放第二个请求
+        assertFalse(health.isRoutable());
+        succeed(health, 1);
+        assertEquals(NodeHealth.State.HALF_OPEN, health.getState());
+
+        assertTrue(health.isRoutable());
+        health.onRouted();
+        succeed(health, 1);
+        assertEquals(NodeHealth.State.CLOSED, health.getState());
+        assertEquals(0, detector.getEjectedCount());
+    }
+
+    @Test
+    public void failedProbeReopensForLonger() throws InterruptedException {
+        NodeHealth health = new NodeHealth(detector(4), "a");
+        fail(health, 3);
+        Thread.sleep(EJECTION_MILLIS + 20);
+        assertTrue(health.isRoutable());
+        health.onRouted();
+
+        fail(health, 1);
+
+        assertEquals(NodeHealth.State.OPEN, health.getState());
+        assertEquals(2, health.getEjectedCount());
+        // 第二次摘 200ms，过了第一次的时长还不能路由
+        Thread.sleep(EJECTION_MILLIS + 20);
+        assertFalse(health.isRoutable());
+    }
+
+    @Test
+    public void serviceErrorsAndLocalFailuresAreNotCounted() {
+        NodeHealth health = new NodeHealth(detector(4), "a");
+
+        for (int i = 0; i < 10; i++) {
+            // 服务方法自己抛的异常说明节点是好的
+            health.record(RpcError.SERVICE_ERROR, false, 1);
+            // 没发出去（比如客户端过载）不记
+            health.record(RpcError.OVERLOADED, true, 1);
+        }
+
+        assertEquals(NodeHealth.State.CLOSED, health.getState());
+        health.record(RpcError.TIMEOUT, true, 1);
+        health.record(RpcError.CONNECTION_LOST, true, 1);
+        health.record(RpcError.REJECTED, false, 1);
+        assertEquals(NodeHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    public void slowCallsCountAsFailures() {
+        OutlierDetector detector = detector(4);
+        detector.setCircuitBreaker(50, 4, 3, 100);
+        NodeHealth health = new NodeHealth(detector, "a");
+
+        health.record(0, false, 99);
+        health.record(0, false, 100);
+        health.record(0, false, 200);
+        assertEquals(NodeHealth.State.CLOSED, health.getState());
+        health.record(0, false, 300);
+
+        assertEquals(NodeHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    public void maxEjectionKeepsNodesRouted() {
+        OutlierDetector detector = detector(2);
+        NodeHealth first = new NodeHealth(detector, "a");
+        NodeHealth second = new NodeHealth(detector, "b");
+
+        fail(first, 3);
+        fail(second, 3);
+
+        // 两个节点最多摘一个
+        assertEquals(NodeHealth.State.OPEN, first.getState());
+        assertEquals(NodeHealth.State.CLOSED, second.getState());
+        assertTrue(second.isRoutable());
+        assertEquals(1, second.getSkippedCount());
+
+        // 移除节点还回名额
+        first.close();
+        assertEquals(0, detector.getEjectedCount());
+        fail(second, 3);
+        assertEquals(NodeHealth.State.OPEN, second.getState());
+    }
+}
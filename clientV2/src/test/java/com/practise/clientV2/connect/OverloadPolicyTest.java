@@ -0,0 +1,164 @@
+package com.practise.clientV2.connect;
+
+import com.practise.clientV2.handler.RpcClientHandler;
+import com.practise.clientV2.handler.RpcFuture;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.exception.RpcException;
+import com.practise.common.protocol.RpcProtocol;
+import com.practise.common.protocol.RpcServiceInfo;
+import com.practise.common.utils.ServiceUtil;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description OverloadPolicyTest
+ * @date 2022/3/31 19:30
+ *
+ * 每个连接最多一个在途请求，发一个不回响应的请求就让连接过载
+ */
+public class OverloadPolicyTest {
+
+    private static final String SERVICE = "com.practise.common.services.HelloServiceV2";
+    private static final String VERSION = "1.0";
+    private static final String SERVICE_KEY = ServiceUtil.makeServiceKey(SERVICE, VERSION);
+
+    private final ConnectionManager manager = ConnectionManager.getInstance();
+    private final List<RpcProtocol> nodes = new ArrayList<>();
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        for (RpcProtocol node : nodes) {
+            manager.removeAndCloseHandler(node);
+        }
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        manager.setMaxInFlight(ConnectionManager.DEFAULT_MAX_IN_FLIGHT);
+        manager.setOverloadPolicy(OverloadPolicy.WAIT, ConnectionManager.DEFAULT_OVERLOAD_WAIT_TIMEOUT);
+    }
+
+    private RpcClientHandler node(int port) {
+        RpcServiceInfo serviceInfo = new RpcServiceInfo();
+        serviceInfo.setServiceName(SERVICE);
+        serviceInfo.setVersion(VERSION);
+        RpcProtocol protocol = new RpcProtocol();
+        protocol.setHost("127.0.0.1");
+        protocol.setPort(port);
+        protocol.setServiceInfoList(Collections.singletonList(serviceInfo));
+        ConnectionPool pool = new ConnectionPool(protocol, 1, 1, ConnectionManager.DEFAULT_GROW_THRESHOLD,
+                new OutlierDetector(new ConcurrentHashMap<>()));
+        RpcClientHandler handler = new RpcClientHandler();
+        channels.add(new EmbeddedChannel(handler));
+        pool.add(handler);
+        manager.addConnectedPool(pool);
+        nodes.add(protocol);
+        return handler;
+    }
+
+    private static RpcRequest request() {
+        RpcRequest request = new RpcRequest();
+        request.setClassName(SERVICE);
+        request.setMethodName("helloV2");
+        request.setVersion(VERSION);
+        request.setTimeout(60000);
+        return request;
+    }
+
+    private static void occupy(RpcClientHandler handler) {
+        handler.sendRequest(request());
+    }
+
+    private static void assertOverloaded() {
+        RpcException error = assertThrows(RpcException.class,
+                () -> ConnectionManager.getInstance().chooseHandler(SERVICE_KEY));
+        assertEquals(RpcError.OVERLOADED, error.getCode());
+    }
+
+    @Test
+    public void failFastRejectsImmediately() throws Exception {
+        manager.setMaxInFlight(1);
+        manager.setOverloadPolicy(OverloadPolicy.FAIL_FAST, 10000);
+        RpcClientHandler handler = node(18901);
+        assertSame(handler, manager.chooseHandler(SERVICE_KEY));
+        occupy(handler);
+
+        long start = System.currentTimeMillis();
+        assertOverloaded();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /**
+     * 等到响应回来连接空出来，还是选这个连接
+     */
+    @Test
+    public void waitReturnsWhenConnectionFreesUp() throws Exception {
+        manager.setMaxInFlight(1);
+        manager.setOverloadPolicy(OverloadPolicy.WAIT, 10000);
+        RpcClientHandler handler = node(18902);
+        EmbeddedChannel channel = channels.get(0);
+        RpcRequest request = request();
+        RpcFuture pending = handler.sendRequest(request);
+        Thread responder = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            RpcResponse response = new RpcResponse();
+            response.setRequestId(request.getRequestId());
+            response.setResult("done");
+            channel.writeInbound(response);
+        });
+        responder.start();
+
+        assertSame(handler, manager.chooseHandler(SERVICE_KEY));
+        responder.join();
+        assertEquals("done", pending.get());
+    }
+
+    @Test
+    public void waitFailsAfterTimeout() throws Exception {
+        manager.setMaxInFlight(1);
+        manager.setOverloadPolicy(OverloadPolicy.WAIT, 50);
+        occupy(node(18903));
+
+        long start = System.currentTimeMillis();
+        assertOverloaded();
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    /**
+     * 选中的节点过载就换一个没过载的节点，全都过载才失败
+     */
+    @Test
+    public void spillMovesToAnotherNode() throws Exception {
+        manager.setMaxInFlight(1);
+        manager.setOverloadPolicy(OverloadPolicy.SPILL, 10000);
+        RpcClientHandler busy = node(18904);
+        RpcClientHandler free = node(18905);
+        occupy(busy);
+
+        // 负载均衡是随机的，多选几次，选中过载的节点时也要换到空闲的
+        for (int i = 0; i < 20; i++) {
+            assertSame(free, manager.chooseHandler(SERVICE_KEY));
+        }
+        occupy(free);
+        assertOverloaded();
+    }
+}
@@ -0,0 +1,115 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.utils.RpcEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description AttachmentReleaseTest
+ * @date 2022/3/31 10:00
+ *
+ * 附件写出去之后由 netty 释放：带附件的请求不能对冲、重试，没人接手的响应里的附件要释放
+ */
+public class AttachmentReleaseTest {
+
+    private static RpcRequest request(Object... parameters) {
+        RpcRequest request = new RpcRequest();
+        request.setClassName("com.practise.common.services.HelloServiceV2");
+        request.setMethodName("upload");
+        request.setVersion("1.0");
+        request.setParameters(parameters);
+        Class<?>[] types = new Class<?>[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            types[i] = parameters[i].getClass();
+        }
+        request.setParameterTypes(types);
+        request.setTimeout(1000);
+        return request;
+    }
+
+    @Test
+    public void requestWithAttachmentIsNotCopyable() {
+        assertTrue(HedgedFuture.isCopyable(request("a")));
+
+        RpcAttachment parameter = RpcAttachment.of(new byte[]{1, 2, 3});
+        RpcRequest withParameter = request("a", parameter);
+        assertFalse(HedgedFuture.isCopyable(withParameter));
+        assertThrows(IllegalStateException.class, () -> HedgedFuture.copyOf(withParameter));
+
+        RpcRequest withExtra = request("a");
+        withExtra.setAttachments(new ArrayList<>(Collections.singletonList(RpcAttachment.of(new byte[]{4}))));
+        assertFalse(HedgedFuture.isCopyable(withExtra));
+    }
+
+    @Test
+    public void requestWithAttachmentIsNotHedged() throws Exception {
+        RpcClientHandler handler = new RpcClientHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new RpcEncoder(RpcRequest.class, SerializerRegistry.getDefault()), handler);
+        ByteBuf content = Unpooled.wrappedBuffer(new byte[]{1, 2, 3});
+        RpcRequest request = request("a", RpcAttachment.of(content));
+
+        RpcFuture future = HedgedFuture.send(HedgePolicy.fixed(1, 100), handler, request, null, "HelloServiceV2#1.0");
+        assertFalse(future instanceof HedgedFuture);
+        Thread.sleep(100);
+        channel.runPendingTasks();
+
+        // 帧和附件各一个，附件只写了一次
+        ByteBuf frame = channel.readOutbound();
+        ByteBuf attachment = channel.readOutbound();
+        assertTrue(frame.isReadable());
+        assertEquals(3, attachment.readableBytes());
+        assertNull(channel.readOutbound());
+        frame.release();
+        attachment.release();
+        assertEquals(0, content.refCnt());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void unmatchedResponseReleasesAttachments() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RpcClientHandler());
+        ByteBuf result = Unpooled.buffer().writeInt(1);
+        ByteBuf extra = Unpooled.buffer().writeInt(2);
+        RpcResponse response = new RpcResponse();
+        response.setRequestId(42);
+        response.setResult(RpcAttachment.of(result));
+        response.setAttachments(new ArrayList<>(Collections.singletonList(RpcAttachment.of(extra))));
+
+        channel.writeInbound(response);
+
+        assertEquals(0, result.refCnt());
+        assertEquals(0, extra.refCnt());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void losingHedgeReleasesAttachments() {
+        ByteBuf result = Unpooled.buffer().writeInt(1);
+        RpcResponse response = new RpcResponse();
+        response.setResult(RpcAttachment.of(result));
+        RpcFuture loser = new RpcFuture(request("a"));
+        loser.done(response);
+
+        loser.releaseAttachments();
+
+        assertEquals(0, result.refCnt());
+    }
+}
@@ -0,0 +1,100 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.utils.ServiceUtil;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description HedgePolicyTest
+ * @date 2022/3/31 16:45
+ *
+ * {@link HedgePolicy} 的令牌桶：每次调用攒 percent% 个令牌，对冲一次花一个
+ */
+public class HedgePolicyTest {
+
+    @Test
+    public void hedgeBudgetAllowsBurstThenThrottles() {
+        HedgePolicy policy = HedgePolicy.fixed(10, 10);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(policy.tryAcquire());
+        }
+        assertFalse(policy.tryAcquire());
+        assertEquals(1, policy.getThrottledCount());
+
+        // 10% 的预算：10 次调用攒够一次对冲
+        for (int i = 0; i < 9; i++) {
+            policy.deposit();
+        }
+        assertFalse(policy.tryAcquire());
+        policy.deposit();
+        assertTrue(policy.tryAcquire());
+    }
+
+    @Test
+    public void hedgeRefundReturnsToken() {
+        HedgePolicy policy = HedgePolicy.fixed(10, 0);
+        for (int i = 0; i < 10; i++) {
+            policy.tryAcquire();
+        }
+        assertFalse(policy.tryAcquire());
+
+        policy.refund();
+        assertTrue(policy.tryAcquire());
+        // 0% 的预算，调用再多也攒不出来
+        for (int i = 0; i < 100; i++) {
+            policy.deposit();
+        }
+        assertFalse(policy.tryAcquire());
+    }
+
+    @Test
+    public void adaptiveDelayNeedsSamples() {
+        HedgePolicy policy = HedgePolicy.adaptive(0.95, 5, 10);
+        assertEquals(0, policy.delayOf("hello"));
+
+        for (int i = 0; i < 100; i++) {
+            policy.record("hello", 1000000L);
+        }
+        assertTrue(policy.delayOf("hello") >= 5);
+        assertEquals(0, policy.delayOf("other"));
+        assertEquals(10, HedgePolicy.fixed(10, 10).delayOf("hello"));
+    }
+
+    /**
+     * 调用本身没设超时时，按服务的超时时间定下原请求的截止时间，对冲请求按同一个值算剩下的时间
+     */
+    @Test
+    public void hedgeUsesEffectiveTimeout() {
+        String service = "com.practise.common.services.HelloServiceV2";
+        String serviceKey = ServiceUtil.makeServiceKey(service, "1.0");
+        RequestTimer.setServiceTimeout(serviceKey, 300);
+        try {
+            RpcClientHandler handler = new RpcClientHandler();
+            EmbeddedChannel channel = new EmbeddedChannel(handler);
+            RpcRequest request = new RpcRequest();
+            request.setClassName(service);
+            request.setMethodName("helloV2");
+            request.setVersion("1.0");
+
+            RpcFuture future = HedgedFuture.send(HedgePolicy.fixed(10000, 10), handler, request, null, serviceKey);
+
+            assertEquals(300, request.getTimeout());
+            RpcResponse response = new RpcResponse();
+            response.setRequestId(request.getRequestId());
+            response.setResult("ok");
+            channel.writeInbound(response);
+            assertEquals("ok", future.get());
+            channel.finishAndReleaseAll();
+        } finally {
+            RequestTimer.setServiceTimeout(serviceKey, 0);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description PendingTableTest
+ * @date 2022/3/31 16:30
+ */
+public class PendingTableTest {
+
+    private static RpcFuture future() {
+        return new RpcFuture(new RpcRequest());
+    }
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new PendingTable(0).capacity());
+        assertEquals(1, new PendingTable(1).capacity());
+        assertEquals(8, new PendingTable(5).capacity());
+        assertEquals(8, new PendingTable(8).capacity());
+    }
+
+    @Test
+    public void putAndRemove() {
+        PendingTable table = new PendingTable(4);
+        RpcFuture future = future();
+        table.put(1, future);
+
+        assertEquals(1, table.size());
+        assertSame(future, table.remove(1));
+        assertNull(table.remove(1));
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * 序号绕了一圈落到同一个槽位，老序号取不走新请求
+     */
+    @Test
+    public void wrapAroundDoesNotMatchOldRequestId() {
+        PendingTable table = new PendingTable(4);
+        for (long id = 1; id <= 4; id++) {
+            table.put(id, future());
+            table.remove(id);
+        }
+        RpcFuture future = future();
+        table.put(5, future);
+
+        assertNull(table.remove(1));
+        assertEquals(1, table.size());
+        assertSame(future, table.remove(5));
+    }
+
+    /**
+     * 槽位被还没回来的老请求占着时，新请求放进溢出表
+     */
+    @Test
+    public void occupiedSlotOverflows() {
+        PendingTable table = new PendingTable(4);
+        RpcFuture slow = future();
+        table.put(1, slow);
+        RpcFuture[] futures = new RpcFuture[8];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = future();
+            table.put(2 + i, futures[i]);
+        }
+
+        assertEquals(9, table.size());
+        for (int i = futures.length - 1; i >= 0; i--) {
+            assertSame(futures[i], table.remove(2 + i));
+        }
+        assertSame(slow, table.remove(1));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void removeAllIncludesOverflow() {
+        PendingTable table = new PendingTable(2);
+        for (long id = 1; id <= 5; id++) {
+            table.put(id, future());
+        }
+
+        List<RpcFuture> all = table.removeAll();
+
+        assertEquals(5, all.size());
+        assertEquals(0, table.size());
+        for (long id = 1; id <= 5; id++) {
+            assertNull(table.remove(id));
+        }
+        assertTrue(table.removeAll().isEmpty());
+    }
+}
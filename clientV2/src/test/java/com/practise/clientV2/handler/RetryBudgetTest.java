@@ -0,0 +1,69 @@
+package com.practise.clientV2.handler;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RetryBudgetTest
+ * @date 2022/3/31 16:45
+ *
+ * {@link RetryBudget} 的令牌桶：每次调用攒 percent% 个令牌，重试一次花一个
+ */
+public class RetryBudgetTest {
+
+    @AfterEach
+    public void resetRetryBudget() {
+        RetryBudget.configure(20, 10);
+    }
+
+    @Test
+    public void retryBudgetAllowsBurstThenThrottles() {
+        RetryBudget.configure(20, 2);
+        long throttled = RetryBudget.getThrottledCount();
+
+        assertTrue(RetryBudget.tryAcquire());
+        assertTrue(RetryBudget.tryAcquire());
+        assertFalse(RetryBudget.tryAcquire());
+        assertEquals(throttled + 1, RetryBudget.getThrottledCount());
+    }
+
+    @Test
+    public void retryBudgetRefillsPerCall() {
+        RetryBudget.configure(20, 2);
+        RetryBudget.tryAcquire();
+        RetryBudget.tryAcquire();
+
+        // 20% 的预算：4 次调用还不够一次重试，第 5 次才够
+        for (int i = 0; i < 4; i++) {
+            RetryBudget.deposit();
+        }
+        assertFalse(RetryBudget.tryAcquire());
+        RetryBudget.deposit();
+        assertTrue(RetryBudget.tryAcquire());
+    }
+
+    @Test
+    public void retryBudgetIsCappedAtBurst() {
+        RetryBudget.configure(100, 2);
+        for (int i = 0; i < 10; i++) {
+            RetryBudget.deposit();
+        }
+
+        assertTrue(RetryBudget.tryAcquire());
+        assertTrue(RetryBudget.tryAcquire());
+        assertFalse(RetryBudget.tryAcquire());
+    }
+
+    @Test
+    public void illegalRetryBudget() {
+        assertThrows(IllegalArgumentException.class, () -> RetryBudget.configure(101, 10));
+        assertThrows(IllegalArgumentException.class, () -> RetryBudget.configure(20, 0));
+    }
+}
@@ -0,0 +1,162 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcBatchResponse;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.exception.RpcException;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcClientHandlerTest
+ * @date 2022/3/31 18:00
+ */
+public class RpcClientHandlerTest {
+
+    private static RpcRequest request(String name) {
+        RpcRequest request = new RpcRequest();
+        request.setClassName("com.practise.common.services.HelloServiceV2");
+        request.setMethodName("helloV2");
+        request.setVersion("1.0");
+        request.setParameterTypes(new Class<?>[]{String.class});
+        request.setParameters(new Object[]{name});
+        request.setTimeout(60000);
+        return request;
+    }
+
+    private static RpcResponse response(long requestId, Object result) {
+        RpcResponse response = new RpcResponse();
+        response.setRequestId(requestId);
+        response.setResult(result);
+        return response;
+    }
+
+    /**
+     * 一批请求只写一帧，各自分配序号；响应按序号找回各自的 RpcFuture，和顺序无关
+     */
+    @Test
+    public void batchSharesOneFrame() {
+        RpcClientHandler handler = new RpcClientHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        List<RpcRequest> requests = new ArrayList<>(Arrays.asList(request("a"), request("b"), request("c")));
+        List<RpcFuture> futures = new ArrayList<>();
+        for (RpcRequest request : requests) {
+            futures.add(new RpcFuture(request));
+        }
+        RpcBatchRequest batch = new RpcBatchRequest();
+        batch.setRequests(requests);
+
+        handler.sendBatch(batch, futures);
+
+        assertSame(batch, channel.readOutbound());
+        assertNull(channel.readOutbound());
+        long[] requestIds = batch.getRequestIds();
+        assertEquals(3, requestIds.length);
+        assertEquals(3, handler.getPendingCount());
+        for (int i = 0; i < requestIds.length; i++) {
+            assertEquals(requestIds[i], requests.get(i).getRequestId());
+        }
+
+        RpcBatchResponse batchResponse = new RpcBatchResponse();
+        batchResponse.setResponses(new ArrayList<>(Arrays.asList(
+                response(requestIds[2], "c"), response(requestIds[0], "a"))));
+        channel.writeInbound(batchResponse);
+
+        assertEquals("a", futures.get(0).get());
+        assertFalse(futures.get(1).isDone());
+        assertEquals("c", futures.get(2).get());
+        assertEquals(1, handler.getPendingCount());
+
+        // 拆成几帧回来的批量响应也一样
+        batchResponse = new RpcBatchResponse();
+        batchResponse.setResponses(new ArrayList<>(Arrays.asList(response(requestIds[1], "b"))));
+        channel.writeInbound(batchResponse);
+        assertEquals("b", futures.get(1).get());
+        assertTrue(handler.isIdle());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void emptyBatchResponseIsIgnored() {
+        RpcClientHandler handler = new RpcClientHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        RpcFuture future = handler.sendRequest(request("a"));
+        channel.readOutbound();
+
+        channel.writeInbound(new RpcBatchResponse());
+
+        assertFalse(future.isDone());
+        assertTrue(channel.isOpen());
+        channel.writeInbound(response(future.getRequestId(), "a"));
+        assertEquals("a", future.get());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void failedBatchWriteFailsEveryCall() {
+        RpcClientHandler handler = new RpcClientHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        List<RpcRequest> requests = new ArrayList<>(Arrays.asList(request("a"), request("b")));
+        List<RpcFuture> futures = new ArrayList<>();
+        for (RpcRequest request : requests) {
+            futures.add(new RpcFuture(request));
+        }
+        RpcBatchRequest batch = new RpcBatchRequest();
+        batch.setRequests(requests);
+        channel.close();
+
+        handler.sendBatch(batch, futures);
+
+        for (RpcFuture future : futures) {
+            assertTrue(future.isDone());
+            assertTrue(future.isLocalFailure());
+        }
+        assertArrayEquals(new long[]{1, 2}, batch.getRequestIds());
+        assertEquals(0, handler.getPendingCount());
+    }
+
+    /**
+     * 连接断了，等待响应的调用和没结束的流立刻以 CONNECTION_LOST 结束，不用等到超时
+     */
+    @Test
+    public void channelInactiveFailsPendingCalls() {
+        RpcClientHandler handler = new RpcClientHandler();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        RpcFuture first = handler.sendRequest(request("a"));
+        RpcFuture second = handler.sendRequest(request("b"));
+        RpcStream stream = handler.sendStreamRequest(request("c"), null, 4);
+        assertEquals(3, channel.outboundMessages().size());
+        assertFalse(handler.isIdle());
+
+        channel.close();
+
+        for (RpcFuture future : Arrays.asList(first, second)) {
+            assertTrue(future.isDone());
+            assertEquals(RpcError.CONNECTION_LOST, future.getErrorCode());
+            RpcException error = assertThrows(RpcException.class, future::get);
+            assertEquals(RpcError.CONNECTION_LOST, error.getCode());
+        }
+        RuntimeException error = assertThrows(RuntimeException.class, stream::hasNext);
+        assertEquals(RpcError.CONNECTION_LOST, ((RpcException) error.getCause()).getCode());
+        assertTrue(handler.isIdle());
+        // 等待响应的表也清空了
+        assertEquals(0, handler.getPendingCount());
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,137 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.stream.StreamObserver;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcDuplexStreamTest
+ * @date 2022/3/31 19:20
+ */
+public class RpcDuplexStreamTest {
+
+    private static final int WINDOW = 4;
+
+    private final RpcClientHandler handler = new RpcClientHandler();
+    private final EmbeddedChannel channel = new EmbeddedChannel(handler);
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private final StreamObserver<Object> responseObserver = new StreamObserver<Object>() {
+        @Override
+        public void onNext(Object value) {
+            received.add("next:" + value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            received.add("error:" + t.getClass().getSimpleName());
+            finished.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            received.add("completed");
+            finished.countDown();
+        }
+    };
+
+    private RpcDuplexStream open() {
+        RpcRequest request = new RpcRequest();
+        request.setClassName("com.practise.common.services.HelloServiceV2");
+        request.setMethodName("chat");
+        request.setVersion("1.0");
+        request.setParameterTypes(new Class<?>[0]);
+        request.setParameters(new Object[0]);
+        RpcDuplexStream stream = handler.sendDuplexRequest(request, null, responseObserver, WINDOW);
+        RpcRequest sent = channel.readOutbound();
+        assertTrue(sent.isDuplex());
+        assertEquals(WINDOW, sent.getInitialCredit());
+        assertEquals(stream.getStreamId(), sent.getRequestId());
+        return stream;
+    }
+
+    /**
+     * 服务端给额度之前 onNext 阻塞调用线程
+     */
+    @Test
+    public void onNextWaitsForCredit() throws Exception {
+        RpcDuplexStream stream = open();
+        long id = stream.getStreamId();
+        Thread sender = new Thread(() -> {
+            stream.onNext("a");
+            stream.onCompleted();
+        });
+        sender.start();
+
+        sender.join(200);
+        assertTrue(sender.isAlive());
+        channel.writeInbound(RpcStreamMessage.credit(id, 1));
+        sender.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(sender.isAlive());
+
+        RpcStreamMessage data = channel.readOutbound();
+        assertEquals(RpcStreamMessage.DATA, data.getKind());
+        assertEquals("a", data.getPayload());
+        assertEquals(RpcStreamMessage.END, ((RpcStreamMessage) channel.readOutbound()).getKind());
+        assertNull(channel.readOutbound());
+        // 半关闭之后还在等服务端的消息
+        assertFalse(handler.isIdle());
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 服务端的消息在客户端线程池里按顺序回调
+     */
+    @Test
+    public void responsesReachObserver() throws Exception {
+        RpcDuplexStream stream = open();
+        long id = stream.getStreamId();
+
+        channel.writeInbound(RpcStreamMessage.data(id, 1));
+        channel.writeInbound(RpcStreamMessage.data(id, 2));
+        channel.writeInbound(RpcStreamMessage.end(id));
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("next:1", "next:2", "completed"), received);
+        assertTrue(handler.isIdle());
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * onError 取消整个调用，之后 onNext 不阻塞也不发送
+     */
+    @Test
+    public void onErrorCancelsCall() throws Exception {
+        RpcDuplexStream stream = open();
+        long id = stream.getStreamId();
+
+        stream.onError(new IllegalStateException("give up"));
+
+        RpcStreamMessage cancel = channel.readOutbound();
+        assertEquals(RpcStreamMessage.CANCEL, cancel.getKind());
+        assertEquals(id, cancel.getStreamId());
+        assertTrue(handler.isIdle());
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("error:IllegalStateException"), received);
+        stream.onNext("dropped");
+        channel.writeInbound(RpcStreamMessage.data(id, 1));
+        assertNull(channel.readOutbound());
+        channel.finishAndReleaseAll();
+    }
+}
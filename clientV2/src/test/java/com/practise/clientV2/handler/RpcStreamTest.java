@@ -0,0 +1,109 @@
+package com.practise.clientV2.handler;
+
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcStreamMessage;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcStreamTest
+ * @date 2022/3/31 18:30
+ */
+public class RpcStreamTest {
+
+    private static final int WINDOW = 4;
+
+    private final RpcClientHandler handler = new RpcClientHandler();
+    private final EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+    private RpcStream open() {
+        RpcRequest request = new RpcRequest();
+        request.setClassName("com.practise.common.services.HelloServiceV2");
+        request.setMethodName("list");
+        request.setVersion("1.0");
+        request.setParameterTypes(new Class<?>[0]);
+        request.setParameters(new Object[0]);
+        RpcStream stream = handler.sendStreamRequest(request, null, WINDOW);
+        RpcRequest sent = channel.readOutbound();
+        assertEquals(WINDOW, sent.getInitialCredit());
+        assertEquals(stream.getStreamId(), sent.getRequestId());
+        return stream;
+    }
+
+    private void receive(RpcStreamMessage message) {
+        channel.writeInbound(message);
+    }
+
+    /**
+     * 每消费半个窗口还一次额度，服务端手里的额度加上没消费的永远是 window
+     */
+    @Test
+    public void creditIsReturnedAfterHalfWindow() {
+        RpcStream stream = open();
+        long id = stream.getStreamId();
+        receive(RpcStreamMessage.data(id, 0));
+        receive(RpcStreamMessage.data(id, null));
+        receive(RpcStreamMessage.data(id, 2));
+        receive(RpcStreamMessage.data(id, 3));
+
+        assertEquals(0, stream.next());
+        assertNull(channel.readOutbound());
+        assertNull(stream.next());
+        RpcStreamMessage credit = channel.readOutbound();
+        assertEquals(RpcStreamMessage.CREDIT, credit.getKind());
+        assertEquals(id, credit.getStreamId());
+        assertEquals(WINDOW / 2, credit.getCredit());
+
+        receive(RpcStreamMessage.end(id));
+        assertEquals(2, stream.next());
+        assertEquals(3, stream.next());
+        assertFalse(stream.hasNext());
+        assertTrue(handler.isIdle());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void errorEndsStream() {
+        RpcStream stream = open();
+        long id = stream.getStreamId();
+        receive(RpcStreamMessage.data(id, 1));
+        receive(RpcStreamMessage.error(id, new IllegalStateException("broken")));
+
+        assertEquals(1, stream.next());
+        assertThrows(RuntimeException.class, stream::hasNext);
+        assertFalse(stream.hasNext());
+        assertTrue(handler.isIdle());
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 没消费完就关闭，通知服务端取消，之后到的消息丢掉
+     */
+    @Test
+    public void closeCancelsStream() {
+        RpcStream stream = open();
+        long id = stream.getStreamId();
+        receive(RpcStreamMessage.data(id, 1));
+
+        stream.close();
+
+        RpcStreamMessage cancel = channel.readOutbound();
+        assertEquals(RpcStreamMessage.CANCEL, cancel.getKind());
+        assertEquals(id, cancel.getStreamId());
+        assertTrue(handler.isIdle());
+        receive(RpcStreamMessage.data(id, 2));
+        assertFalse(stream.hasNext());
+        // 关闭两次只取消一次
+        stream.close();
+        assertNull(channel.readOutbound());
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,62 @@
+package com.practise.clientV2.proxy;
+
+import com.practise.common.entity.RpcRequest;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcBatchTest
+ * @date 2022/3/31 18:10
+ */
+public class RpcBatchTest {
+
+    interface Calculator {
+        long add(int a, long b);
+
+        Object echo(Object value);
+
+        String echo(String value);
+    }
+
+    private static ObjectProxy<Calculator, Object> proxy() {
+        return new ObjectProxy<>(Calculator.class, "1.0");
+    }
+
+    /**
+     * 批量调用的参数类型按接口声明的来，和代理调用时一样，才能对上方法编号
+     */
+    @Test
+    public void requestUsesDeclaredTypes() {
+        RpcRequest request = proxy().createRequest("add", new Object[]{1, 2L});
+
+        assertArrayEquals(new Class<?>[]{int.class, long.class}, request.getParameterTypes());
+        assertEquals("1.0", request.getVersion());
+    }
+
+    /**
+     * 按实参能匹配到不止一个重载时，退回用实参的类型
+     */
+    @Test
+    public void ambiguousOverloadUsesRuntimeTypes() {
+        RpcRequest request = proxy().createRequest("echo", new Object[]{"a"});
+
+        assertArrayEquals(new Class<?>[]{String.class}, request.getParameterTypes());
+    }
+
+    @Test
+    public void batchExecutesOnce() throws Exception {
+        RpcBatch<Calculator, SerializableFunction<Calculator>> batch = proxy().batch();
+        assertEquals(0, batch.size());
+
+        // 空的批次不用选连接
+        assertTrue(batch.execute().isEmpty());
+        assertThrows(IllegalStateException.class, () -> batch.add("add", 1, 2L));
+        assertThrows(IllegalStateException.class, batch::execute);
+    }
+}
@@ -0,0 +1,85 @@
+package com.practise.common.Serializer;
+
+import com.practise.common.utils.Serializer;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ServiceLoader;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description SerializerRegistry
+ * @date 2022/3/13 10:15
+ *
+ * 序列化器注册表
+ * 通过 SPI（META-INF/services/com.practise.common.utils.Serializer）加载所有实现，按帧头里的编号查找
+ * 新增序列化器只需要继承 Serializer、给一个不冲突的编号，再写进 SPI 文件
+ *
+ * 协商方式：客户端决定用哪个序列化器，服务端按请求帧头里的编号解码，
+ * 并记到 channel 上，回响应时用同一个序列化器
+ * 注册了不代表对端可以用：除了 protostuff，服务端只接受显式启用的序列化器，见 RpcDecoder
+ */
+public final class SerializerRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(SerializerRegistry.class);
+
+    /**
+     * 对端最近一次使用的序列化器，编码时优先用它
+     */
+    public static final AttributeKey<Serializer> CHANNEL_SERIALIZER = AttributeKey.valueOf("rpc.serializer");
+
+    /**
+     * 编号就是下标，查找不用哈希
+     */
+    private static final Serializer[] SERIALIZERS = new Serializer[128];
+
+    static {
+        for (Serializer serializer : ServiceLoader.load(Serializer.class, SerializerRegistry.class.getClassLoader())) {
+            register(serializer);
+        }
+    }
+
+    private SerializerRegistry() {
+    }
+
+    public static synchronized void register(Serializer serializer) {
+        byte id = serializer.getSerializerId();
+        if (id <= 0) {
+            throw new IllegalArgumentException("Illegal serializer id " + id + " of " + serializer.getClass().getName());
+        }
+        Serializer exist = SERIALIZERS[id];
+        if (exist != null && exist.getClass() != serializer.getClass()) {
+            throw new IllegalStateException("Serializer id " + id + " is used by both "
+                    + exist.getClass().getName() + " and " + serializer.getClass().getName());
+        }
+        SERIALIZERS[id] = serializer;
+        logger.info("Register serializer {}, id: {}", serializer.getName(), id);
+    }
+
+    /**
+     * @param id 帧头里的序列化器编号
+     * @return 没有注册返回 null
+     */
+    public static Serializer getSerializer(byte id) {
+        return id > 0 ? SERIALIZERS[id] : null;
+    }
+
+    /**
+     * @param name 如 protostuff、json、kryo、hessian
+     * @return
+     */
+    public static Serializer getSerializer(String name) {
+        for (Serializer serializer : SERIALIZERS) {
+            if (serializer != null && serializer.getName().equalsIgnoreCase(name)) {
+                return serializer;
+            }
+        }
+        throw new IllegalArgumentException("Unknown serializer: " + name);
+    }
+
+    public static Serializer getDefault() {
+        return SERIALIZERS[Serializer.PROTOSTUFF];
+    }
+}
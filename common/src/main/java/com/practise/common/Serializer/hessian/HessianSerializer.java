@@ -0,0 +1,165 @@
+package com.practise.common.Serializer.hessian;
+
+import com.caucho.hessian.io.ClassFactory;
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+import com.caucho.hessian.io.SerializerFactory;
+import com.practise.common.utils.Serializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description HessianSerializer
+ * @date 2022/3/13 11:40
+ *
+ * Hessian2Output/Hessian2Input 内部各带一块缓冲区，按线程复用，每次只重新绑定流
+ * RpcRequest 等实体没有实现 Serializable，所以要允许非 Serializable 的类
+ *
+ * 反序列化时只加载白名单里的类：框架和业务自己的类（com.practise）加上常用的 JDK 类，
+ * 对端发来别的类名时还原成 HashMap，不会实例化那个类；业务用到的其他包要在第一次反序列化之前调用 {@link #allow(String)}
+ */
+public class HessianSerializer extends Serializer {
+
+    /**
+     * 类名的通配格式，* 匹配任意字符
+     */
+    private static final String[] BUILTIN_ALLOWED = {
+            "com.practise.*",
+            "java.lang.Boolean", "java.lang.Byte", "java.lang.Character", "java.lang.Short", "java.lang.Integer",
+            "java.lang.Long", "java.lang.Float", "java.lang.Double", "java.lang.String", "java.lang.Object",
+            "java.math.BigDecimal", "java.math.BigInteger", "java.util.Date", "java.util.UUID",
+            "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap", "java.util.LinkedHashMap",
+            "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet",
+            "java.util.Arrays$ArrayList", "java.util.Collections$*"
+    };
+
+    private static final List<String> allowedPatterns = new CopyOnWriteArrayList<>();
+    private static volatile boolean frozen;
+
+    private final SerializerFactory serializerFactory = new SerializerFactory();
+    private volatile boolean configured;
+
+    private final FastThreadLocal<Hessian2Output> outputs = new FastThreadLocal<Hessian2Output>() {
+        @Override
+        protected Hessian2Output initialValue() {
+            Hessian2Output output = new Hessian2Output();
+            output.setSerializerFactory(serializerFactory);
+            return output;
+        }
+    };
+
+    private final FastThreadLocal<Hessian2Input> inputs = new FastThreadLocal<Hessian2Input>() {
+        @Override
+        protected Hessian2Input initialValue() {
+            Hessian2Input input = new Hessian2Input();
+            input.setSerializerFactory(serializerFactory);
+            return input;
+        }
+    };
+
+    public HessianSerializer() {
+        serializerFactory.setAllowNonSerializable(true);
+    }
+
+    /**
+     * 把业务的类加进反序列化白名单，要在第一次反序列化之前调用
+     * @param pattern 类名，* 匹配任意字符，如 com.example.dto.*
+     */
+    public static void allow(String pattern) {
+        if (frozen) {
+            throw new IllegalStateException("Hessian allowlist is frozen, allow " + pattern + " before the first deserialization");
+        }
+        allowedPatterns.add(pattern);
+    }
+
+    /**
+     * 第一次反序列化时把白名单配置到 ClassFactory 上，之后不再修改（ClassFactory 的名单读的时候不加锁）
+     */
+    private void configureClassFactory() {
+        synchronized (serializerFactory) {
+            if (configured) {
+                return;
+            }
+            frozen = true;
+            ClassFactory classFactory = serializerFactory.getClassFactory();
+            classFactory.setWhitelist(true);
+            for (String pattern : BUILTIN_ALLOWED) {
+                classFactory.allow(pattern);
+            }
+            for (String pattern : allowedPatterns) {
+                classFactory.allow(pattern);
+            }
+            // ClassFactory 自带的名单放行了 java.*、javax.management.* 等，排在自己的名单后面，这里先全部拒绝
+            classFactory.deny("*");
+            configured = true;
+        }
+    }
+
+    @Override
+    public <T> byte[] serialize(T obj) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        write(obj, bos);
+        return bos.toByteArray();
+    }
+
+    @Override
+    public <T> void serialize(T obj, ByteBuf out) {
+        write(obj, new ByteBufOutputStream(out));
+    }
+
+    @Override
+    public <T> Object deserialize(byte[] bytes, Class<T> clazz) {
+        return read(new ByteArrayInputStream(bytes), clazz);
+    }
+
+    @Override
+    public <T> Object deserialize(ByteBuf in, Class<T> clazz) {
+        return read(new ByteBufInputStream(in), clazz);
+    }
+
+    private void write(Object obj, OutputStream os) {
+        Hessian2Output output = outputs.get();
+        output.init(os);
+        try {
+            output.writeObject(obj);
+            output.flush();
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            output.reset();
+            output.init(null);
+        }
+    }
+
+    private Object read(InputStream is, Class<?> clazz) {
+        if (!configured) {
+            configureClassFactory();
+        }
+        Hessian2Input input = inputs.get();
+        input.init(is);
+        try {
+            return input.readObject(clazz);
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            input.reset();
+            input.init(null);
+        }
+    }
+
+    @Override
+    public byte getSerializerId() {
+        return HESSIAN;
+    }
+}
@@ -0,0 +1,126 @@
+package com.practise.common.Serializer.json;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.cfg.MapperConfig;
+import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
+import com.practise.common.utils.Serializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description JsonSerializer
+ * @date 2022/3/12 15:40
+ *
+ * 没有复用 JsonUtil 里的 ObjectMapper：那个是给 zk 节点数据用的，开了缩进
+ * RPC 的参数和返回值声明成 Object，需要带上类型信息才能还原成原来的类
+ * 类型信息来自对端，只还原 {@link #isAllowedType(Class)} 允许的类，否则对端可以让这里实例化任意的类
+ */
+public class JsonSerializer extends Serializer {
+
+    private final ObjectMapper objMapper = new ObjectMapper();
+
+    public JsonSerializer() {
+        objMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        objMapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        objMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        objMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        // transient 字段（帧头里的序号、附件）连同 getter 一起忽略
+        objMapper.enable(MapperFeature.PROPAGATE_TRANSIENT_MARKER);
+        BasicPolymorphicTypeValidator validator = BasicPolymorphicTypeValidator.builder()
+                .allowIfSubType(new BasicPolymorphicTypeValidator.TypeMatcher() {
+                    @Override
+                    public boolean match(MapperConfig<?> config, Class<?> clazz) {
+                        return isAllowedType(clazz);
+                    }
+                })
+                .build();
+        objMapper.activateDefaultTyping(validator, ObjectMapper.DefaultTyping.OBJECT_AND_NON_CONCRETE);
+    }
+
+    /**
+     * 框架和业务自己的类（com.practise），加上 JDK 的值类型和集合；数组看元素类型
+     */
+    static boolean isAllowedType(Class<?> clazz) {
+        while (clazz.isArray()) {
+            clazz = clazz.getComponentType();
+        }
+        if (clazz.isPrimitive()) {
+            return true;
+        }
+        String name = clazz.getName();
+        if (name.startsWith("com.practise.")) {
+            return true;
+        }
+        if (!name.startsWith("java.")) {
+            return false;
+        }
+        return clazz == String.class || clazz == Boolean.class || clazz == Character.class
+                || clazz == UUID.class || clazz.isEnum()
+                || Number.class.isAssignableFrom(clazz) || Date.class.isAssignableFrom(clazz)
+                || Collection.class.isAssignableFrom(clazz) || Map.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public <T> byte[] serialize(T obj) {
+        try {
+            return objMapper.writeValueAsBytes(obj);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T> void serialize(T obj, ByteBuf out) {
+        try {
+            // ByteBufOutputStream 同时实现了 DataOutput，要指明走 OutputStream 的重载
+            objMapper.writeValue((OutputStream) new ByteBufOutputStream(out), obj);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T> Object deserialize(byte[] bytes, Class<T> clazz) {
+        try {
+            return objMapper.readValue(bytes, clazz);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T> Object deserialize(ByteBuf in, Class<T> clazz) {
+        try {
+            if (in.hasArray()) {
+                Object obj = objMapper.readValue(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes(), clazz);
+                in.skipBytes(in.readableBytes());
+                return obj;
+            }
+            // 直接内存：jackson 用自己回收复用的缓冲区分块读，不会按 body 大小分配
+            return objMapper.readValue((InputStream) new ByteBufInputStream(in), clazz);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public byte getSerializerId() {
+        return JSON;
+    }
+}
@@ -0,0 +1,242 @@
+package com.practise.common.Serializer.kryo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
+import com.esotericsoftware.kryo.util.Pool;
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcBatchResponse;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcMethodInfo;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.utils.Serializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description KryoSerializer
+ * @date 2022/3/13 11:02
+ *
+ * Kryo 实例不是线程安全的，而且创建很贵，所以 Kryo、Output、Input 都放在池里复用
+ *
+ * 注册过的类只写一个变长的整数编号
+ * 开了 registrationRequired：没注册的类既不能写也不能读，对端不能通过类名让这里实例化任意的类
+ * 编号按注册顺序分配，客户端和服务端的注册顺序必须一致，业务 DTO、参数类型要在第一次序列化之前调用 {@link #register(Class)}
+ * 第一个 Kryo 实例创建之后注册就冻结了，池里所有实例的编号都一样，再注册会抛异常
+ */
+public class KryoSerializer extends Serializer {
+
+    private static final int POOL_SIZE = 64;
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+
+    /**
+     * 框架自己的类和常用的 JDK 类，编号固定，只能在末尾追加
+     * 基本类型、包装类和 String 是 Kryo 默认注册的；接口也要注册，参数类型（Class）里会出现
+     */
+    private static final Class<?>[] BUILTIN_CLASSES = {
+            RpcRequest.class, RpcResponse.class, Class.class, Class[].class, Object[].class,
+            ArrayList.class, HashMap.class, LinkedHashMap.class,
+            RpcBatchRequest.class, RpcBatchResponse.class, long[].class, RpcStreamMessage.class,
+            RpcError.class, RpcHandshake.class, RpcMethodInfo.class, Object.class,
+            String[].class, byte[].class, int[].class, LinkedList.class, HashSet.class, LinkedHashSet.class,
+            TreeMap.class, TreeSet.class, Date.class, BigDecimal.class, BigInteger.class,
+            Collection.class, List.class, Set.class, Map.class
+    };
+    private static final int FIRST_REGISTRATION_ID = 100;
+    private static final byte[] EMPTY_BYTES = new byte[0];
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private static final List<Class<?>> registeredClasses = new ArrayList<>();
+    /**
+     * 已经创建过 Kryo 实例，不能再注册
+     */
+    private static boolean frozen;
+
+    private final Pool<Kryo> kryoPool = new Pool<Kryo>(true, false, POOL_SIZE) {
+        @Override
+        protected Kryo create() {
+            return createKryo();
+        }
+    };
+
+    private final Pool<Output> outputPool = new Pool<Output>(true, false, POOL_SIZE) {
+        @Override
+        protected Output create() {
+            return new Output(OUTPUT_BUFFER_SIZE, -1);
+        }
+    };
+
+    /**
+     * 堆内存的 ByteBuf 用 Input 直接包底层数组
+     */
+    private final Pool<Input> heapInputPool = new Pool<Input>(true, false, POOL_SIZE) {
+        @Override
+        protected Input create() {
+            return new Input();
+        }
+    };
+
+    /**
+     * 直接内存的 ByteBuf 用 ByteBufferInput 包 nioBuffer
+     */
+    private final Pool<ByteBufferInput> directInputPool = new Pool<ByteBufferInput>(true, false, POOL_SIZE) {
+        @Override
+        protected ByteBufferInput create() {
+            return new ByteBufferInput();
+        }
+    };
+
+    /**
+     * 注册业务类，要在 Kryo 实例创建之前调用，两端顺序一致
+     * @param clazz
+     */
+    public static synchronized void register(Class<?> clazz) {
+        if (frozen) {
+            throw new IllegalStateException("Kryo registration is frozen, register " + clazz.getName()
+                    + " before the first serialization");
+        }
+        if (!registeredClasses.contains(clazz)) {
+            registeredClasses.add(clazz);
+        }
+    }
+
+    /**
+     * 冻结注册，返回业务类的快照
+     */
+    private static synchronized Class<?>[] freezeRegistration() {
+        frozen = true;
+        return registeredClasses.toArray(new Class<?>[0]);
+    }
+
+    private Kryo createKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(true);
+        // 参数里同一个对象出现多次、对象之间有环时，只写一次
+        kryo.setReferences(true);
+        // 没有无参构造的类用 objenesis 创建
+        kryo.setInstantiatorStrategy(new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+        int id = FIRST_REGISTRATION_ID;
+        for (Class<?> clazz : BUILTIN_CLASSES) {
+            kryo.register(clazz, id++);
+        }
+        for (Class<?> clazz : freezeRegistration()) {
+            kryo.register(clazz, id++);
+        }
+        return kryo;
+    }
+
+    @Override
+    public <T> byte[] serialize(T obj) {
+        Kryo kryo = kryoPool.obtain();
+        Output output = outputPool.obtain();
+        try {
+            output.reset();
+            kryo.writeClassAndObject(output, obj);
+            return output.toBytes();
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            outputPool.free(output);
+            kryoPool.free(kryo);
+        }
+    }
+
+    /**
+     * Output 的缓冲区只当写出窗口，满了就刷进 ByteBuf
+     */
+    @Override
+    public <T> void serialize(T obj, ByteBuf out) {
+        Kryo kryo = kryoPool.obtain();
+        Output output = outputPool.obtain();
+        try {
+            output.setOutputStream(new ByteBufOutputStream(out));
+            kryo.writeClassAndObject(output, obj);
+            output.flush();
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            output.setOutputStream(null);
+            outputPool.free(output);
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public <T> Object deserialize(byte[] bytes, Class<T> clazz) {
+        Kryo kryo = kryoPool.obtain();
+        try {
+            return kryo.readClassAndObject(new Input(bytes));
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+
+    /**
+     * 堆内存直接用底层数组，直接内存用 nioBuffer 视图，都不拷贝 body
+     */
+    @Override
+    public <T> Object deserialize(ByteBuf in, Class<T> clazz) {
+        Kryo kryo = kryoPool.obtain();
+        int length = in.readableBytes();
+        try {
+            Object obj;
+            if (in.hasArray()) {
+                Input input = heapInputPool.obtain();
+                try {
+                    input.setBuffer(in.array(), in.arrayOffset() + in.readerIndex(), length);
+                    obj = kryo.readClassAndObject(input);
+                } finally {
+                    input.setBuffer(EMPTY_BYTES);
+                    heapInputPool.free(input);
+                }
+            } else {
+                ByteBufferInput input = directInputPool.obtain();
+                try {
+                    input.setBuffer(in.nioBuffer());
+                    obj = kryo.readClassAndObject(input);
+                } finally {
+                    input.setBuffer(EMPTY_BUFFER);
+                    directInputPool.free(input);
+                }
+            }
+            in.skipBytes(length);
+            return obj;
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public byte getSerializerId() {
+        return KRYO;
+    }
+}
@@ -0,0 +1,135 @@
+package com.practise.common.Serializer.protostuff;
+
+import com.practise.common.protocol.RpcFrame;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.protostuff.LinkedBuffer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description LinkedBufferCache
+ * @date 2022/3/13 15:30
+ *
+ * protostuff 序列化用的 LinkedBuffer 缓存
+ * 每个线程缓存一块 LinkedBuffer，用完 clear 之后留着下次用，不再每条消息 allocate 一次
+ *
+ * 缓冲区大小按消息类型自适应：每个类型记录序列化后大小的滑动平均，
+ * 取到的缓冲区比这个类型的估计值小就换一块大的，连续很多次都大太多就换一块小的，
+ * 大小限制在 [MIN_BUFFER_SIZE, MAX_BUFFER_SIZE]，所以每个线程最多占 MAX_BUFFER_SIZE
+ *
+ * 用法：
+ *      LinkedBuffer buffer = LinkedBufferCache.acquire(cls);
+ *      try { ... } finally { LinkedBufferCache.release(buffer, cls, size); }
+ */
+public final class LinkedBufferCache {
+
+    static final int MIN_BUFFER_SIZE = 256;
+    static final int MAX_BUFFER_SIZE = RpcFrame.MAX_FRAME_LENGTH;
+    /**
+     * 缓存的缓冲区超过估计值的这么多倍，并且连续 SHRINK_THRESHOLD 次都这样，才缩小，避免来回换
+     */
+    private static final int SHRINK_FACTOR = 4;
+    private static final int SHRINK_THRESHOLD = 64;
+
+    private static final Map<Class<?>, SizeEstimate> estimates = new ConcurrentHashMap<>();
+
+    private static final FastThreadLocal<Holder> holders = new FastThreadLocal<Holder>() {
+        @Override
+        protected Holder initialValue() {
+            return new Holder();
+        }
+    };
+
+    private LinkedBufferCache() {
+    }
+
+    /**
+     * 取当前线程缓存的缓冲区，大小按 cls 的估计值调整
+     * 嵌套调用（缓存的那块还没还回来）时临时分配一块新的
+     */
+    public static LinkedBuffer acquire(Class<?> cls) {
+        int expected = estimate(cls).bufferSize();
+        Holder holder = holders.get();
+        if (holder.inUse) {
+            return LinkedBuffer.allocate(expected);
+        }
+        LinkedBuffer buffer = holder.buffer;
+        if (buffer == null || holder.capacity < expected) {
+            holder.reset(expected);
+        } else if (holder.capacity >= expected * SHRINK_FACTOR) {
+            if (++holder.oversized >= SHRINK_THRESHOLD) {
+                holder.reset(expected);
+            }
+        } else {
+            holder.oversized = 0;
+        }
+        holder.inUse = true;
+        return holder.buffer;
+    }
+
+    /**
+     * 归还缓冲区，并把这次序列化的大小记到 cls 的估计值里
+     * @param size 序列化后的字节数，失败时传 -1，不参与估计
+     */
+    public static void release(LinkedBuffer buffer, Class<?> cls, int size) {
+        buffer.clear();
+        if (size >= 0) {
+            estimate(cls).record(size);
+        }
+        Holder holder = holders.get();
+        if (holder.buffer == buffer) {
+            holder.inUse = false;
+        }
+    }
+
+    private static SizeEstimate estimate(Class<?> cls) {
+        SizeEstimate estimate = estimates.get(cls);
+        if (estimate == null) {
+            estimate = estimates.computeIfAbsent(cls, k -> new SizeEstimate());
+        }
+        return estimate;
+    }
+
+    private static final class Holder {
+        private LinkedBuffer buffer;
+        private int capacity;
+        private int oversized;
+        private boolean inUse;
+
+        private void reset(int size) {
+            buffer = LinkedBuffer.allocate(size);
+            capacity = size;
+            oversized = 0;
+        }
+    }
+
+    /**
+     * 序列化大小的滑动平均，权重 1/8
+     * 多线程并发更新时会丢掉一些样本，只是估计值，不加锁
+     */
+    static final class SizeEstimate {
+        private volatile int average = LinkedBuffer.DEFAULT_BUFFER_SIZE;
+
+        void record(int size) {
+            int avg = average;
+            average = avg + ((size - avg) >> 3);
+        }
+
+        /**
+         * 平均值向上取 2 的幂，留出波动的余量
+         */
+        int bufferSize() {
+            int avg = average;
+            if (avg <= MIN_BUFFER_SIZE) {
+                return MIN_BUFFER_SIZE;
+            }
+            if (avg >= MAX_BUFFER_SIZE) {
+                return MAX_BUFFER_SIZE;
+            }
+            return Integer.highestOneBit(avg - 1) << 1;
+        }
+    }
+}
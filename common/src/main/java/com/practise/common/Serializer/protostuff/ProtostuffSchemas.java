@@ -0,0 +1,72 @@
+package com.practise.common.Serializer.protostuff;
+
+import com.practise.common.Serializer.protostuff.schema.RpcRequestSchema;
+import com.practise.common.Serializer.protostuff.schema.RpcResponseSchema;
+import com.practise.common.Serializer.protostuff.schema.RpcStreamMessageSchema;
+import com.practise.common.anotations.RpcSchema;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.entity.RpcStreamMessage;
+import io.protostuff.Schema;
+import io.protostuff.runtime.RuntimeSchema;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ProtostuffSchemas
+ * @date 2022/3/13 21:30
+ *
+ * ProtostuffSerializer 和 SerializationUtil 共用的 Schema 缓存
+ * RpcRequest、RpcResponse、RpcStreamMessage 用静态 Schema（参数按声明类型编码，不写类名），
+ * 标注了 {@link RpcSchema} 的 DTO 用指定的静态 Schema，其他类用 RuntimeSchema
+ *
+ * 静态 Schema 同时注册到 RuntimeSchema，这些类作为别的类的字段时也走静态 Schema
+ */
+public final class ProtostuffSchemas {
+
+    private static final Map<Class<?>, Schema<?>> cachedSchema = new ConcurrentHashMap<>();
+
+    static {
+        register(RpcRequest.class, RpcRequestSchema.INSTANCE);
+        register(RpcResponse.class, RpcResponseSchema.INSTANCE);
+        register(RpcStreamMessage.class, RpcStreamMessageSchema.INSTANCE);
+    }
+
+    private ProtostuffSchemas() {
+    }
+
+    /**
+     * 要在这个类第一次序列化之前注册
+     */
+    public static <T> void register(Class<T> cls, Schema<T> schema) {
+        cachedSchema.put(cls, schema);
+        RuntimeSchema.register(cls, schema);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Schema<T> getSchema(Class<T> cls) {
+        Schema<T> schema = (Schema<T>) cachedSchema.get(cls);
+        if (schema == null) {
+            schema = (Schema<T>) cachedSchema.computeIfAbsent(cls, ProtostuffSchemas::createSchema);
+        }
+        return schema;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Schema<?> createSchema(Class<?> cls) {
+        RpcSchema annotation = cls.getAnnotation(RpcSchema.class);
+        if (annotation == null) {
+            return RuntimeSchema.getSchema(cls);
+        }
+        try {
+            Schema<Object> schema = annotation.value().newInstance();
+            RuntimeSchema.register((Class<Object>) cls, schema);
+            return schema;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create schema " + annotation.value().getName() + " for " + cls.getName(), e);
+        }
+    }
+}
@@ -1,16 +1,15 @@
 package com.practise.common.Serializer.protostuff;
 
 import com.practise.common.utils.Serializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.protostuff.ByteBufferInput;
 import io.protostuff.LinkedBuffer;
 import io.protostuff.ProtostuffIOUtil;
 import io.protostuff.Schema;
-import io.protostuff.runtime.RuntimeSchema;
 import org.objenesis.Objenesis;
 import org.objenesis.ObjenesisStd;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * @author HzeLng
  * @version 1.0
@@ -19,27 +18,45 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class ProtostuffSerializer extends Serializer {
 
-    private Map<Class<?>, Schema<?>> cachedSchema = new ConcurrentHashMap<>();
-
     private Objenesis objenesis = new ObjenesisStd(true);
 
-    @SuppressWarnings("unchecked")
     private <T> Schema<T> getSchema(Class<T> cls) {
-        // for thread-safe
-        return (Schema<T>) cachedSchema.computeIfAbsent(cls, RuntimeSchema::createFrom);
+        return ProtostuffSchemas.getSchema(cls);
     }
 
     @Override
     public <T> byte[] serialize(T obj) {
         Class<T> cls = (Class<T>) obj.getClass();
-        LinkedBuffer buffer = LinkedBuffer.allocate(LinkedBuffer.DEFAULT_BUFFER_SIZE);
+        LinkedBuffer buffer = LinkedBufferCache.acquire(cls);
+        int size = -1;
+        try {
+            Schema<T> schema = getSchema(cls);
+            byte[] bytes = ProtostuffIOUtil.toByteArray(obj, schema, buffer);
+            size = bytes.length;
+            return bytes;
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            LinkedBufferCache.release(buffer, cls, size);
+        }
+    }
+
+    /**
+     * LinkedBuffer 只作为写出的暂存区，写满一块就刷进 ByteBuf，不再生成完整的 byte[]
+     * 暂存区按线程复用，大小见 {@link LinkedBufferCache}
+     */
+    @Override
+    public <T> void serialize(T obj, ByteBuf out) {
+        Class<T> cls = (Class<T>) obj.getClass();
+        LinkedBuffer buffer = LinkedBufferCache.acquire(cls);
+        int size = -1;
         try {
             Schema<T> schema = getSchema(cls);
-            return ProtostuffIOUtil.toByteArray(obj, schema, buffer);
+            size = ProtostuffIOUtil.writeTo(new ByteBufOutputStream(out), obj, schema, buffer);
         } catch (Exception e) {
             throw new IllegalStateException(e.getMessage(), e);
         } finally {
-            buffer.clear();
+            LinkedBufferCache.release(buffer, cls, size);
         }
     }
 
@@ -55,6 +72,32 @@ public class ProtostuffSerializer extends Serializer {
         }
     }
 
+    /**
+     * 堆内存的 ByteBuf 直接用底层数组，直接内存的用 nioBuffer 视图，都不拷贝 body
+     */
+    @Override
+    public <T> Object deserialize(ByteBuf in, Class<T> clazz) {
+        try {
+            T message = (T) objenesis.newInstance(clazz);
+            Schema<T> schema = getSchema(clazz);
+            int length = in.readableBytes();
+            if (in.hasArray()) {
+                ProtostuffIOUtil.mergeFrom(in.array(), in.arrayOffset() + in.readerIndex(), length, message, schema);
+            } else {
+                ByteBufferInput input = new ByteBufferInput(in.nioBuffer(), true);
+                schema.mergeFrom(input, message);
+                input.checkLastTagWas(0);
+            }
+            in.skipBytes(length);
+            return message;
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
 
+    @Override
+    public byte getSerializerId() {
+        return PROTOSTUFF;
+    }
 
 }
@@ -0,0 +1,27 @@
+package com.practise.common.Serializer.protostuff.schema;
+
+import io.protostuff.Schema;
+import io.protostuff.runtime.RuntimeSchema;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description DynamicValue
+ * @date 2022/3/13 20:10
+ *
+ * 声明类型不够用来编码的值（Object、接口、集合、JDK 类、子类实例等），
+ * 包一层交给 RuntimeSchema，按动态类型编码（会写类名）
+ */
+final class DynamicValue {
+
+    static final Schema<DynamicValue> SCHEMA = RuntimeSchema.getSchema(DynamicValue.class);
+
+    Object value;
+
+    DynamicValue() {
+    }
+
+    DynamicValue(Object value) {
+        this.value = value;
+    }
+}
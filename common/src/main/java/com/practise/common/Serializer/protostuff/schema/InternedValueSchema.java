@@ -0,0 +1,133 @@
+package com.practise.common.Serializer.protostuff.schema;
+
+import com.practise.common.Serializer.protostuff.ProtostuffSchemas;
+import com.practise.common.protocol.CodecContext;
+import io.protostuff.Input;
+import io.protostuff.Output;
+import io.protostuff.Schema;
+
+import java.io.IOException;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description InternedValueSchema
+ * @date 2022/3/14 11:00
+ *
+ * 多态的业务对象按连接内的类型编号编码，代替 {@link DynamicValue} 每次都写的类名
+ *
+ *      1 类型编号    uint32
+ *      2 类名       string，只在这个类型第一次出现时写
+ *      3 值         按这个类自己的 Schema 写成嵌套消息
+ *
+ * 只能在编解码过程中使用（需要 {@link CodecContext#current()}）
+ */
+final class InternedValueSchema implements Schema<DynamicValue> {
+
+    static final InternedValueSchema INSTANCE = new InternedValueSchema();
+
+    private static final int FIELD_TYPE_ID = 1;
+    private static final int FIELD_TYPE_NAME = 2;
+    private static final int FIELD_VALUE = 3;
+
+    private InternedValueSchema() {
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeTo(Output output, DynamicValue message) throws IOException {
+        CodecContext context = CodecContext.current();
+        Class<?> type = message.value.getClass();
+        int id = context.getOutboundTypeId(type);
+        if (id == 0) {
+            id = context.defineOutboundType(type);
+            output.writeUInt32(FIELD_TYPE_ID, id, false);
+            output.writeString(FIELD_TYPE_NAME, type.getName(), false);
+        } else {
+            output.writeUInt32(FIELD_TYPE_ID, id, false);
+        }
+        output.writeObject(FIELD_VALUE, message.value, (Schema<Object>) ProtostuffSchemas.getSchema(type), false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void mergeFrom(Input input, DynamicValue message) throws IOException {
+        CodecContext context = CodecContext.current();
+        if (context == null) {
+            throw new IOException("Interned value outside of a connection");
+        }
+        int id = 0;
+        for (int number = input.readFieldNumber(this); number != 0; number = input.readFieldNumber(this)) {
+            switch (number) {
+                case FIELD_TYPE_ID:
+                    id = input.readUInt32();
+                    break;
+                case FIELD_TYPE_NAME:
+                    context.defineInboundType(id, TypedValues.forName(input.readString()));
+                    break;
+                case FIELD_VALUE:
+                    Class<?> type = context.getInboundType(id);
+                    if (type == null) {
+                        throw new IOException("Unknown type id " + id);
+                    }
+                    message.value = input.mergeObject(null, (Schema<Object>) ProtostuffSchemas.getSchema(type));
+                    break;
+                default:
+                    input.handleUnknownField(number, this);
+            }
+        }
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        switch (number) {
+            case FIELD_TYPE_ID:
+                return "typeId";
+            case FIELD_TYPE_NAME:
+                return "typeName";
+            case FIELD_VALUE:
+                return "value";
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        switch (name) {
+            case "typeId":
+                return FIELD_TYPE_ID;
+            case "typeName":
+                return FIELD_TYPE_NAME;
+            case "value":
+                return FIELD_VALUE;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean isInitialized(DynamicValue message) {
+        return true;
+    }
+
+    @Override
+    public DynamicValue newMessage() {
+        return new DynamicValue();
+    }
+
+    @Override
+    public String messageName() {
+        return "InternedValue";
+    }
+
+    @Override
+    public String messageFullName() {
+        return InternedValueSchema.class.getName();
+    }
+
+    @Override
+    public Class<? super DynamicValue> typeClass() {
+        return DynamicValue.class;
+    }
+}
@@ -0,0 +1,96 @@
+package com.practise.common.Serializer.protostuff.schema;
+
+import com.practise.common.entity.Person;
+import io.protostuff.Input;
+import io.protostuff.Output;
+import io.protostuff.Schema;
+
+import java.io.IOException;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description PersonSchema
+ * @date 2022/3/13 21:10
+ *
+ * Person 的静态 Schema，通过 {@link com.practise.common.anotations.RpcSchema} 绑定到 Person 上
+ * 字段编号和 RuntimeSchema 按声明顺序分配的一致，两种 Schema 写出的字节可以互相读
+ */
+public final class PersonSchema implements Schema<Person> {
+
+    private static final int FIELD_NAME = 1;
+    private static final int FIELD_AGE = 2;
+
+    @Override
+    public void writeTo(Output output, Person message) throws IOException {
+        if (message.getName() != null) {
+            output.writeString(FIELD_NAME, message.getName(), false);
+        }
+        output.writeInt32(FIELD_AGE, message.getAge(), false);
+    }
+
+    @Override
+    public void mergeFrom(Input input, Person message) throws IOException {
+        for (int number = input.readFieldNumber(this); number != 0; number = input.readFieldNumber(this)) {
+            switch (number) {
+                case FIELD_NAME:
+                    message.setName(input.readString());
+                    break;
+                case FIELD_AGE:
+                    message.setAge(input.readInt32());
+                    break;
+                default:
+                    input.handleUnknownField(number, this);
+            }
+        }
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        switch (number) {
+            case FIELD_NAME:
+                return "name";
+            case FIELD_AGE:
+                return "age";
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        switch (name) {
+            case "name":
+                return FIELD_NAME;
+            case "age":
+                return FIELD_AGE;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean isInitialized(Person message) {
+        return true;
+    }
+
+    @Override
+    public Person newMessage() {
+        return new Person();
+    }
+
+    @Override
+    public String messageName() {
+        return Person.class.getSimpleName();
+    }
+
+    @Override
+    public String messageFullName() {
+        return Person.class.getName();
+    }
+
+    @Override
+    public Class<? super Person> typeClass() {
+        return Person.class;
+    }
+}
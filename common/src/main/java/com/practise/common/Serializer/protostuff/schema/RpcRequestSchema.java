@@ -0,0 +1,263 @@
+package com.practise.common.Serializer.protostuff.schema;
+
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.CodecContext;
+import io.protostuff.Input;
+import io.protostuff.Output;
+import io.protostuff.Schema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcRequestSchema
+ * @date 2022/3/13 20:40
+ *
+ * RpcRequest 的静态 Schema，字段按下面的编号读写，不经过反射
+ *
+ *      1 className        string
+ *      2 methodName       string
+ *      3 parameterTypes   repeated string（类名）
+ *      4 version          string
+ *      5 参数个数          uint32
+ *      6 methodId         uint32
+ *      7 initialCredit    uint32
+ *      8 duplex           bool
+ *      16 + i             第 i 个参数，按声明类型 parameterTypes[i] 编码，不写类名
+ *      16 + 256 + i       第 i 个参数，声明类型不够用时按动态类型编码
+ *      16 + 512 + i       第 i 个参数，声明类型不够用的业务类，按连接内的类型编号编码
+ *
+ * 值为 null 的参数不写；parameterTypes、methodId 必须写在参数前面，解码参数时要用
+ * 有 methodId 时 1 ~ 4 都不写，参数类型由服务端按方法编号查出来（{@link CodecContext#getParameterTypes(int)}）
+ */
+public final class RpcRequestSchema implements Schema<RpcRequest> {
+
+    public static final RpcRequestSchema INSTANCE = new RpcRequestSchema();
+
+    static final int MAX_PARAMETERS = 256;
+
+    private static final int FIELD_CLASS_NAME = 1;
+    private static final int FIELD_METHOD_NAME = 2;
+    private static final int FIELD_PARAMETER_TYPES = 3;
+    private static final int FIELD_VERSION = 4;
+    private static final int FIELD_PARAMETER_COUNT = 5;
+    private static final int FIELD_METHOD_ID = 6;
+    private static final int FIELD_INITIAL_CREDIT = 7;
+    private static final int FIELD_DUPLEX = 8;
+    private static final int FIELD_TYPED_PARAMETER = 16;
+    private static final int FIELD_DYNAMIC_PARAMETER = FIELD_TYPED_PARAMETER + MAX_PARAMETERS;
+    private static final int FIELD_INTERNED_PARAMETER = FIELD_DYNAMIC_PARAMETER + MAX_PARAMETERS;
+    private static final int FIELD_END = FIELD_INTERNED_PARAMETER + MAX_PARAMETERS;
+
+    private RpcRequestSchema() {
+    }
+
+    @Override
+    public void writeTo(Output output, RpcRequest message) throws IOException {
+        Class<?>[] types = message.getParameterTypes();
+        if (message.getMethodId() != RpcHandshake.NO_METHOD_ID) {
+            output.writeUInt32(FIELD_METHOD_ID, message.getMethodId(), false);
+        } else {
+            writeNames(output, message);
+        }
+        if (message.getInitialCredit() != 0) {
+            output.writeUInt32(FIELD_INITIAL_CREDIT, message.getInitialCredit(), false);
+        }
+        if (message.isDuplex()) {
+            output.writeBool(FIELD_DUPLEX, true, false);
+        }
+        Object[] parameters = message.getParameters();
+        if (parameters == null) {
+            return;
+        }
+        if (parameters.length > MAX_PARAMETERS) {
+            throw new IOException("Too many parameters: " + parameters.length);
+        }
+        output.writeUInt32(FIELD_PARAMETER_COUNT, parameters.length, false);
+        for (int i = 0; i < parameters.length; i++) {
+            Object parameter = parameters[i];
+            if (parameter == null) {
+                continue;
+            }
+            Class<?> type = types != null && i < types.length ? types[i] : null;
+            if (TypedValues.isTyped(type, parameter)) {
+                TypedValues.write(output, FIELD_TYPED_PARAMETER + i, type, parameter);
+            } else if (TypedValues.canIntern(parameter)) {
+                TypedValues.writeInterned(output, FIELD_INTERNED_PARAMETER + i, parameter);
+            } else {
+                TypedValues.writeDynamic(output, FIELD_DYNAMIC_PARAMETER + i, parameter);
+            }
+        }
+    }
+
+    private void writeNames(Output output, RpcRequest message) throws IOException {
+        if (message.getClassName() != null) {
+            output.writeString(FIELD_CLASS_NAME, message.getClassName(), false);
+        }
+        if (message.getMethodName() != null) {
+            output.writeString(FIELD_METHOD_NAME, message.getMethodName(), false);
+        }
+        Class<?>[] types = message.getParameterTypes();
+        if (types != null) {
+            for (Class<?> type : types) {
+                output.writeString(FIELD_PARAMETER_TYPES, type.getName(), true);
+            }
+        }
+        if (message.getVersion() != null) {
+            output.writeString(FIELD_VERSION, message.getVersion(), false);
+        }
+    }
+
+    @Override
+    public void mergeFrom(Input input, RpcRequest message) throws IOException {
+        List<Class<?>> typeList = null;
+        Class<?>[] types = null;
+        Object[] parameters = null;
+        for (int number = input.readFieldNumber(this); number != 0; number = input.readFieldNumber(this)) {
+            if (number == FIELD_CLASS_NAME) {
+                message.setClassName(input.readString());
+            } else if (number == FIELD_METHOD_NAME) {
+                message.setMethodName(input.readString());
+            } else if (number == FIELD_PARAMETER_TYPES) {
+                if (typeList == null) {
+                    typeList = new ArrayList<>();
+                }
+                typeList.add(TypedValues.forName(input.readString()));
+            } else if (number == FIELD_VERSION) {
+                message.setVersion(input.readString());
+            } else if (number == FIELD_METHOD_ID) {
+                message.setMethodId(input.readUInt32());
+                CodecContext context = CodecContext.current();
+                types = context == null ? null : context.getParameterTypes(message.getMethodId());
+                if (types == null) {
+                    throw new IOException("Unknown method id " + message.getMethodId());
+                }
+            } else if (number == FIELD_INITIAL_CREDIT) {
+                message.setInitialCredit(input.readUInt32());
+            } else if (number == FIELD_DUPLEX) {
+                message.setDuplex(input.readBool());
+            } else if (number == FIELD_PARAMETER_COUNT) {
+                // 个数是对端写的，readUInt32 可能读出负数或者很大的数，先检查再分配
+                int count = input.readUInt32();
+                if (count < 0 || count > MAX_PARAMETERS) {
+                    throw new IOException("Illegal parameter count: " + count);
+                }
+                parameters = new Object[count];
+                if (types == null && typeList != null) {
+                    types = typeList.toArray(new Class<?>[0]);
+                }
+            } else if (number >= FIELD_TYPED_PARAMETER && number < FIELD_END && parameters != null) {
+                readParameter(input, number, types, parameters);
+            } else {
+                input.handleUnknownField(number, this);
+            }
+        }
+        if (types == null && typeList != null) {
+            types = typeList.toArray(new Class<?>[0]);
+        }
+        if (types == null && parameters != null) {
+            types = new Class<?>[0];
+        }
+        message.setParameterTypes(types);
+        message.setParameters(parameters);
+    }
+
+    private void readParameter(Input input, int number, Class<?>[] types, Object[] parameters) throws IOException {
+        int index;
+        Object value;
+        if (number < FIELD_DYNAMIC_PARAMETER) {
+            index = number - FIELD_TYPED_PARAMETER;
+            if (types == null || index >= types.length) {
+                throw new IOException("Missing parameter type of parameter " + index);
+            }
+            value = TypedValues.read(input, types[index]);
+        } else if (number < FIELD_INTERNED_PARAMETER) {
+            index = number - FIELD_DYNAMIC_PARAMETER;
+            value = TypedValues.readDynamic(input);
+        } else {
+            index = number - FIELD_INTERNED_PARAMETER;
+            value = TypedValues.readInterned(input);
+        }
+        if (index >= parameters.length) {
+            throw new IOException("Parameter index " + index + " out of " + parameters.length);
+        }
+        parameters[index] = value;
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        switch (number) {
+            case FIELD_CLASS_NAME:
+                return "className";
+            case FIELD_METHOD_NAME:
+                return "methodName";
+            case FIELD_PARAMETER_TYPES:
+                return "parameterTypes";
+            case FIELD_VERSION:
+                return "version";
+            case FIELD_PARAMETER_COUNT:
+                return "parameterCount";
+            case FIELD_METHOD_ID:
+                return "methodId";
+            case FIELD_INITIAL_CREDIT:
+                return "initialCredit";
+            case FIELD_DUPLEX:
+                return "duplex";
+            default:
+                return number >= FIELD_TYPED_PARAMETER && number < FIELD_END ? "parameters" : null;
+        }
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        switch (name) {
+            case "className":
+                return FIELD_CLASS_NAME;
+            case "methodName":
+                return FIELD_METHOD_NAME;
+            case "parameterTypes":
+                return FIELD_PARAMETER_TYPES;
+            case "version":
+                return FIELD_VERSION;
+            case "parameterCount":
+                return FIELD_PARAMETER_COUNT;
+            case "methodId":
+                return FIELD_METHOD_ID;
+            case "initialCredit":
+                return FIELD_INITIAL_CREDIT;
+            case "duplex":
+                return FIELD_DUPLEX;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean isInitialized(RpcRequest message) {
+        return true;
+    }
+
+    @Override
+    public RpcRequest newMessage() {
+        return new RpcRequest();
+    }
+
+    @Override
+    public String messageName() {
+        return RpcRequest.class.getSimpleName();
+    }
+
+    @Override
+    public String messageFullName() {
+        return RpcRequest.class.getName();
+    }
+
+    @Override
+    public Class<? super RpcRequest> typeClass() {
+        return RpcRequest.class;
+    }
+}
@@ -0,0 +1,102 @@
+package com.practise.common.Serializer.protostuff.schema;
+
+import com.practise.common.Serializer.protostuff.ProtostuffSchemas;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcResponse;
+import io.protostuff.Input;
+import io.protostuff.Output;
+import io.protostuff.Schema;
+
+import java.io.IOException;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcResponseSchema
+ * @date 2022/3/13 21:00
+ *
+ * RpcResponse 的静态 Schema
+ * 响应里不知道方法的返回类型，result 按 {@link TypedValues#writeValue} 编码，占用 2 ~ 9 号字段
+ *
+ *      1 error            RpcError
+ *      2 ~ 9 result       常见的标量用不同的字段编号区分类型，业务类按连接内的类型编号，其他按动态类型
+ */
+public final class RpcResponseSchema implements Schema<RpcResponse> {
+
+    public static final RpcResponseSchema INSTANCE = new RpcResponseSchema();
+
+    private static final int FIELD_ERROR = 1;
+    private static final int FIELD_RESULT = 2;
+    private static final int FIELD_RESULT_END = FIELD_RESULT + TypedValues.VALUE_FIELD_COUNT;
+
+    private RpcResponseSchema() {
+    }
+
+    @Override
+    public void writeTo(Output output, RpcResponse message) throws IOException {
+        if (message.getError() != null) {
+            output.writeObject(FIELD_ERROR, message.getError(), ProtostuffSchemas.getSchema(RpcError.class), false);
+        }
+        if (message.getResult() != null) {
+            TypedValues.writeValue(output, FIELD_RESULT, message.getResult());
+        }
+    }
+
+    @Override
+    public void mergeFrom(Input input, RpcResponse message) throws IOException {
+        for (int number = input.readFieldNumber(this); number != 0; number = input.readFieldNumber(this)) {
+            if (number == FIELD_ERROR) {
+                message.setError(input.mergeObject(null, ProtostuffSchemas.getSchema(RpcError.class)));
+            } else if (number >= FIELD_RESULT && number < FIELD_RESULT_END) {
+                message.setResult(TypedValues.readValue(input, number - FIELD_RESULT));
+            } else {
+                input.handleUnknownField(number, this);
+            }
+        }
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        if (number == FIELD_ERROR) {
+            return "error";
+        }
+        return number >= FIELD_RESULT && number < FIELD_RESULT_END ? "result" : null;
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        switch (name) {
+            case "error":
+                return FIELD_ERROR;
+            case "result":
+                return FIELD_RESULT;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean isInitialized(RpcResponse message) {
+        return true;
+    }
+
+    @Override
+    public RpcResponse newMessage() {
+        return new RpcResponse();
+    }
+
+    @Override
+    public String messageName() {
+        return RpcResponse.class.getSimpleName();
+    }
+
+    @Override
+    public String messageFullName() {
+        return RpcResponse.class.getName();
+    }
+
+    @Override
+    public Class<? super RpcResponse> typeClass() {
+        return RpcResponse.class;
+    }
+}
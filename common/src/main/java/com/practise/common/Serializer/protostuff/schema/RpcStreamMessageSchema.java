@@ -0,0 +1,123 @@
+package com.practise.common.Serializer.protostuff.schema;
+
+import com.practise.common.Serializer.protostuff.ProtostuffSchemas;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcStreamMessage;
+import io.protostuff.Input;
+import io.protostuff.Output;
+import io.protostuff.Schema;
+
+import java.io.IOException;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcStreamMessageSchema
+ * @date 2022/3/15 10:20
+ *
+ * RpcStreamMessage 的静态 Schema
+ *
+ *      1 kind             uint32
+ *      2 credit           uint32
+ *      3 error            动态类型
+ *      4 ~ 11 payload     同 RpcResponse 的 result，见 {@link TypedValues#writeValue}
+ */
+public final class RpcStreamMessageSchema implements Schema<RpcStreamMessage> {
+
+    public static final RpcStreamMessageSchema INSTANCE = new RpcStreamMessageSchema();
+
+    private static final int FIELD_KIND = 1;
+    private static final int FIELD_CREDIT = 2;
+    private static final int FIELD_ERROR = 3;
+    private static final int FIELD_PAYLOAD = 4;
+    private static final int FIELD_PAYLOAD_END = FIELD_PAYLOAD + TypedValues.VALUE_FIELD_COUNT;
+
+    private RpcStreamMessageSchema() {
+    }
+
+    @Override
+    public void writeTo(Output output, RpcStreamMessage message) throws IOException {
+        output.writeUInt32(FIELD_KIND, message.getKind(), false);
+        if (message.getCredit() != 0) {
+            output.writeUInt32(FIELD_CREDIT, message.getCredit(), false);
+        }
+        if (message.getError() != null) {
+            output.writeObject(FIELD_ERROR, message.getError(), ProtostuffSchemas.getSchema(RpcError.class), false);
+        }
+        if (message.getPayload() != null) {
+            TypedValues.writeValue(output, FIELD_PAYLOAD, message.getPayload());
+        }
+    }
+
+    @Override
+    public void mergeFrom(Input input, RpcStreamMessage message) throws IOException {
+        for (int number = input.readFieldNumber(this); number != 0; number = input.readFieldNumber(this)) {
+            if (number == FIELD_KIND) {
+                message.setKind((byte) input.readUInt32());
+            } else if (number == FIELD_CREDIT) {
+                message.setCredit(input.readUInt32());
+            } else if (number == FIELD_ERROR) {
+                message.setError(input.mergeObject(null, ProtostuffSchemas.getSchema(RpcError.class)));
+            } else if (number >= FIELD_PAYLOAD && number < FIELD_PAYLOAD_END) {
+                message.setPayload(TypedValues.readValue(input, number - FIELD_PAYLOAD));
+            } else {
+                input.handleUnknownField(number, this);
+            }
+        }
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        switch (number) {
+            case FIELD_KIND:
+                return "kind";
+            case FIELD_CREDIT:
+                return "credit";
+            case FIELD_ERROR:
+                return "error";
+            default:
+                return number >= FIELD_PAYLOAD && number < FIELD_PAYLOAD_END ? "payload" : null;
+        }
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        switch (name) {
+            case "kind":
+                return FIELD_KIND;
+            case "credit":
+                return FIELD_CREDIT;
+            case "error":
+                return FIELD_ERROR;
+            case "payload":
+                return FIELD_PAYLOAD;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean isInitialized(RpcStreamMessage message) {
+        return true;
+    }
+
+    @Override
+    public RpcStreamMessage newMessage() {
+        return new RpcStreamMessage();
+    }
+
+    @Override
+    public String messageName() {
+        return RpcStreamMessage.class.getSimpleName();
+    }
+
+    @Override
+    public String messageFullName() {
+        return RpcStreamMessage.class.getName();
+    }
+
+    @Override
+    public Class<? super RpcStreamMessage> typeClass() {
+        return RpcStreamMessage.class;
+    }
+}
@@ -0,0 +1,210 @@
+package com.practise.common.Serializer.protostuff.schema;
+
+import com.practise.common.Serializer.protostuff.ProtostuffSchemas;
+import com.practise.common.protocol.CodecContext;
+import io.protostuff.Input;
+import io.protostuff.Output;
+import io.protostuff.Schema;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description TypedValues
+ * @date 2022/3/13 20:20
+ *
+ * 按声明类型读写单个值，两端都知道声明类型，所以不用写类名：
+ *      基本类型、包装类型、String、byte[] 直接写标量
+ *      业务 POJO（实例类型和声明类型完全一致时）用它自己的 Schema 写成嵌套消息
+ * 其他情况 {@link #isTyped} 返回 false，调用方退化成 {@link InternedValueSchema}（业务类）或 {@link DynamicValue}
+ */
+final class TypedValues {
+
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<>();
+
+    static {
+        for (Class<?> cls : new Class<?>[]{boolean.class, byte.class, char.class, short.class, int.class,
+                long.class, float.class, double.class, void.class}) {
+            PRIMITIVES.put(cls.getName(), cls);
+        }
+    }
+
+    private static final Map<String, Class<?>> classCache = new ConcurrentHashMap<>();
+
+    /**
+     * 不知道声明类型的值（响应结果、流里的消息）：相对 firstField 的偏移表示编码方式
+     *      0       动态类型
+     *      1 ~ 6   VALUE_SCALARS 里的标量
+     *      7       业务类，按连接内的类型编号
+     */
+    static final int VALUE_FIELD_COUNT = 8;
+    private static final Class<?>[] VALUE_SCALARS = {
+            String.class, Integer.class, Long.class, Boolean.class, Double.class, byte[].class
+    };
+
+    private TypedValues() {
+    }
+
+    /**
+     * 能否按声明类型编码，读写两端必须得出相同的结论，所以只看声明类型和值的实际类型是否一致
+     */
+    static boolean isTyped(Class<?> declared, Object value) {
+        if (declared == null || value == null) {
+            return false;
+        }
+        if (declared.isPrimitive()) {
+            return true;
+        }
+        if (value.getClass() != declared) {
+            return false;
+        }
+        return isScalar(declared) || isPojo(declared);
+    }
+
+    private static boolean isScalar(Class<?> cls) {
+        return cls == String.class || cls == byte[].class || cls == Integer.class || cls == Long.class
+                || cls == Boolean.class || cls == Double.class || cls == Float.class || cls == Short.class
+                || cls == Byte.class || cls == Character.class;
+    }
+
+    /**
+     * JDK 自己的类、数组、枚举、抽象类不走 POJO 的 Schema
+     */
+    private static boolean isPojo(Class<?> cls) {
+        String name = cls.getName();
+        return !cls.isArray() && !cls.isEnum() && !Modifier.isAbstract(cls.getModifiers())
+                && !name.startsWith("java.") && !name.startsWith("javax.");
+    }
+
+    @SuppressWarnings("unchecked")
+    static void write(Output output, int number, Class<?> type, Object value) throws IOException {
+        if (type == String.class) {
+            output.writeString(number, (String) value, false);
+        } else if (type == int.class || type == Integer.class) {
+            output.writeSInt32(number, (Integer) value, false);
+        } else if (type == long.class || type == Long.class) {
+            output.writeSInt64(number, (Long) value, false);
+        } else if (type == boolean.class || type == Boolean.class) {
+            output.writeBool(number, (Boolean) value, false);
+        } else if (type == double.class || type == Double.class) {
+            output.writeDouble(number, (Double) value, false);
+        } else if (type == float.class || type == Float.class) {
+            output.writeFloat(number, (Float) value, false);
+        } else if (type == short.class || type == Short.class) {
+            output.writeSInt32(number, (Short) value, false);
+        } else if (type == byte.class || type == Byte.class) {
+            output.writeSInt32(number, (Byte) value, false);
+        } else if (type == char.class || type == Character.class) {
+            output.writeUInt32(number, (Character) value, false);
+        } else if (type == byte[].class) {
+            output.writeByteArray(number, (byte[]) value, false);
+        } else {
+            output.writeObject(number, value, (Schema<Object>) ProtostuffSchemas.getSchema(type), false);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object read(Input input, Class<?> type) throws IOException {
+        if (type == String.class) {
+            return input.readString();
+        } else if (type == int.class || type == Integer.class) {
+            return input.readSInt32();
+        } else if (type == long.class || type == Long.class) {
+            return input.readSInt64();
+        } else if (type == boolean.class || type == Boolean.class) {
+            return input.readBool();
+        } else if (type == double.class || type == Double.class) {
+            return input.readDouble();
+        } else if (type == float.class || type == Float.class) {
+            return input.readFloat();
+        } else if (type == short.class || type == Short.class) {
+            return (short) input.readSInt32();
+        } else if (type == byte.class || type == Byte.class) {
+            return (byte) input.readSInt32();
+        } else if (type == char.class || type == Character.class) {
+            return (char) input.readUInt32();
+        } else if (type == byte[].class) {
+            return input.readByteArray();
+        }
+        return input.mergeObject(null, (Schema<Object>) ProtostuffSchemas.getSchema(type));
+    }
+
+    static void writeValue(Output output, int firstField, Object value) throws IOException {
+        for (int i = 0; i < VALUE_SCALARS.length; i++) {
+            if (value.getClass() == VALUE_SCALARS[i]) {
+                write(output, firstField + 1 + i, VALUE_SCALARS[i], value);
+                return;
+            }
+        }
+        if (canIntern(value)) {
+            writeInterned(output, firstField + VALUE_FIELD_COUNT - 1, value);
+        } else {
+            writeDynamic(output, firstField, value);
+        }
+    }
+
+    /**
+     * @param offset 字段编号减去 firstField
+     */
+    static Object readValue(Input input, int offset) throws IOException {
+        if (offset == 0) {
+            return readDynamic(input);
+        }
+        if (offset == VALUE_FIELD_COUNT - 1) {
+            return readInterned(input);
+        }
+        return read(input, VALUE_SCALARS[offset - 1]);
+    }
+
+    /**
+     * 能否按连接内的类型编号编码：只在编解码过程中、业务类、编号还没用完时可以
+     */
+    static boolean canIntern(Object value) {
+        CodecContext context = CodecContext.current();
+        if (context == null || !isPojo(value.getClass())) {
+            return false;
+        }
+        return context.getOutboundTypeId(value.getClass()) != 0 || context.canDefineOutboundType();
+    }
+
+    static void writeInterned(Output output, int number, Object value) throws IOException {
+        output.writeObject(number, new DynamicValue(value), InternedValueSchema.INSTANCE, false);
+    }
+
+    static Object readInterned(Input input) throws IOException {
+        return input.mergeObject(new DynamicValue(), InternedValueSchema.INSTANCE).value;
+    }
+
+    static void writeDynamic(Output output, int number, Object value) throws IOException {
+        output.writeObject(number, new DynamicValue(value), DynamicValue.SCHEMA, false);
+    }
+
+    static Object readDynamic(Input input) throws IOException {
+        return input.mergeObject(new DynamicValue(), DynamicValue.SCHEMA).value;
+    }
+
+    /**
+     * 参数类型按类名传输，解析结果缓存起来
+     */
+    static Class<?> forName(String name) throws IOException {
+        Class<?> cls = PRIMITIVES.get(name);
+        if (cls == null) {
+            cls = classCache.get(name);
+        }
+        if (cls == null) {
+            try {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                cls = Class.forName(name, false, loader != null ? loader : TypedValues.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Class not found: " + name, e);
+            }
+            classCache.put(name, cls);
+        }
+        return cls;
+    }
+}
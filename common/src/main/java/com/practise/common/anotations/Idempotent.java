@@ -0,0 +1,20 @@
+package com.practise.common.anotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description Idempotent
+ * @date 2022/3/28 15:00
+ *
+ * 标在服务接口的方法上（或者整个接口上），表示执行多次和执行一次效果一样
+ * 只有这样的方法客户端才会对冲（同时发给两个节点），见 clientV2 的 HedgePolicy
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Idempotent {
+}
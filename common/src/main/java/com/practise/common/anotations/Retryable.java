@@ -0,0 +1,38 @@
+package com.practise.common.anotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description Retryable
+ * @date 2022/3/29 10:00
+ *
+ * 标在服务接口的方法上（或者整个接口上），调用失败时客户端换一个节点重试，见 clientV2 的 RetryPolicy
+ *
+ * 请求肯定没有执行过的失败（没发出去、连接过载、服务端线程池拒绝）总是重试；
+ * 可能已经执行过的失败（发出去之后连接断了）只有同时标了 {@link Idempotent} 才重试
+ * 服务方法抛出的异常、超时不重试
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Retryable {
+
+    /**
+     * 最多调用几次，包括第一次
+     */
+    int maxAttempts() default 3;
+
+    /**
+     * 第一次重试前最多等多久（毫秒），之后每次翻倍，实际等待时间在 0 到这个值之间随机
+     */
+    long backoff() default 20;
+
+    /**
+     * 等待时间的上限（毫秒）
+     */
+    long maxBackoff() default 1000;
+}
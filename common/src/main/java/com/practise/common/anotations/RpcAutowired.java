@@ -18,4 +18,9 @@ import java.lang.annotation.Target;
 @Component
 public @interface RpcAutowired {
     String version() default "";
+
+    /**
+     * 调用超时时间（毫秒），0 表示用全局的设置
+     */
+    long timeout() default 0;
 }
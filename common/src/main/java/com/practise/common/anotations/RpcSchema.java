@@ -0,0 +1,23 @@
+package com.practise.common.anotations;
+
+import io.protostuff.Schema;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcSchema
+ * @date 2022/3/13 21:20
+ *
+ * 给 DTO 指定静态的 protostuff Schema（需要无参构造），
+ * 没有标注的类仍然用 RuntimeSchema
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RpcSchema {
+    Class<? extends Schema> value();
+}
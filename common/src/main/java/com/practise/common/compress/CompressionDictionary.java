@@ -0,0 +1,96 @@
+package com.practise.common.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description CompressionDictionary
+ * @date 2022/3/18 10:50
+ *
+ * deflate 的预置字典，最多 32 KiB（deflate 的窗口大小），越常见的内容放得越靠后
+ *
+ * DEFAULT 是内置的字典，包含框架自己的类名、常见的 JDK 类型和字段名，不需要配置就能用
+ * 用线上流量训练的字典见 {@link DictionaryTrainer}，训练好之后用 save 存下来，
+ * 两端启动时 load 再 {@link CompressorRegistry#setDictionary}，握手时会比对字典编号
+ */
+public final class CompressionDictionary {
+
+    public static final int MAX_SIZE = 32 * 1024;
+
+    public static final CompressionDictionary DEFAULT = new CompressionDictionary(defaultBytes());
+
+    private final byte[] bytes;
+    private final int id;
+
+    public CompressionDictionary(byte[] bytes) {
+        // 超出窗口的部分用不上，保留最后 32 KiB
+        this.bytes = bytes.length > MAX_SIZE ? Arrays.copyOfRange(bytes, bytes.length - MAX_SIZE, bytes.length) : bytes.clone();
+        Adler32 adler = new Adler32();
+        adler.update(this.bytes);
+        this.id = (int) adler.getValue();
+    }
+
+    public static CompressionDictionary load(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(MAX_SIZE);
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            bos.write(buf, 0, n);
+        }
+        return new CompressionDictionary(bos.toByteArray());
+    }
+
+    public void save(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * 字典内容的 Adler-32
+     */
+    public int getId() {
+        return id;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * 不拷贝，调用方不能修改
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    private static byte[] defaultBytes() {
+        String[] words = {
+                "java.lang.IllegalStateException", "java.lang.IllegalArgumentException",
+                "java.lang.NullPointerException", "java.lang.RuntimeException", "java.lang.StackTraceElement",
+                "stackTrace", "detailMessage", "suppressedExceptions", "declaringClass", "methodName",
+                "fileName", "lineNumber", "cause", "message",
+                "java.util.Collections$UnmodifiableRandomAccessList", "java.util.LinkedHashMap",
+                "java.util.HashMap", "java.util.ArrayList", "java.util.Date", "java.math.BigDecimal",
+                "[Ljava.lang.Object;", "[Ljava.lang.Class;", "java.lang.Class", "java.lang.Object",
+                "java.lang.Boolean", "java.lang.Double", "java.lang.Integer", "java.lang.Long", "java.lang.String",
+                "com.practise.common.entity.RpcMethodInfo", "com.practise.common.entity.RpcStreamMessage",
+                "com.practise.common.entity.RpcBatchResponse", "com.practise.common.entity.RpcBatchRequest",
+                "com.practise.common.entity.Person", "com.practise.common.services.",
+                "serviceKey", "parameterTypes", "parameters", "className", "version", "methodId",
+                "requestIds", "requests", "responses", "parallel", "payload", "credit", "kind", "error", "result",
+                "com.practise.common.entity.RpcResponse", "com.practise.common.entity.RpcRequest",
+                "{\"className\":\"", "\",\"methodName\":\"", "\",\"parameterTypes\":[\"", "\"parameters\":[\"",
+                "\"result\":[\"", "\"version\":\"", "\"name\":\"", "\"age\":", "1.0",
+        };
+        StringBuilder sb = new StringBuilder();
+        for (String word : words) {
+            sb.append(word);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
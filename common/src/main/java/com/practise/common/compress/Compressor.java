@@ -0,0 +1,40 @@
+package com.practise.common.compress;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description Compressor
+ * @date 2022/3/18 10:00
+ *
+ * 帧 body 的压缩算法，编号写在压缩后的 body 前面，见 {@link CompressorRegistry}
+ * 实现必须线程安全，编解码器在 IO 线程里直接调用
+ */
+public abstract class Compressor {
+
+    public static final byte DEFLATE = 1;
+    public static final byte SNAPPY = 2;
+
+    public abstract byte getCompressorId();
+
+    public abstract String getName();
+
+    /**
+     * 两端必须一致的预置字典编号，没有字典返回 0
+     */
+    public int getDictionaryId() {
+        return 0;
+    }
+
+    /**
+     * 把 in 的可读字节压缩后写进 out
+     */
+    public abstract void compress(ByteBuf in, ByteBuf out);
+
+    /**
+     * 把 in 的可读字节解压后写进 out
+     * @param originalLength 压缩前的长度，解压结果不一致时抛异常
+     */
+    public abstract void decompress(ByteBuf in, ByteBuf out, int originalLength);
+}
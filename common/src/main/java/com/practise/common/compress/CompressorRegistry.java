@@ -0,0 +1,157 @@
+package com.practise.common.compress;
+
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description CompressorRegistry
+ * @date 2022/3/18 11:00
+ *
+ * 帧压缩的注册表和全局配置
+ *
+ * 协商方式和序列化器一样：服务端在握手里带上支持的算法和 deflate 字典编号，
+ * 客户端把两端都能用的记到 channel 上；每个请求带着发起它的 RpcClient 配置的算法，
+ * 这个连接能用就按它压缩，所以共用连接的多个客户端各自生效，互不覆盖；
+ * 服务端收到压缩过的请求，记到 channel 上，响应用同一个算法压缩。客户端不配置就都不压缩
+ *
+ * 只有 body 不小于阈值、并且压缩后确实变小的帧才压缩，小帧不付出 CPU 代价
+ */
+public final class CompressorRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressorRegistry.class);
+
+    /**
+     * 这个连接协商好的压缩算法，没有就不压缩
+     */
+    public static final AttributeKey<Compressor> CHANNEL_COMPRESSOR = AttributeKey.valueOf("rpc.compressor");
+    /**
+     * 客户端连接上握手时对端支持、字典也一致的压缩算法，按编号存
+     */
+    public static final AttributeKey<Compressor[]> CHANNEL_ACCEPTED = AttributeKey.valueOf("rpc.compressor.accepted");
+
+    public static final int DEFAULT_THRESHOLD = 512;
+    /**
+     * 解压后的 body 最大长度，防止压缩炸弹
+     */
+    public static final int MAX_UNCOMPRESSED_LENGTH = 4 * 1024 * 1024;
+
+    private static final Compressor[] COMPRESSORS = new Compressor[16];
+
+    private static volatile int threshold = DEFAULT_THRESHOLD;
+    private static volatile DictionaryTrainer trainer;
+
+    static {
+        register(new DeflateCompressor(CompressionDictionary.DEFAULT));
+        register(new SnappyCompressor());
+    }
+
+    private CompressorRegistry() {
+    }
+
+    /**
+     * 同编号的会被替换，要在建立连接之前调用
+     */
+    public static synchronized void register(Compressor compressor) {
+        byte id = compressor.getCompressorId();
+        if (id <= 0 || id >= COMPRESSORS.length) {
+            throw new IllegalArgumentException("Illegal compressor id " + id + " of " + compressor.getClass().getName());
+        }
+        COMPRESSORS[id] = compressor;
+        logger.info("Register compressor {}, id: {}", compressor.getName(), id);
+    }
+
+    /**
+     * 换成训练好的字典，两端都要在建立连接之前调用
+     */
+    public static void setDictionary(CompressionDictionary dictionary) {
+        register(new DeflateCompressor(dictionary));
+    }
+
+    /**
+     * @return 没有注册返回 null
+     */
+    public static Compressor getCompressor(byte id) {
+        return id > 0 && id < COMPRESSORS.length ? COMPRESSORS[id] : null;
+    }
+
+    /**
+     * @param name 如 deflate、snappy
+     */
+    public static Compressor getCompressor(String name) {
+        for (Compressor compressor : COMPRESSORS) {
+            if (compressor != null && compressor.getName().equalsIgnoreCase(name)) {
+                return compressor;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compressor: " + name);
+    }
+
+    /**
+     * 握手里告诉客户端支持哪些算法
+     */
+    public static synchronized byte[] supportedIds() {
+        int count = 0;
+        byte[] ids = new byte[COMPRESSORS.length];
+        for (Compressor compressor : COMPRESSORS) {
+            if (compressor != null) {
+                ids[count++] = compressor.getCompressorId();
+            }
+        }
+        byte[] result = new byte[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * 按握手里对端支持的算法和 deflate 字典编号，选出本地注册的、两端都能用的
+     * @return 按编号存，不能用的位置是 null
+     */
+    public static synchronized Compressor[] accepted(byte[] ids, int dictionaryId) {
+        Compressor[] accepted = new Compressor[COMPRESSORS.length];
+        for (int i = 0; ids != null && i < ids.length; i++) {
+            Compressor compressor = getCompressor(ids[i]);
+            if (compressor == null) {
+                continue;
+            }
+            if (compressor.getDictionaryId() != 0 && compressor.getDictionaryId() != dictionaryId) {
+                logger.warn("Dictionary of {} mismatch with the peer, send uncompressed", compressor.getName());
+                continue;
+            }
+            accepted[ids[i]] = compressor;
+        }
+        return accepted;
+    }
+
+    /**
+     * @return 这个连接能用 requested 时返回它，否则返回 null
+     */
+    public static Compressor select(Compressor[] accepted, Compressor requested) {
+        if (accepted == null || requested == null) {
+            return null;
+        }
+        Compressor local = accepted[requested.getCompressorId()];
+        return local != null && local.getDictionaryId() == requested.getDictionaryId() ? requested : null;
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    public static void setThreshold(int threshold) {
+        CompressorRegistry.threshold = threshold;
+    }
+
+    public static DictionaryTrainer getTrainer() {
+        return trainer;
+    }
+
+    /**
+     * 设置之后编码器会把每一帧的 body 交给 trainer 采样，训练完设回 null
+     */
+    public static void setTrainer(DictionaryTrainer trainer) {
+        CompressorRegistry.trainer = trainer;
+    }
+}
@@ -0,0 +1,182 @@
+package com.practise.common.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description DeflateCompressor
+ * @date 2022/3/18 10:10
+ *
+ * 带预置字典的 deflate（raw zlib 流）
+ *
+ * RPC 的帧都很小，单帧里重复的内容不多，但帧和帧之间高度重复（类名、字段名、枚举值），
+ * 预置字典相当于让每一帧都从“已经见过这些字符串”开始压缩，小帧也能压下来
+ * 字典要两端一致，编号是字典的 Adler-32（和 zlib 流里记录的字典编号相同），握手时比对
+ *
+ * Deflater/Inflater 每个线程一个，用完 reset；Java 8 的 Deflater 只接受 byte[]，直接内存要先拷一份
+ */
+public class DeflateCompressor extends Compressor {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final CompressionDictionary dictionary;
+    private final int level;
+
+    private final FastThreadLocal<Deflater> deflaters = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level);
+        }
+
+        @Override
+        protected void onRemoval(Deflater deflater) {
+            deflater.end();
+        }
+    };
+
+    private final FastThreadLocal<Inflater> inflaters = new FastThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+
+        @Override
+        protected void onRemoval(Inflater inflater) {
+            inflater.end();
+        }
+    };
+
+    private final FastThreadLocal<byte[][]> scratches = new FastThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][]{new byte[CHUNK_SIZE], new byte[CHUNK_SIZE]};
+        }
+    };
+
+    public DeflateCompressor(CompressionDictionary dictionary) {
+        this(dictionary, Deflater.BEST_SPEED);
+    }
+
+    public DeflateCompressor(CompressionDictionary dictionary, int level) {
+        this.dictionary = dictionary;
+        this.level = level;
+    }
+
+    @Override
+    public byte getCompressorId() {
+        return DEFLATE;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public int getDictionaryId() {
+        return dictionary == null ? 0 : dictionary.getId();
+    }
+
+    public CompressionDictionary getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public void compress(ByteBuf in, ByteBuf out) {
+        Deflater deflater = deflaters.get();
+        byte[][] scratch = scratches.get();
+        int length = in.readableBytes();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary.bytes());
+            }
+            if (in.hasArray()) {
+                deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), length);
+            } else {
+                byte[] input = inputBuffer(scratch, length);
+                in.getBytes(in.readerIndex(), input, 0, length);
+                deflater.setInput(input, 0, length);
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensureWritable(CHUNK_SIZE);
+                if (out.hasArray()) {
+                    int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                    out.writerIndex(out.writerIndex() + n);
+                } else {
+                    int n = deflater.deflate(scratch[1]);
+                    out.writeBytes(scratch[1], 0, n);
+                }
+            }
+            in.skipBytes(length);
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuf in, ByteBuf out, int originalLength) {
+        Inflater inflater = inflaters.get();
+        byte[][] scratch = scratches.get();
+        int length = in.readableBytes();
+        int start = out.writerIndex();
+        try {
+            if (in.hasArray()) {
+                inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), length);
+            } else {
+                byte[] input = inputBuffer(scratch, length);
+                in.getBytes(in.readerIndex(), input, 0, length);
+                inflater.setInput(input, 0, length);
+            }
+            out.ensureWritable(originalLength);
+            while (!inflater.finished()) {
+                int written = out.writerIndex() - start;
+                if (written > originalLength) {
+                    break;
+                }
+                int n;
+                if (out.hasArray()) {
+                    // 多留一个字节，长度不对时能发现
+                    out.ensureWritable(originalLength - written + 1);
+                    n = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                    out.writerIndex(out.writerIndex() + n);
+                } else {
+                    n = inflater.inflate(scratch[1]);
+                    out.writeBytes(scratch[1], 0, n);
+                }
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null || inflater.getAdler() != dictionary.getId()) {
+                            throw new IllegalStateException("Deflate dictionary mismatch, expect " + inflater.getAdler());
+                        }
+                        inflater.setDictionary(dictionary.bytes());
+                    } else if (inflater.needsInput()) {
+                        throw new IllegalStateException("Truncated deflate stream");
+                    }
+                }
+            }
+            in.skipBytes(length);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            inflater.reset();
+        }
+        if (out.writerIndex() - start != originalLength) {
+            throw new IllegalStateException("Deflate length mismatch, expect " + originalLength
+                    + ", actual " + (out.writerIndex() - start));
+        }
+    }
+
+    private static byte[] inputBuffer(byte[][] scratch, int length) {
+        if (scratch[0].length < length) {
+            scratch[0] = new byte[Integer.highestOneBit(length - 1) << 1];
+        }
+        return scratch[0];
+    }
+}
@@ -0,0 +1,165 @@
+package com.practise.common.compress;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description DictionaryTrainer
+ * @date 2022/3/18 11:20
+ *
+ * 从实际流量里训练 deflate 预置字典
+ *
+ * 采样：{@link CompressorRegistry#setTrainer} 之后，编码器把每一帧的 body（压缩前）交给 sample，
+ *      蓄水池抽样保留最多 maxSamples 个，每个最多 MAX_SAMPLE_LENGTH 字节
+ * 训练：简化版的 COVER 算法，
+ *      统计每个 8 字节片段出现在多少个样本里，把样本切成固定长度的段，
+ *      每次挑出覆盖的高频片段最多的段放进字典，挑中的片段计数清零，避免重复，
+ *      先挑中的分数高，放在字典最后（离数据最近，deflate 的距离编码更短）
+ */
+public class DictionaryTrainer {
+
+    private static final int MAX_SAMPLE_LENGTH = 4096;
+    private static final int K = 8;
+    private static final int SEGMENT_LENGTH = 64;
+
+    private final int maxSamples;
+    private final List<byte[]> samples = new ArrayList<>();
+    private long seen;
+
+    public DictionaryTrainer(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * 编码器调用，只读不改 body
+     */
+    public void sample(ByteBuf body) {
+        int length = Math.min(body.readableBytes(), MAX_SAMPLE_LENGTH);
+        if (length < K) {
+            return;
+        }
+        synchronized (this) {
+            long count = ++seen;
+            int index;
+            if (samples.size() < maxSamples) {
+                index = samples.size();
+                samples.add(null);
+            } else {
+                long r = ThreadLocalRandom.current().nextLong(count);
+                if (r >= maxSamples) {
+                    return;
+                }
+                index = (int) r;
+            }
+            byte[] bytes = new byte[length];
+            body.getBytes(body.readerIndex(), bytes);
+            samples.set(index, bytes);
+        }
+    }
+
+    public synchronized int sampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * @param size 字典大小，不超过 32 KiB
+     * @return 样本不够时返回内置字典
+     */
+    public CompressionDictionary train(int size) {
+        List<byte[]> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(samples);
+        }
+        size = Math.min(size, CompressionDictionary.MAX_SIZE);
+        if (snapshot.size() < 2) {
+            return CompressionDictionary.DEFAULT;
+        }
+        // 每个片段出现在多少个样本里，一个样本内重复只算一次
+        Map<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : snapshot) {
+            Set<Long> distinct = new HashSet<>();
+            for (int i = 0; i + K <= sample.length; i++) {
+                distinct.add(kgram(sample, i));
+            }
+            for (Long key : distinct) {
+                frequencies.merge(key, 1, Integer::sum);
+            }
+        }
+        // 分数只会变小，用优先队列做惰性贪心：取出最高的重新算分，仍然不低于下一个才选中
+        PriorityQueue<long[]> candidates = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (int s = 0; s < snapshot.size(); s++) {
+            byte[] sample = snapshot.get(s);
+            for (int offset = 0; offset + SEGMENT_LENGTH <= sample.length; offset += K) {
+                long score = score(sample, offset, frequencies);
+                if (score > 0) {
+                    candidates.add(new long[]{score, s, offset});
+                }
+            }
+        }
+        List<byte[]> chosen = new ArrayList<>();
+        int total = 0;
+        while (total < size && !candidates.isEmpty()) {
+            long[] top = candidates.poll();
+            byte[] sample = snapshot.get((int) top[1]);
+            int offset = (int) top[2];
+            long score = score(sample, offset, frequencies);
+            if (score <= 0) {
+                continue;
+            }
+            if (!candidates.isEmpty() && score < candidates.peek()[0]) {
+                top[0] = score;
+                candidates.add(top);
+                continue;
+            }
+            int length = Math.min(SEGMENT_LENGTH, size - total);
+            byte[] segment = new byte[length];
+            System.arraycopy(sample, offset, segment, 0, length);
+            chosen.add(segment);
+            total += length;
+            for (int i = offset; i + K <= offset + SEGMENT_LENGTH; i++) {
+                frequencies.remove(kgram(sample, i));
+            }
+        }
+        if (chosen.isEmpty()) {
+            return CompressionDictionary.DEFAULT;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(total);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            bos.write(chosen.get(i), 0, chosen.get(i).length);
+        }
+        return new CompressionDictionary(bos.toByteArray());
+    }
+
+    /**
+     * 段里出现在多个样本中的片段的计数之和
+     */
+    private static long score(byte[] sample, int offset, Map<Long, Integer> frequencies) {
+        long score = 0;
+        for (int i = offset; i + K <= offset + SEGMENT_LENGTH; i++) {
+            Integer f = frequencies.get(kgram(sample, i));
+            if (f != null && f > 1) {
+                score += f;
+            }
+        }
+        return score;
+    }
+
+    private static long kgram(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < K; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
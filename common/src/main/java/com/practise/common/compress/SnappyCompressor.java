@@ -0,0 +1,62 @@
+package com.practise.common.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.compression.Snappy;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description SnappyCompressor
+ * @date 2022/3/18 10:30
+ *
+ * LZ 系的快速压缩，用 netty 自带的 Snappy 实现，直接在 ByteBuf 上读写
+ * 压缩率比 deflate 低，但 CPU 开销小得多，适合带宽不紧张、延迟敏感的场景
+ */
+public class SnappyCompressor extends Compressor {
+
+    /**
+     * Snappy 对象带状态，每个线程一个，用完 reset
+     */
+    private final FastThreadLocal<Snappy> snappies = new FastThreadLocal<Snappy>() {
+        @Override
+        protected Snappy initialValue() {
+            return new Snappy();
+        }
+    };
+
+    @Override
+    public byte getCompressorId() {
+        return SNAPPY;
+    }
+
+    @Override
+    public String getName() {
+        return "snappy";
+    }
+
+    @Override
+    public void compress(ByteBuf in, ByteBuf out) {
+        Snappy snappy = snappies.get();
+        try {
+            snappy.encode(in, out, in.readableBytes());
+        } finally {
+            snappy.reset();
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuf in, ByteBuf out, int originalLength) {
+        Snappy snappy = snappies.get();
+        int start = out.writerIndex();
+        try {
+            snappy.decode(in, out);
+        } finally {
+            snappy.reset();
+        }
+        if (out.writerIndex() - start != originalLength) {
+            throw new IllegalStateException("Snappy length mismatch, expect " + originalLength
+                    + ", actual " + (out.writerIndex() - start));
+        }
+    }
+}
@@ -10,7 +10,10 @@ public final class Beat {
 
     public static final int BEAT_INTERVAL = 30;
     public static final int BEAT_TIMEOUT = 3 * BEAT_INTERVAL;
-    public static final String BEAT_ID = "BEAT_PING_PONG";
+    /**
+     * 请求序号从 1 开始分配，0 留给心跳
+     */
+    public static final long BEAT_ID = 0L;
 
     public static RpcRequest BEAT_PING;
 
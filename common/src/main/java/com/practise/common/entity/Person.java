@@ -1,5 +1,7 @@
 package com.practise.common.entity;
 
+import com.practise.common.Serializer.protostuff.schema.PersonSchema;
+import com.practise.common.anotations.RpcSchema;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -11,6 +13,7 @@ import lombok.Setter;
  */
 @Getter
 @Setter
+@RpcSchema(PersonSchema.class)
 public class Person {
 
     private String name;
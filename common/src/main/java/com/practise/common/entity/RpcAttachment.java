@@ -0,0 +1,133 @@
+package com.practise.common.entity;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.ReferenceCounted;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcAttachment
+ * @date 2022/3/17 10:00
+ *
+ * 二进制附件，不经过序列化器，跟在帧后面原样发送，不受单帧 64 KiB 的限制
+ *
+ * 发送方可以用 ByteBuf、ByteBuffer、byte[]（都只包一层，不拷贝）或者文件（FileRegion，Linux 上走 sendfile）
+ * 接收方拿到的是从接收缓冲区切出来的 ByteBuf，带引用计数
+ *
+ * 用法：方法参数或返回值直接声明成 RpcAttachment，编解码时自动放进附件，
+ *      也可以用 RpcRequest/RpcResponse 的 attachments 带额外的附件
+ *
+ * 发送后由 netty 释放；收到的附件由使用方 release，服务端在服务方法返回后会释放请求里的附件，
+ * 服务方法要在返回之后继续用的话先 retain
+ */
+public final class RpcAttachment implements ReferenceCounted {
+
+    /**
+     * ByteBuf 或 FileRegion
+     */
+    private final ReferenceCounted content;
+    private final long length;
+
+    private RpcAttachment(ReferenceCounted content, long length) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Attachment too large: " + length);
+        }
+        this.content = content;
+        this.length = length;
+    }
+
+    public static RpcAttachment of(ByteBuf buf) {
+        return new RpcAttachment(buf, buf.readableBytes());
+    }
+
+    public static RpcAttachment of(ByteBuffer buffer) {
+        return of(Unpooled.wrappedBuffer(buffer));
+    }
+
+    public static RpcAttachment of(byte[] bytes) {
+        return of(Unpooled.wrappedBuffer(bytes));
+    }
+
+    public static RpcAttachment of(File file) {
+        return of(new DefaultFileRegion(file, 0, file.length()));
+    }
+
+    public static RpcAttachment of(FileChannel channel, long position, long count) {
+        return of(new DefaultFileRegion(channel, position, count));
+    }
+
+    public static RpcAttachment of(FileRegion region) {
+        return new RpcAttachment(region, region.count() - region.transferred());
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * 写到 channel 里的对象
+     */
+    public Object content() {
+        return content;
+    }
+
+    public boolean isFileRegion() {
+        return content instanceof FileRegion;
+    }
+
+    /**
+     * 收到的附件都是 ByteBuf
+     */
+    public ByteBuf buffer() {
+        if (!(content instanceof ByteBuf)) {
+            throw new IllegalStateException("Attachment is a file region");
+        }
+        return (ByteBuf) content;
+    }
+
+    @Override
+    public int refCnt() {
+        return content.refCnt();
+    }
+
+    @Override
+    public RpcAttachment retain() {
+        content.retain();
+        return this;
+    }
+
+    @Override
+    public RpcAttachment retain(int increment) {
+        content.retain(increment);
+        return this;
+    }
+
+    @Override
+    public RpcAttachment touch() {
+        content.touch();
+        return this;
+    }
+
+    @Override
+    public RpcAttachment touch(Object hint) {
+        content.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return content.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return content.release(decrement);
+    }
+}
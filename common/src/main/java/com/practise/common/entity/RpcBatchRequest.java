@@ -0,0 +1,28 @@
+package com.practise.common.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcBatchRequest
+ * @date 2022/3/14 16:00
+ *
+ * 批量请求，多次调用放进一帧，帧类型是 RpcFrame.TYPE_BATCH_REQUEST
+ * 每个子请求的 requestId 不参与序列化，放在 requestIds 里，顺序和 requests 一致
+ */
+@Getter
+@Setter
+public class RpcBatchRequest {
+
+    private List<RpcRequest> requests;
+    private long[] requestIds;
+    /**
+     * 服务端是否在线程池里并行执行这些调用，否则按顺序执行
+     */
+    private boolean parallel;
+
+}
@@ -0,0 +1,23 @@
+package com.practise.common.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcBatchResponse
+ * @date 2022/3/14 16:05
+ *
+ * 批量响应，和 {@link RpcBatchRequest} 一一对应，所有调用都完成后一起返回
+ */
+@Getter
+@Setter
+public class RpcBatchResponse {
+
+    private List<RpcResponse> responses;
+    private long[] requestIds;
+
+}
@@ -0,0 +1,66 @@
+package com.practise.common.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcError
+ * @date 2022/3/16 10:00
+ *
+ * 响应里的异常，不再序列化整个 Throwable（异常链、堆栈、suppressed 全都要带上），
+ * 只带错误码、异常类的编号和 message，堆栈默认不带，服务开启或者被采样到才带
+ *
+ * 编码、还原见 {@link com.practise.common.exception.ErrorRegistry}
+ */
+@Getter
+@Setter
+public class RpcError {
+
+    /**
+     * 服务方法抛出的异常
+     */
+    public static final int SERVICE_ERROR = 1;
+    /**
+     * 框架处理请求时出错，比如方法编号不认识
+     */
+    public static final int SERVER_ERROR = 2;
+    /**
+     * 服务端线程池满了，请求没有执行
+     */
+    public static final int REJECTED = 3;
+    /**
+     * 调用被取消
+     */
+    public static final int CANCELLED = 4;
+    /**
+     * 请求没有发到服务端（写失败、连接断了），只在客户端本地使用
+     */
+    public static final int UNAVAILABLE = 5;
+    /**
+     * 超时没有收到响应，只在客户端本地使用
+     */
+    public static final int TIMEOUT = 6;
+    /**
+     * 请求发出去之后连接断了，服务端可能已经执行过，只在客户端本地使用
+     */
+    public static final int CONNECTION_LOST = 7;
+    /**
+     * 客户端的连接过载，请求没有发出去，只在客户端本地使用
+     */
+    public static final int OVERLOADED = 8;
+
+    private int code;
+    /**
+     * 异常类的编号，0 表示没有注册过，看 className
+     */
+    private int classId;
+    private String className;
+    private String message;
+    /**
+     * 服务端的堆栈，大部分时候是 null
+     */
+    private String stackTrace;
+
+}
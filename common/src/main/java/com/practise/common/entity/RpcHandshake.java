@@ -0,0 +1,44 @@
+package com.practise.common.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcHandshake
+ * @date 2022/3/14 10:00
+ *
+ * 握手消息，连接建立后服务端主动发给客户端，帧类型是 RpcFrame.TYPE_HANDSHAKE
+ * 里面是服务端所有服务方法的方法表，客户端之后的请求只带方法编号（{@link RpcRequest#getMethodId()}），
+ * 不再带类名、方法名、版本号和参数类型
+ *
+ * 握手到达之前发出的请求仍然按名字调用
+ *
+ * 同时带上服务端支持的压缩算法和 deflate 预置字典的编号，客户端选一个双方都能用的，
+ * 之后用它压缩请求，服务端看到压缩过的请求就用同一个算法压缩响应
+ */
+@Getter
+@Setter
+public class RpcHandshake {
+
+    /**
+     * 没有方法编号，按名字调用
+     */
+    public static final int NO_METHOD_ID = 0;
+
+    private List<RpcMethodInfo> methods;
+
+    /**
+     * 服务端支持的压缩算法编号，见 {@link com.practise.common.compress.Compressor}
+     */
+    private byte[] compressors;
+
+    /**
+     * 服务端 deflate 用的预置字典编号，和客户端的不一样就不能用 deflate
+     */
+    private int dictionaryId;
+
+}
@@ -0,0 +1,22 @@
+package com.practise.common.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcMethodInfo
+ * @date 2022/3/14 10:05
+ *
+ * 方法表里的一项，编号就是它在 {@link RpcHandshake#getMethods()} 里的下标加 1
+ */
+@Getter
+@Setter
+public class RpcMethodInfo {
+
+    private String serviceKey;
+    private String methodName;
+    private String[] parameterTypes;
+
+}
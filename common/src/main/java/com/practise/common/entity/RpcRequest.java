@@ -1,8 +1,12 @@
 package com.practise.common.entity;
 
+import com.practise.common.compress.Compressor;
+import com.practise.common.utils.Serializer;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 /**
  * @author HzeLng
  * @version 1.0
@@ -14,11 +18,44 @@ import lombok.Setter;
 public class RpcRequest {
     private static final long serialVersionUID = -2524587347775862771L;
 
-    private String requestId;
+    /**
+     * 连接内自增的请求序号，编码时写进帧头，所以不参与 body 的序列化
+     */
+    private transient long requestId;
     private String className;
     private String methodName;
     private Class<?>[] parameterTypes;
     private Object[] parameters;
     private String version;
+    /**
+     * 握手后拿到的方法编号，非 0 时服务端按编号找方法，不再看上面的类名、方法名和参数类型
+     */
+    private int methodId;
+    /**
+     * 非 0 表示按流接收结果（服务方法返回 Iterator），值是客户端一开始给服务端的额度
+     */
+    private int initialCredit;
+    /**
+     * 双向流（包括客户端流）：第一个参数是服务端回发用的 StreamObserver，由服务端填上，客户端发 null
+     * 这时 initialCredit 是客户端给服务端回发的额度
+     */
+    private boolean duplex;
+    /**
+     * 额外的二进制附件，不参与序列化，见 {@link RpcAttachment}
+     * 声明成 RpcAttachment 的参数不用放这里，编码时自动处理
+     */
+    private transient List<RpcAttachment> attachments;
+    /**
+     * 这次调用的超时时间（毫秒），只在客户端使用，0 表示用服务或者全局的设置
+     */
+    private transient long timeout;
+    /**
+     * 这次调用用的序列化器，只在客户端使用，null 表示用连接默认的，见 RpcEncoder
+     */
+    private transient Serializer serializer;
+    /**
+     * 这次调用用的压缩算法，只在客户端使用，null 表示不压缩，握手时服务端不支持也不压缩，见 RpcEncoder
+     */
+    private transient Compressor compressor;
 
 }
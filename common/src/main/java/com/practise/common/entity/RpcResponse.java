@@ -3,6 +3,8 @@ package com.practise.common.entity;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 /**
  * @author HzeLng
  * @version 1.0
@@ -13,9 +15,20 @@ import lombok.Setter;
 @Getter
 public class RpcResponse {
 
-    private String requestId;
-    private Throwable error;
+    /**
+     * 由帧头携带，不参与 body 的序列化
+     */
+    private transient long requestId;
+    /**
+     * 只有错误码、异常类和 message，见 {@link RpcError}
+     */
+    private RpcError error;
     private Object result;
+    /**
+     * 额外的二进制附件，不参与序列化，见 {@link RpcAttachment}
+     * 服务方法返回 RpcAttachment 时不用放这里，编码时自动处理
+     */
+    private transient List<RpcAttachment> attachments;
 
 
 }
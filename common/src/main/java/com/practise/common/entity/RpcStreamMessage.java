@@ -0,0 +1,75 @@
+package com.practise.common.entity;
+
+import com.practise.common.exception.ErrorRegistry;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcStreamMessage
+ * @date 2022/3/15 10:00
+ *
+ * 流式调用里的一条消息，帧类型是 RpcFrame.TYPE_STREAM，帧头里的 requestId 就是流的编号（发起调用的那个请求的序号）
+ *
+ * 服务端 -> 客户端：DATA 一个元素，END 正常结束，ERROR 异常结束
+ * 客户端 -> 服务端：CREDIT 允许对端再发多少条 DATA，CANCEL 不要了
+ * 双向流里两个方向都可以发 DATA/END/CREDIT，END 是半关闭，只表示这个方向发完了
+ *
+ * 发送方手里的额度用完就暂停，等接收方消费之后发 CREDIT 再继续，两端缓存的元素个数都不会超过额度
+ */
+@Getter
+@Setter
+public class RpcStreamMessage {
+
+    public static final byte DATA = 1;
+    public static final byte END = 2;
+    public static final byte ERROR = 3;
+    public static final byte CREDIT = 4;
+    public static final byte CANCEL = 5;
+
+    /**
+     * 由帧头携带，不参与 body 的序列化
+     */
+    private transient long streamId;
+    private byte kind;
+    private int credit;
+    private Object payload;
+    private RpcError error;
+
+    public static RpcStreamMessage data(long streamId, Object payload) {
+        RpcStreamMessage message = of(streamId, DATA);
+        message.payload = payload;
+        return message;
+    }
+
+    public static RpcStreamMessage end(long streamId) {
+        return of(streamId, END);
+    }
+
+    /**
+     * 异常按 {@link ErrorRegistry#encode(Throwable)} 转成 {@link RpcError}
+     */
+    public static RpcStreamMessage error(long streamId, Throwable error) {
+        RpcStreamMessage message = of(streamId, ERROR);
+        message.error = ErrorRegistry.encode(error);
+        return message;
+    }
+
+    public static RpcStreamMessage credit(long streamId, int credit) {
+        RpcStreamMessage message = of(streamId, CREDIT);
+        message.credit = credit;
+        return message;
+    }
+
+    public static RpcStreamMessage cancel(long streamId) {
+        return of(streamId, CANCEL);
+    }
+
+    private static RpcStreamMessage of(long streamId, byte kind) {
+        RpcStreamMessage message = new RpcStreamMessage();
+        message.streamId = streamId;
+        message.kind = kind;
+        return message;
+    }
+}
@@ -0,0 +1,228 @@
+package com.practise.common.exception;
+
+import com.practise.common.entity.RpcError;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ErrorRegistry
+ * @date 2022/3/16 10:20
+ *
+ * 异常和 {@link RpcError} 之间的转换
+ *
+ * 常见的 JDK 异常编号固定，业务异常用 {@link #register(Class)} 注册，编号按注册顺序分配，
+ * 和 Kryo 一样两端注册顺序必须一致；注册过的异常在客户端用 (String) 构造还原成原来的类型，
+ * 没注册的还原成 {@link RpcException}，不会按服务端发来的类名去加载类
+ *
+ * 堆栈默认不发，服务开启了或者按 {@link #setStackTraceSampleRate(int)} 采样到才发，
+ * 最多 MAX_STACK_DEPTH 帧，cause 只带一行描述
+ */
+public final class ErrorRegistry {
+
+    private static final Class<?>[] BUILTIN_CLASSES = {
+            RuntimeException.class, Exception.class, IllegalArgumentException.class, IllegalStateException.class,
+            NullPointerException.class, UnsupportedOperationException.class, IndexOutOfBoundsException.class,
+            ClassCastException.class, ArithmeticException.class, NumberFormatException.class,
+            NoSuchElementException.class, ConcurrentModificationException.class, SecurityException.class,
+            CancellationException.class, RejectedExecutionException.class, TimeoutException.class,
+            InterruptedException.class, IOException.class
+    };
+    private static final int FIRST_REGISTRATION_ID = 100;
+    private static final int MAX_STACK_DEPTH = 32;
+    private static final int MAX_CAUSE_DEPTH = 4;
+
+    private static final Map<Class<?>, Entry> byClass = new ConcurrentHashMap<>();
+    private static final Map<Integer, Entry> byId = new ConcurrentHashMap<>();
+    private static int nextId = FIRST_REGISTRATION_ID;
+
+    /**
+     * 每多少个异常带一次堆栈，0 表示不采样
+     */
+    private static volatile int stackTraceSampleRate;
+
+    static {
+        int id = 1;
+        for (Class<?> clazz : BUILTIN_CLASSES) {
+            add(id++, clazz.asSubclass(Throwable.class));
+        }
+    }
+
+    private ErrorRegistry() {
+    }
+
+    /**
+     * 注册业务异常，需要有 (String) 或者无参构造，两端顺序一致
+     */
+    public static synchronized void register(Class<? extends Throwable> clazz) {
+        if (!byClass.containsKey(clazz)) {
+            add(nextId++, clazz);
+        }
+    }
+
+    private static void add(int id, Class<? extends Throwable> clazz) {
+        Entry entry = new Entry(id, clazz);
+        byClass.put(clazz, entry);
+        byId.put(id, entry);
+    }
+
+    public static int getStackTraceSampleRate() {
+        return stackTraceSampleRate;
+    }
+
+    /**
+     * @param rate 每 rate 个异常带一次堆栈，0 表示只有开启了堆栈的服务才带
+     */
+    public static void setStackTraceSampleRate(int rate) {
+        stackTraceSampleRate = Math.max(0, rate);
+    }
+
+    /**
+     * @return 这次要不要带堆栈
+     */
+    public static boolean sampleStackTrace() {
+        int rate = stackTraceSampleRate;
+        return rate > 0 && ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    /**
+     * 错误码按异常类型推断，堆栈按采样
+     */
+    public static RpcError encode(Throwable t) {
+        return encode(t, sampleStackTrace());
+    }
+
+    public static RpcError encode(Throwable t, boolean stackTrace) {
+        int code;
+        if (t instanceof InvocationTargetException && t.getCause() != null) {
+            t = t.getCause();
+            code = RpcError.SERVICE_ERROR;
+        } else if (t instanceof CancellationException) {
+            code = RpcError.CANCELLED;
+        } else if (t instanceof RejectedExecutionException) {
+            code = RpcError.REJECTED;
+        } else {
+            code = RpcError.SERVICE_ERROR;
+        }
+        return encode(code, t, stackTrace);
+    }
+
+    /**
+     * 反射调用抛出的 InvocationTargetException 会被拆开
+     */
+    public static RpcError encode(int code, Throwable t, boolean stackTrace) {
+        if (t instanceof InvocationTargetException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        RpcError error = new RpcError();
+        error.setCode(code);
+        Entry entry = byClass.get(t.getClass());
+        if (entry != null) {
+            error.setClassId(entry.id);
+        } else if (t instanceof RpcException) {
+            // 转发上游的远程异常，保留最初的类名
+            error.setClassName(((RpcException) t).getRemoteClassName());
+        } else {
+            error.setClassName(t.getClass().getName());
+        }
+        error.setMessage(t instanceof RpcException ? messageOf((RpcException) t) : t.getMessage());
+        if (stackTrace) {
+            error.setStackTrace(stackTraceOf(t));
+        }
+        return error;
+    }
+
+    private static String messageOf(RpcException e) {
+        String message = e.getMessage();
+        String prefix = e.getRemoteClassName() + ": ";
+        return e.getRemoteClassName() != null && message != null && message.startsWith(prefix)
+                ? message.substring(prefix.length()) : message;
+    }
+
+    private static String stackTraceOf(Throwable t) {
+        StringBuilder sb = new StringBuilder();
+        StackTraceElement[] frames = t.getStackTrace();
+        int depth = Math.min(frames.length, MAX_STACK_DEPTH);
+        for (int i = 0; i < depth; i++) {
+            sb.append("\tat ").append(frames[i]).append('\n');
+        }
+        if (frames.length > depth) {
+            sb.append("\t... ").append(frames.length - depth).append(" more\n");
+        }
+        Throwable cause = t.getCause();
+        for (int i = 0; cause != null && cause != t && i < MAX_CAUSE_DEPTH; i++) {
+            sb.append("Caused by: ").append(cause).append('\n');
+            t = cause;
+            cause = cause.getCause();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 还原成异常，服务端带了堆栈的话作为 suppressed 挂在上面
+     */
+    public static Throwable decode(RpcError error) {
+        Entry entry = error.getClassId() == 0 ? null : byId.get(error.getClassId());
+        Throwable t = entry == null ? null : entry.create(error.getMessage());
+        if (t == null) {
+            String className = error.getClassName();
+            if (className == null) {
+                className = entry != null ? entry.clazz.getName() : "#" + error.getClassId();
+            }
+            t = new RpcException(error.getCode(), className, error.getMessage());
+        }
+        if (error.getStackTrace() != null) {
+            t.addSuppressed(new RpcException(error.getCode(), null, "Remote stack trace:\n" + error.getStackTrace()));
+        }
+        return t;
+    }
+
+    private static final class Entry {
+        private final int id;
+        private final Class<? extends Throwable> clazz;
+        private final Constructor<? extends Throwable> messageConstructor;
+        private final Constructor<? extends Throwable> defaultConstructor;
+
+        private Entry(int id, Class<? extends Throwable> clazz) {
+            this.id = id;
+            this.clazz = clazz;
+            this.messageConstructor = constructor(clazz, String.class);
+            this.defaultConstructor = messageConstructor == null ? constructor(clazz) : null;
+        }
+
+        private static Constructor<? extends Throwable> constructor(Class<? extends Throwable> clazz, Class<?>... parameterTypes) {
+            try {
+                Constructor<? extends Throwable> constructor = clazz.getDeclaredConstructor(parameterTypes);
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (NoSuchMethodException | SecurityException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return 构造失败返回 null
+         */
+        private Throwable create(String message) {
+            try {
+                if (messageConstructor != null) {
+                    return messageConstructor.newInstance(message);
+                }
+                return defaultConstructor == null ? null : defaultConstructor.newInstance();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
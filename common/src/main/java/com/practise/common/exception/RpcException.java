@@ -0,0 +1,43 @@
+package com.practise.common.exception;
+
+import com.practise.common.entity.RpcError;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcException
+ * @date 2022/3/16 10:30
+ *
+ * 客户端还原不出原来类型的远程异常（服务端的异常类没有在两端注册），
+ * 保留错误码和服务端的类名
+ *
+ * 不填充本地堆栈，构造很便宜；服务端带了堆栈时在 message 里
+ */
+public class RpcException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+    private final String remoteClassName;
+
+    public RpcException(int code, String remoteClassName, String message) {
+        this(code, remoteClassName, message, null);
+    }
+
+    public RpcException(int code, String remoteClassName, String message, Throwable cause) {
+        super(remoteClassName == null ? message : remoteClassName + ": " + message, cause, true, false);
+        this.code = code;
+        this.remoteClassName = remoteClassName;
+    }
+
+    /**
+     * @return {@link RpcError} 里的错误码
+     */
+    public int getCode() {
+        return code;
+    }
+
+    public String getRemoteClassName() {
+        return remoteClassName;
+    }
+}
@@ -0,0 +1,141 @@
+package com.practise.common.protocol;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description CodecContext
+ * @date 2022/3/14 10:20
+ *
+ * 每个连接的编解码状态，挂在 channel 上，编解码时通过 {@link #current()} 给序列化器用：
+ *
+ *      1. 方法编号对应的参数类型（只有服务端有），按方法编号调用时请求里没有参数类型，解码参数要用
+ *      2. 类型编号：多态参数、返回值的类第一次出现时连同类名一起发一个编号，之后只发编号，
+ *         两个方向各自独立编号，同一个连接上帧是按顺序编解码的，所以两端的编号一定一致
+ *
+ * 只在 channel 的 EventLoop 里使用，不需要同步
+ */
+public final class CodecContext {
+
+    public static final AttributeKey<CodecContext> KEY = AttributeKey.valueOf("rpc.codec.context");
+
+    /**
+     * 每个方向最多编号的类型数，超过之后退化成写类名
+     */
+    public static final int MAX_TYPES = 1024;
+
+    private static final FastThreadLocal<CodecContext> CURRENT = new FastThreadLocal<>();
+
+    private final Class<?>[][] methodParameterTypes;
+
+    private final Map<Class<?>, Integer> outboundTypes = new HashMap<>();
+    private final List<Class<?>> outboundOrder = new ArrayList<>();
+    private int outboundMark;
+    private final List<Class<?>> inboundTypes = new ArrayList<>();
+
+    public CodecContext() {
+        this(null);
+    }
+
+    /**
+     * @param methodParameterTypes 下标是方法编号
+     */
+    public CodecContext(Class<?>[][] methodParameterTypes) {
+        this.methodParameterTypes = methodParameterTypes;
+    }
+
+    public static CodecContext get(Channel channel) {
+        CodecContext context = channel.attr(KEY).get();
+        if (context == null) {
+            CodecContext created = new CodecContext();
+            context = channel.attr(KEY).setIfAbsent(created);
+            if (context == null) {
+                context = created;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * @return 当前线程正在编解码的连接，不在编解码过程中返回 null
+     */
+    public static CodecContext current() {
+        return CURRENT.getIfExists();
+    }
+
+    public void enter() {
+        CURRENT.set(this);
+    }
+
+    public static void exit() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @return 不认识的方法编号返回 null
+     */
+    public Class<?>[] getParameterTypes(int methodId) {
+        if (methodParameterTypes == null || methodId <= 0 || methodId >= methodParameterTypes.length) {
+            return null;
+        }
+        return methodParameterTypes[methodId];
+    }
+
+    /**
+     * @return 已经发过的类型返回编号，没发过返回 0
+     */
+    public int getOutboundTypeId(Class<?> type) {
+        Integer id = outboundTypes.get(type);
+        return id == null ? 0 : id;
+    }
+
+    public boolean canDefineOutboundType() {
+        return outboundOrder.size() < MAX_TYPES;
+    }
+
+    /**
+     * 给新类型分配编号，调用方要在同一帧里把类名和编号一起发出去
+     */
+    public int defineOutboundType(Class<?> type) {
+        outboundOrder.add(type);
+        int id = outboundOrder.size();
+        outboundTypes.put(type, id);
+        return id;
+    }
+
+    /**
+     * 编码一帧之前调用，这一帧编码失败时 {@link #rollback()} 撤销这一帧里新分配的编号，
+     * 否则对端没收到类名，后面的帧就解不出来了
+     */
+    public void mark() {
+        outboundMark = outboundOrder.size();
+    }
+
+    public void rollback() {
+        while (outboundOrder.size() > outboundMark) {
+            outboundTypes.remove(outboundOrder.remove(outboundOrder.size() - 1));
+        }
+    }
+
+    public void defineInboundType(int id, Class<?> type) {
+        if (id != inboundTypes.size() + 1 || id > MAX_TYPES) {
+            throw new IllegalStateException("Unexpected type id " + id + ", expected " + (inboundTypes.size() + 1));
+        }
+        inboundTypes.add(type);
+    }
+
+    /**
+     * @return 没定义过返回 null
+     */
+    public Class<?> getInboundType(int id) {
+        return id > 0 && id <= inboundTypes.size() ? inboundTypes.get(id - 1) : null;
+    }
+}
@@ -0,0 +1,89 @@
+package com.practise.common.protocol;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcFrame
+ * @date 2022/3/12 10:20
+ *
+ * 传输帧格式（编解码两端必须一致）：
+ *
+ *  +--------+-------+---------+------+------------+-------+-----------+----------+
+ *  | length | magic | version | type | serializer | flags | requestId |   body   |
+ *  | 4 byte | 2     | 1       | 1    | 1          | 1     | 8         | 变长      |
+ *  +--------+-------+---------+------+------------+-------+-----------+----------+
+ *
+ * length 表示 length 字段之后所有字节的长度（帧头 + body）
+ * requestId 是连接内自增的 64 位序号，放在帧头里，所以不用反序列化 body 就能知道是哪个请求的响应，
+ * 心跳帧只有帧头，没有 body
+ *
+ * flags 带 FLAG_ATTACHMENTS 时，帧头和 body 之间有一张附件表，附件的内容跟在这一帧后面，不算在 length 里：
+ *
+ *  | header | count(2) | count * (slot(2) + length(4)) | body | 附件 1 | 附件 2 | ...
+ *
+ * slot 是附件在消息里的位置：请求的第几个参数，SLOT_RESULT 是响应的 result，SLOT_EXTRA 是 attachments 里的
+ *
+ * flags 带 FLAG_COMPRESSED 时 body 是压缩过的（帧头和附件表不压缩）：
+ *
+ *  | compressor(1) | 压缩前长度(4) | 压缩数据 |
+ *
+ * 压缩算法和协商方式见 {@link com.practise.common.compress.CompressorRegistry}
+ */
+public final class RpcFrame {
+
+    public static final short MAGIC = (short) 0x4C52;
+    public static final byte VERSION = 1;
+
+    public static final int LENGTH_FIELD_LENGTH = 4;
+    /**
+     * length 字段之后的固定帧头长度：magic(2) + version(1) + type(1) + serializer(1) + flags(1) + requestId(8)
+     */
+    public static final int HEADER_LENGTH = 14;
+    /**
+     * flags 在帧头里的偏移（从 magic 开始算）
+     */
+    public static final int FLAGS_OFFSET = 5;
+    /**
+     * 压缩过的 body 前面的 compressor + 压缩前长度
+     */
+    public static final int COMPRESSED_HEADER_LENGTH = 5;
+    /**
+     * 单帧最大长度（不含长度字段）
+     */
+    public static final int MAX_FRAME_LENGTH = 65536;
+
+    // message type
+    public static final byte TYPE_REQUEST = 1;
+    public static final byte TYPE_RESPONSE = 2;
+    public static final byte TYPE_HEARTBEAT = 3;
+    /**
+     * 连接建立后服务端发给客户端的方法表，见 {@link com.practise.common.entity.RpcHandshake}
+     */
+    public static final byte TYPE_HANDSHAKE = 4;
+    /**
+     * 批量请求和响应，帧头里的 requestId 不用，子请求的序号在 body 里
+     */
+    public static final byte TYPE_BATCH_REQUEST = 5;
+    public static final byte TYPE_BATCH_RESPONSE = 6;
+    /**
+     * 流式调用的消息，帧头里的 requestId 是流的编号，见 {@link com.practise.common.entity.RpcStreamMessage}
+     */
+    public static final byte TYPE_STREAM = 7;
+
+    // flags
+    public static final byte FLAG_NONE = 0;
+    public static final byte FLAG_ATTACHMENTS = 0x01;
+    public static final byte FLAG_COMPRESSED = 0x02;
+
+    /**
+     * 一帧最多带的附件个数和总长度
+     */
+    public static final int MAX_ATTACHMENTS = 256;
+    public static final long MAX_ATTACHMENT_LENGTH = 256L * 1024 * 1024;
+    public static final int SLOT_RESULT = 0xFFFE;
+    public static final int SLOT_EXTRA = 0xFFFF;
+
+    private RpcFrame() {
+    }
+
+}
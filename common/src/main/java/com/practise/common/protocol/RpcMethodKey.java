@@ -0,0 +1,70 @@
+package com.practise.common.protocol;
+
+import com.practise.common.entity.RpcMethodInfo;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcMethodKey
+ * @date 2022/3/14 10:10
+ *
+ * 客户端按它查方法编号：serviceKey + 方法名 + 参数类型名
+ * 代理对每个 Method 只创建一次，hash 预先算好，查表时不用拼字符串
+ */
+public final class RpcMethodKey {
+
+    private final String serviceKey;
+    private final String methodName;
+    private final String[] parameterTypes;
+    private final int hash;
+
+    public RpcMethodKey(String serviceKey, String methodName, Class<?>[] parameterTypes) {
+        this(serviceKey, methodName, typeNames(parameterTypes));
+    }
+
+    public RpcMethodKey(RpcMethodInfo info) {
+        this(info.getServiceKey(), info.getMethodName(), info.getParameterTypes());
+    }
+
+    private RpcMethodKey(String serviceKey, String methodName, String[] parameterTypes) {
+        this.serviceKey = serviceKey;
+        this.methodName = methodName;
+        this.parameterTypes = parameterTypes == null ? new String[0] : parameterTypes;
+        this.hash = Objects.hash(serviceKey, methodName) * 31 + Arrays.hashCode(this.parameterTypes);
+    }
+
+    public static String[] typeNames(Class<?>[] types) {
+        String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            names[i] = types[i].getName();
+        }
+        return names;
+    }
+
+    public String getServiceKey() {
+        return serviceKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RpcMethodKey that = (RpcMethodKey) o;
+        return hash == that.hash && Objects.equals(serviceKey, that.serviceKey)
+                && Objects.equals(methodName, that.methodName)
+                && Arrays.equals(parameterTypes, that.parameterTypes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return serviceKey + "." + methodName + Arrays.toString(parameterTypes);
+    }
+}
@@ -0,0 +1,56 @@
+package com.practise.common.resource;
+
+import lombok.Getter;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description PoolStats
+ * @date 2022/3/28 10:40
+ *
+ * 一个共享线程池某一时刻的使用情况，见 {@link RpcResources#stats()}
+ */
+@Getter
+public class PoolStats {
+
+    private final String name;
+    /**
+     * 当前线程数
+     */
+    private final int threads;
+    private final int maxThreads;
+    /**
+     * 线程池是正在执行任务的线程数；EventLoop 是任务队列不空的线程数
+     */
+    private final int active;
+    /**
+     * 排队的任务数
+     */
+    private final int queued;
+    /**
+     * 执行完的任务数，EventLoop 不统计，是 -1
+     */
+    private final long completed;
+
+    public PoolStats(String name, int threads, int maxThreads, int active, int queued, long completed) {
+        this.name = name;
+        this.threads = threads;
+        this.maxThreads = maxThreads;
+        this.active = active;
+        this.queued = queued;
+        this.completed = completed;
+    }
+
+    /**
+     * @return active / maxThreads
+     */
+    public double getUtilization() {
+        return maxThreads == 0 ? 0 : (double) active / maxThreads;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{threads=" + threads + "/" + maxThreads + ", active=" + active
+                + ", queued=" + queued + ", completed=" + completed + "}";
+    }
+}
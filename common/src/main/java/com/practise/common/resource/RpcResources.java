@@ -0,0 +1,179 @@
+package com.practise.common.resource;
+
+import com.practise.common.transport.Transport;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcResources
+ * @date 2022/3/28 10:00
+ *
+ * 进程内所有 RpcClient 和 NettyServer 共用的线程资源：
+ *      io        EventLoopGroup，客户端连接、服务端的 accept 和读写都在这里
+ *      business  服务端执行服务方法的线程池
+ *      callback  客户端执行异步回调、流消息的线程池
+ *
+ * 用引用计数管理生命周期：RpcClient 构造、NettyServer 启动时 {@link #retain()}，停止时 {@link #release()}，
+ * 最后一个使用者 release 时关掉所有线程，之后再 retain 重新创建
+ * 没有 retain 直接取资源也会创建，要等之后某个使用者 release 到 0 才关
+ *
+ * 大小按 CPU 核数算，可以在第一次创建之前用 setter 或启动参数改：
+ *      -Drpc.io.threads                 默认 核数 * 2
+ *      -Drpc.business.threads           默认 核数 * 2，至少 8
+ *      -Drpc.business.maxThreads        默认 business.threads * 2
+ *      -Drpc.business.queue             默认 1000
+ *      -Drpc.callback.threads           默认 核数，至少 4
+ *      -Drpc.callback.queue             默认 1000
+ */
+public final class RpcResources {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcResources.class);
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private static int ioThreads = Integer.getInteger("rpc.io.threads", CORES * 2);
+    private static int businessThreads = Integer.getInteger("rpc.business.threads", Math.max(8, CORES * 2));
+    private static int businessMaxThreads = Integer.getInteger("rpc.business.maxThreads", businessThreads * 2);
+    private static int businessQueue = Integer.getInteger("rpc.business.queue", 1000);
+    private static int callbackThreads = Integer.getInteger("rpc.callback.threads", Math.max(4, CORES));
+    private static int callbackQueue = Integer.getInteger("rpc.callback.queue", 1000);
+
+    private static int refCount;
+    private static EventLoopGroup ioGroup;
+    private static ThreadPoolExecutor businessExecutor;
+    private static ThreadPoolExecutor callbackExecutor;
+
+    private RpcResources() {
+    }
+
+    /**
+     * 下面的 setter 只影响之后创建的资源，已经创建的不变
+     */
+    public static synchronized void setIoThreads(int threads) {
+        ioThreads = threads;
+    }
+
+    public static synchronized void setBusinessPool(int threads, int maxThreads, int queueCapacity) {
+        businessThreads = threads;
+        businessMaxThreads = Math.max(threads, maxThreads);
+        businessQueue = queueCapacity;
+    }
+
+    public static synchronized void setCallbackPool(int threads, int queueCapacity) {
+        callbackThreads = threads;
+        callbackQueue = queueCapacity;
+    }
+
+    public static synchronized void retain() {
+        refCount++;
+    }
+
+    /**
+     * 最后一个使用者释放时关掉所有线程，EventLoop 上的连接也会被关掉
+     */
+    public static synchronized void release() {
+        if (refCount <= 0) {
+            logger.warn("RpcResources released more times than retained");
+            return;
+        }
+        if (--refCount > 0) {
+            return;
+        }
+        logger.info("Shutdown shared rpc resources: {}", stats());
+        if (ioGroup != null) {
+            ioGroup.shutdownGracefully();
+            ioGroup = null;
+        }
+        if (businessExecutor != null) {
+            businessExecutor.shutdown();
+            businessExecutor = null;
+        }
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdown();
+            callbackExecutor = null;
+        }
+    }
+
+    public static synchronized EventLoopGroup ioGroup() {
+        if (ioGroup == null) {
+            ioGroup = Transport.newEventLoopGroup(ioThreads, new DefaultThreadFactory("rpc-io"));
+            logger.info("Create shared io group, epoll: {}, threads: {}", Transport.isEpoll(), ioThreads);
+        }
+        return ioGroup;
+    }
+
+    public static synchronized ThreadPoolExecutor businessExecutor() {
+        if (businessExecutor == null) {
+            businessExecutor = newExecutor("rpc-business", businessThreads, businessMaxThreads, businessQueue);
+        }
+        return businessExecutor;
+    }
+
+    public static synchronized ThreadPoolExecutor callbackExecutor() {
+        if (callbackExecutor == null) {
+            callbackExecutor = newExecutor("rpc-callback", callbackThreads, callbackThreads, callbackQueue);
+        }
+        return callbackExecutor;
+    }
+
+    /**
+     * 队列满了抛 RejectedExecutionException，由调用方决定拒绝请求还是在当前线程执行
+     */
+    private static ThreadPoolExecutor newExecutor(String name, int threads, int maxThreads, int queueCapacity) {
+        logger.info("Create shared executor {}, threads: {}-{}, queue: {}", name, threads, maxThreads, queueCapacity);
+        return new ThreadPoolExecutor(threads, maxThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new DefaultThreadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * @return 已经创建的各个资源的使用情况
+     */
+    public static synchronized List<PoolStats> stats() {
+        List<PoolStats> stats = new ArrayList<>(3);
+        if (ioGroup != null) {
+            stats.add(stats("rpc-io", ioGroup));
+        }
+        if (businessExecutor != null) {
+            stats.add(stats("rpc-business", businessExecutor));
+        }
+        if (callbackExecutor != null) {
+            stats.add(stats("rpc-callback", callbackExecutor));
+        }
+        return stats;
+    }
+
+    private static PoolStats stats(String name, EventLoopGroup group) {
+        int threads = 0;
+        int busy = 0;
+        int queued = 0;
+        for (EventExecutor executor : group) {
+            threads++;
+            if (executor instanceof SingleThreadEventExecutor) {
+                int pending = ((SingleThreadEventExecutor) executor).pendingTasks();
+                queued += pending;
+                if (pending > 0) {
+                    busy++;
+                }
+            }
+        }
+        return new PoolStats(name, threads, threads, busy, queued, -1);
+    }
+
+    private static PoolStats stats(String name, ThreadPoolExecutor executor) {
+        return new PoolStats(name, executor.getPoolSize(), executor.getMaximumPoolSize(), executor.getActiveCount(),
+                executor.getQueue().size(), executor.getCompletedTaskCount());
+    }
+}
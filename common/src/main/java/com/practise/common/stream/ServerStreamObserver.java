@@ -0,0 +1,30 @@
+package com.practise.common.stream;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ServerStreamObserver
+ * @date 2022/3/16 09:40
+ *
+ * 服务端拿到的回发观察者实际是这个类型，多了流控相关的方法
+ *
+ * 服务端的 onNext 不会阻塞线程池的线程：客户端给的额度用完之后，消息先在服务端排队，
+ * 所以发大量数据时应该在 isReady 为 false 时停下，等 onReadyHandler 被调用再继续，否则排队的消息没有上限
+ */
+public interface ServerStreamObserver<V> extends StreamObserver<V> {
+
+    /**
+     * 客户端还有额度，并且没有排队的消息
+     */
+    boolean isReady();
+
+    /**
+     * 额度从用完变成有余量时在线程池里调用
+     */
+    void setOnReadyHandler(Runnable onReadyHandler);
+
+    /**
+     * 客户端已经取消或者连接已经断开
+     */
+    boolean isCancelled();
+}
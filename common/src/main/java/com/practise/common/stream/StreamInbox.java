@@ -0,0 +1,147 @@
+package com.practise.common.stream;
+
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.exception.ErrorRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description StreamInbox
+ * @date 2022/3/16 10:00
+ *
+ * 双向流接收方向的公共部分，客户端和服务端都用
+ *
+ * IO 线程收到的 DATA/END/ERROR 先进队列，再到 executor 里按顺序回调 {@link StreamObserver}，
+ * 同一个流同一时刻只占一个线程，没有消息时不占线程，所以流再多也不需要每个流一个线程
+ *
+ * 回调完一批消息后，把消费掉的额度还给对端；对端只在有额度时发 DATA，所以队列长度不超过 window
+ */
+public final class StreamInbox implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamInbox.class);
+
+    private final long streamId;
+    private final int window;
+    private final Executor executor;
+    private final IntConsumer creditSender;
+    private final Consumer<Throwable> failureHandler;
+
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile StreamObserver<Object> observer;
+
+    /**
+     * 下面这些只在 drain 里访问
+     */
+    private boolean done;
+    private int consumed;
+
+    /**
+     * @param creditSender 把额度发给对端
+     * @param failureHandler observer 回调抛异常时调用，由持有方取消这个流
+     */
+    public StreamInbox(long streamId, int window, Executor executor, IntConsumer creditSender,
+                       Consumer<Throwable> failureHandler) {
+        this.streamId = streamId;
+        this.window = window;
+        this.executor = executor;
+        this.creditSender = creditSender;
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * 设置回调之前到的消息先攒着
+     */
+    public void start(StreamObserver<Object> observer) {
+        this.observer = observer;
+        schedule();
+    }
+
+    /**
+     * IO 线程调用，只接收 DATA/END/ERROR
+     */
+    public void onMessage(RpcStreamMessage message) {
+        queue.offer(message);
+        schedule();
+    }
+
+    /**
+     * 本地取消或者连接断了，排在已经到的消息后面以 onError 结束
+     */
+    public void cancel(Throwable cause) {
+        queue.offer(cause);
+        schedule();
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            logger.error("Stream {} rejected by the executor", streamId);
+            wip.set(0);
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        do {
+            drain();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        StreamObserver<Object> target = observer;
+        if (target == null) {
+            return;
+        }
+        Object item;
+        while (!done && (item = queue.poll()) != null) {
+            try {
+                if (item instanceof Throwable) {
+                    done = true;
+                    target.onError((Throwable) item);
+                    break;
+                }
+                RpcStreamMessage message = (RpcStreamMessage) item;
+                if (message.getKind() == RpcStreamMessage.DATA) {
+                    consumed++;
+                    target.onNext(message.getPayload());
+                } else if (message.getKind() == RpcStreamMessage.END) {
+                    done = true;
+                    target.onCompleted();
+                } else {
+                    done = true;
+                    target.onError(ErrorRegistry.decode(message.getError()));
+                }
+            } catch (Throwable t) {
+                logger.error("Stream {} observer error", streamId, t);
+                done = true;
+                failureHandler.accept(t);
+            }
+        }
+        if (done) {
+            queue.clear();
+            return;
+        }
+        // 攒够半个窗口再还额度，避免每条消息都回一帧
+        if (consumed >= Math.max(1, window >> 1)) {
+            creditSender.accept(consumed);
+            consumed = 0;
+        }
+    }
+}
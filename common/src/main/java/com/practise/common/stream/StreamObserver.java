@@ -0,0 +1,31 @@
+package com.practise.common.stream;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description StreamObserver
+ * @date 2022/3/16 09:30
+ *
+ * 双向流（以及客户端流）的回调接口，客户端和服务端都用它收发一串消息
+ *
+ * 服务接口这样声明：第一个参数是服务端往回发的观察者，返回值是服务端接收客户端消息的观察者，后面可以跟普通参数
+ *      StreamObserver<Object> sync(StreamObserver<Object> responses, String tableName);
+ * 客户端调用时传入自己接收响应的观察者，拿到的返回值用来往服务端发消息
+ * 客户端流就是服务端只回一个元素再 onCompleted 的双向流
+ *
+ * 同一个观察者的方法不能并发调用
+ */
+public interface StreamObserver<V> {
+
+    void onNext(V value);
+
+    /**
+     * 异常结束，之后不会再有回调
+     */
+    void onError(Throwable t);
+
+    /**
+     * 正常结束（半关闭：只表示这个方向不再发送）
+     */
+    void onCompleted();
+}
@@ -0,0 +1,158 @@
+package com.practise.common.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description Transport
+ * @date 2022/3/27 20:30
+ *
+ * 选 Netty 的传输实现：Linux 上 native epoll 能加载就用 epoll，否则退回 NIO
+ * 启动参数 -Drpc.transport=nio 可以强制用 NIO
+ *
+ * EventLoopGroup 和 Channel 类型必须配套，两端都从这里取，不要再直接 new NioEventLoopGroup
+ */
+public final class Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    public static final String TRANSPORT_PROPERTY = "rpc.transport";
+    /**
+     * 服务端 TCP Fast Open 的队列长度
+     */
+    private static final int FAST_OPEN_QUEUE = 256;
+
+    private static final boolean EPOLL = detectEpoll();
+
+    private Transport() {
+    }
+
+    private static boolean detectEpoll() {
+        if ("nio".equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY))) {
+            logger.info("Use nio transport, epoll disabled by -D{}=nio", TRANSPORT_PROPERTY);
+            return false;
+        }
+        if (Epoll.isAvailable()) {
+            logger.info("Use epoll transport");
+            return true;
+        }
+        logger.info("Use nio transport, epoll unavailable: {}", String.valueOf(Epoll.unavailabilityCause()));
+        return false;
+    }
+
+    public static boolean isEpoll() {
+        return EPOLL;
+    }
+
+    /**
+     * @param threads 0 表示 Netty 默认的 CPU 核数 * 2
+     */
+    public static EventLoopGroup newEventLoopGroup(int threads) {
+        return EPOLL ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public static EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+        return EPOLL ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    public static Class<? extends ServerChannel> serverChannelClass() {
+        return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends SocketChannel> channelClass() {
+        return EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * 多个 acceptor 线程各自 bind 同一个端口，由内核分发新连接，只有 epoll 支持
+     */
+    public static boolean supportsReusePort() {
+        return EPOLL;
+    }
+
+    /**
+     * 设置服务端的监听 socket 和接受的连接
+     * @param reusePort 要多次 bind 同一个端口时传 true，NIO 下忽略
+     */
+    public static void configure(ServerBootstrap bootstrap, TransportProfile profile, boolean reusePort) {
+        bootstrap.childOption(ChannelOption.TCP_NODELAY, profile.isTcpNoDelay())
+                .childOption(ChannelOption.SO_KEEPALIVE, true);
+        if (profile.getSendBufferSize() > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, profile.getSendBufferSize());
+        }
+        // 接收窗口的扩大因子在握手时就定了，要设在监听 socket 上
+        if (profile.getReceiveBufferSize() > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, profile.getReceiveBufferSize());
+        }
+        if (!EPOLL) {
+            return;
+        }
+        if (reusePort) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        if (profile.isFastOpen()) {
+            bootstrap.option(EpollChannelOption.TCP_FASTOPEN, FAST_OPEN_QUEUE);
+        }
+        if (profile.isQuickAck()) {
+            bootstrap.childOption(EpollChannelOption.TCP_QUICKACK, true);
+        }
+        if (profile.getBusyPollMicros() > 0) {
+            bootstrap.childOption(EpollChannelOption.SO_BUSY_POLL, profile.getBusyPollMicros());
+        }
+    }
+
+    /**
+     * 两端的 ChannelInitializer 里调用，要合并 flush 时加在 pipeline 最前面，之后的 flush 都经过它
+     */
+    public static void configure(ChannelPipeline pipeline, TransportProfile profile) {
+        if (profile.getFlushConsolidation() > 0) {
+            pipeline.addFirst(new FlushConsolidationHandler(profile.getFlushConsolidation(), true));
+        }
+    }
+
+    /**
+     * 设置客户端的连接
+     */
+    public static void configure(Bootstrap bootstrap, TransportProfile profile) {
+        bootstrap.option(ChannelOption.TCP_NODELAY, profile.isTcpNoDelay())
+                .option(ChannelOption.SO_KEEPALIVE, true);
+        if (profile.getSendBufferSize() > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, profile.getSendBufferSize());
+        }
+        if (profile.getReceiveBufferSize() > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, profile.getReceiveBufferSize());
+        }
+        if (!EPOLL) {
+            return;
+        }
+        if (profile.isFastOpen()) {
+            bootstrap.option(EpollChannelOption.TCP_FASTOPEN_CONNECT, true);
+        }
+        if (profile.isQuickAck()) {
+            bootstrap.option(EpollChannelOption.TCP_QUICKACK, true);
+        }
+        if (profile.getBusyPollMicros() > 0) {
+            bootstrap.option(EpollChannelOption.SO_BUSY_POLL, profile.getBusyPollMicros());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.practise.common.transport;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description TransportProfile
+ * @date 2022/3/27 20:15
+ *
+ * 连接的 socket 参数预设，两端各自配置
+ *
+ * 带 epoll 字样的参数只有 epoll 传输才生效，NIO 下忽略；内核不支持的参数 Netty 会打 warn 后跳过
+ */
+public enum TransportProfile {
+
+    /**
+     * 小请求为主、在乎尾延迟：关 Nagle、立即回 ACK、读的时候忙轮询一会儿、开 TCP Fast Open
+     * 忙轮询会多占 CPU
+     */
+    LATENCY(true, true, 50, true, 0, 0, 0),
+
+    /**
+     * 大批量、在乎吞吐：收发缓冲区放大，不忙轮询，合并 flush，让连续的小帧一次系统调用写出去
+     * 仍然关 Nagle：开着 Nagle 时，对端的延迟 ACK 会让最后一个不满 MSS 的小帧多等约 40ms
+     */
+    THROUGHPUT(true, false, 0, false, 1024 * 1024, 1024 * 1024, 256),
+
+    /**
+     * 只关 Nagle，其余用系统默认值，不指定时用这个
+     */
+    DEFAULT(true, false, 0, false, 0, 0, 0);
+
+    private final boolean tcpNoDelay;
+    /**
+     * epoll：TCP_QUICKACK
+     */
+    private final boolean quickAck;
+    /**
+     * epoll：SO_BUSY_POLL，微秒，0 表示不忙轮询
+     */
+    private final int busyPollMicros;
+    /**
+     * epoll：服务端 TCP_FASTOPEN，客户端 TCP_FASTOPEN_CONNECT
+     */
+    private final boolean fastOpen;
+    /**
+     * SO_SNDBUF / SO_RCVBUF，0 表示交给内核自动调整
+     */
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    /**
+     * 最多合并多少次 flush 才真正写一次 socket，读的时候攒到这一轮读完，0 表示不合并
+     * 见 {@link io.netty.handler.flush.FlushConsolidationHandler}
+     */
+    private final int flushConsolidation;
+
+    TransportProfile(boolean tcpNoDelay, boolean quickAck, int busyPollMicros, boolean fastOpen,
+                     int sendBufferSize, int receiveBufferSize, int flushConsolidation) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.quickAck = quickAck;
+        this.busyPollMicros = busyPollMicros;
+        this.fastOpen = fastOpen;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.flushConsolidation = flushConsolidation;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public boolean isQuickAck() {
+        return quickAck;
+    }
+
+    public int getBusyPollMicros() {
+        return busyPollMicros;
+    }
+
+    public boolean isFastOpen() {
+        return fastOpen;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getFlushConsolidation() {
+        return flushConsolidation;
+    }
+}
@@ -1,11 +1,30 @@
 package com.practise.common.utils;
 
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.compress.Compressor;
+import com.practise.common.compress.CompressorRegistry;
+import com.practise.common.entity.Beat;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcBatchResponse;
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.protocol.CodecContext;
+import com.practise.common.protocol.RpcFrame;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.Attribute;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -17,59 +36,414 @@ import java.util.List;
 
 /**
  * 继承netty类
+ * 帧格式见 {@link RpcFrame}
+ *
+ * 自己就是按长度字段拆帧的解码器，拆帧时把长度字段去掉，
+ * 拿到的 frame 是累积缓冲区上的 slice（没有拷贝），帧头和 body 都直接从这个 slice 上读
+ * body 用哪个序列化器解码由帧头里的编号决定，见 {@link SerializerRegistry}
+ * 只接受本地配置的序列化器、protostuff 和显式启用的序列化器，帧头里是别的编号时关闭连接
+ * 带附件的帧，解码完 body 之后接着收后面的附件，收齐了才把消息交给后面的 handler
+ * 压缩过的 body 先解压再反序列化
  */
-public class RpcDecoder extends ByteToMessageDecoder {
+public class RpcDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final Logger logger = LoggerFactory.getLogger(RpcDecoder.class);
 
     private Class<?> genericClass;
     private Serializer serializer;
+    /**
+     * 除了 serializer 和 protostuff 之外还接受的序列化器
+     * 帧头里的编号是对端填的，SPI 加载到的序列化器不是都能用来解对端的数据
+     */
+    private final Collection<Serializer> acceptedSerializers;
+
+    /**
+     * 帧后面附件的接收状态，attachmentLengths 不为 null 表示正在接收
+     * attachmentOwner 是附件所属的消息，消息解码失败时为 null，附件读出来直接丢掉
+     */
+    private Object attachmentOwner;
+    private int[] attachmentSlots;
+    private int[] attachmentLengths;
+    private ByteBuf[] attachments;
+    private int attachmentIndex;
+    private int attachmentRemaining;
+    private CompositeByteBuf partialAttachment;
+    /**
+     * 已经因为坏帧关闭了连接，剩下的数据不再解码
+     */
+    private boolean failed;
 
     public RpcDecoder(Class<?> genericClass) {
+        this(genericClass, null);
         logger.info("RpcDecoder`s constructor, one args");
-        this.genericClass = genericClass;
     }
 
     public RpcDecoder(Class<?> genericClass, Serializer serializer) {
+        this(genericClass, serializer, RpcFrame.MAX_FRAME_LENGTH);
         logger.info("RpcDecoder`s constructor, double args");
+    }
+
+    public RpcDecoder(Class<?> genericClass, Serializer serializer, int maxFrameLength) {
+        this(genericClass, serializer, Collections.<Serializer>emptyList(), maxFrameLength);
+    }
+
+    /**
+     * @param acceptedSerializers 还接受的序列化器，解码时才去读，可以传一个之后还会添加的集合
+     */
+    public RpcDecoder(Class<?> genericClass, Serializer serializer, Collection<Serializer> acceptedSerializers) {
+        this(genericClass, serializer, acceptedSerializers, RpcFrame.MAX_FRAME_LENGTH);
+    }
+
+    public RpcDecoder(Class<?> genericClass, Serializer serializer, Collection<Serializer> acceptedSerializers,
+                      int maxFrameLength) {
+        super(maxFrameLength, 0, RpcFrame.LENGTH_FIELD_LENGTH, 0, RpcFrame.LENGTH_FIELD_LENGTH);
         this.genericClass = genericClass;
         this.serializer = serializer;
+        this.acceptedSerializers = acceptedSerializers;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        if (failed) {
+            return discard(ctx, in);
+        }
+        if (attachmentLengths != null) {
+            return readAttachments(ctx, in);
+        }
+        ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null) {
+            // 半包，等数据到齐
+            return null;
+        }
+        Object msg;
+        try {
+            msg = decodeFrame(ctx, frame);
+        } finally {
+            frame.release();
+        }
+        if (failed) {
+            return discard(ctx, in);
+        }
+        if (attachmentLengths != null) {
+            attachmentOwner = msg;
+            return readAttachments(ctx, in);
+        }
+        return msg;
+    }
+
+    /**
+     * 附件表：count(2) + count * (slot(2) + length(4))
+     */
+    private boolean readAttachmentTable(ChannelHandlerContext ctx, ByteBuf frame) {
+        int count = frame.isReadable(2) ? frame.readUnsignedShort() : -1;
+        if (count <= 0 || count > RpcFrame.MAX_ATTACHMENTS || !frame.isReadable(count * 6)) {
+            logger.error("Illegal attachment count {}, close the channel {}", count, ctx.channel());
+            fail(ctx);
+            return false;
+        }
+        int[] slots = new int[count];
+        int[] lengths = new int[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            slots[i] = frame.readUnsignedShort();
+            lengths[i] = frame.readInt();
+            total += lengths[i];
+            if (lengths[i] < 0 || total > RpcFrame.MAX_ATTACHMENT_LENGTH) {
+                logger.error("Attachments too large, close the channel {}", ctx.channel());
+                fail(ctx);
+                return false;
+            }
+        }
+        attachmentSlots = slots;
+        attachmentLengths = lengths;
+        attachments = new ByteBuf[count];
+        attachmentIndex = 0;
+        attachmentRemaining = lengths[0];
+        return true;
     }
 
+    /**
+     * 附件直接从接收缓冲区切出来（retainedSlice），跨多次读的用 CompositeByteBuf 拼起来，都不拷贝
+     * @return 全部附件到齐后返回消息，否则返回 null
+     */
+    private Object readAttachments(ChannelHandlerContext ctx, ByteBuf in) {
+        while (attachmentIndex < attachmentLengths.length) {
+            int n = Math.min(attachmentRemaining, in.readableBytes());
+            if (partialAttachment == null && n == attachmentRemaining) {
+                attachments[attachmentIndex] = n == 0 ? Unpooled.EMPTY_BUFFER : in.readRetainedSlice(n);
+            } else {
+                if (n == 0) {
+                    return null;
+                }
+                if (partialAttachment == null) {
+                    partialAttachment = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+                }
+                partialAttachment.addComponent(true, in.readRetainedSlice(n));
+                attachmentRemaining -= n;
+                if (attachmentRemaining > 0) {
+                    return null;
+                }
+                attachments[attachmentIndex] = partialAttachment;
+                partialAttachment = null;
+            }
+            if (++attachmentIndex < attachmentLengths.length) {
+                attachmentRemaining = attachmentLengths[attachmentIndex];
+            }
+        }
+        Object msg = attachmentOwner;
+        ByteBuf[] received = attachments;
+        int[] slots = attachmentSlots;
+        attachmentOwner = null;
+        attachmentSlots = null;
+        attachmentLengths = null;
+        attachments = null;
+        if (msg == null) {
+            for (ByteBuf buf : received) {
+                buf.release();
+            }
+            return null;
+        }
+        for (int i = 0; i < received.length; i++) {
+            attach(msg, slots[i], RpcAttachment.of(received[i]));
+        }
+        return msg;
+    }
+
+    private static void attach(Object msg, int slot, RpcAttachment attachment) {
+        if (msg instanceof RpcRequest) {
+            RpcRequest request = (RpcRequest) msg;
+            Object[] parameters = request.getParameters();
+            if (parameters != null && slot < parameters.length) {
+                parameters[slot] = attachment;
+                return;
+            }
+            if (request.getAttachments() == null) {
+                request.setAttachments(new ArrayList<>(2));
+            }
+            request.getAttachments().add(attachment);
+        } else if (msg instanceof RpcResponse) {
+            RpcResponse response = (RpcResponse) msg;
+            if (slot == RpcFrame.SLOT_RESULT) {
+                response.setResult(attachment);
+                return;
+            }
+            if (response.getAttachments() == null) {
+                response.setAttachments(new ArrayList<>(2));
+            }
+            response.getAttachments().add(attachment);
+        } else {
+            attachment.release();
+        }
+    }
+
+    /**
+     * 连接断开时还没收完的附件要释放
+     */
     @Override
-    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-
-        if (in.readableBytes() < 4) {
-            return;
-        }
-        in.markReaderIndex();
-        // 返回当前索引的(无符号) 整型，读索引加4
-        int dataLength = in.readInt();
-        if (dataLength < 0) {
-            ctx.close();
-        }
-        //把 ByteBuf 里面的数据全部读取到 dst 字节数组中，这里 dst 字节数组的大小通常等于 readableBytes()
-        if (in.readableBytes() < dataLength) {
-            in.resetReaderIndex();
-            return;
-        }
-        // 把 ByteBuf 里面的数据全部读取到 data 字节数组中，这里 data 字节数组的大小通常等于 readableBytes()
-        byte[] data = new byte[dataLength];
-        in.readBytes(data);
-        if(serializer == null ){
-            Object obj = SerializationUtil.deserialize(data, genericClass);
-            out.add(obj);
-        }
-        else{
-            Object obj = null;
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        if (attachments != null) {
+            for (int i = 0; i < attachmentIndex; i++) {
+                attachments[i].release();
+            }
+            attachments = null;
+            attachmentLengths = null;
+        }
+        if (partialAttachment != null) {
+            partialAttachment.release();
+            partialAttachment = null;
+        }
+        super.handlerRemoved0(ctx);
+    }
+
+    private Object decodeFrame(ChannelHandlerContext ctx, ByteBuf frame) {
+        if (frame.readableBytes() < RpcFrame.HEADER_LENGTH) {
+            logger.error("Illegal frame length {}, close the channel {}", frame.readableBytes(), ctx.channel());
+            fail(ctx);
+            return null;
+        }
+        // 先读帧头
+        short magic = frame.readShort();
+        byte version = frame.readByte();
+        byte type = frame.readByte();
+        byte serializerId = frame.readByte();
+        byte flags = frame.readByte();
+        long requestId = frame.readLong();
+        if (magic != RpcFrame.MAGIC || version != RpcFrame.VERSION) {
+            logger.error("Unknown frame, magic: {}, version: {}, close the channel {}", magic, version, ctx.channel());
+            fail(ctx);
+            return null;
+        }
+        // 心跳帧只有帧头，直接交给后面的handler，不需要反序列化
+        if (type == RpcFrame.TYPE_HEARTBEAT) {
+            return Beat.BEAT_PING;
+        }
+        if ((flags & RpcFrame.FLAG_ATTACHMENTS) != 0 && !readAttachmentTable(ctx, frame)) {
+            return null;
+        }
+        if ((flags & RpcFrame.FLAG_COMPRESSED) != 0) {
+            ByteBuf body = decompress(ctx, frame, type);
+            if (body == null) {
+                return null;
+            }
             try {
-                obj = serializer.deserialize(data, genericClass);
-                out.add(obj);
-            } catch (Exception ex) {
-                logger.error("Decode error: " + ex.toString());
+                return decodeBody(ctx, body, type, serializerId, requestId);
+            } finally {
+                body.release();
             }
         }
+        return decodeBody(ctx, frame, type, serializerId, requestId);
+    }
 
+    /**
+     * 压缩过的 body 解压到一块新的堆内存里
+     * 请求是压缩过的，就记到 channel 上，响应也用同一个算法压缩
+     */
+    private ByteBuf decompress(ChannelHandlerContext ctx, ByteBuf frame, byte type) {
+        if (!frame.isReadable(RpcFrame.COMPRESSED_HEADER_LENGTH)) {
+            logger.error("Illegal compressed frame, close the channel {}", ctx.channel());
+            fail(ctx);
+            return null;
+        }
+        byte compressorId = frame.readByte();
+        int length = frame.readInt();
+        Compressor compressor = CompressorRegistry.getCompressor(compressorId);
+        if (compressor == null || length < 0 || length > CompressorRegistry.MAX_UNCOMPRESSED_LENGTH) {
+            logger.error("Unknown compressor {} or illegal length {}, close the channel {}", compressorId, length, ctx.channel());
+            fail(ctx);
+            return null;
+        }
+        // 最大容量也限制住：Snappy 按压缩数据里自带的长度扩容，不信任它；多一个字节留给 Deflate 检查长度
+        ByteBuf body = ctx.alloc().heapBuffer(length, length + 1);
+        try {
+            compressor.decompress(frame, body, length);
+        } catch (Exception ex) {
+            body.release();
+            logger.error("Decompress error, close the channel {}: {}", ctx.channel(), ex.toString());
+            fail(ctx);
+            return null;
+        }
+        if (type == RpcFrame.TYPE_REQUEST || type == RpcFrame.TYPE_BATCH_REQUEST) {
+            Attribute<Compressor> attr = ctx.channel().attr(CompressorRegistry.CHANNEL_COMPRESSOR);
+            if (attr.get() != compressor) {
+                attr.set(compressor);
+            }
+        }
+        return body;
+    }
 
+    private Object decodeBody(ChannelHandlerContext ctx, ByteBuf frame, byte type, byte serializerId, long requestId) {
+        // 剩下的就是 body，序列化器直接从 ByteBuf 上读
+        Class<?> bodyClass = bodyClass(type);
+        CodecContext context = CodecContext.get(ctx.channel());
+        context.enter();
+        try {
+            Object obj;
+            if (serializer == null && serializerId == Serializer.PROTOSTUFF) {
+                obj = SerializationUtil.deserialize(frame, bodyClass);
+            } else {
+                Serializer frameSerializer = resolveSerializer(serializerId);
+                if (frameSerializer == null) {
+                    logger.error("Serializer {} is not enabled, close the channel {}", serializerId, ctx.channel());
+                    fail(ctx);
+                    return null;
+                }
+                if (type == RpcFrame.TYPE_REQUEST || type == RpcFrame.TYPE_BATCH_REQUEST) {
+                    // 请求用的不是本地默认的序列化器，记下来，回响应时用同一个；换回默认的时清掉
+                    Attribute<Serializer> attr = ctx.channel().attr(SerializerRegistry.CHANNEL_SERIALIZER);
+                    Serializer follow = frameSerializer == serializer ? null : frameSerializer;
+                    if (attr.get() != follow) {
+                        attr.set(follow);
+                    }
+                }
+                obj = frameSerializer.deserialize(frame, bodyClass);
+            }
+            return setRequestId(obj, requestId);
+        } catch (Exception ex) {
+            logger.error("Decode error, close the channel {}: {}", ctx.channel(), ex.toString());
+            fail(ctx);
+            return null;
+        } finally {
+            CodecContext.exit();
+        }
+    }
+
+    /**
+     * 帧解不出来时关闭连接，这次读到的剩余数据也不再解码
+     * 类型编号只有解码成功的帧才会在这一端定义，丢掉一帧接着用这个连接，两端的编号就对不上了，
+     * 之后的帧都会解码失败，调用只能等到超时；关掉连接，在途的调用马上失败
+     */
+    private void fail(ChannelHandlerContext ctx) {
+        failed = true;
+        ctx.close();
+    }
+
+    /**
+     * 连接关掉时 handler 可能已经被移除，累积缓冲区也释放了
+     */
+    private static Object discard(ChannelHandlerContext ctx, ByteBuf in) {
+        if (!ctx.isRemoved()) {
+            in.skipBytes(in.readableBytes());
+        }
+        return null;
+    }
+
+    /**
+     * 按帧头里的编号选择序列化器，和本地配置的一致时不用查表
+     * @return 没有启用的序列化器返回 null
+     */
+    private Serializer resolveSerializer(byte serializerId) {
+        if (serializer != null && serializer.getSerializerId() == serializerId) {
+            return serializer;
+        }
+        if (serializerId == Serializer.PROTOSTUFF) {
+            return SerializerRegistry.getDefault();
+        }
+        for (Serializer accepted : acceptedSerializers) {
+            if (accepted.getSerializerId() == serializerId) {
+                return accepted;
+            }
+        }
+        return null;
+    }
+
+    private Class<?> bodyClass(byte type) {
+        switch (type) {
+            case RpcFrame.TYPE_HANDSHAKE:
+                return RpcHandshake.class;
+            case RpcFrame.TYPE_BATCH_REQUEST:
+                return RpcBatchRequest.class;
+            case RpcFrame.TYPE_BATCH_RESPONSE:
+                return RpcBatchResponse.class;
+            case RpcFrame.TYPE_STREAM:
+                return RpcStreamMessage.class;
+            default:
+                return genericClass;
+        }
+    }
+
+    /**
+     * requestId 不在 body 里，反序列化之后从帧头补回去，批量消息的从 requestIds 里补
+     */
+    private Object setRequestId(Object obj, long requestId) {
+        if (obj instanceof RpcRequest) {
+            ((RpcRequest) obj).setRequestId(requestId);
+        } else if (obj instanceof RpcResponse) {
+            ((RpcResponse) obj).setRequestId(requestId);
+        } else if (obj instanceof RpcStreamMessage) {
+            ((RpcStreamMessage) obj).setStreamId(requestId);
+        } else if (obj instanceof RpcBatchRequest) {
+            RpcBatchRequest batch = (RpcBatchRequest) obj;
+            List<RpcRequest> requests = batch.getRequests();
+            for (int i = 0; requests != null && i < requests.size(); i++) {
+                requests.get(i).setRequestId(batch.getRequestIds()[i]);
+            }
+        } else if (obj instanceof RpcBatchResponse) {
+            RpcBatchResponse batch = (RpcBatchResponse) obj;
+            List<RpcResponse> responses = batch.getResponses();
+            for (int i = 0; responses != null && i < responses.size(); i++) {
+                responses.get(i).setRequestId(batch.getRequestIds()[i]);
+            }
+        }
+        return obj;
     }
 }
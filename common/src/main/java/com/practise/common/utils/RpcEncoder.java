@@ -1,16 +1,44 @@
 package com.practise.common.utils;
 
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.compress.Compressor;
+import com.practise.common.compress.CompressorRegistry;
+import com.practise.common.compress.DictionaryTrainer;
+import com.practise.common.entity.Beat;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcBatchResponse;
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.protocol.CodecContext;
+import com.practise.common.protocol.RpcFrame;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
 import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.PromiseCombiner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * @author HzeLng
  * @version 1.0
  * @description RpcEncoder
  * @date 2022/3/4 16:06
+ *
+ * 帧格式见 {@link RpcFrame}
+ * 请求自己带了序列化器时用请求的（同一个连接上的请求可以来自用不同序列化器的客户端）
+ * 如果对端用的序列化器和本地配置的不同（解码时记在 channel 上），回消息时跟随对端
+ * 请求/响应里的 {@link RpcAttachment} 不序列化，跟在帧后面单独写出
+ * 请求带了压缩算法并且握手时对端也支持，或者连接上记了对端用的压缩算法时，大于阈值的 body 序列化之后再压缩
  */
 public class RpcEncoder  extends MessageToByteEncoder {
 
@@ -31,25 +59,284 @@ public class RpcEncoder  extends MessageToByteEncoder {
         this.serializer = serializer;
     }
 
+    /**
+     * 带附件的请求/响应：帧照常编码，附件（ByteBuf 或 FileRegion）跟在后面原样写出，不经过序列化器也不拷贝
+     * 所有写操作都完成后 promise 才完成
+     */
     @Override
-    protected void encode(ChannelHandlerContext channelHandlerContext, Object in, ByteBuf out) throws Exception {
-        if (genericClass.isInstance(in)) {
-            if(serializer == null){
-                byte[] data = SerializationUtil.serialize(in);
-                // 写入此次传输的长度
-                out.writeInt(data.length);
-                // 再写数据 解码那边也要对应
-                out.writeBytes(data);
-            }
-            else{
-                try {
-                    byte[] data = serializer.serialize(in);
-                    out.writeInt(data.length);
-                    out.writeBytes(data);
-                } catch (Exception ex) {
-                    logger.error("Encode error: " + ex.toString());
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        List<RpcAttachment> attachments = new ArrayList<>(0);
+        int[] slots = collectAttachments(msg, attachments);
+        if (slots == null) {
+            super.write(ctx, msg, promise);
+            return;
+        }
+        ByteBuf frame = ctx.alloc().ioBuffer();
+        Throwable cause = null;
+        try {
+            // 超过上限时和编码失败一样处理，已经找到的附件也要释放
+            if (attachments.size() > RpcFrame.MAX_ATTACHMENTS) {
+                throw new EncoderException("Too many attachments: " + attachments.size());
+            }
+            // 对端按总长度校验，超过上限会直接断开连接，只让这一次写失败
+            long total = 0;
+            for (RpcAttachment attachment : attachments) {
+                total += attachment.length();
+            }
+            if (total > RpcFrame.MAX_ATTACHMENT_LENGTH) {
+                throw new EncoderException("Attachments too large: " + total);
+            }
+            encodeFrame(ctx, msg, frame, attachments, slots);
+        } catch (Throwable t) {
+            frame.writerIndex(0);
+            cause = t;
+        }
+        if (!frame.isReadable()) {
+            frame.release();
+            for (RpcAttachment attachment : attachments) {
+                ReferenceCountUtil.safeRelease(attachment);
+            }
+            promise.setFailure(cause instanceof EncoderException ? cause
+                    : new EncoderException("Failed to encode " + msg.getClass().getSimpleName(), cause));
+            return;
+        }
+        PromiseCombiner combiner = new PromiseCombiner(ctx.executor());
+        combiner.add(ctx.write(frame));
+        for (RpcAttachment attachment : attachments) {
+            combiner.add(ctx.write(attachment.content()));
+        }
+        combiner.finish(promise);
+    }
+
+    /**
+     * 找出消息里的附件：声明成 RpcAttachment 的参数/返回值，再加上 attachments 里的
+     * @return 每个附件的 slot，没有附件时返回 null
+     */
+    private static int[] collectAttachments(Object msg, List<RpcAttachment> attachments) {
+        List<RpcAttachment> extra;
+        int[] slots = new int[0];
+        if (msg instanceof RpcRequest) {
+            RpcRequest request = (RpcRequest) msg;
+            Object[] parameters = request.getParameters();
+            for (int i = 0; parameters != null && i < parameters.length; i++) {
+                if (parameters[i] instanceof RpcAttachment) {
+                    slots = append(slots, attachments.size(), i);
+                    attachments.add((RpcAttachment) parameters[i]);
                 }
             }
+            extra = request.getAttachments();
+        } else if (msg instanceof RpcResponse) {
+            RpcResponse response = (RpcResponse) msg;
+            if (response.getResult() instanceof RpcAttachment) {
+                slots = append(slots, attachments.size(), RpcFrame.SLOT_RESULT);
+                attachments.add((RpcAttachment) response.getResult());
+            }
+            extra = response.getAttachments();
+        } else {
+            return null;
         }
+        if (extra != null) {
+            for (RpcAttachment attachment : extra) {
+                slots = append(slots, attachments.size(), RpcFrame.SLOT_EXTRA);
+                attachments.add(attachment);
+            }
+        }
+        return attachments.isEmpty() ? null : slots;
+    }
+
+    private static int[] append(int[] slots, int index, int slot) {
+        int[] result = index < slots.length ? slots : Arrays.copyOf(slots, Math.max(4, slots.length * 2));
+        result[index] = slot;
+        return result;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Object in, ByteBuf out) throws Exception {
+        encodeFrame(ctx, in, out, null, null);
+    }
+
+    private void encodeFrame(ChannelHandlerContext ctx, Object in, ByteBuf out,
+                             List<RpcAttachment> attachments, int[] slots) {
+        byte type;
+        long requestId;
+        if (in instanceof RpcHandshake) {
+            type = RpcFrame.TYPE_HANDSHAKE;
+            requestId = Beat.BEAT_ID;
+        } else if (in instanceof RpcBatchRequest) {
+            type = RpcFrame.TYPE_BATCH_REQUEST;
+            requestId = Beat.BEAT_ID;
+        } else if (in instanceof RpcBatchResponse) {
+            type = RpcFrame.TYPE_BATCH_RESPONSE;
+            requestId = Beat.BEAT_ID;
+        } else if (in instanceof RpcStreamMessage) {
+            type = RpcFrame.TYPE_STREAM;
+            requestId = ((RpcStreamMessage) in).getStreamId();
+        } else if (!genericClass.isInstance(in)) {
+            return;
+        } else if (in == Beat.BEAT_PING) {
+            // 心跳只有帧头，不需要序列化
+            out.writeInt(RpcFrame.HEADER_LENGTH);
+            writeHeader(out, RpcFrame.TYPE_HEARTBEAT, Serializer.PROTOSTUFF, RpcFrame.FLAG_NONE, Beat.BEAT_ID);
+            return;
+        } else if (in instanceof RpcResponse) {
+            type = RpcFrame.TYPE_RESPONSE;
+            requestId = ((RpcResponse) in).getRequestId();
+        } else {
+            type = RpcFrame.TYPE_REQUEST;
+            requestId = ((RpcRequest) in).getRequestId();
+        }
+        Serializer current = messageSerializer(in);
+        if (current == null) {
+            Serializer channelSerializer = ctx.channel().attr(SerializerRegistry.CHANNEL_SERIALIZER).get();
+            current = channelSerializer != null ? channelSerializer : serializer;
+        }
+        CodecContext context = CodecContext.get(ctx.channel());
+        // 先占住长度字段，帧头和 body 直接写进 out，写完再回填长度
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        byte serializerId = current == null ? Serializer.PROTOSTUFF : current.getSerializerId();
+        Object[] parameters = null;
+        Object result = null;
+        if (attachments == null) {
+            writeHeader(out, type, serializerId, RpcFrame.FLAG_NONE, requestId);
+        } else {
+            writeHeader(out, type, serializerId, RpcFrame.FLAG_ATTACHMENTS, requestId);
+            out.writeShort(attachments.size());
+            for (int i = 0; i < attachments.size(); i++) {
+                out.writeShort(slots[i]);
+                out.writeInt((int) attachments.get(i).length());
+            }
+            // 序列化时把附件所在的参数/返回值临时换成 null，写完再换回来
+            if (in instanceof RpcRequest) {
+                RpcRequest request = (RpcRequest) in;
+                parameters = request.getParameters();
+                if (parameters != null) {
+                    Object[] copy = parameters.clone();
+                    for (int i = 0; i < copy.length; i++) {
+                        if (copy[i] instanceof RpcAttachment) {
+                            copy[i] = null;
+                        }
+                    }
+                    request.setParameters(copy);
+                }
+            } else {
+                RpcResponse response = (RpcResponse) in;
+                result = response.getResult();
+                if (result instanceof RpcAttachment) {
+                    response.setResult(null);
+                }
+            }
+        }
+        int bodyIndex = out.writerIndex();
+        context.mark();
+        context.enter();
+        try {
+            if (current == null) {
+                SerializationUtil.serialize(in, out);
+            } else {
+                current.serialize(in, out);
+            }
+        } catch (Exception ex) {
+            // 丢弃写了一半的帧，这一帧里分配的类型编号也要撤销
+            out.writerIndex(lengthIndex);
+            context.rollback();
+            logger.error("Encode error: " + ex.toString());
+            // 让这次写的 promise 失败，发送方据此结束对应的调用
+            throw new EncoderException("Failed to encode " + in.getClass().getSimpleName(), ex);
+        } finally {
+            CodecContext.exit();
+            if (parameters != null) {
+                ((RpcRequest) in).setParameters(parameters);
+            } else if (result != null) {
+                ((RpcResponse) in).setResult(result);
+            }
+        }
+        compressBody(ctx, in, out, lengthIndex, bodyIndex);
+        int frameLength = out.writerIndex() - lengthIndex;
+        if (frameLength > RpcFrame.MAX_FRAME_LENGTH) {
+            // 对端的解码器收到超长的帧会断开连接，在这里就让这次写失败
+            out.writerIndex(lengthIndex);
+            context.rollback();
+            throw new EncoderException("Frame of " + in.getClass().getSimpleName() + " is too large: " + frameLength);
+        }
+        out.setInt(lengthIndex, frameLength - RpcFrame.LENGTH_FIELD_LENGTH);
+    }
+
+    /**
+     * @return 请求指定的序列化器，批量请求看第一个子请求，没有指定返回 null
+     */
+    private static Serializer messageSerializer(Object in) {
+        if (in instanceof RpcRequest) {
+            return ((RpcRequest) in).getSerializer();
+        }
+        if (in instanceof RpcBatchRequest) {
+            List<RpcRequest> requests = ((RpcBatchRequest) in).getRequests();
+            return requests == null || requests.isEmpty() ? null : requests.get(0).getSerializer();
+        }
+        return null;
+    }
+
+    /**
+     * 请求按发起它的客户端配置的算法，不跟随连接上的，这样共用连接的客户端互不影响；批量请求看第一个子请求
+     * 其他消息用连接上记的对端的算法
+     */
+    private static Compressor messageCompressor(ChannelHandlerContext ctx, Object in) {
+        RpcRequest request = null;
+        if (in instanceof RpcRequest) {
+            request = (RpcRequest) in;
+        } else if (in instanceof RpcBatchRequest) {
+            List<RpcRequest> requests = ((RpcBatchRequest) in).getRequests();
+            if (requests == null || requests.isEmpty()) {
+                return null;
+            }
+            request = requests.get(0);
+        }
+        if (request == null) {
+            return ctx.channel().attr(CompressorRegistry.CHANNEL_COMPRESSOR).get();
+        }
+        return CompressorRegistry.select(ctx.channel().attr(CompressorRegistry.CHANNEL_ACCEPTED).get(),
+                request.getCompressor());
+    }
+
+    /**
+     * 有压缩算法、body 不小于阈值时压缩，压缩后没有变小就保持原样
+     * 配置了字典训练时顺便把压缩前的 body 交给它采样
+     */
+    private void compressBody(ChannelHandlerContext ctx, Object in, ByteBuf out, int lengthIndex, int bodyIndex) {
+        int bodyLength = out.writerIndex() - bodyIndex;
+        DictionaryTrainer trainer = CompressorRegistry.getTrainer();
+        if (trainer != null) {
+            trainer.sample(out.slice(bodyIndex, bodyLength));
+        }
+        Compressor compressor = messageCompressor(ctx, in);
+        if (compressor == null || bodyLength < CompressorRegistry.getThreshold()) {
+            return;
+        }
+        ByteBuf compressed = ctx.alloc().heapBuffer(bodyLength);
+        try {
+            compressor.compress(out.slice(bodyIndex, bodyLength), compressed);
+            if (compressed.readableBytes() + RpcFrame.COMPRESSED_HEADER_LENGTH >= bodyLength) {
+                return;
+            }
+            out.writerIndex(bodyIndex);
+            out.writeByte(compressor.getCompressorId());
+            out.writeInt(bodyLength);
+            out.writeBytes(compressed);
+            int flagsIndex = lengthIndex + RpcFrame.LENGTH_FIELD_LENGTH + RpcFrame.FLAGS_OFFSET;
+            out.setByte(flagsIndex, out.getByte(flagsIndex) | RpcFrame.FLAG_COMPRESSED);
+        } catch (Exception ex) {
+            logger.warn("Compress error, send uncompressed: " + ex.toString());
+        } finally {
+            compressed.release();
+        }
+    }
+
+    private void writeHeader(ByteBuf out, byte type, byte serializerId, byte flags, long requestId) {
+        out.writeShort(RpcFrame.MAGIC);
+        out.writeByte(RpcFrame.VERSION);
+        out.writeByte(type);
+        out.writeByte(serializerId);
+        out.writeByte(flags);
+        out.writeLong(requestId);
     }
 }
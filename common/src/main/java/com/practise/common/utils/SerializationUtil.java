@@ -1,65 +1,39 @@
 package com.practise.common.utils;
 
-import io.protostuff.LinkedBuffer;
-import io.protostuff.ProtostuffIOUtil;
-import io.protostuff.Schema;
-import io.protostuff.runtime.RuntimeSchema;
-import org.objenesis.Objenesis;
-import org.objenesis.ObjenesisStd;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import com.practise.common.Serializer.protostuff.ProtostuffSerializer;
+import io.netty.buffer.ByteBuf;
 
 /**
  * @author HzeLng
  * @version 1.0
  * @description SerializationUtil
  * @date 2022/3/4 16:02
+ *
+ * protostuff 序列化的静态入口，实现（包括 LinkedBuffer 的复用）都在 {@link ProtostuffSerializer}
  */
 public class SerializationUtil {
 
-    private static Map<Class<?>, Schema<?>> cachedSchema = new ConcurrentHashMap<>();
-
-    private static Objenesis objenesis = new ObjenesisStd(true);
+    private static final ProtostuffSerializer serializer = new ProtostuffSerializer();
 
     private SerializationUtil() {
     }
 
-    @SuppressWarnings("unchecked")
-    private static <T> Schema<T> getSchema(Class<T> cls) {
-        Schema<T> schema = (Schema<T>) cachedSchema.get(cls);
-        if (schema == null) {
-            schema = RuntimeSchema.createFrom(cls);
-            if (schema != null) {
-                cachedSchema.put(cls, schema);
-            }
-        }
-        return schema;
+    public static <T> byte[] serialize(T obj) {
+        return serializer.serialize(obj);
     }
 
-    @SuppressWarnings("unchecked")
-    public static <T> byte[] serialize(T obj) {
-        Class<T> cls = (Class<T>) obj.getClass();
-        LinkedBuffer buffer = LinkedBuffer.allocate(LinkedBuffer.DEFAULT_BUFFER_SIZE);
-        try {
-            Schema<T> schema = getSchema(cls);
-            return ProtostuffIOUtil.toByteArray(obj, schema, buffer);
-        } catch (Exception e) {
-            throw new IllegalStateException(e.getMessage(), e);
-        } finally {
-            buffer.clear();
-        }
+    public static <T> void serialize(T obj, ByteBuf out) {
+        serializer.serialize(obj, out);
     }
 
+    @SuppressWarnings("unchecked")
     public static <T> T deserialize(byte[] data, Class<T> cls) {
-        try {
-            T message = (T) objenesis.newInstance(cls);
-            Schema<T> schema = getSchema(cls);
-            ProtostuffIOUtil.mergeFrom(data, message, schema);
-            return message;
-        } catch (Exception e) {
-            throw new IllegalStateException(e.getMessage(), e);
-        }
+        return (T) serializer.deserialize(data, cls);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T deserialize(ByteBuf in, Class<T> cls) {
+        return (T) serializer.deserialize(in, cls);
     }
 
 }
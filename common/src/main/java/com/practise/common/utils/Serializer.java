@@ -1,5 +1,8 @@
 package com.practise.common.utils;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
 /**
  * @author HzeLng
  * @version 1.0
@@ -7,7 +10,50 @@ package com.practise.common.utils;
  * @date 2022/3/5 20:56
  */
 public abstract class Serializer {
+
+    public static final byte PROTOSTUFF = 1;
+    public static final byte JSON = 2;
+    public static final byte KRYO = 3;
+    public static final byte HESSIAN = 4;
+
     public abstract <T> byte[] serialize(T obj);
 
     public abstract <T> Object deserialize(byte[] bytes, Class<T> clazz);
+
+    /**
+     * 直接把对象写进出站的 ByteBuf，不经过中间的 byte[]
+     * 默认实现退化成先 serialize 再拷贝，具体的序列化器应该重写
+     * @param obj
+     * @param out
+     */
+    public <T> void serialize(T obj, ByteBuf out) {
+        out.writeBytes(serialize(obj));
+    }
+
+    /**
+     * 直接从入站的 ByteBuf 里反序列化，读完之后 readerIndex 移到末尾
+     * 默认实现退化成拷贝出 byte[]，具体的序列化器应该重写
+     * @param in
+     * @param clazz
+     * @return
+     */
+    public <T> Object deserialize(ByteBuf in, Class<T> clazz) {
+        byte[] bytes = ByteBufUtil.getBytes(in);
+        in.skipBytes(in.readableBytes());
+        return deserialize(bytes, clazz);
+    }
+
+    /**
+     * 写入帧头的序列化器编号，解码端据此知道 body 是用哪种方式编码的
+     * @return
+     */
+    public abstract byte getSerializerId();
+
+    /**
+     * 按名字选择序列化器时使用，默认是类名去掉 Serializer 后缀，如 protostuff、kryo
+     * @return
+     */
+    public String getName() {
+        return getClass().getSimpleName().replace("Serializer", "").toLowerCase();
+    }
 }
@@ -0,0 +1,83 @@
+package com.practise.common.resource;
+
+import io.netty.channel.EventLoopGroup;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcResourcesTest
+ * @date 2022/3/31 19:50
+ *
+ * 每个用例开始和结束时引用计数都是 0
+ */
+public class RpcResourcesTest {
+
+    private static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (PoolStats stats : RpcResources.stats()) {
+            names.add(stats.getName());
+        }
+        return names;
+    }
+
+    /**
+     * 最后一个使用者 release 才关，之后再取重新创建
+     */
+    @Test
+    public void lastReleaseShutsDown() {
+        RpcResources.retain();
+        RpcResources.retain();
+        EventLoopGroup io = RpcResources.ioGroup();
+        ThreadPoolExecutor business = RpcResources.businessExecutor();
+        ThreadPoolExecutor callback = RpcResources.callbackExecutor();
+        assertSame(callback, RpcResources.callbackExecutor());
+        assertEquals(3, names().size());
+
+        RpcResources.release();
+        assertFalse(io.isShuttingDown());
+        assertFalse(business.isShutdown());
+        assertFalse(callback.isShutdown());
+        assertSame(callback, RpcResources.callbackExecutor());
+
+        RpcResources.release();
+        assertTrue(io.isShuttingDown());
+        assertTrue(business.isShutdown());
+        assertTrue(callback.isShutdown());
+        assertTrue(names().isEmpty());
+
+        RpcResources.retain();
+        ThreadPoolExecutor recreated = RpcResources.callbackExecutor();
+        assertNotSame(callback, recreated);
+        assertEquals(1, names().size());
+        RpcResources.release();
+        assertTrue(recreated.isShutdown());
+    }
+
+    /**
+     * release 比 retain 多只打 warn，不会把没 retain 就取的资源关掉，也不会让计数变成负的
+     */
+    @Test
+    public void overReleaseOnlyWarns() {
+        ThreadPoolExecutor callback = RpcResources.callbackExecutor();
+
+        RpcResources.release();
+        RpcResources.release();
+        assertFalse(callback.isShutdown());
+
+        // 计数没有变成负的，一次 retain 一次 release 就关掉
+        RpcResources.retain();
+        RpcResources.release();
+        assertTrue(callback.isShutdown());
+    }
+}
@@ -0,0 +1,136 @@
+package com.practise.common.stream;
+
+import com.practise.common.entity.RpcStreamMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description StreamInboxTest
+ * @date 2022/3/31 19:00
+ */
+public class StreamInboxTest {
+
+    private static final long STREAM_ID = 3;
+    private static final int WINDOW = 4;
+
+    private final List<String> events = new ArrayList<>();
+    private final List<Integer> credits = new ArrayList<>();
+    private final List<Throwable> failures = new ArrayList<>();
+    private final StreamInbox inbox = new StreamInbox(STREAM_ID, WINDOW, Runnable::run, credits::add, failures::add);
+
+    private final StreamObserver<Object> observer = new StreamObserver<Object>() {
+        @Override
+        public void onNext(Object value) {
+            if ("bad".equals(value)) {
+                throw new IllegalStateException("bad value");
+            }
+            events.add("next:" + value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            events.add("error:" + t.getClass().getSimpleName());
+        }
+
+        @Override
+        public void onCompleted() {
+            events.add("completed");
+        }
+    };
+
+    private void data(Object... values) {
+        for (Object value : values) {
+            inbox.onMessage(RpcStreamMessage.data(STREAM_ID, value));
+        }
+    }
+
+    /**
+     * 观察者设好之前到的消息攒着，设好之后按顺序回调
+     */
+    @Test
+    public void buffersUntilStarted() {
+        data("a", "b");
+        assertTrue(events.isEmpty());
+
+        inbox.start(observer);
+
+        assertEquals(Arrays.asList("next:a", "next:b"), events);
+    }
+
+    /**
+     * 消费够半个窗口才还额度
+     */
+    @Test
+    public void returnsCreditAfterHalfWindow() {
+        inbox.start(observer);
+
+        data("a");
+        assertTrue(credits.isEmpty());
+        data("b");
+        assertEquals(Collections.singletonList(WINDOW / 2), credits);
+        data("c", "d", "e");
+        assertEquals(Arrays.asList(WINDOW / 2, WINDOW / 2), credits);
+    }
+
+    @Test
+    public void endStopsDelivery() {
+        inbox.start(observer);
+
+        data("a");
+        inbox.onMessage(RpcStreamMessage.end(STREAM_ID));
+        data("b");
+        inbox.cancel(new CancellationException());
+
+        assertEquals(Arrays.asList("next:a", "completed"), events);
+    }
+
+    @Test
+    public void errorMessageEndsStream() {
+        inbox.start(observer);
+
+        inbox.onMessage(RpcStreamMessage.error(STREAM_ID, new IllegalArgumentException("x")));
+        data("a");
+
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).startsWith("error:"));
+    }
+
+    /**
+     * 取消排在已经到的消息后面
+     */
+    @Test
+    public void cancelAfterQueuedMessages() {
+        data("a");
+        inbox.cancel(new CancellationException());
+        data("b");
+
+        inbox.start(observer);
+
+        assertEquals(Arrays.asList("next:a", "error:CancellationException"), events);
+    }
+
+    /**
+     * 观察者抛异常时交给持有方取消，之后的消息不再回调，也不再还额度
+     */
+    @Test
+    public void observerFailureStopsStream() {
+        inbox.start(observer);
+
+        data("a", "bad", "c", "d");
+
+        assertEquals(Collections.singletonList("next:a"), events);
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof IllegalStateException);
+        assertTrue(credits.isEmpty());
+    }
+}
@@ -0,0 +1,85 @@
+package com.practise.common.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description TransportTest
+ * @date 2022/3/31 19:40
+ */
+public class TransportTest {
+
+    /**
+     * EventLoopGroup 和两种 Channel 类型要配套
+     */
+    @Test
+    public void selectionIsConsistent() {
+        EventLoopGroup group = Transport.newEventLoopGroup(1);
+        try {
+            if (Transport.isEpoll()) {
+                assertTrue(group instanceof EpollEventLoopGroup);
+                assertSame(EpollSocketChannel.class, Transport.channelClass());
+                assertSame(EpollServerSocketChannel.class, Transport.serverChannelClass());
+                assertTrue(Transport.supportsReusePort());
+            } else {
+                assertTrue(group instanceof NioEventLoopGroup);
+                assertSame(NioSocketChannel.class, Transport.channelClass());
+                assertSame(NioServerSocketChannel.class, Transport.serverChannelClass());
+                assertFalse(Transport.supportsReusePort());
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 所有预设都关 Nagle，THROUGHPUT 靠合并 flush 减少小包
+     */
+    @Test
+    public void profilesKeepNoDelay() {
+        for (TransportProfile profile : TransportProfile.values()) {
+            Bootstrap bootstrap = new Bootstrap();
+            Transport.configure(bootstrap, profile);
+            Map<ChannelOption<?>, Object> options = bootstrap.config().options();
+            assertEquals(Boolean.TRUE, options.get(ChannelOption.TCP_NODELAY), profile.name());
+            assertEquals(Boolean.TRUE, options.get(ChannelOption.SO_KEEPALIVE), profile.name());
+        }
+        Bootstrap bootstrap = new Bootstrap();
+        Transport.configure(bootstrap, TransportProfile.THROUGHPUT);
+        assertEquals(1024 * 1024, bootstrap.config().options().get(ChannelOption.SO_SNDBUF));
+        assertEquals(1024 * 1024, bootstrap.config().options().get(ChannelOption.SO_RCVBUF));
+    }
+
+    @Test
+    public void throughputConsolidatesFlushes() {
+        EmbeddedChannel throughput = new EmbeddedChannel();
+        Transport.configure(throughput.pipeline(), TransportProfile.THROUGHPUT);
+        assertTrue(throughput.pipeline().first() instanceof FlushConsolidationHandler);
+
+        EmbeddedChannel latency = new EmbeddedChannel();
+        Transport.configure(latency.pipeline(), TransportProfile.LATENCY);
+        assertNull(latency.pipeline().get(FlushConsolidationHandler.class));
+        throughput.finishAndReleaseAll();
+        latency.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,321 @@
+package com.practise.common.utils;
+
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.compress.Compressor;
+import com.practise.common.compress.CompressorRegistry;
+import com.practise.common.entity.Beat;
+import com.practise.common.entity.Person;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcMethodInfo;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.protocol.CodecContext;
+import com.practise.common.protocol.RpcFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcCodecTest
+ * @date 2022/3/31 16:00
+ *
+ * RpcEncoder 编出来的帧交给 RpcDecoder 解回来，帧格式见 {@link RpcFrame}
+ */
+public class RpcCodecTest {
+
+    private static EmbeddedChannel encoder(Class<?> genericClass) {
+        return new EmbeddedChannel(new RpcEncoder(genericClass, SerializerRegistry.getDefault()));
+    }
+
+    private static EmbeddedChannel decoder(Class<?> genericClass) {
+        return new EmbeddedChannel(new RpcDecoder(genericClass, SerializerRegistry.getDefault()));
+    }
+
+    /**
+     * 一条消息编出来的所有 ByteBuf（帧和后面的附件）拼成一块
+     */
+    private static ByteBuf encode(EmbeddedChannel encoder, Object msg) {
+        assertTrue(encoder.writeOutbound(msg));
+        ByteBuf out = Unpooled.buffer();
+        for (ByteBuf buf = encoder.readOutbound(); buf != null; buf = encoder.readOutbound()) {
+            out.writeBytes(buf);
+            buf.release();
+        }
+        return out;
+    }
+
+    private static RpcRequest request(String methodName, Class<?>[] types, Object... parameters) {
+        RpcRequest request = new RpcRequest();
+        request.setClassName("com.practise.common.services.HelloServiceV2");
+        request.setMethodName(methodName);
+        request.setVersion("1.0");
+        request.setParameterTypes(types);
+        request.setParameters(parameters);
+        return request;
+    }
+
+    private static Person person(String name, int age) {
+        Person person = new Person();
+        person.setName(name);
+        person.setAge(age);
+        return person;
+    }
+
+    @Test
+    public void frameHeader() {
+        RpcRequest request = request("hello", new Class<?>[]{String.class, int.class}, "world", 3);
+        request.setRequestId(42);
+
+        ByteBuf frame = encode(encoder(RpcRequest.class), request);
+
+        assertEquals(frame.readableBytes() - RpcFrame.LENGTH_FIELD_LENGTH, frame.getInt(0));
+        assertEquals(RpcFrame.MAGIC, frame.getShort(4));
+        assertEquals(RpcFrame.VERSION, frame.getByte(6));
+        assertEquals(RpcFrame.TYPE_REQUEST, frame.getByte(7));
+        assertEquals(Serializer.PROTOSTUFF, frame.getByte(8));
+        assertEquals(RpcFrame.FLAG_NONE, frame.getByte(9));
+        assertEquals(42, frame.getLong(10));
+
+        EmbeddedChannel decoder = decoder(RpcRequest.class);
+        decoder.writeInbound(frame);
+        RpcRequest decoded = decoder.readInbound();
+        assertEquals(42, decoded.getRequestId());
+        assertEquals("hello", decoded.getMethodName());
+        assertEquals("1.0", decoded.getVersion());
+        assertArrayEquals(new Class<?>[]{String.class, int.class}, decoded.getParameterTypes());
+        assertArrayEquals(new Object[]{"world", 3}, decoded.getParameters());
+    }
+
+    @Test
+    public void heartbeatIsHeaderOnly() {
+        ByteBuf frame = encode(encoder(RpcRequest.class), Beat.BEAT_PING);
+
+        assertEquals(RpcFrame.LENGTH_FIELD_LENGTH + RpcFrame.HEADER_LENGTH, frame.readableBytes());
+        assertEquals(RpcFrame.TYPE_HEARTBEAT, frame.getByte(7));
+
+        EmbeddedChannel decoder = decoder(RpcRequest.class);
+        decoder.writeInbound(frame);
+        assertSame(Beat.BEAT_PING, decoder.readInbound());
+    }
+
+    @Test
+    public void responseSplitAcrossReads() {
+        RpcResponse response = new RpcResponse();
+        response.setRequestId(7);
+        response.setResult("done");
+        ByteBuf frame = encode(encoder(RpcResponse.class), response);
+
+        EmbeddedChannel decoder = decoder(RpcResponse.class);
+        decoder.writeInbound(frame.readRetainedSlice(5));
+        assertNull(decoder.readInbound());
+        decoder.writeInbound(frame);
+        RpcResponse decoded = decoder.readInbound();
+        assertEquals(7, decoded.getRequestId());
+        assertEquals("done", decoded.getResult());
+    }
+
+    @Test
+    public void attachmentsFollowTheFrame() {
+        RpcRequest request = request("upload", new Class<?>[]{String.class, RpcAttachment.class},
+                "file", RpcAttachment.of(new byte[]{1, 2, 3}));
+        request.setRequestId(9);
+        request.setAttachments(new ArrayList<>(Collections.singletonList(RpcAttachment.of(new byte[]{4, 5}))));
+
+        ByteBuf encoded = encode(encoder(RpcRequest.class), request);
+        assertTrue((encoded.getByte(9) & RpcFrame.FLAG_ATTACHMENTS) != 0);
+
+        EmbeddedChannel decoder = decoder(RpcRequest.class);
+        // 附件一个字节一个字节地到，也要等收齐了再交出消息
+        while (encoded.readableBytes() > 1) {
+            decoder.writeInbound(encoded.readRetainedSlice(1));
+        }
+        assertNull(decoder.readInbound());
+        decoder.writeInbound(encoded);
+        RpcRequest decoded = decoder.readInbound();
+
+        assertEquals("file", decoded.getParameters()[0]);
+        RpcAttachment parameter = (RpcAttachment) decoded.getParameters()[1];
+        assertArrayEquals(new byte[]{1, 2, 3}, ByteBufUtil.getBytes((ByteBuf) parameter.content()));
+        assertEquals(1, decoded.getAttachments().size());
+        RpcAttachment extra = decoded.getAttachments().get(0);
+        assertArrayEquals(new byte[]{4, 5}, ByteBufUtil.getBytes((ByteBuf) extra.content()));
+        parameter.release();
+        extra.release();
+    }
+
+    /**
+     * 握手之后记下的对端支持的压缩算法
+     */
+    private static EmbeddedChannel compressingEncoder() {
+        EmbeddedChannel encoder = encoder(RpcRequest.class);
+        int dictionaryId = CompressorRegistry.getCompressor("deflate").getDictionaryId();
+        encoder.attr(CompressorRegistry.CHANNEL_ACCEPTED)
+                .set(CompressorRegistry.accepted(CompressorRegistry.supportedIds(), dictionaryId));
+        return encoder;
+    }
+
+    private static String longText() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 4 * CompressorRegistry.getThreshold()) {
+            text.append("hello world ");
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void compressedRoundTrip() {
+        for (String name : new String[]{"deflate", "snappy"}) {
+            Compressor compressor = CompressorRegistry.getCompressor(name);
+            String text = longText();
+            RpcRequest request = request("hello", new Class<?>[]{String.class}, text);
+            request.setCompressor(compressor);
+
+            ByteBuf frame = encode(compressingEncoder(), request);
+            assertTrue((frame.getByte(9) & RpcFrame.FLAG_COMPRESSED) != 0, name);
+            assertTrue(frame.readableBytes() < text.length(), name);
+
+            EmbeddedChannel decoder = decoder(RpcRequest.class);
+            decoder.writeInbound(frame);
+            RpcRequest decoded = decoder.readInbound();
+            assertEquals(text, decoded.getParameters()[0], name);
+            // 收到压缩过的请求，回响应时用同一个算法
+            assertSame(compressor, decoder.attr(CompressorRegistry.CHANNEL_COMPRESSOR).get(), name);
+        }
+    }
+
+    /**
+     * 压缩算法跟着请求走：同一个连接上，没配置压缩的客户端的请求不压缩，
+     * 连接上记了对端用的算法也不影响请求
+     */
+    @Test
+    public void compressorFollowsTheRequest() {
+        EmbeddedChannel encoder = compressingEncoder();
+        encoder.attr(CompressorRegistry.CHANNEL_COMPRESSOR).set(CompressorRegistry.getCompressor("snappy"));
+        RpcRequest plain = request("hello", new Class<?>[]{String.class}, longText());
+        RpcRequest deflated = request("hello", new Class<?>[]{String.class}, longText());
+        deflated.setCompressor(CompressorRegistry.getCompressor("deflate"));
+
+        ByteBuf plainFrame = encode(encoder, plain);
+        ByteBuf deflatedFrame = encode(encoder, deflated);
+
+        assertEquals(0, plainFrame.getByte(9) & RpcFrame.FLAG_COMPRESSED);
+        assertTrue((deflatedFrame.getByte(9) & RpcFrame.FLAG_COMPRESSED) != 0);
+        assertEquals(CompressorRegistry.getCompressor("deflate").getCompressorId(),
+                deflatedFrame.getByte(RpcFrame.LENGTH_FIELD_LENGTH + RpcFrame.HEADER_LENGTH));
+        plainFrame.release();
+        deflatedFrame.release();
+    }
+
+    /**
+     * 对端握手里没有这个算法时不压缩
+     */
+    @Test
+    public void unsupportedCompressorIsNotUsed() {
+        EmbeddedChannel encoder = encoder(RpcRequest.class);
+        Compressor snappy = CompressorRegistry.getCompressor("snappy");
+        Compressor deflate = CompressorRegistry.getCompressor("deflate");
+        encoder.attr(CompressorRegistry.CHANNEL_ACCEPTED)
+                .set(CompressorRegistry.accepted(new byte[]{deflate.getCompressorId()}, deflate.getDictionaryId()));
+        RpcRequest request = request("hello", new Class<?>[]{String.class}, longText());
+        request.setCompressor(snappy);
+
+        ByteBuf frame = encode(encoder, request);
+
+        assertEquals(0, frame.getByte(9) & RpcFrame.FLAG_COMPRESSED);
+        frame.release();
+    }
+
+    @Test
+    public void smallBodyIsNotCompressed() {
+        RpcRequest request = request("hello", new Class<?>[]{String.class}, "short");
+        request.setCompressor(CompressorRegistry.getCompressor("snappy"));
+
+        ByteBuf frame = encode(compressingEncoder(), request);
+
+        assertEquals(0, frame.getByte(9) & RpcFrame.FLAG_COMPRESSED);
+        frame.release();
+    }
+
+    @Test
+    public void handshakeRoundTrip() {
+        RpcMethodInfo method = new RpcMethodInfo();
+        method.setServiceKey("com.practise.common.services.HelloServiceV2#1.0");
+        method.setMethodName("hello");
+        method.setParameterTypes(new String[]{Person.class.getName(), "int"});
+        RpcHandshake handshake = new RpcHandshake();
+        handshake.setMethods(Collections.singletonList(method));
+        handshake.setCompressors(CompressorRegistry.supportedIds());
+
+        ByteBuf frame = encode(encoder(RpcResponse.class), handshake);
+        assertEquals(RpcFrame.TYPE_HANDSHAKE, frame.getByte(7));
+
+        EmbeddedChannel decoder = decoder(RpcResponse.class);
+        decoder.writeInbound(frame);
+        RpcHandshake decoded = decoder.readInbound();
+        assertEquals(1, decoded.getMethods().size());
+        assertEquals("hello", decoded.getMethods().get(0).getMethodName());
+        assertArrayEquals(method.getParameterTypes(), decoded.getMethods().get(0).getParameterTypes());
+        assertArrayEquals(CompressorRegistry.supportedIds(), decoded.getCompressors());
+    }
+
+    /**
+     * 有方法编号的请求只带编号和参数，服务端按握手时的方法表找参数类型
+     */
+    @Test
+    public void requestByMethodId() {
+        RpcRequest request = request("hello", new Class<?>[]{Person.class, int.class}, person("a", 1), 2);
+        request.setMethodId(1);
+        ByteBuf byId = encode(encoder(RpcRequest.class), request);
+        request.setMethodId(RpcHandshake.NO_METHOD_ID);
+        ByteBuf byName = encode(encoder(RpcRequest.class), request);
+        assertTrue(byId.readableBytes() < byName.readableBytes());
+        byName.release();
+
+        EmbeddedChannel decoder = decoder(RpcRequest.class);
+        decoder.attr(CodecContext.KEY).set(new CodecContext(new Class<?>[][]{null, {Person.class, int.class}}));
+        decoder.writeInbound(byId);
+        RpcRequest decoded = decoder.readInbound();
+        assertEquals(1, decoded.getMethodId());
+        assertEquals("a", ((Person) decoded.getParameters()[0]).getName());
+        assertEquals(2, decoded.getParameters()[1]);
+    }
+
+    /**
+     * 声明成 Object 的业务类第一次出现时带类名和编号，之后同一个连接上只发编号
+     */
+    @Test
+    public void typeIdsAreInternedPerConnection() {
+        EmbeddedChannel encoder = encoder(RpcRequest.class);
+        Class<?>[] types = {Object.class};
+        ByteBuf first = encode(encoder, request("save", types, person("first", 1)));
+        ByteBuf second = encode(encoder, request("save", types, person("other", 2)));
+        assertTrue(second.readableBytes() < first.readableBytes());
+        ByteBuf copy = second.copy();
+
+        EmbeddedChannel decoder = decoder(RpcRequest.class);
+        decoder.writeInbound(first, second);
+        assertEquals("first", ((Person) ((RpcRequest) decoder.readInbound()).getParameters()[0]).getName());
+        assertEquals("other", ((Person) ((RpcRequest) decoder.readInbound()).getParameters()[0]).getName());
+
+        // 没见过第一帧的连接不认识这个编号，解不出来就断开，不能错位
+        EmbeddedChannel fresh = decoder(RpcRequest.class);
+        fresh.writeInbound(copy);
+        assertNull(fresh.readInbound());
+        assertFalse(fresh.isOpen());
+    }
+}
@@ -0,0 +1,69 @@
+package com.practise.common.utils;
+
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.compress.Compressor;
+import com.practise.common.compress.CompressorRegistry;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.RpcFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcDecoderTest
+ * @date 2022/3/31 11:00
+ */
+public class RpcDecoderTest {
+
+    /**
+     * Snappy 数据开头的长度声称 254 MiB，帧头里的压缩前长度只有 16 字节，不能按前者分配内存
+     */
+    @Test
+    public void snappyPreambleLargerThanFrameClosesChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RpcDecoder(RpcRequest.class, SerializerRegistry.getDefault()));
+        byte[] snappy = {(byte) 0x80, (byte) 0x80, (byte) 0x80, 0x7F, 0x00, 0x61};
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(RpcFrame.HEADER_LENGTH + RpcFrame.COMPRESSED_HEADER_LENGTH + snappy.length);
+        frame.writeShort(RpcFrame.MAGIC);
+        frame.writeByte(RpcFrame.VERSION);
+        frame.writeByte(RpcFrame.TYPE_REQUEST);
+        frame.writeByte(Serializer.PROTOSTUFF);
+        frame.writeByte(RpcFrame.FLAG_COMPRESSED);
+        frame.writeLong(1);
+        frame.writeByte(Compressor.SNAPPY);
+        frame.writeInt(16);
+        frame.writeBytes(snappy);
+
+        channel.writeInbound(frame);
+
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void corruptCompressedBodyClosesChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RpcDecoder(RpcRequest.class, SerializerRegistry.getDefault()));
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(RpcFrame.HEADER_LENGTH + RpcFrame.COMPRESSED_HEADER_LENGTH + 4);
+        frame.writeShort(RpcFrame.MAGIC);
+        frame.writeByte(RpcFrame.VERSION);
+        frame.writeByte(RpcFrame.TYPE_REQUEST);
+        frame.writeByte(Serializer.PROTOSTUFF);
+        frame.writeByte(RpcFrame.FLAG_COMPRESSED);
+        frame.writeLong(1);
+        frame.writeByte(CompressorRegistry.getCompressor("deflate").getCompressorId());
+        frame.writeInt(100);
+        frame.writeInt(0xDEADBEEF);
+
+        channel.writeInbound(frame);
+
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+    }
+}
@@ -0,0 +1,92 @@
+package com.practise.common.utils;
+
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.RpcFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.EncoderException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcEncoderTest
+ * @date 2022/3/31 10:30
+ */
+public class RpcEncoderTest {
+
+    @Test
+    public void tooManyAttachmentsReleasesThem() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RpcEncoder(RpcRequest.class, SerializerRegistry.getDefault()));
+        List<ByteBuf> buffers = new ArrayList<>();
+        List<RpcAttachment> attachments = new ArrayList<>();
+        for (int i = 0; i <= RpcFrame.MAX_ATTACHMENTS; i++) {
+            ByteBuf buf = Unpooled.buffer().writeByte(i);
+            buffers.add(buf);
+            attachments.add(RpcAttachment.of(buf));
+        }
+        RpcRequest request = new RpcRequest();
+        request.setMethodName("upload");
+        request.setParameters(new Object[0]);
+        request.setAttachments(attachments);
+
+        ChannelFuture future = channel.writeOneOutbound(request);
+        channel.flushOutbound();
+
+        assertTrue(future.cause() instanceof EncoderException);
+        assertNull(channel.readOutbound());
+        for (ByteBuf buf : buffers) {
+            assertEquals(0, buf.refCnt());
+        }
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 附件总长度超过上限时只让这次写失败，不写出任何字节，附件也要释放
+     */
+    @Test
+    public void oversizedAttachmentsFailTheWrite(@TempDir Path dir) throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new RpcEncoder(RpcRequest.class, SerializerRegistry.getDefault()));
+        File file = dir.resolve("upload.bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel fileChannel = raf.getChannel();
+            // FileRegion 只记录范围，不需要文件真的这么大
+            long half = RpcFrame.MAX_ATTACHMENT_LENGTH / 2 + 1;
+            DefaultFileRegion first = new DefaultFileRegion(fileChannel, 0, half);
+            DefaultFileRegion second = new DefaultFileRegion(fileChannel, 0, half);
+            RpcRequest request = new RpcRequest();
+            request.setMethodName("upload");
+            request.setParameters(new Object[0]);
+            request.setAttachments(Arrays.asList(RpcAttachment.of(first), RpcAttachment.of(second)));
+
+            ChannelFuture future = channel.writeOneOutbound(request);
+            channel.flushOutbound();
+
+            assertTrue(future.cause() instanceof EncoderException);
+            assertNull(channel.readOutbound());
+            assertEquals(0, first.refCnt());
+            assertEquals(0, second.refCnt());
+            // 连接还能继续用
+            assertTrue(channel.isActive());
+        }
+        channel.finishAndReleaseAll();
+    }
+}
@@ -2,6 +2,7 @@ package com.practise.rpc1.config;
 
 import com.practise.common.entity.RpcRequest;
 import com.practise.common.entity.RpcResponse;
+import com.practise.common.exception.ErrorRegistry;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -59,7 +60,7 @@ public class RpcHandler extends SimpleChannelInboundHandler<RpcRequest> {
             Object result = handle(rpcRequest);
             response.setResult(result);
         } catch (Throwable t) {
-            response.setError(t);
+            response.setError(ErrorRegistry.encode(t));
         }
         LOGGER.info("channelRead0 response.getResult() is {}",response.getResult());
         ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
@@ -25,4 +25,10 @@ public @interface NettyRpcService {
     Class<?> value();
 
     String version() default "";
+
+    /**
+     * 服务方法抛出异常时是否把堆栈发给客户端，默认只发异常类和 message
+     * 见 {@link com.practise.common.exception.ErrorRegistry}
+     */
+    boolean stackTrace() default false;
 }
\ No newline at end of file
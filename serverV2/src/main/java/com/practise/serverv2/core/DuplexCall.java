@@ -0,0 +1,205 @@
+package com.practise.serverv2.core;
+
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.stream.ServerStreamObserver;
+import com.practise.common.stream.StreamInbox;
+import com.practise.common.stream.StreamObserver;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description DuplexCall
+ * @date 2022/3/16 11:20
+ *
+ * 服务端的一个双向流（客户端流也是它）
+ *
+ * 接收方向：客户端的 DATA/END/ERROR 交给 {@link StreamInbox}，在线程池里按顺序回调服务方法返回的观察者，
+ *          服务方法开始之后才给客户端第一批额度，消费一半窗口再补
+ * 发送方向：自己就是传给服务方法的回发观察者，有额度直接写，没额度先排队，客户端补了额度再发
+ *
+ * 服务端 onCompleted/onError 之后整个调用结束，客户端后面发来的消息丢掉
+ */
+class DuplexCall implements ServerCall, ServerStreamObserver<Object> {
+
+    private static final Logger logger = LoggerFactory.getLogger(DuplexCall.class);
+
+    private final long streamId;
+    private final ChannelHandlerContext ctx;
+    private final Executor executor;
+    private final Map<Long, ServerCall> calls;
+    private final StreamInbox inbox;
+
+    /**
+     * 发送方向的状态，都在 this 上加锁
+     */
+    private final ArrayDeque<RpcStreamMessage> pending = new ArrayDeque<>();
+    private int credit;
+    private boolean outboundDone;
+    private Runnable onReadyHandler;
+    private volatile boolean cancelled;
+
+    DuplexCall(long streamId, int clientCredit, int window, ChannelHandlerContext ctx, Executor executor,
+               Map<Long, ServerCall> calls) {
+        this.streamId = streamId;
+        this.credit = clientCredit;
+        this.ctx = ctx;
+        this.executor = executor;
+        this.calls = calls;
+        this.inbox = new StreamInbox(streamId, window, executor,
+                n -> ctx.writeAndFlush(RpcStreamMessage.credit(streamId, n)),
+                this::abort);
+    }
+
+    /**
+     * 服务方法返回了接收观察者，开始接收客户端的消息
+     */
+    void start(StreamObserver<Object> requestObserver, int window) {
+        inbox.start(requestObserver);
+        ctx.writeAndFlush(RpcStreamMessage.credit(streamId, window));
+    }
+
+    @Override
+    public void onMessage(RpcStreamMessage message) {
+        switch (message.getKind()) {
+            case RpcStreamMessage.CREDIT:
+                addCredit(message.getCredit());
+                break;
+            case RpcStreamMessage.CANCEL:
+                cancel();
+                break;
+            default:
+                inbox.onMessage(message);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            outboundDone = true;
+            pending.clear();
+        }
+        calls.remove(streamId);
+        inbox.cancel(new CancellationException("Stream " + streamId + " cancelled"));
+    }
+
+    @Override
+    public void onNext(Object value) {
+        send(RpcStreamMessage.data(streamId, value), false);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        send(RpcStreamMessage.error(streamId, t), true);
+    }
+
+    @Override
+    public void onCompleted() {
+        send(RpcStreamMessage.end(streamId), true);
+    }
+
+    private void send(RpcStreamMessage message, boolean last) {
+        if (cancelled) {
+            return;
+        }
+        synchronized (this) {
+            if (outboundDone) {
+                throw new IllegalStateException("Stream " + streamId + " already completed");
+            }
+            outboundDone = last;
+            pending.offer(message);
+            flushPending();
+        }
+    }
+
+    /**
+     * 持有锁时调用，有额度就把排队的消息写出去，一轮只 flush 一次
+     */
+    private void flushPending() {
+        boolean written = false;
+        RpcStreamMessage message;
+        while ((message = pending.peek()) != null) {
+            if (message.getKind() == RpcStreamMessage.DATA) {
+                if (credit <= 0) {
+                    break;
+                }
+                credit--;
+            }
+            pending.poll();
+            ctx.write(message);
+            written = true;
+            if (message.getKind() != RpcStreamMessage.DATA) {
+                calls.remove(streamId);
+            }
+        }
+        if (written) {
+            ctx.flush();
+        }
+    }
+
+    private void addCredit(int n) {
+        Runnable ready = null;
+        synchronized (this) {
+            boolean wasReady = isReady();
+            credit += n;
+            flushPending();
+            if (!wasReady && isReady()) {
+                ready = onReadyHandler;
+            }
+        }
+        if (ready != null) {
+            try {
+                executor.execute(ready);
+            } catch (RejectedExecutionException e) {
+                logger.error("Stream {} onReady handler rejected", streamId);
+            }
+        }
+    }
+
+    /**
+     * 服务方法的接收观察者抛了异常，丢掉还没发的消息，直接以 ERROR 结束
+     */
+    private void abort(Throwable t) {
+        synchronized (this) {
+            if (outboundDone && pending.isEmpty()) {
+                return;
+            }
+            outboundDone = true;
+            pending.clear();
+            pending.offer(RpcStreamMessage.error(streamId, t));
+            flushPending();
+        }
+    }
+
+    /**
+     * 服务方法本身抛了异常，或者没有返回观察者
+     */
+    void fail(Throwable error) {
+        calls.remove(streamId);
+        ctx.writeAndFlush(RpcStreamMessage.error(streamId, error));
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return !outboundDone && pending.isEmpty() && credit > 0;
+    }
+
+    @Override
+    public synchronized void setOnReadyHandler(Runnable onReadyHandler) {
+        this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -1,19 +1,31 @@
 package com.practise.serverv2.core;
 
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.resource.RpcResources;
+import com.practise.common.transport.Transport;
+import com.practise.common.transport.TransportProfile;
+import com.practise.common.utils.Serializer;
 import com.practise.common.utils.ServiceUtil;
-import com.practise.common.utils.ThreadPoolUtil;
 import com.practise.serverv2.registry.ServiceRegistry;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.SQLOutput;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -38,6 +50,18 @@ public class NettyServer extends Server{
      */
     private ServiceRegistry serviceRegistry;
     private Map<String, Object> serviceMap = new HashMap<>();
+    /**
+     * 接受的连接用的 socket 参数
+     */
+    private TransportProfile transportProfile = TransportProfile.DEFAULT;
+    /**
+     * acceptor 线程数，大于 1 时用 SO_REUSEPORT 把同一个端口 bind 多次，只有 epoll 支持，NIO 下只用一个
+     */
+    private int acceptorThreads = 1;
+    /**
+     * 除了 protostuff 之外接受客户端使用的序列化器，默认一个都不接受
+     */
+    private List<Serializer> serializers = Collections.emptyList();
 
     public NettyServer(){
         logger.info("NettyServer`s constructor");
@@ -53,6 +77,33 @@ public class NettyServer extends Server{
 
 
 
+    /**
+     * 要在 start 之前调用
+     */
+    public void setTransportProfile(TransportProfile transportProfile) {
+        this.transportProfile = transportProfile;
+    }
+
+    /**
+     * 要在 start 之前调用
+     */
+    public void setAcceptorThreads(int acceptorThreads) {
+        this.acceptorThreads = acceptorThreads;
+    }
+
+    /**
+     * 启用 protostuff 之外的序列化器，要在 start 之前调用
+     * json、kryo、hessian 解码时会按对端给的类型还原对象，只启用客户端确实在用的
+     * @param names 序列化器名字，如 json、kryo、hessian
+     */
+    public void setSerializers(String... names) {
+        List<Serializer> list = new ArrayList<>(names.length);
+        for (String name : names) {
+            list.add(SerializerRegistry.getSerializer(name));
+        }
+        this.serializers = list;
+    }
+
     /**
      *
      * @param interfaceName
@@ -75,34 +126,41 @@ public class NettyServer extends Server{
         System.out.println(Thread.currentThread().getName());
         logger.info("NettyServer-start: start");
         thread = new Thread(new Runnable() {
-            // 其实是在这个thread里面创建线程池
-            // 最后调用destroy的时候，连这个线程池也一块了
-            ThreadPoolExecutor threadPoolExecutor = ThreadPoolUtil.makeServerThreadPool(
-                    NettyServer.class.getSimpleName(),16,32
-            );
 
             @Override
             public void run() {
                 logger.info("NettyServer-start:  netty server start ");
-                EventLoopGroup bossGroup = new NioEventLoopGroup();
-                EventLoopGroup workerGroup = new NioEventLoopGroup(16);
+                // EventLoop 和业务线程池都是进程内共用的，停止时只关自己的连接
+                RpcResources.retain();
+                EventLoopGroup ioGroup = RpcResources.ioGroup();
+                ThreadPoolExecutor threadPoolExecutor = RpcResources.businessExecutor();
+                ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+                int acceptors = Transport.supportsReusePort() ? Math.max(1, acceptorThreads) : 1;
                 try {
                     ServerBootstrap bootstrap = new ServerBootstrap();
-                    bootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
-                            .childHandler(new RpcServerInitializer(serviceMap, threadPoolExecutor))
-                            .option(ChannelOption.SO_BACKLOG, 128)
-                            // .option(ChannelOption.SO_RCVBUF,1024)
-                            .childOption(ChannelOption.SO_KEEPALIVE, true);
+                    // accept 也放在共用的 EventLoop 上，不再单独开 boss 线程
+                    bootstrap.group(ioGroup, ioGroup).channel(Transport.serverChannelClass())
+                            .handler(new ChannelTracker(channels))
+                            .childHandler(new RpcServerInitializer(serviceMap, threadPoolExecutor,
+                                    new ServiceMethodTable(serviceMap), serializers, transportProfile))
+                            .option(ChannelOption.SO_BACKLOG, 128);
+                    Transport.configure(bootstrap, transportProfile, acceptors > 1);
 
                     String[] array = serverAddress.split(":");
                     String host = array[0];
                     int port = Integer.parseInt(array[1]);
                     ChannelFuture future = bootstrap.bind(host, port).sync();
+                    channels.add(future.channel());
+                    // 每次 bind 都注册到 EventLoopGroup 的下一个线程上，内核按连接把 accept 分给这些 socket
+                    for (int i = 1; i < acceptors; i++) {
+                        channels.add(bootstrap.bind(host, port).sync().channel());
+                    }
 
                     if (serviceRegistry != null) {
                         serviceRegistry.registerService(host, port, serviceMap);
                     }
-                    logger.info("Server started on port {}", port);
+                    logger.info("Server started on port {}, epoll: {}, acceptors: {}, profile: {}",
+                            port, Transport.isEpoll(), acceptors, transportProfile);
                     future.channel().closeFuture().sync();
                 } catch (Exception e) {
                     if (e instanceof InterruptedException) {
@@ -114,11 +172,11 @@ public class NettyServer extends Server{
                     try {
                         logger.info("NettyServer-start-finally:");
                         serviceRegistry.unregisterService();
-                        workerGroup.shutdownGracefully();
-                        bossGroup.shutdownGracefully();
                     } catch (Exception ex) {
                         logger.error(ex.getMessage(), ex);
                     }
+                    channels.close().awaitUninterruptibly();
+                    RpcResources.release();
                 }
             }
         });
@@ -126,6 +184,24 @@ public class NettyServer extends Server{
         logger.info("NettyServer-start: thread start" );
     }
 
+    /**
+     * 监听 socket 上的 handler，把接受的连接记下来，停止时一起关掉
+     */
+    @ChannelHandler.Sharable
+    private static class ChannelTracker extends ChannelInboundHandlerAdapter {
+        private final ChannelGroup channels;
+
+        ChannelTracker(ChannelGroup channels) {
+            this.channels = channels;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            channels.add((Channel) msg);
+            super.channelRead(ctx, msg);
+        }
+    }
+
     @Override
     public void stop() throws Exception {
 
@@ -1,20 +1,40 @@
 package com.practise.serverv2.core;
 
 import com.practise.common.entity.Beat;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcBatchResponse;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcHandshake;
 import com.practise.common.entity.RpcRequest;
 import com.practise.common.entity.RpcResponse;
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.exception.ErrorRegistry;
+import com.practise.common.protocol.RpcFrame;
+import com.practise.common.stream.StreamObserver;
 import com.practise.common.utils.ServiceUtil;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.EncoderException;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.cglib.reflect.FastClass;
 
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author HzeLng
@@ -27,11 +47,34 @@ public class RpcServerHandler extends SimpleChannelInboundHandler<RpcRequest> {
     private static final Logger logger = LoggerFactory.getLogger(RpcServerHandler.class);
 
     private final Map<String, Object> handlerMap;
+    /**
+     * 双向流里服务端最多缓存的客户端消息条数
+     */
+    private static final int DUPLEX_WINDOW = 64;
+
     private final ThreadPoolExecutor serverHandlerPool;
+    private final ServiceMethodTable methodTable;
+    /**
+     * 这个连接上还没结束的流，key 是流的编号（发起调用的请求序号）
+     */
+    private final Map<Long, ServerCall> streams = new ConcurrentHashMap<>();
 
-    public RpcServerHandler(Map<String, Object> handlerMap, final ThreadPoolExecutor threadPoolExecutor) {
+    public RpcServerHandler(Map<String, Object> handlerMap, final ThreadPoolExecutor threadPoolExecutor,
+                            ServiceMethodTable methodTable) {
         this.handlerMap = handlerMap;
         this.serverHandlerPool = threadPoolExecutor;
+        this.methodTable = methodTable;
+    }
+
+    /**
+     * 连接建立后先把方法表发给客户端，之后客户端按方法编号调用
+     * @param ctx
+     * @throws Exception
+     */
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.writeAndFlush(methodTable.getHandshake());
+        super.channelActive(ctx);
     }
 
     /**
@@ -52,33 +95,38 @@ public class RpcServerHandler extends SimpleChannelInboundHandler<RpcRequest> {
         logger.info("ctx is {} and the channel is {}",ctx,ctx.channel());
         // filter beat ping
         // 心跳检测，服务端一般不做回应，为了性能和服务端压力考虑
-        if (Beat.BEAT_ID.equalsIgnoreCase(request.getRequestId())) {
+        if (request.getRequestId() == Beat.BEAT_ID) {
             logger.info("Server read heartbeat ping");
             logger.info("the channel is {}",ctx.channel());
             return;
         }
 
+        if (request.isDuplex()) {
+            handleDuplex(ctx, request);
+            return;
+        }
+        if (request.getInitialCredit() > 0) {
+            handleStream(ctx, request);
+            return;
+        }
+
         // 从基础版的测试可以知道
         // channelRead0已经是一个nio线程了
         // 这里再用线程池有必要吗？后续再找找原因
+        try {
+            execute(ctx, request);
+        } catch (RejectedExecutionException e) {
+            // 线程池满了回 REJECTED，客户端可以换个节点重试，不要断开连接
+            logger.warn("RpcServerHandler-channelRead0: reject request {}, {}", request.getRequestId(), e.getMessage());
+            ctx.writeAndFlush(rejected(request, e));
+        }
+    }
+
+    private void execute(final ChannelHandlerContext ctx, final RpcRequest request) {
         serverHandlerPool.execute(new Runnable() {
             @Override
             public void run() {
-
-                logger.info("RpcServerHandler-channelRead0: Receive request " + request.getRequestId());
-                logger.info("channelRead0-run: current Thread {}",Thread.currentThread().getName());
-                RpcResponse response = new RpcResponse();
-                response.setRequestId(request.getRequestId());
-                try {
-                    Object result = handle(request);
-                    response.setResult(result);
-                    logger.info("request.getMethodName() {}",request.getMethodName());
-                    logger.info("request.getParameters() {}",request.getParameters());
-                    logger.info("response.getResult() {}",response.getResult());
-                } catch (Throwable t) {
-                    response.setError(t);
-                    logger.error("RpcServerHandler-channelRead0: RPC Server handle request error", t);
-                }
+                final RpcResponse response = invoke(request);
                 // 这里和原文不同
                 // 原文监听的是 ChannelFutureListener.CLOSE 关闭事件
                 // 而这里监听的仅仅是刚刚的发送操作完成事件
@@ -90,23 +138,317 @@ public class RpcServerHandler extends SimpleChannelInboundHandler<RpcRequest> {
                     @Override
                     public void operationComplete(ChannelFuture channelFuture) throws Exception {
                         logger.info("Send response for request " + request.getRequestId());
+                        // 结果太大或者序列化不了，回一个错误响应，客户端不用等到超时
+                        if (channelFuture.cause() instanceof EncoderException && response.getError() == null) {
+                            logger.error("Encode response {} error, reply server error", request.getRequestId());
+                            ctx.writeAndFlush(failed(response, channelFuture.cause()));
+                        }
                     }
                 });
             }
         });
     }
 
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof RpcBatchRequest) {
+            handleBatch(ctx, (RpcBatchRequest) msg);
+        } else if (msg instanceof RpcStreamMessage) {
+            onStreamMessage((RpcStreamMessage) msg);
+        } else {
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    /**
+     * 批量请求：顺序执行时整个批次只占线程池的一个任务，
+     * 并行执行时每个调用一个任务，最后完成的那个任务负责回批量响应
+     * 不管哪种方式，所有调用完成后只回一帧
+     * @param ctx
+     * @param batch
+     */
+    private void handleBatch(final ChannelHandlerContext ctx, final RpcBatchRequest batch) {
+        final List<RpcRequest> requests = batch.getRequests() == null
+                ? Collections.<RpcRequest>emptyList() : batch.getRequests();
+        final RpcResponse[] responses = new RpcResponse[requests.size()];
+        logger.info("RpcServerHandler-handleBatch: Receive batch of {} requests, parallel: {}", requests.size(), batch.isParallel());
+        if (!batch.isParallel() || requests.size() <= 1) {
+            try {
+                serverHandlerPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < responses.length; i++) {
+                            responses[i] = invoke(requests.get(i));
+                        }
+                        writeBatch(ctx, responses);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                for (int i = 0; i < responses.length; i++) {
+                    responses[i] = rejected(requests.get(i), e);
+                }
+                writeBatch(ctx, responses);
+            }
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(responses.length);
+        for (int i = 0; i < responses.length; i++) {
+            final int index = i;
+            try {
+                serverHandlerPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        responses[index] = invoke(requests.get(index));
+                        if (remaining.decrementAndGet() == 0) {
+                            writeBatch(ctx, responses);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                responses[index] = rejected(requests.get(index), e);
+                if (remaining.decrementAndGet() == 0) {
+                    writeBatch(ctx, responses);
+                }
+            }
+        }
+    }
+
+    /**
+     * 流式调用：服务方法返回 Iterator（或 Iterable），结果按客户端的额度分成多帧发回去
+     * 流先登记再调用，这样服务方法还没返回时客户端的 CANCEL 也能找到它
+     * @param ctx
+     * @param request
+     */
+    private void handleStream(final ChannelHandlerContext ctx, final RpcRequest request) {
+        final ServerStream stream = new ServerStream(request.getRequestId(), request.getInitialCredit(),
+                ctx, serverHandlerPool, streams);
+        streams.put(request.getRequestId(), stream);
+        logger.info("RpcServerHandler-handleStream: Receive stream request {}, initial credit {}",
+                request.getRequestId(), request.getInitialCredit());
+        try {
+            serverHandlerPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Object result;
+                    try {
+                        result = handle(request);
+                    } catch (Throwable t) {
+                        logger.error("RpcServerHandler-handleStream: RPC Server handle request error", t);
+                        stream.fail(t);
+                        return;
+                    } finally {
+                        releaseAttachments(request);
+                    }
+                    stream.start(toIterator(result));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stream.fail(e);
+        }
+    }
+
+    /**
+     * 双向流/客户端流：把回发观察者填进第一个参数再调用服务方法，
+     * 服务方法返回接收观察者之后才开始收客户端的消息，之后的回调都在线程池里按流排队执行
+     * @param ctx
+     * @param request
+     */
+    private void handleDuplex(final ChannelHandlerContext ctx, final RpcRequest request) {
+        final DuplexCall call = new DuplexCall(request.getRequestId(), request.getInitialCredit(),
+                DUPLEX_WINDOW, ctx, serverHandlerPool, streams);
+        streams.put(request.getRequestId(), call);
+        logger.info("RpcServerHandler-handleDuplex: Receive duplex request {}", request.getRequestId());
+        try {
+            serverHandlerPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Object[] parameters = request.getParameters();
+                    if (parameters == null || parameters.length == 0) {
+                        call.fail(new IllegalArgumentException("Duplex method must take a StreamObserver as the first parameter"));
+                        return;
+                    }
+                    parameters[0] = call;
+                    Object result;
+                    try {
+                        result = handle(request);
+                    } catch (Throwable t) {
+                        logger.error("RpcServerHandler-handleDuplex: RPC Server handle request error", t);
+                        call.fail(t);
+                        return;
+                    } finally {
+                        releaseAttachments(request);
+                    }
+                    if (!(result instanceof StreamObserver)) {
+                        call.fail(new IllegalStateException("Duplex method must return a StreamObserver"));
+                        return;
+                    }
+                    @SuppressWarnings("unchecked")
+                    StreamObserver<Object> requestObserver = (StreamObserver<Object>) result;
+                    call.start(requestObserver, DUPLEX_WINDOW);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            call.fail(e);
+        }
+    }
+
+    /**
+     * 返回值不是 Iterator/Iterable 的，当成只有一个元素的流，null 就是空流
+     */
+    private static Iterator<?> toIterator(Object result) {
+        if (result instanceof Iterator) {
+            return (Iterator<?>) result;
+        }
+        if (result instanceof Iterable) {
+            return ((Iterable<?>) result).iterator();
+        }
+        return result == null ? Collections.emptyIterator() : Collections.singletonList(result).iterator();
+    }
+
+    private void onStreamMessage(RpcStreamMessage message) {
+        ServerCall call = streams.get(message.getStreamId());
+        if (call == null) {
+            logger.debug("Stream {} already finished, drop message kind {}", message.getStreamId(), message.getKind());
+            return;
+        }
+        call.onMessage(message);
+    }
+
+    /**
+     * 连接断了，没发完的流都取消，释放服务方法那边的资源
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (ServerCall call : streams.values()) {
+            call.cancel();
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void writeBatch(ChannelHandlerContext ctx, RpcResponse[] responses) {
+        writeBatch(ctx, new ArrayList<>(Arrays.asList(responses)));
+    }
+
+    /**
+     * 批量响应编码失败（超过 {@link RpcFrame#MAX_FRAME_LENGTH}，或者某个结果序列化不了）时对半拆成两帧重发，
+     * 拆到只剩一个响应还失败的，换成 SERVER_ERROR 的错误响应，客户端按 requestId 分别结束每个调用
+     */
+    private void writeBatch(final ChannelHandlerContext ctx, final List<RpcResponse> responses) {
+        long[] requestIds = new long[responses.size()];
+        for (int i = 0; i < requestIds.length; i++) {
+            requestIds[i] = responses.get(i).getRequestId();
+        }
+        RpcBatchResponse batchResponse = new RpcBatchResponse();
+        batchResponse.setResponses(responses);
+        batchResponse.setRequestIds(requestIds);
+        ctx.writeAndFlush(batchResponse).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess() || !(future.cause() instanceof EncoderException)) {
+                    return;
+                }
+                int size = responses.size();
+                if (size <= 1) {
+                    RpcResponse response = size == 0 ? null : responses.get(0);
+                    if (response != null && response.getError() == null) {
+                        logger.error("Encode response {} error, reply server error", response.getRequestId());
+                        List<RpcResponse> error = new ArrayList<>(1);
+                        error.add(failed(response, future.cause()));
+                        writeBatch(ctx, error);
+                    }
+                    return;
+                }
+                logger.warn("Encode batch of {} responses error, split it: {}", size, String.valueOf(future.cause()));
+                writeBatch(ctx, new ArrayList<>(responses.subList(0, size / 2)));
+                writeBatch(ctx, new ArrayList<>(responses.subList(size / 2, size)));
+            }
+        });
+    }
+
+    /**
+     * 线程池满了没执行的请求，回 REJECTED，请求里的附件也不会再用到
+     */
+    private static RpcResponse rejected(RpcRequest request, RejectedExecutionException e) {
+        releaseAttachments(request);
+        RpcResponse response = new RpcResponse();
+        response.setRequestId(request.getRequestId());
+        response.setError(ErrorRegistry.encode(RpcError.REJECTED, e, false));
+        return response;
+    }
+
+    /**
+     * 响应写不出去（太大或者序列化失败）时换成的错误响应，不带结果和附件
+     */
+    private static RpcResponse failed(RpcResponse response, Throwable cause) {
+        RpcResponse error = new RpcResponse();
+        error.setRequestId(response.getRequestId());
+        error.setError(ErrorRegistry.encode(RpcError.SERVER_ERROR, cause, false));
+        return error;
+    }
+
+    private RpcResponse invoke(RpcRequest request) {
+        logger.info("RpcServerHandler-channelRead0: Receive request " + request.getRequestId());
+        logger.info("channelRead0-run: current Thread {}",Thread.currentThread().getName());
+        RpcResponse response = new RpcResponse();
+        response.setRequestId(request.getRequestId());
+        try {
+            Object result = handle(request);
+            response.setResult(result);
+            logger.info("request.getMethodName() {}",request.getMethodName());
+            logger.info("request.getParameters() {}",request.getParameters());
+            logger.info("response.getResult() {}",response.getResult());
+        } catch (InvocationTargetException e) {
+            response.setError(ErrorRegistry.encode(RpcError.SERVICE_ERROR, e.getCause(), stackTraceEnabled(request)));
+            logger.error("RpcServerHandler-channelRead0: RPC Server handle request error", e.getCause());
+        } catch (Throwable t) {
+            response.setError(ErrorRegistry.encode(RpcError.SERVER_ERROR, t, stackTraceEnabled(request)));
+            logger.error("RpcServerHandler-channelRead0: RPC Server handle request error", t);
+        } finally {
+            releaseAttachments(request);
+        }
+        return response;
+    }
+
+    private boolean stackTraceEnabled(RpcRequest request) {
+        return methodTable.isStackTraceEnabled(request) || ErrorRegistry.sampleStackTrace();
+    }
+
+    /**
+     * 请求里的附件在服务方法返回后释放，服务方法之后还要用（包括原样返回）的话要先 retain
+     */
+    private static void releaseAttachments(RpcRequest request) {
+        Object[] parameters = request.getParameters();
+        for (int i = 0; parameters != null && i < parameters.length; i++) {
+            if (parameters[i] instanceof RpcAttachment) {
+                ReferenceCountUtil.safeRelease(parameters[i]);
+            }
+        }
+        if (request.getAttachments() != null) {
+            for (RpcAttachment attachment : request.getAttachments()) {
+                ReferenceCountUtil.safeRelease(attachment);
+            }
+        }
+    }
+
     /**
      * 那么具体是如何处理的呢？
      * 解析RpcRequest，得到这次请求的接口名，方法名，参数信息
      * 然后根据接口名 到 保存在本地的Map 根据接口名这个key 取得对应的实现这个接口的bean对象
      * 然后得到这个bean对象的class，根据反射，调用Method.invoke()
      * 返回结果
+     * 握手之后的请求只带方法编号，直接用方法表里预先找好的方法调用
      * @param request
      * @return
      * @throws Throwable
      */
     private Object handle(RpcRequest request) throws Throwable {
+        if (request.getMethodId() != RpcHandshake.NO_METHOD_ID) {
+            ServiceMethodTable.ServiceMethod method = methodTable.getMethod(request.getMethodId());
+            if (method == null) {
+                throw new IllegalStateException("Unknown method id " + request.getMethodId());
+            }
+            return method.invoke(request.getParameters());
+        }
         String className = request.getClassName();
         String version = request.getVersion();
         String serviceKey = ServiceUtil.makeServiceKey(className, version);
@@ -1,19 +1,22 @@
 package com.practise.serverv2.core;
 
-import com.esotericsoftware.kryo.serializers.DefaultSerializers;
-import com.practise.common.Serializer.protostuff.ProtostuffSerializer;
+import com.practise.common.Serializer.SerializerRegistry;
 import com.practise.common.entity.Beat;
 import com.practise.common.entity.RpcRequest;
 import com.practise.common.entity.RpcResponse;
+import com.practise.common.protocol.CodecContext;
+import com.practise.common.transport.Transport;
+import com.practise.common.transport.TransportProfile;
 import com.practise.common.utils.RpcDecoder;
 import com.practise.common.utils.RpcEncoder;
 import com.practise.common.utils.Serializer;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.timeout.IdleStateHandler;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -28,25 +31,53 @@ public class RpcServerInitializer  extends ChannelInitializer<SocketChannel> {
 
     private Map<String, Object> handlerMap;
     private ThreadPoolExecutor threadPoolExecutor;
+    private ServiceMethodTable methodTable;
+    /**
+     * 除了 protostuff 之外接受的序列化器
+     */
+    private Collection<Serializer> serializers;
+    /**
+     * 要不要合并 flush，socket 参数在 ServerBootstrap 上设置
+     */
+    private TransportProfile transportProfile;
 
     public RpcServerInitializer(Map<String, Object> handlerMap, ThreadPoolExecutor threadPoolExecutor) {
+        this(handlerMap, threadPoolExecutor, new ServiceMethodTable(handlerMap));
+    }
+
+    public RpcServerInitializer(Map<String, Object> handlerMap, ThreadPoolExecutor threadPoolExecutor,
+                                ServiceMethodTable methodTable) {
+        this(handlerMap, threadPoolExecutor, methodTable, Collections.<Serializer>emptyList());
+    }
+
+    public RpcServerInitializer(Map<String, Object> handlerMap, ThreadPoolExecutor threadPoolExecutor,
+                                ServiceMethodTable methodTable, Collection<Serializer> serializers) {
+        this(handlerMap, threadPoolExecutor, methodTable, serializers, TransportProfile.DEFAULT);
+    }
+
+    public RpcServerInitializer(Map<String, Object> handlerMap, ThreadPoolExecutor threadPoolExecutor,
+                                ServiceMethodTable methodTable, Collection<Serializer> serializers,
+                                TransportProfile transportProfile) {
         this.handlerMap = handlerMap;
         this.threadPoolExecutor = threadPoolExecutor;
+        this.methodTable = methodTable;
+        this.serializers = serializers;
+        this.transportProfile = transportProfile;
     }
 
 
     @Override
     protected void initChannel(SocketChannel socketChannel) throws Exception {
-        // kryo是一个高性能的序列化/反序列化工具
-        Serializer serializer = ProtostuffSerializer.class.newInstance();
-//        Serializer serializer = HessianSerializer.class.newInstance();
-//        Serializer serializer = KryoSerializer.class.newInstance();
+        // 默认用 protostuff，客户端用启用了的其他序列化器时，RpcDecoder 按帧头编号解码，响应也跟着用同一个
+        Serializer serializer = SerializerRegistry.getDefault();
+        // 解码按方法编号调用的请求时，要用方法表查参数类型
+        socketChannel.attr(CodecContext.KEY).set(new CodecContext(methodTable.getParameterTypes()));
         ChannelPipeline cp = socketChannel.pipeline();
         // 心跳机制，心跳间隔
         cp.addLast(new IdleStateHandler(0, 0, Beat.BEAT_TIMEOUT, TimeUnit.SECONDS));
-        cp.addLast(new LengthFieldBasedFrameDecoder(65536, 0, 4, 0, 0));
-        cp.addLast(new RpcDecoder(RpcRequest.class, serializer));
+        cp.addLast(new RpcDecoder(RpcRequest.class, serializer, serializers));
         cp.addLast(new RpcEncoder(RpcResponse.class, serializer));
-        cp.addLast(new RpcServerHandler(handlerMap, threadPoolExecutor));
+        cp.addLast(new RpcServerHandler(handlerMap, threadPoolExecutor, methodTable));
+        Transport.configure(cp, transportProfile);
     }
 }
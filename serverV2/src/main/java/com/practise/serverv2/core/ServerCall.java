@@ -0,0 +1,21 @@
+package com.practise.serverv2.core;
+
+import com.practise.common.entity.RpcStreamMessage;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ServerCall
+ * @date 2022/3/16 11:00
+ *
+ * 连接上一个还没结束的流式调用，RpcServerHandler 按流编号把客户端发来的流消息交给它
+ */
+interface ServerCall {
+
+    void onMessage(RpcStreamMessage message);
+
+    /**
+     * 客户端取消或者连接断开
+     */
+    void cancel();
+}
@@ -0,0 +1,181 @@
+package com.practise.serverv2.core;
+
+import com.practise.common.entity.RpcStreamMessage;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ServerStream
+ * @date 2022/3/15 11:00
+ *
+ * 服务端的一个流：服务方法返回的 Iterator，按客户端给的额度一条一条发 DATA
+ *
+ * 额度用完就停下，不再从 Iterator 里取，也不占线程池的线程；
+ * 客户端消费之后发 CREDIT，额度变正就重新提交一次 drain 到线程池
+ * 所以不管结果有多大，写缓冲区里最多只有额度那么多条消息，服务方法也是按需生成
+ *
+ * drain 只会有一个线程在跑：wip 从 0 变 1 的那次调用负责提交，
+ * 跑的过程中又来了 CREDIT/CANCEL 就让 wip 加一，drain 结束前再检查一遍
+ */
+class ServerStream implements ServerCall, Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerStream.class);
+
+    private final long streamId;
+    private final ChannelHandlerContext ctx;
+    private final Executor executor;
+    private final Map<Long, ServerCall> streams;
+
+    private final AtomicInteger credit;
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile Iterator<?> iterator;
+    private volatile boolean cancelled;
+    /**
+     * 只在 drain 里读写
+     */
+    private boolean done;
+
+    ServerStream(long streamId, int initialCredit, ChannelHandlerContext ctx, Executor executor,
+                 Map<Long, ServerCall> streams) {
+        this.streamId = streamId;
+        this.credit = new AtomicInteger(initialCredit);
+        this.ctx = ctx;
+        this.executor = executor;
+        this.streams = streams;
+    }
+
+    /**
+     * 服务方法返回之后开始发送
+     */
+    void start(Iterator<?> iterator) {
+        this.iterator = iterator;
+        schedule();
+    }
+
+    /**
+     * 服务方法本身抛了异常，直接以 ERROR 结束
+     */
+    void fail(Throwable error) {
+        streams.remove(streamId);
+        ctx.writeAndFlush(RpcStreamMessage.error(streamId, error));
+    }
+
+    @Override
+    public void onMessage(RpcStreamMessage message) {
+        if (message.getKind() == RpcStreamMessage.CREDIT) {
+            addCredit(message.getCredit());
+        } else if (message.getKind() == RpcStreamMessage.CANCEL) {
+            cancel();
+        }
+    }
+
+    void addCredit(int n) {
+        if (n > 0) {
+            credit.addAndGet(n);
+            schedule();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            logger.error("Stream {} rejected by the handler pool", streamId);
+            cancelled = true;
+            fail(e);
+            closeIterator();
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        do {
+            drain();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        if (done) {
+            return;
+        }
+        Iterator<?> it = iterator;
+        if (it == null) {
+            // 服务方法还没返回，取消的话等 start 之后再关 Iterator
+            if (cancelled) {
+                streams.remove(streamId);
+            }
+            return;
+        }
+        if (cancelled) {
+            finish();
+            return;
+        }
+        int sent = 0;
+        try {
+            while (!cancelled) {
+                // 先判断有没有下一个，额度为 0 时也能及时发 END
+                if (!it.hasNext()) {
+                    ctx.writeAndFlush(RpcStreamMessage.end(streamId));
+                    finish();
+                    return;
+                }
+                if (credit.get() <= 0) {
+                    break;
+                }
+                credit.decrementAndGet();
+                ctx.write(RpcStreamMessage.data(streamId, it.next()));
+                sent++;
+            }
+        } catch (Throwable t) {
+            logger.error("Stream {} failed after {} elements in this round", streamId, sent, t);
+            ctx.write(RpcStreamMessage.error(streamId, t));
+            ctx.flush();
+            finish();
+            return;
+        }
+        if (sent > 0) {
+            // 一轮只 flush 一次
+            ctx.flush();
+        }
+        if (cancelled) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        done = true;
+        streams.remove(streamId);
+        closeIterator();
+    }
+
+    private void closeIterator() {
+        Iterator<?> it = iterator;
+        if (it instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) it).close();
+            } catch (Exception e) {
+                logger.warn("Close iterator of stream {} error: {}", streamId, e.getMessage());
+            }
+        }
+    }
+}
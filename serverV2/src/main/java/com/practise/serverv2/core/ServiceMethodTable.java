@@ -0,0 +1,155 @@
+package com.practise.serverv2.core;
+
+import com.practise.common.compress.Compressor;
+import com.practise.common.compress.CompressorRegistry;
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcMethodInfo;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.protocol.RpcMethodKey;
+import com.practise.common.utils.ServiceUtil;
+import com.practise.serverv2.annotations.NettyRpcService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cglib.reflect.FastClass;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ServiceMethodTable
+ * @date 2022/3/14 14:00
+ *
+ * 服务端的方法表，服务启动时根据 serviceMap 生成一次：
+ *      给每个服务接口的每个方法分配一个编号（从 1 开始），
+ *      预先找好服务 bean、FastClass 和方法下标，按编号调用时不用再拼 serviceKey、查 map、找方法
+ * 连接建立时把方法表通过 {@link RpcHandshake} 发给客户端，压缩算法也在这时确定，之后再换字典不会通知已有的客户端
+ */
+public class ServiceMethodTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceMethodTable.class);
+
+    /**
+     * 下标是方法编号，0 空着
+     */
+    private final ServiceMethod[] methods;
+    private final Class<?>[][] parameterTypes;
+    private final RpcHandshake handshake;
+    /**
+     * 出错时把堆栈发给客户端的服务
+     */
+    private final Set<String> stackTraceServices = new HashSet<>();
+
+    public ServiceMethodTable(Map<String, Object> serviceMap) {
+        List<ServiceMethod> methodList = new ArrayList<>();
+        List<RpcMethodInfo> infoList = new ArrayList<>();
+        methodList.add(null);
+        for (Map.Entry<String, Object> entry : serviceMap.entrySet()) {
+            Object serviceBean = entry.getValue();
+            NettyRpcService annotation = serviceBean.getClass().getAnnotation(NettyRpcService.class);
+            boolean stackTrace = annotation != null && annotation.stackTrace();
+            if (stackTrace) {
+                stackTraceServices.add(entry.getKey());
+            }
+            Class<?> interfaceClass = findInterface(entry.getKey(), serviceBean);
+            if (interfaceClass == null) {
+                logger.warn("Can not load the interface of service {}, it can only be called by name", entry.getKey());
+                continue;
+            }
+            FastClass fastClass = FastClass.create(serviceBean.getClass());
+            for (Method method : interfaceClass.getMethods()) {
+                int index = fastClass.getIndex(method.getName(), method.getParameterTypes());
+                if (index < 0) {
+                    continue;
+                }
+                methodList.add(new ServiceMethod(serviceBean, fastClass, index, method.getParameterTypes(), stackTrace));
+                RpcMethodInfo info = new RpcMethodInfo();
+                info.setServiceKey(entry.getKey());
+                info.setMethodName(method.getName());
+                info.setParameterTypes(RpcMethodKey.typeNames(method.getParameterTypes()));
+                infoList.add(info);
+            }
+        }
+        this.methods = methodList.toArray(new ServiceMethod[0]);
+        this.parameterTypes = new Class<?>[methods.length][];
+        for (int i = 1; i < methods.length; i++) {
+            parameterTypes[i] = methods[i].parameterTypes;
+        }
+        this.handshake = new RpcHandshake();
+        this.handshake.setMethods(infoList);
+        this.handshake.setCompressors(CompressorRegistry.supportedIds());
+        this.handshake.setDictionaryId(CompressorRegistry.getCompressor(Compressor.DEFLATE).getDictionaryId());
+        logger.info("Service method table created, {} methods", infoList.size());
+    }
+
+    /**
+     * serviceKey 是 接口名#版本号
+     */
+    private static Class<?> findInterface(String serviceKey, Object serviceBean) {
+        int index = serviceKey.indexOf('#');
+        String interfaceName = index < 0 ? serviceKey : serviceKey.substring(0, index);
+        try {
+            return Class.forName(interfaceName, false, serviceBean.getClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    public RpcHandshake getHandshake() {
+        return handshake;
+    }
+
+    /**
+     * @return 下标是方法编号，给解码器按编号找参数类型
+     */
+    public Class<?>[][] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    /**
+     * @return 不认识的编号返回 null
+     */
+    public ServiceMethod getMethod(int methodId) {
+        return methodId > 0 && methodId < methods.length ? methods[methodId] : null;
+    }
+
+    /**
+     * 按名字调用的请求用 serviceKey 查，按编号调用的直接看方法表
+     * @return 这个请求出错时要不要把堆栈发给客户端
+     */
+    public boolean isStackTraceEnabled(RpcRequest request) {
+        if (request.getMethodId() != RpcHandshake.NO_METHOD_ID) {
+            ServiceMethod method = getMethod(request.getMethodId());
+            return method != null && method.stackTrace;
+        }
+        return !stackTraceServices.isEmpty()
+                && stackTraceServices.contains(ServiceUtil.makeServiceKey(request.getClassName(), request.getVersion()));
+    }
+
+    public static final class ServiceMethod {
+        private final Object serviceBean;
+        private final FastClass fastClass;
+        private final int index;
+        private final Class<?>[] parameterTypes;
+        private final boolean stackTrace;
+
+        private ServiceMethod(Object serviceBean, FastClass fastClass, int index, Class<?>[] parameterTypes,
+                              boolean stackTrace) {
+            this.serviceBean = serviceBean;
+            this.fastClass = fastClass;
+            this.index = index;
+            this.parameterTypes = parameterTypes;
+            this.stackTrace = stackTrace;
+        }
+
+        public Object invoke(Object[] parameters) throws InvocationTargetException {
+            return fastClass.invoke(index, serviceBean, parameters);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.practise.serverv2.core;
+
+import com.practise.common.entity.RpcStreamMessage;
+import com.practise.common.stream.StreamObserver;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description DuplexCallTest
+ * @date 2022/3/31 19:10
+ *
+ * 线程池换成在当前线程执行，发出去的消息都在 EmbeddedChannel 的出站队列里
+ */
+public class DuplexCallTest {
+
+    private static final long STREAM_ID = 9;
+    private static final int WINDOW = 4;
+
+    private final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    private final ChannelHandlerContext ctx = channel.pipeline().firstContext();
+    private final Map<Long, ServerCall> calls = new ConcurrentHashMap<>();
+    private final List<String> received = new ArrayList<>();
+
+    /**
+     * 服务方法返回的接收观察者
+     */
+    private final StreamObserver<Object> requestObserver = new StreamObserver<Object>() {
+        @Override
+        public void onNext(Object value) {
+            if ("bad".equals(value)) {
+                throw new IllegalStateException("bad value");
+            }
+            received.add("next:" + value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            received.add("error:" + t.getClass().getSimpleName());
+        }
+
+        @Override
+        public void onCompleted() {
+            received.add("completed");
+        }
+    };
+
+    private DuplexCall call(int clientCredit) {
+        DuplexCall call = new DuplexCall(STREAM_ID, clientCredit, WINDOW, ctx, Runnable::run, calls);
+        calls.put(STREAM_ID, call);
+        return call;
+    }
+
+    private RpcStreamMessage read() {
+        return channel.readOutbound();
+    }
+
+    /**
+     * 服务方法返回接收观察者之后才给客户端第一批额度，消费半个窗口再补
+     */
+    @Test
+    public void grantsCreditAfterStart() {
+        DuplexCall call = call(0);
+        call.onMessage(RpcStreamMessage.data(STREAM_ID, "a"));
+        assertNull(read());
+
+        call.start(requestObserver, WINDOW);
+
+        RpcStreamMessage credit = read();
+        assertEquals(RpcStreamMessage.CREDIT, credit.getKind());
+        assertEquals(WINDOW, credit.getCredit());
+        assertEquals(Arrays.asList("next:a"), received);
+        call.onMessage(RpcStreamMessage.data(STREAM_ID, "b"));
+        assertEquals(WINDOW / 2, read().getCredit());
+        call.onMessage(RpcStreamMessage.end(STREAM_ID));
+        assertEquals(Arrays.asList("next:a", "next:b", "completed"), received);
+    }
+
+    /**
+     * 发送方向没有额度先排队，客户端补了额度再发，排空之后才 ready
+     */
+    @Test
+    public void sendsWithinClientCredit() {
+        DuplexCall call = call(1);
+        AtomicInteger ready = new AtomicInteger();
+        call.setOnReadyHandler(ready::incrementAndGet);
+
+        call.onNext("a");
+        call.onNext("b");
+        call.onCompleted();
+
+        assertEquals("a", read().getPayload());
+        assertNull(read());
+        assertFalse(call.isReady());
+        call.onMessage(RpcStreamMessage.credit(STREAM_ID, 1));
+        assertEquals("b", read().getPayload());
+        assertEquals(RpcStreamMessage.END, read().getKind());
+        assertTrue(calls.isEmpty());
+        // 已经 onCompleted 了，不会再 ready
+        assertEquals(0, ready.get());
+        assertThrows(IllegalStateException.class, () -> call.onNext("c"));
+    }
+
+    @Test
+    public void onReadyAfterCredit() {
+        DuplexCall call = call(0);
+        AtomicInteger ready = new AtomicInteger();
+        call.setOnReadyHandler(ready::incrementAndGet);
+        assertFalse(call.isReady());
+
+        call.onMessage(RpcStreamMessage.credit(STREAM_ID, 2));
+
+        assertTrue(call.isReady());
+        assertEquals(1, ready.get());
+    }
+
+    /**
+     * 客户端取消：接收观察者收到 CancellationException，之后发的消息直接丢掉
+     */
+    @Test
+    public void cancelStopsBothDirections() {
+        DuplexCall call = call(0);
+        call.start(requestObserver, WINDOW);
+        read();
+        call.onNext("queued");
+
+        call.onMessage(RpcStreamMessage.cancel(STREAM_ID));
+
+        assertTrue(call.isCancelled());
+        assertTrue(calls.isEmpty());
+        assertEquals(Arrays.asList("error:CancellationException"), received);
+        call.onMessage(RpcStreamMessage.credit(STREAM_ID, 5));
+        call.onNext("dropped");
+        assertNull(read());
+    }
+
+    /**
+     * 接收观察者抛异常，丢掉还没发的消息，以 ERROR 结束
+     */
+    @Test
+    public void observerFailureAbortsCall() {
+        DuplexCall call = call(0);
+        call.start(requestObserver, WINDOW);
+        read();
+        call.onNext("queued");
+
+        call.onMessage(RpcStreamMessage.data(STREAM_ID, "bad"));
+
+        RpcStreamMessage error = read();
+        assertEquals(RpcStreamMessage.ERROR, error.getKind());
+        assertNull(read());
+        assertTrue(calls.isEmpty());
+    }
+}
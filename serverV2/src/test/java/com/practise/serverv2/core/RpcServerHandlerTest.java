@@ -0,0 +1,204 @@
+package com.practise.serverv2.core;
+
+import com.practise.common.Serializer.SerializerRegistry;
+import com.practise.common.entity.Person;
+import com.practise.common.entity.RpcAttachment;
+import com.practise.common.entity.RpcBatchRequest;
+import com.practise.common.entity.RpcBatchResponse;
+import com.practise.common.entity.RpcError;
+import com.practise.common.entity.RpcHandshake;
+import com.practise.common.entity.RpcRequest;
+import com.practise.common.entity.RpcResponse;
+import com.practise.common.protocol.RpcFrame;
+import com.practise.common.services.HelloServiceV2;
+import com.practise.common.utils.RpcDecoder;
+import com.practise.common.utils.RpcEncoder;
+import com.practise.common.utils.ServiceUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description RpcServerHandlerTest
+ * @date 2022/3/31 15:00
+ */
+public class RpcServerHandlerTest {
+
+    private static final String SERVICE_KEY = ServiceUtil.makeServiceKey(HelloServiceV2.class.getName(), "1.0");
+
+    static class HelloServiceV2Stub implements HelloServiceV2 {
+        @Override
+        public String helloV2(String name) {
+            if ("boom".equals(name)) {
+                throw new IllegalArgumentException(name);
+            }
+            return "Hello " + name;
+        }
+
+        @Override
+        public Person helloV2(Person person) {
+            return person;
+        }
+    }
+
+    /**
+     * 在提交任务的线程里直接执行，响应都在测试线程里写出去
+     */
+    static ThreadPoolExecutor directPool() {
+        return new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+    }
+
+    static ThreadPoolExecutor shutdownPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        pool.shutdown();
+        return pool;
+    }
+
+    private static EmbeddedChannel channel(ThreadPoolExecutor pool) {
+        Map<String, Object> serviceMap = new HashMap<>();
+        serviceMap.put(SERVICE_KEY, new HelloServiceV2Stub());
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new RpcServerHandler(serviceMap, pool, new ServiceMethodTable(serviceMap)));
+        assertTrue(channel.readOutbound() instanceof RpcHandshake);
+        return channel;
+    }
+
+    private static RpcRequest hello(long requestId, String name) {
+        RpcRequest request = new RpcRequest();
+        request.setRequestId(requestId);
+        request.setClassName(HelloServiceV2.class.getName());
+        request.setVersion("1.0");
+        request.setMethodName("helloV2");
+        request.setParameterTypes(new Class<?>[]{String.class});
+        request.setParameters(new Object[]{name});
+        return request;
+    }
+
+    private static RpcBatchRequest batch(boolean parallel, String... names) {
+        List<RpcRequest> requests = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            requests.add(hello(i + 1, names[i]));
+        }
+        RpcBatchRequest batch = new RpcBatchRequest();
+        batch.setRequests(requests);
+        batch.setParallel(parallel);
+        return batch;
+    }
+
+    @Test
+    public void rejectedRequestGetsRejectedResponse() {
+        EmbeddedChannel channel = channel(shutdownPool());
+
+        ByteBuf content = Unpooled.buffer().writeInt(1);
+        RpcRequest request = new RpcRequest();
+        request.setRequestId(7);
+        request.setMethodName("hello");
+        request.setParameters(new Object[]{RpcAttachment.of(content)});
+        channel.writeInbound(request);
+
+        RpcResponse response = channel.readOutbound();
+        assertEquals(7, response.getRequestId());
+        assertEquals(RpcError.REJECTED, response.getError().getCode());
+        assertEquals(0, content.refCnt());
+        assertTrue(channel.isOpen());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void batchIsAnsweredInOneFrame() {
+        for (boolean parallel : new boolean[]{false, true}) {
+            EmbeddedChannel channel = channel(directPool());
+
+            channel.writeInbound(batch(parallel, "a", "boom", "c"));
+
+            RpcBatchResponse batchResponse = channel.readOutbound();
+            assertNull(channel.readOutbound());
+            assertArrayEquals(new long[]{1, 2, 3}, batchResponse.getRequestIds());
+            List<RpcResponse> responses = batchResponse.getResponses();
+            assertEquals("Hello a", responses.get(0).getResult());
+            // 一个调用失败不影响同一批的其他调用
+            assertEquals(RpcError.SERVICE_ERROR, responses.get(1).getError().getCode());
+            assertEquals("Hello c", responses.get(2).getResult());
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void rejectedBatchGetsRejectedResponses() {
+        for (boolean parallel : new boolean[]{false, true}) {
+            EmbeddedChannel channel = channel(shutdownPool());
+
+            channel.writeInbound(batch(parallel, "a", "b"));
+
+            RpcBatchResponse batchResponse = channel.readOutbound();
+            assertArrayEquals(new long[]{1, 2}, batchResponse.getRequestIds());
+            for (RpcResponse response : batchResponse.getResponses()) {
+                assertEquals(RpcError.REJECTED, response.getError().getCode());
+            }
+            assertTrue(channel.isOpen());
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * 整批编出来超过一帧的上限时拆成几帧，单个响应太大的换成 SERVER_ERROR
+     */
+    @Test
+    public void oversizedBatchIsSplit() {
+        Map<String, Object> serviceMap = new HashMap<>();
+        serviceMap.put(SERVICE_KEY, new HelloServiceV2Stub());
+        EmbeddedChannel server = new EmbeddedChannel(
+                new RpcEncoder(RpcResponse.class, SerializerRegistry.getDefault()),
+                new RpcServerHandler(serviceMap, directPool(), new ServiceMethodTable(serviceMap)));
+        EmbeddedChannel client = new EmbeddedChannel(new RpcDecoder(RpcResponse.class, SerializerRegistry.getDefault()));
+        char[] large = new char[RpcFrame.MAX_FRAME_LENGTH / 3];
+        char[] huge = new char[RpcFrame.MAX_FRAME_LENGTH + 1];
+        Arrays.fill(large, 'x');
+        Arrays.fill(huge, 'y');
+
+        server.writeInbound(batch(false, new String(large), new String(large), new String(huge), "d"));
+        for (ByteBuf frame = server.readOutbound(); frame != null; frame = server.readOutbound()) {
+            client.writeInbound(frame);
+        }
+
+        assertTrue(client.readInbound() instanceof RpcHandshake);
+        Map<Long, RpcResponse> responses = new HashMap<>();
+        int frames = 0;
+        for (RpcBatchResponse batchResponse = client.readInbound(); batchResponse != null; batchResponse = client.readInbound()) {
+            frames++;
+            for (RpcResponse response : batchResponse.getResponses()) {
+                responses.put(response.getRequestId(), response);
+            }
+        }
+        assertTrue(frames > 1);
+        assertEquals(4, responses.size());
+        assertEquals(large.length + 6, ((String) responses.get(1L).getResult()).length());
+        assertEquals(large.length + 6, ((String) responses.get(2L).getResult()).length());
+        assertEquals(RpcError.SERVER_ERROR, responses.get(3L).getError().getCode());
+        assertEquals("Hello d", responses.get(4L).getResult());
+        assertTrue(server.isOpen());
+        server.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,135 @@
+package com.practise.serverv2.core;
+
+import com.practise.common.entity.RpcStreamMessage;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HzeLng
+ * @version 1.0
+ * @description ServerStreamTest
+ * @date 2022/3/31 18:40
+ *
+ * 线程池换成在当前线程执行，发出去的消息都在 EmbeddedChannel 的出站队列里
+ */
+public class ServerStreamTest {
+
+    private static final long STREAM_ID = 7;
+
+    private final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    private final ChannelHandlerContext ctx = channel.pipeline().firstContext();
+    private final Map<Long, ServerCall> streams = new ConcurrentHashMap<>();
+
+    private ServerStream stream(int credit) {
+        ServerStream stream = new ServerStream(STREAM_ID, credit, ctx, Runnable::run, streams);
+        streams.put(STREAM_ID, stream);
+        return stream;
+    }
+
+    private void assertData(Object... payloads) {
+        for (Object payload : payloads) {
+            RpcStreamMessage message = channel.readOutbound();
+            assertEquals(RpcStreamMessage.DATA, message.getKind());
+            assertEquals(STREAM_ID, message.getStreamId());
+            assertEquals(payload, message.getPayload());
+        }
+    }
+
+    private void assertKind(byte kind) {
+        RpcStreamMessage message = channel.readOutbound();
+        assertEquals(kind, message.getKind());
+    }
+
+    static class CloseableIterator implements Iterator<Integer>, AutoCloseable {
+        private int next;
+        private boolean closed;
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public Integer next() {
+            if (next == 2) {
+                throw new IllegalStateException("broken");
+            }
+            return next++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * 额度用完就停，客户端还了额度再接着发
+     */
+    @Test
+    public void sendsOnlyWithCredit() {
+        ServerStream stream = stream(2);
+
+        stream.start(Arrays.asList(1, 2, 3, 4, 5).iterator());
+        assertData(1, 2);
+        assertNull(channel.readOutbound());
+        stream.addCredit(2);
+        assertData(3, 4);
+        assertNull(channel.readOutbound());
+        stream.onMessage(RpcStreamMessage.credit(STREAM_ID, 5));
+
+        assertData(5);
+        assertKind(RpcStreamMessage.END);
+        assertTrue(streams.isEmpty());
+    }
+
+    @Test
+    public void endWithoutCredit() {
+        stream(0).start(Collections.emptyIterator());
+
+        assertKind(RpcStreamMessage.END);
+        assertNull(channel.readOutbound());
+        assertTrue(streams.isEmpty());
+    }
+
+    @Test
+    public void cancelClosesIterator() {
+        ServerStream stream = stream(1);
+        CloseableIterator iterator = new CloseableIterator();
+        stream.start(iterator);
+        assertData(0);
+        assertNull(channel.readOutbound());
+
+        stream.onMessage(RpcStreamMessage.cancel(STREAM_ID));
+
+        assertTrue(iterator.closed);
+        assertTrue(streams.isEmpty());
+        stream.addCredit(5);
+        assertNull(channel.readOutbound());
+    }
+
+    @Test
+    public void iteratorErrorEndsStream() {
+        ServerStream stream = stream(5);
+        CloseableIterator iterator = new CloseableIterator();
+
+        stream.start(iterator);
+
+        assertData(0, 1);
+        assertKind(RpcStreamMessage.ERROR);
+        assertTrue(iterator.closed);
+        assertTrue(streams.isEmpty());
+    }
+}